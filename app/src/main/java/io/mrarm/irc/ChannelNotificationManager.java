@@ -66,34 +66,47 @@ public class ChannelNotificationManager {
 
 
         mConversationStateRepo =
-                new ConversationStateRepository(
+                ConversationStateRepository.getInstance(
                         connection.getConnectionManager().getContext()
                 );
     }
 
     void initUnreadState() {
-        AppAsyncExecutor.io(() -> {
-            ConversationStateEntity state =
-                    mConversationStateRepo.getState(
-                            mConnection.getUUID(), mChannel
-                    );
+        // Usually already in memory thanks to ConversationStateRepository.bootstrap()
+        if (mConversationStateRepo.isLoaded(mConnection.getUUID(), mChannel)) {
+            applyUnreadState();
+            return;
+        }
+        AppAsyncExecutor.io(this::applyUnreadState);
+    }
 
-            int unread =
-                    (int) mConversationStateRepo.getUnreadCount(
-                            mConnection.getUUID(), mChannel
-                    );
+    private void applyUnreadState() {
+        ConversationStateEntity state =
+                mConversationStateRepo.getState(
+                        mConnection.getUUID(), mChannel
+                );
 
-            MessageId firstUnread = null;
-            if (state != null && state.firstUnreadId != 0) {
-                firstUnread = mConnection.getMessageIdParser()
-                        .parse(Long.toString(state.firstUnreadId));
-            }
+        int unread =
+                (int) mConversationStateRepo.getUnreadCount(
+                        mConnection.getUUID(), mChannel
+                );
 
-            synchronized (this) {
-                mUnreadMessageCount = unread;
-                mFirstUnreadMessage = firstUnread;
-            }
-        });
+        MessageId firstUnread = null;
+        if (state != null && state.firstUnreadId != 0) {
+            firstUnread = mConnection.getMessageIdParser()
+                    .parse(Long.toString(state.firstUnreadId));
+        }
+
+        int oldCount;
+        synchronized (this) {
+            oldCount = mUnreadMessageCount;
+            mUnreadMessageCount = unread;
+            mFirstUnreadMessage = firstUnread;
+        }
+        if (unread != oldCount)
+            NotificationManager.getInstance().callUnreadMessageCountCallbacks(
+                    mConnection, mChannel, unread, oldCount
+            );
     }
 
     public ServerConnectionSession getConnection() {
@@ -130,17 +143,13 @@ public class ChannelNotificationManager {
         synchronized (this) {
             int oldCount = mUnreadMessageCount;
 
-            mConversationStateRepo.onUnreadMessageArrived(
+            // In-memory only, the repository writes the state back in batches
+            mUnreadMessageCount = (int) mConversationStateRepo.onUnreadMessageArrived(
                     mConnection.getUUID(),
                     mChannel,
                     Long.parseLong(msgId.toString())
             );
 
-            mUnreadMessageCount = (int) mConversationStateRepo.getUnreadCount(
-                    mConnection.getUUID(),
-                    mChannel
-            );
-
             if (mFirstUnreadMessage == null)
                 mFirstUnreadMessage = msgId;
 
@@ -190,6 +199,8 @@ public class ChannelNotificationManager {
         synchronized (this) {
             int prevCount = mUnreadMessageCount;
 
+            mConversationStateRepo.resetUnreadCount(mConnection.getUUID(), mChannel);
+
             // Find newest message id for this channel
             AppAsyncExecutor.io(() -> {
                 Long newestMessageId =
@@ -107,7 +107,9 @@ public class EditServerActivity extends ThemedActivity {
     private ChipsEditText mServerChannels;
     private CheckBox mServerRejoinChannels;
     private AutoRunCommandListEditText mServerCommands;
+    private EditText mServerFloodControlBurst;
     private Spinner mServerEncoding;
+    private CheckBox mServerMultiplexedTransport;
 
     private View mServerUserExpandIcon;
     private View mServerUserExpandContent;
@@ -174,7 +176,9 @@ public class EditServerActivity extends ThemedActivity {
         mServerChannels = findViewById(R.id.server_channels);
         mServerRejoinChannels = findViewById(R.id.server_rejoin_channels);
         mServerCommands = findViewById(R.id.server_commands);
+        mServerFloodControlBurst = findViewById(R.id.server_flood_control_burst);
         mServerEncoding = findViewById(R.id.server_encoding);
+        mServerMultiplexedTransport = findViewById(R.id.server_multiplexed_transport);
 
         mServerUserExpandIcon = findViewById(R.id.server_user_expand);
         mServerUserExpandContent = findViewById(R.id.server_user_expand_content);
@@ -254,6 +258,9 @@ public class EditServerActivity extends ThemedActivity {
             mServerSSL.setChecked(mEditServer.ssl);
             mServerPort.setText(String.valueOf(mEditServer.port));
             mServerRejoinChannels.setChecked(mEditServer.rejoinChannels);
+            mServerMultiplexedTransport.setChecked(mEditServer.multiplexedTransport);
+            if (mEditServer.floodControlBurst > 0)
+                mServerFloodControlBurst.setText(String.valueOf(mEditServer.floodControlBurst));
 
             if (mEditServer.pass != null) {
                 mServerPass.setHasProtectedPassword(mEditServer.pass);
@@ -423,6 +430,12 @@ public class EditServerActivity extends ThemedActivity {
         mEditServer.execCommandsConnected = mServerCommands.getText().length() > 0
                 ? Arrays.asList(mServerCommands.getTextWithPasswords().split("\n")) : null;
         mEditServer.charset = mServerEncodingValues[mServerEncoding.getSelectedItemPosition()];
+        mEditServer.multiplexedTransport = mServerMultiplexedTransport.isChecked();
+        try {
+            mEditServer.floodControlBurst = Integer.parseInt(mServerFloodControlBurst.getText().toString());
+        } catch (NumberFormatException e) {
+            mEditServer.floodControlBurst = 0;
+        }
         try {
             ServerConfigManager.getInstance(this).saveServer(mEditServer);
         } catch (IOException e) {
@@ -13,6 +13,8 @@ import java.util.List;
 
 import io.mrarm.irc.config.SettingsHelper;
 import io.mrarm.irc.connection.ServerConnectionManager;
+import io.mrarm.irc.infrastructure.threading.AppAsyncExecutor;
+import io.mrarm.irc.storage.ConversationStateRepository;
 
 /**
  * <b>IRCApplication</b>
@@ -248,6 +250,8 @@ public class IRCApplication extends Application implements Application.ActivityL
     public void onActivityStopped(Activity activity) {
         Log.i("[FLOW]", ">>> Activity stopped, IRCApplication.onActivityStopped() stopped "
                 + activity.getClass().getSimpleName());
+        // Read markers are written with a delay; the process may be killed any time once in the background
+        AppAsyncExecutor.io(() -> ConversationStateRepository.getInstance(this).flush());
     }
 
     @Override
@@ -17,7 +17,9 @@ import androidx.core.app.NotificationCompat
 import androidx.lifecycle.LifecycleService
 import androidx.lifecycle.lifecycleScope
 import io.mrarm.irc.connection.ServerConnectionManager
+import io.mrarm.irc.infrastructure.threading.AppAsyncExecutor
 import io.mrarm.irc.job.ServerPingScheduler
+import io.mrarm.irc.storage.ConversationStateRepository
 import io.mrarm.irc.util.WarningHelper
 import kotlinx.coroutines.launch
 
@@ -57,6 +59,7 @@ class IRCService : LifecycleService() {
         super.onDestroy()
         unregisterNetworkCallback()
         ServerPingScheduler.getInstance(this).stop()
+        AppAsyncExecutor.io { ConversationStateRepository.getInstance(this).flush() }
     }
 
     /**
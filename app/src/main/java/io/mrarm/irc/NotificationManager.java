@@ -25,6 +25,8 @@ import io.mrarm.irc.config.NotificationRule;
 import io.mrarm.irc.config.NotificationRuleManager;
 import io.mrarm.irc.connection.ServerConnectionManager;
 import io.mrarm.irc.connection.ServerConnectionSession;
+import io.mrarm.irc.infrastructure.threading.AppAsyncExecutor;
+import io.mrarm.irc.storage.ConversationStateRepository;
 import io.mrarm.irc.util.WarningHelper;
 
 public class NotificationManager {
@@ -304,6 +306,20 @@ public class NotificationManager {
             return mConnection.getUUID();
         }
 
+        /**
+         * Creates the channel managers of all conversations of this server with unread messages, so the drawer and
+         * tabs show their counters without waiting for a message. The state of all servers is loaded with a single
+         * query by the first connection to get here.
+         */
+        public void loadUnreadState(Context context) {
+            AppAsyncExecutor.io(() -> {
+                ConversationStateRepository repo = ConversationStateRepository.getInstance(context);
+                repo.bootstrap();
+                for (String channel : repo.getUnreadCounts(mConnection.getUUID()).keySet())
+                    getChannelManager(channel, true);
+            });
+        }
+
         public void addUnreadMessageCountCallback(UnreadMessageCountCallback callback) {
             synchronized (mUnreadCallbacks) {
                 mUnreadCallbacks.add(callback);
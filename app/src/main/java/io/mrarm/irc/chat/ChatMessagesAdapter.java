@@ -14,21 +14,28 @@ import android.view.ViewGroup;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
 import io.mrarm.irc.NotificationManager;
 import io.mrarm.irc.R;
+import io.mrarm.irc.chatlib.ChatApi;
 import io.mrarm.irc.chatlib.dto.MessageId;
 import io.mrarm.irc.chatlib.dto.MessageInfo;
+import io.mrarm.irc.chatlib.dto.ModeList;
 import io.mrarm.irc.chatlib.dto.RoomMessageId;
+import io.mrarm.irc.chatlib.irc.ServerConnectionApi;
 import io.mrarm.irc.util.AlignToPointSpan;
 import io.mrarm.irc.util.LongPressSelectTouchListener;
 import io.mrarm.irc.util.MessageBuilder;
@@ -41,7 +48,15 @@ public class ChatMessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
     private static final int TYPE_DAY_MARKER = 1;
     private static final int TYPE_MESSAGE_WITH_NEW_MESSAGE_MARKER = 2;
 
+    /**
+     * Messages are loaded a page at a time; the adapter keeps at most MAX_PAGES of them around what is on screen.
+     */
+    public static final int PAGE_SIZE = 100;
+    public static final int MAX_PAGES = 5;
+    private static final int EVICT_MARGIN = PAGE_SIZE / 2;
+
     private ChatMessagesFragment mFragment;
+    private RenderedMessageCache mRenderCache;
     private List<Item> mMessages;
     private List<Item> mPrependedMessages;
     private LongPressSelectTouchListener mMultiSelectListener;
@@ -60,9 +75,18 @@ public class ChatMessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
 
     private MessageId mNewMessagesStart;
 
+    // Message id -> item id, see getItemId()
+    private final Map<MessageId, Long> mItemIds = new HashMap<>();
+    private int mMessageCount;
+    private boolean mAtLatest = true;
+    private final List<MessageInfo> mPendingLiveMessages = new ArrayList<>();
+    private final List<MessageId> mPendingLiveMessageIds = new ArrayList<>();
+    private RecyclerView mRecyclerView;
+
     public ChatMessagesAdapter(ChatMessagesFragment fragment, List<MessageInfo> messages,
                                List<MessageId> messageIds) {
         mFragment = fragment;
+        mRenderCache = RenderedMessageCache.getInstance(fragment.getContext());
         StyledAttributesHelper ta = StyledAttributesHelper.obtainStyledAttributes(fragment.getContext(),
                 new int[] { R.attr.selectableItemBackground, R.attr.colorControlHighlight });
         // mItemBackground = ta.getDrawable(R.attr.selectableItemBackground);
@@ -75,12 +99,15 @@ public class ChatMessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
         setHasStableIds(true);
     }
 
+    // Without a fragment nothing is rendered, only the items are kept; used to test the windowing
+    ChatMessagesAdapter(List<MessageInfo> messages, List<MessageId> messageIds) {
+        setMessages(messages, messageIds);
+        setHasStableIds(true);
+    }
+
     public long getFirstMessageId() {
-        for (Item it : mPrependedMessages) {
-            if (it instanceof MessageItem)
-                return ((RoomMessageId) ((MessageItem) it).mMessageId).getId();
-        }
-        for (Item it : mMessages) {
+        for (int i = 0; i < getItemCount(); i++) {
+            Item it = getMessage(i);
             if (it instanceof MessageItem)
                 return ((RoomMessageId) ((MessageItem) it).mMessageId).getId();
         }
@@ -88,13 +115,8 @@ public class ChatMessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
     }
 
     public long getLastMessageId() {
-        for (int i = mMessages.size() - 1; i >= 0; i--) {
-            Item it = mMessages.get(i);
-            if (it instanceof MessageItem)
-                return ((RoomMessageId) ((MessageItem) it).mMessageId).getId();
-        }
-        for (int i = mPrependedMessages.size() - 1; i >= 0; i--) {
-            Item it = mPrependedMessages.get(i);
+        for (int i = getItemCount() - 1; i >= 0; i--) {
+            Item it = getMessage(i);
             if (it instanceof MessageItem)
                 return ((RoomMessageId) ((MessageItem) it).mMessageId).getId();
         }
@@ -132,17 +154,8 @@ public class ChatMessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
     public int findMessageWithId(MessageId id) {
         if (id == null)
             return -1;
-        for (int i = mPrependedMessages.size() - 1; i >= 0; --i) {
-            Item it = mPrependedMessages.get(i);
-            if (it instanceof MessageItem && ((MessageItem) it).mMessageId.equals(id))
-                return mPrependedMessages.size() - 1 - i;
-        }
-        for (int i = mMessages.size() - 1; i >= 0; --i) {
-            Item it = mMessages.get(i);
-            if (it instanceof MessageItem && ((MessageItem) it).mMessageId.equals(id))
-                return mPrependedMessages.size() + i;
-        }
-        return -1;
+        Long itemId = mItemIds.get(id);
+        return itemId != null ? getItemPosition(itemId) : -1;
     }
 
     private void deleteMessageInternal(int index) {
@@ -166,36 +179,57 @@ public class ChatMessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
             ret++;
         }
         mMessages.add(new MessageItem(m, mi));
+        mItemIds.put(mi, getItemId(getItemCount() - 1));
+        mMessageCount++;
         ret++;
         return ret;
     }
 
+    // Every item added at the top shifts the positions, the offset keeps the item ids stable
     private int prependMessageInternal(MessageInfo m, MessageId mi) {
         int ret = 0;
         int day = getDayInt(m.getDate());
         if (mLastMessageDay == -1)
             mLastMessageDay = day;
         if (day != mFirstMessageDay) {
-            mPrependedMessages.add(new DayMarkerItem(day));
+            // The marker ends up below the message, so it is the one of the day after it
+            if (mFirstMessageDay != -1) {
+                mPrependedMessages.add(new DayMarkerItem(mFirstMessageDay));
+                mItemIdOffset++;
+                ret++;
+            }
             mFirstMessageDay = day;
-            ret++;
         }
         mPrependedMessages.add(new MessageItem(m, mi));
+        mItemIdOffset++;
+        mItemIds.put(mi, getItemId(0));
+        mMessageCount++;
         ret++;
         return ret;
     }
 
     public void appendMessage(MessageInfo m, MessageId mi) {
-        int c = appendMessageInternal(m, mi);
-        if (c == 1)
-            notifyItemInserted(mMessages.size() - 1);
-        else
-            notifyItemRangeInserted(mMessages.size() - c, c);
+        addMessagesToBottom(Collections.singletonList(m), Collections.singletonList(mi));
     }
 
     public void setMessages(List<MessageInfo> messages, List<MessageId> messageIds) {
+        setMessages(messages, messageIds, true);
+    }
+
+    /**
+     * @param latest whether the messages end with the newest one, live messages are only appended if they do
+     */
+    public void setMessages(List<MessageInfo> messages, List<MessageId> messageIds, boolean latest) {
+        precompute(messages, messageIds);
         mMessages = new ArrayList<>();
         mPrependedMessages = new ArrayList<>();
+        mItemIds.clear();
+        mMessageCount = 0;
+        mFirstMessageDay = -1;
+        mLastMessageDay = -1;
+        mAtLatest = latest;
+        mPendingLiveMessages.clear();
+        mPendingLiveMessageIds.clear();
         int n = messages.size();
         for (int i = 0; i < n; i++)
             appendMessageInternal(messages.get(i), messageIds.get(i));
@@ -205,29 +239,204 @@ public class ChatMessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
     public void addMessagesToTop(List<MessageInfo> messages, List<MessageId> messageIds) {
         if (messages.size() == 0)
             return;
+        precompute(messages, messageIds);
+        int shift = 0;
         if (getMessage(0) instanceof DayMarkerItem) {
             deleteMessageInternal(0);
             notifyItemRangeRemoved(0, 1);
             mItemIdOffset -= 1;
+            shift--;
         }
         int cnt = 0;
         for (int i = messages.size() - 1; i >= 0; --i)
             cnt += prependMessageInternal(messages.get(i), messageIds.get(i));
         mPrependedMessages.add(new DayMarkerItem(mFirstMessageDay));
+        mItemIdOffset++;
         ++cnt;
-        mItemIdOffset += cnt;
         notifyItemRangeInserted(0, cnt);
+        trimWindow(false, shift + cnt);
     }
 
     public void addMessagesToBottom(List<MessageInfo> messages, List<MessageId> messageIds) {
         if (messages.size() == 0)
             return;
+        precompute(messages, messageIds);
         int appendAt = getItemCount();
         int cnt = 0;
         int n = messages.size();
         for (int i = 0; i < n; i++)
             cnt += appendMessageInternal(messages.get(i), messageIds.get(i));
         notifyItemRangeInserted(appendAt, cnt);
+        trimWindow(true, 0);
+    }
+
+    /**
+     * Appends messages which were just received, if the newest messages are loaded. Otherwise the last page of them
+     * is kept until {@link #onReachedLatest()}, in case they arrive while the page before them is being loaded.
+     * Returns whether the messages were appended. Messages which are already loaded are skipped: the history may have
+     * been read (or served from memory) after they were persisted but before they were delivered here.
+     */
+    public boolean appendLiveMessages(List<MessageInfo> messages, List<MessageId> messageIds) {
+        if (mAtLatest) {
+            addNewerMessagesToBottom(messages, messageIds);
+            return true;
+        }
+        mPendingLiveMessages.addAll(messages);
+        mPendingLiveMessageIds.addAll(messageIds);
+        int excess = mPendingLiveMessages.size() - PAGE_SIZE;
+        if (excess > 0) {
+            mPendingLiveMessages.subList(0, excess).clear();
+            mPendingLiveMessageIds.subList(0, excess).clear();
+        }
+        return false;
+    }
+
+    /**
+     * Called once loading newer messages returned less than a page, i.e. the newest message is loaded.
+     */
+    public void onReachedLatest() {
+        if (mAtLatest)
+            return;
+        mAtLatest = true;
+        List<MessageInfo> messages = new ArrayList<>(mPendingLiveMessages);
+        List<MessageId> messageIds = new ArrayList<>(mPendingLiveMessageIds);
+        mPendingLiveMessages.clear();
+        mPendingLiveMessageIds.clear();
+        addNewerMessagesToBottom(messages, messageIds);
+    }
+
+    private void addNewerMessagesToBottom(List<MessageInfo> messages, List<MessageId> messageIds) {
+        long lastId = getLastMessageId();
+        int skip = 0;
+        while (skip < messageIds.size() && !(messageIds.get(skip) instanceof RoomMessageId &&
+                ((RoomMessageId) messageIds.get(skip)).getId() > lastId))
+            skip++;
+        if (skip > 0) {
+            messages = messages.subList(skip, messages.size());
+            messageIds = messageIds.subList(skip, messageIds.size());
+        }
+        addMessagesToBottom(messages, messageIds);
+    }
+
+    public boolean isAtLatest() {
+        return mAtLatest;
+    }
+
+    /**
+     * Once the window holds more than MAX_PAGES pages of messages, drops pages from the end opposite to the one
+     * messages were just added to, down to one page less. What is on screen and EVICT_MARGIN items around it are
+     * kept, and so is everything while items are selected, as the selection refers to the item ids. Dropped messages
+     * are loaded again when scrolled to, like any other page.
+     *
+     * @param shift how much the visible positions moved since the last layout
+     */
+    private void trimWindow(boolean fromTop, int shift) {
+        int target = mMessageCount - (MAX_PAGES - 1) * PAGE_SIZE;
+        if (mMessageCount <= MAX_PAGES * PAGE_SIZE || target <= 0)
+            return;
+        if (!mSelectedItems.isEmpty() || (mSelectListener != null && mSelectListener.hasSelection()))
+            return;
+        int first = 0;
+        int last = getItemCount() - 1;
+        if (mRecyclerView != null && mRecyclerView.getLayoutManager() instanceof LinearLayoutManager) {
+            LinearLayoutManager layoutManager = (LinearLayoutManager) mRecyclerView.getLayoutManager();
+            int firstVisible = layoutManager.findFirstVisibleItemPosition();
+            int lastVisible = layoutManager.findLastVisibleItemPosition();
+            if (firstVisible != RecyclerView.NO_POSITION) {
+                first = firstVisible + shift;
+                last = lastVisible + shift;
+            }
+        }
+        if (fromTop)
+            evictTop(target, first - EVICT_MARGIN);
+        else
+            evictBottom(target, last + EVICT_MARGIN);
+    }
+
+    private void evictTop(int target, int limit) {
+        int cnt = 0;
+        int removed = 0;
+        while (cnt < limit && removed < target) {
+            Item it = getMessage(cnt++);
+            if (it instanceof MessageItem) {
+                mItemIds.remove(((MessageItem) it).mMessageId);
+                removed++;
+            }
+        }
+        if (removed == 0)
+            return;
+        removeRange(0, cnt);
+        mMessageCount -= removed;
+        mItemIdOffset -= cnt;
+        notifyItemRangeRemoved(0, cnt);
+        // The window has to start with the day marker of its first message
+        Item first = getMessage(0);
+        if (first instanceof MessageItem) {
+            mFirstMessageDay = getDayInt(((MessageItem) first).mMessage.getDate());
+            mPrependedMessages.add(new DayMarkerItem(mFirstMessageDay));
+            mItemIdOffset++;
+            notifyItemInserted(0);
+        } else if (first instanceof DayMarkerItem) {
+            mFirstMessageDay = ((DayMarkerItem) first).mDate;
+        }
+    }
+
+    private void evictBottom(int target, int limit) {
+        int count = getItemCount();
+        int cnt = 0;
+        int removed = 0;
+        while (count - 1 - cnt > limit && removed < target) {
+            Item it = getMessage(count - 1 - cnt++);
+            if (it instanceof MessageItem) {
+                mItemIds.remove(((MessageItem) it).mMessageId);
+                removed++;
+            }
+        }
+        if (removed == 0)
+            return;
+        // Don't leave the day marker of the dropped messages behind
+        if (count - 1 - cnt >= 0 && getMessage(count - 1 - cnt) instanceof DayMarkerItem)
+            cnt++;
+        removeRange(count - cnt, cnt);
+        mMessageCount -= removed;
+        mAtLatest = false;
+        notifyItemRangeRemoved(count - cnt, cnt);
+        Item last = getMessage(getItemCount() - 1);
+        if (last instanceof MessageItem)
+            mLastMessageDay = getDayInt(((MessageItem) last).mMessage.getDate());
+    }
+
+    private void removeRange(int start, int count) {
+        int prepended = mPrependedMessages.size();
+        int end = start + count;
+        if (start < prepended) {
+            // mPrependedMessages is in reverse order
+            int prependedEnd = Math.min(end, prepended);
+            mPrependedMessages.subList(prepended - prependedEnd, prepended - start).clear();
+        }
+        if (end > prepended) {
+            int messagesStart = Math.max(start, prepended) - prepended;
+            mMessages.subList(messagesStart, end - prepended).clear();
+        }
+    }
+
+    private void precompute(List<MessageInfo> messages, List<MessageId> messageIds) {
+        if (mRenderCache != null)
+            mRenderCache.precompute(messages, messageIds, this::shouldUseMentionFormatting, getChannelTypes());
+    }
+
+    // Also called on the render thread
+    private ModeList getChannelTypes() {
+        ChatApi api = mFragment.getConnectionInfo().getApiInstance();
+        if (api instanceof ServerConnectionApi)
+            return ((ServerConnectionApi) api).getServerConnectionData().getSupportList()
+                    .getSupportedChannelTypes();
+        return null;
+    }
+
+    private boolean shouldUseMentionFormatting(MessageInfo message) {
+        return NotificationManager.getInstance().shouldMessageUseMentionFormatting(mFragment.getConnectionInfo(),
+                mFragment.getChannelName(), message);
     }
 
     public boolean hasMessages() {
@@ -310,6 +519,16 @@ public class ChatMessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
         }
     }
 
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        mRecyclerView = recyclerView;
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        mRecyclerView = null;
+    }
+
     @Override
     public void onViewRecycled(@NonNull RecyclerView.ViewHolder holder) {
         ((BaseHolder) holder).unbind();
@@ -458,10 +677,8 @@ public class ChatMessagesAdapter extends RecyclerView.Adapter<RecyclerView.ViewH
                 setSelected(mSelectedItems.contains(getItemId()) ||
                         mMultiSelectListener.isElementHighlighted(getItemId()), false);
 
-            if (NotificationManager.getInstance().shouldMessageUseMentionFormatting(mFragment.getConnectionInfo(), mFragment.getChannelName(), message))
-                mText.setText(AlignToPointSpan.apply(mText, MessageBuilder.getInstance(mText.getContext()).buildMessageWithMention(message)));
-            else
-                mText.setText(AlignToPointSpan.apply(mText, MessageBuilder.getInstance(mText.getContext()).buildMessage(message)));
+            mText.setText(AlignToPointSpan.apply(mText, mRenderCache.get(message, item.mMessageId,
+                    shouldUseMentionFormatting(message), getChannelTypes())));
 
             if (mSelectListener != null)
                 mSelectListener.applySelectionTo(itemView, getAdapterPosition());
@@ -8,7 +8,9 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
 import android.os.Bundle;
+import android.text.TextUtils;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -25,7 +27,6 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
@@ -41,7 +42,6 @@ import io.mrarm.irc.chatlib.dto.ChannelInfo;
 import io.mrarm.irc.chatlib.dto.MessageFilterOptions;
 import io.mrarm.irc.chatlib.dto.MessageId;
 import io.mrarm.irc.chatlib.dto.MessageInfo;
-import io.mrarm.irc.chatlib.dto.MessageList;
 import io.mrarm.irc.chatlib.dto.MessageListAfterIdentifier;
 import io.mrarm.irc.chatlib.dto.MessageSenderInfo;
 import io.mrarm.irc.chatlib.dto.NickWithPrefix;
@@ -49,13 +49,13 @@ import io.mrarm.irc.chatlib.dto.RoomMessageId;
 import io.mrarm.irc.chatlib.dto.StatusMessageInfo;
 import io.mrarm.irc.chatlib.dto.StatusMessageList;
 import io.mrarm.irc.chatlib.irc.ServerConnectionApi;
-import io.mrarm.irc.chatlib.message.MessageListener;
 import io.mrarm.irc.config.ChatSettings;
 import io.mrarm.irc.config.MessageFormatSettings;
 import io.mrarm.irc.config.SettingsHelper;
 import io.mrarm.irc.config.UiSettingChangeCallback;
 import io.mrarm.irc.connection.ServerConnectionManager;
 import io.mrarm.irc.connection.ServerConnectionSession;
+import io.mrarm.irc.infrastructure.threading.AppAsyncExecutor;
 import io.mrarm.irc.job.RemoveDataTask;
 import io.mrarm.irc.message.MessageBus;
 import io.mrarm.irc.storage.MessageStorageRepository;
@@ -64,7 +64,7 @@ import io.mrarm.irc.util.ScrollPosLinearLayoutManager;
 
 @Keep
 public class ChatMessagesFragment extends Fragment implements StatusMessageListener,
-        MessageListener, ChannelInfoListener, NotificationManager.UnreadMessageCountCallback {
+        LiveMessageDispatcher.Receiver, ChannelInfoListener, NotificationManager.UnreadMessageCountCallback {
 
     private static final String TAG = "ChatMessagesFragment";
 
@@ -73,10 +73,16 @@ public class ChatMessagesFragment extends Fragment implements StatusMessageListe
     private static final String ARG_CHANNEL_NAME = "channel";
 
     private static final int LOAD_MORE_BEFORE_INDEX = 10;
+    private static final int PREFETCH_BEFORE_INDEX = 50;
+    private static final int LOAD_MORE_COUNT = ChatMessagesAdapter.PAGE_SIZE;
 
     private static final MessageFilterOptions sFilterJoinParts;
 
     private List<NickWithPrefix> mMembers = null;
+    // Member list changes not applied yet, see updateMembers()
+    private final List<MemberListUpdate> mPendingMemberUpdates = new ArrayList<>(); // guarded by itself
+    private List<NickWithPrefix> mPendingMembers; // guarded by mPendingMemberUpdates
+    private boolean mMemberUpdateScheduled; // guarded by mPendingMemberUpdates
 
     private ServerConnectionSession mConnection;
     private String mChannelName;
@@ -89,7 +95,8 @@ public class ChatMessagesFragment extends Fragment implements StatusMessageListe
     private ServerStatusMessagesAdapter mStatusAdapter;
     private List<StatusMessageInfo> mStatusMessages;
     private boolean mNeedsUnsubscribeChannelInfo = false;
-    private boolean mNeedsUnsubscribeMessages = false;
+    private LiveMessageDispatcher.Subscription mMessageSubscription;
+    private boolean mStarted;
     private boolean mNeedsUnsubscribeStatusMessages = false;
     private MessageListAfterIdentifier mLoadOlderIdentifier;
     private MessageListAfterIdentifier mLoadNewerIdentifier;
@@ -142,6 +149,7 @@ public class ChatMessagesFragment extends Fragment implements StatusMessageListe
             else
                 IRCChooserTargetService.unsetChannel(mConnection.getUUID(), mChannelName);
         }
+        updateMessageVisibility();
     }
 
     public static ChatMessagesFragment newInstance(ServerConnectionSession server,
@@ -205,8 +213,8 @@ public class ChatMessagesFragment extends Fragment implements StatusMessageListe
                             .getServerConnectionData()
                             .getMessageBus();
 
-            bus.subscribe(mChannelName, this);
-            mNeedsUnsubscribeMessages = true;
+            mMessageSubscription = LiveMessageDispatcher.getInstance().subscribe(bus, mChannelName, this,
+                    getMessageVisibility());
 
 
         } else if (getArguments().getBoolean(ARG_DISPLAY_STATUS)) {
@@ -241,13 +249,8 @@ public class ChatMessagesFragment extends Fragment implements StatusMessageListe
 
         if (mNeedsUnsubscribeChannelInfo)
             mConnection.getApiInstance().unsubscribeChannelInfo(getArguments().getString(ARG_CHANNEL_NAME), ChatMessagesFragment.this, null, null);
-        if (mNeedsUnsubscribeMessages) {
-            MessageBus bus =
-                    ((ServerConnectionApi) mConnection.getApiInstance())
-                            .getServerConnectionData()
-                            .getMessageBus();
-            bus.unsubscribe(mChannelName, this);
-        }
+        if (mMessageSubscription != null)
+            mMessageSubscription.unsubscribe();
         if (mNeedsUnsubscribeStatusMessages)
             mConnection.getApiInstance().unsubscribeStatusMessages(ChatMessagesFragment.this, null, null);
 
@@ -278,6 +281,17 @@ public class ChatMessagesFragment extends Fragment implements StatusMessageListe
                     return;
                 checkForUnreadMessages();
                 int firstVisible = mLayoutManager.findFirstVisibleItemPosition();
+                int lastVisible = mLayoutManager.findLastVisibleItemPosition();
+                if (!mIsLoadingMore && mAdapter.hasMessages()) {
+                    // Load the next page in the background before the edge is reached, so that the load below is
+                    // served from memory
+                    if (firstVisible >= 0 && firstVisible < PREFETCH_BEFORE_INDEX)
+                        mRoomRepo.prefetchOlder(mConnection.getUUID(), mChannelName,
+                                mAdapter.getFirstMessageId(), LOAD_MORE_COUNT);
+                    if (!mAdapter.isAtLatest() && lastVisible > mAdapter.getItemCount() - PREFETCH_BEFORE_INDEX)
+                        mRoomRepo.prefetchNewer(mConnection.getUUID(), mChannelName,
+                                mAdapter.getLastMessageId(), LOAD_MORE_COUNT);
+                }
                 if (firstVisible >= 0 && firstVisible < LOAD_MORE_BEFORE_INDEX) {
                     if (mIsLoadingMore || !mAdapter.hasMessages())
                         return;
@@ -289,20 +303,21 @@ public class ChatMessagesFragment extends Fragment implements StatusMessageListe
                             mConnection.getUUID(),
                             mChannelName,
                             firstId,
-                            100,
-                            (olderList) -> {
-                                MessageList messages = mRoomRepo.toMessageListFromRoom(olderList);
+                            LOAD_MORE_COUNT,
+                            (messages) -> {
                                 updateMessageList(() -> {
-                                    mAdapter.addMessagesToTop(messages.getMessages(), messages.getMessageIds());
                                     mIsLoadingMore = false;
+                                    // Failed to load, the next scroll tries again
+                                    if (messages == null)
+                                        return;
+                                    mAdapter.addMessagesToTop(messages.getMessages(), messages.getMessageIds());
                                 });
                             }
                     );
                 }
-                int lastVisible = mLayoutManager.findLastVisibleItemPosition();
                 if (lastVisible <= mAdapter.getItemCount() &&
                         lastVisible > mAdapter.getItemCount() - LOAD_MORE_BEFORE_INDEX) {
-                    if (mIsLoadingMore || !mAdapter.hasMessages())
+                    if (mIsLoadingMore || !mAdapter.hasMessages() || mAdapter.isAtLatest())
                         return;
                     Log.i(TAG, "Load more (newer): " + mChannelName);
                     long lastId = mAdapter.getLastMessageId();
@@ -312,12 +327,15 @@ public class ChatMessagesFragment extends Fragment implements StatusMessageListe
                             mConnection.getUUID(),
                             mChannelName,
                             lastId,
-                            100,
-                            (newerList) -> {
-                                MessageList messages = mRoomRepo.toMessageListFromRoom(newerList);
+                            LOAD_MORE_COUNT,
+                            (messages) -> {
                                 updateMessageList(() -> {
-                                    mAdapter.addMessagesToBottom(messages.getMessages(), messages.getMessageIds());
                                     mIsLoadingMore = false;
+                                    if (messages == null)
+                                        return;
+                                    mAdapter.addMessagesToBottom(messages.getMessages(), messages.getMessageIds());
+                                    if (messages.getMessages().size() < LOAD_MORE_COUNT)
+                                        mAdapter.onReachedLatest();
                                 });
                             }
                     );
@@ -416,10 +434,9 @@ public class ChatMessagesFragment extends Fragment implements StatusMessageListe
         if (nearMessageRoomId != null) {
 
             mRoomRepo.loadNearAsync(serverId, mChannelName, nearMessageRoomId, 100,
-                    (list) -> {
-                        MessageList msgList = mRoomRepo.toMessageListFromRoom(list);
+                    (msgList) -> {
                         updateMessageList(() -> {
-                            mAdapter.setMessages(msgList.getMessages(), msgList.getMessageIds());
+                            mAdapter.setMessages(msgList.getMessages(), msgList.getMessageIds(), false);
 
                             int index = mAdapter.findMessageWithId(
                                     new RoomMessageId(nearMessageRoomId)
@@ -437,6 +454,8 @@ public class ChatMessagesFragment extends Fragment implements StatusMessageListe
 
         // === CASE 2: Normal first loadConnectedServers (most recent 100 messages) ===
         mRoomRepo.loadRecentAsync(serverId, mChannelName, 100, (msgList) -> {
+            if (msgList == null)
+                return;
             updateMessageList(() -> {
                 mAdapter.setMessages(msgList.getMessages(), msgList.getMessageIds());
 
@@ -532,6 +551,20 @@ public class ChatMessagesFragment extends Fragment implements StatusMessageListe
         }
     }
 
+    @Override
+    public void onStart() {
+        super.onStart();
+        mStarted = true;
+        updateMessageVisibility();
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        mStarted = false;
+        updateMessageVisibility();
+    }
+
     @Override
     public void onResume() {
         super.onResume();
@@ -625,27 +658,53 @@ public class ChatMessagesFragment extends Fragment implements StatusMessageListe
             mRecyclerView.scrollToPosition(count - 1);
     }
 
+    private LiveMessageDispatcher.Visibility getMessageVisibility() {
+        if (!mStarted)
+            return LiveMessageDispatcher.Visibility.HIDDEN;
+        return getUserVisibleHint() ? LiveMessageDispatcher.Visibility.VISIBLE
+                : LiveMessageDispatcher.Visibility.BACKGROUND;
+    }
+
+    private void updateMessageVisibility() {
+        if (mMessageSubscription != null)
+            mMessageSubscription.setVisibility(getMessageVisibility());
+    }
+
     @Override
-    public void onMessage(String channel, MessageInfo messageInfo, MessageId messageId) {
-        updateMessageList(() -> {
-            if (mLoadNewerIdentifier != null)
-                return;
-            MessageFilterOptions opt = getFilterOptions();
-            if (opt != null) {
-                if (opt.restrictToMessageTypes != null &&
-                        !opt.restrictToMessageTypes.contains(messageInfo.getType()))
-                    return;
-                if (opt.excludeMessageTypes != null &&
-                        opt.excludeMessageTypes.contains(messageInfo.getType()))
-                    return;
+    public void onMessages(List<MessageInfo> messages, List<MessageId> messageIds) {
+        if (mLoadNewerIdentifier != null)
+            return;
+        MessageFilterOptions opt = getFilterOptions();
+        if (opt != null) {
+            List<MessageInfo> filteredMessages = new ArrayList<>();
+            List<MessageId> filteredIds = new ArrayList<>();
+            for (int i = 0; i < messages.size(); i++) {
+                MessageInfo.MessageType type = messages.get(i).getType();
+                if (opt.restrictToMessageTypes != null && !opt.restrictToMessageTypes.contains(type))
+                    continue;
+                if (opt.excludeMessageTypes != null && opt.excludeMessageTypes.contains(type))
+                    continue;
+                filteredMessages.add(messages.get(i));
+                filteredIds.add(messageIds.get(i));
             }
+            messages = filteredMessages;
+            messageIds = filteredIds;
+        }
+        if (messages.isEmpty())
+            return;
 
-            if (!getUserVisibleHint() && mAdapter.getNewMessagesStart() == null)
-                mAdapter.setNewMessagesStart(messageId);
-            mAdapter.appendMessage(messageInfo, messageId);
-            if (mRecyclerView != null)
-                scrollToBottom();
-        });
+        if (!getUserVisibleHint() && mAdapter.getNewMessagesStart() == null)
+            mAdapter.setNewMessagesStart(messageIds.get(0));
+        if (mAdapter.appendLiveMessages(messages, messageIds) && mRecyclerView != null)
+            scrollToBottom();
+    }
+
+    @Override
+    public void onMessagesDropped() {
+        // Scrolled up into the history, live messages are not shown anyway
+        if (mLoadNewerIdentifier != null)
+            return;
+        reloadMessages(null);
     }
 
     @Override
@@ -660,26 +719,128 @@ public class ChatMessagesFragment extends Fragment implements StatusMessageListe
 
     @Override
     public void onMemberListChanged(List<NickWithPrefix> list) {
-        this.mMembers = list;
-        Collections.sort(list, (NickWithPrefix left, NickWithPrefix right) -> {
-            if (left.getNickPrefixes() != null && right.getNickPrefixes() != null) {
-                char leftPrefix = left.getNickPrefixes().get(0);
-                char rightPrefix = right.getNickPrefixes().get(0);
-                for (char c : ((ServerConnectionApi) mConnection.getApiInstance())
-                        .getServerConnectionData().getSupportList().getSupportedNickPrefixes()) {
-                    if (leftPrefix == c && rightPrefix != c)
-                        return -1;
-                    if (rightPrefix == c && leftPrefix != c)
-                        return 1;
-                }
-            } else if (left.getNickPrefixes() != null || right.getNickPrefixes() != null)
-                return left.getNickPrefixes() != null ? -1 : 1;
-            return left.getNick().compareToIgnoreCase(right.getNick());
+        // The list already comes sorted in display order from ChannelData, and includes the changes queued before it
+        synchronized (mPendingMemberUpdates) {
+            mPendingMembers = list;
+            mPendingMemberUpdates.clear();
+        }
+        scheduleMemberUpdates();
+    }
+
+    @Override
+    public void onMemberAdded(NickWithPrefix member, int index) {
+        updateMembers((List<NickWithPrefix> list) -> {
+            // Already in the snapshot, if the delta raced with it
+            if (indexOfMember(list, member.getNick()) != -1)
+                return true;
+            if (index < 0 || index > list.size())
+                return false;
+            list.add(index, member);
+            return true;
+        });
+    }
+
+    @Override
+    public void onMemberRemoved(NickWithPrefix member, int index) {
+        updateMembers((List<NickWithPrefix> list) -> {
+            if (!isMemberAt(list, index, member.getNick()))
+                return false;
+            list.remove(index);
+            return true;
+        });
+    }
+
+    @Override
+    public void onMemberPrefixesChanged(NickWithPrefix member, int oldIndex, int newIndex) {
+        updateMembers((List<NickWithPrefix> list) -> {
+            if (!isMemberAt(list, oldIndex, member.getNick()) || newIndex >= list.size())
+                return false;
+            list.remove(oldIndex);
+            list.add(newIndex, member);
+            return true;
+        });
+    }
+
+    @Override
+    public void onMemberRenamed(String oldNick, NickWithPrefix member, int oldIndex, int newIndex) {
+        updateMembers((List<NickWithPrefix> list) -> {
+            if (!isMemberAt(list, oldIndex, oldNick) || newIndex >= list.size())
+                return false;
+            list.remove(oldIndex);
+            list.add(newIndex, member);
+            return true;
         });
+    }
+
+    private static boolean isMemberAt(List<NickWithPrefix> list, int index, String nick) {
+        return index >= 0 && index < list.size() && TextUtils.equals(list.get(index).getNick(), nick);
+    }
+
+    private static int indexOfMember(List<NickWithPrefix> list, String nick) {
+        for (int i = list.size() - 1; i >= 0; i--) {
+            if (TextUtils.equals(list.get(i).getNick(), nick))
+                return i;
+        }
+        return -1;
+    }
+
+    // NOTE Member list deltas
+    // Queued from the network thread and applied on the UI thread once per frame, all of them to a single copy of the
+    // list. The published list is never modified, as it may still be in use by the adapters (and by the suggestion
+    // filter, which runs on a background thread). A delta that does not match our copy means that we have missed one
+    // (e.g. it arrived before the initial snapshot), in which case the full list is fetched again.
+    private void updateMembers(MemberListUpdate update) {
+        synchronized (mPendingMemberUpdates) {
+            mPendingMemberUpdates.add(update);
+        }
+        scheduleMemberUpdates();
+    }
+
+    private void scheduleMemberUpdates() {
+        synchronized (mPendingMemberUpdates) {
+            if (mMemberUpdateScheduled)
+                return;
+            mMemberUpdateScheduled = true;
+        }
+        AppAsyncExecutor.ui(() -> Choreographer.getInstance().postFrameCallback(
+                (long frameTimeNanos) -> applyMemberUpdates()));
+    }
+
+    private void applyMemberUpdates() {
+        List<NickWithPrefix> members;
+        List<MemberListUpdate> updates;
+        synchronized (mPendingMemberUpdates) {
+            members = mPendingMembers != null ? mPendingMembers : mMembers;
+            mPendingMembers = null;
+            updates = new ArrayList<>(mPendingMemberUpdates);
+            mPendingMemberUpdates.clear();
+            mMemberUpdateScheduled = false;
+        }
+        if (members == null)
+            return;
+        if (!updates.isEmpty()) {
+            List<NickWithPrefix> list = new ArrayList<>(members);
+            for (MemberListUpdate update : updates) {
+                if (!update.apply(list)) {
+                    Log.w(TAG, "Member list out of sync, reloading " + mChannelName);
+                    mConnection.getApiInstance().getChannelInfo(mChannelName,
+                            (ChannelInfo channelInfo) -> onMemberListChanged(channelInfo.getMembers()), null);
+                    return;
+                }
+            }
+            members = list;
+        }
+        if (members == mMembers)
+            return;
+        mMembers = members;
         if (getUserVisibleHint())
             updateParentCurrentChannel();
     }
 
+    private interface MemberListUpdate {
+        boolean apply(List<NickWithPrefix> list);
+    }
+
     @Override
     public void onTopicChanged(String topic, MessageSenderInfo topicSetBy, Date topicSetOn) {
         mChannelTopic = topic;
@@ -267,6 +267,10 @@ public class ChatSelectTouchListener implements RecyclerView.OnItemTouchListener
         mRecyclerView.getParent().requestDisallowInterceptTouchEvent(true);
     }
 
+    public boolean hasSelection() {
+        return mSelectionStartId != -1;
+    }
+
     public CharSequence getSelectedText() {
         if (mSelectionStartId == -1)
             return "";
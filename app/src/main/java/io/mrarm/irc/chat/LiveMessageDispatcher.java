@@ -0,0 +1,211 @@
+package io.mrarm.irc.chat;
+
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.mrarm.irc.chatlib.dto.MessageId;
+import io.mrarm.irc.chatlib.dto.MessageInfo;
+import io.mrarm.irc.chatlib.message.MessageListener;
+import io.mrarm.irc.config.ChatSettings;
+import io.mrarm.irc.infrastructure.threading.AppAsyncExecutor;
+import io.mrarm.irc.message.MessageBus;
+
+/**
+ * UI side of the {@link MessageBus}. Live messages are buffered per subscribed channel and handed to the UI in
+ * batches, at most once per Choreographer frame, so a busy channel costs one adapter update and layout pass per frame
+ * instead of one per message.
+ * <p>
+ * Subscriptions in the background (a neighbouring page of the pager) are flushed at most
+ * {@link ChatSettings#getBackgroundRenderRate()} times a second. Hidden subscriptions (the page is stopped) don't
+ * buffer anything, as the messages are in the database anyway; the receiver is told they were dropped once it is
+ * shown again, and reloads them from there.
+ */
+public class LiveMessageDispatcher implements Choreographer.FrameCallback {
+
+    public enum Visibility {
+        VISIBLE, BACKGROUND, HIDDEN
+    }
+
+    /**
+     * Called on the UI thread.
+     */
+    public interface Receiver {
+
+        void onMessages(List<MessageInfo> messages, List<MessageId> messageIds);
+
+        void onMessagesDropped();
+
+    }
+
+    private static LiveMessageDispatcher sInstance;
+
+    public static synchronized LiveMessageDispatcher getInstance() {
+        if (sInstance == null)
+            sInstance = new LiveMessageDispatcher();
+        return sInstance;
+    }
+
+    // UI thread only
+    private List<Subscription> mPending = new ArrayList<>();
+    private long mScheduledFor = -1;
+
+    public Subscription subscribe(MessageBus bus, String channel, Receiver receiver, Visibility visibility) {
+        Subscription ret = new Subscription(bus, channel, receiver, visibility);
+        bus.subscribe(channel, ret);
+        return ret;
+    }
+
+    private void enqueue(Subscription subscription) {
+        if (!mPending.contains(subscription))
+            mPending.add(subscription);
+        schedule(subscription.getDelay(SystemClock.uptimeMillis()));
+    }
+
+    private void schedule(long delay) {
+        long at = SystemClock.uptimeMillis() + delay;
+        if (mScheduledFor != -1 && mScheduledFor <= at)
+            return;
+        Choreographer choreographer = Choreographer.getInstance();
+        if (mScheduledFor != -1)
+            choreographer.removeFrameCallback(this);
+        mScheduledFor = at;
+        choreographer.postFrameCallbackDelayed(this, delay);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mScheduledFor = -1;
+        long now = SystemClock.uptimeMillis();
+        List<Subscription> pending = mPending;
+        mPending = new ArrayList<>();
+        long nextDelay = -1;
+        for (Subscription subscription : pending) {
+            long delay = subscription.getDelay(now);
+            if (delay > 0) {
+                if (!mPending.contains(subscription))
+                    mPending.add(subscription);
+                nextDelay = (nextDelay == -1 ? delay : Math.min(nextDelay, delay));
+            } else {
+                subscription.flush(now);
+            }
+        }
+        if (nextDelay != -1)
+            schedule(nextDelay);
+    }
+
+    public class Subscription implements MessageListener {
+
+        private final MessageBus mBus;
+        private final String mChannel;
+        private final Receiver mReceiver;
+
+        // guarded by this
+        private List<MessageInfo> mMessages = new ArrayList<>();
+        private List<MessageId> mMessageIds = new ArrayList<>();
+        private Visibility mVisibility;
+        private boolean mQueued;
+        private boolean mDropped;
+        private boolean mUnsubscribed;
+
+        // UI thread only
+        private long mLastFlush;
+
+        private Subscription(MessageBus bus, String channel, Receiver receiver, Visibility visibility) {
+            mBus = bus;
+            mChannel = channel;
+            mReceiver = receiver;
+            mVisibility = visibility;
+        }
+
+        @Override
+        public void onMessage(String channel, MessageInfo message, MessageId messageId) {
+            synchronized (this) {
+                if (mUnsubscribed)
+                    return;
+                if (mVisibility == Visibility.HIDDEN) {
+                    mDropped = true;
+                    return;
+                }
+                mMessages.add(message);
+                mMessageIds.add(messageId);
+                if (mQueued)
+                    return;
+                mQueued = true;
+            }
+            AppAsyncExecutor.ui(() -> enqueue(this));
+        }
+
+        /**
+         * Must be called on the UI thread. Calls {@link Receiver#onMessagesDropped()} right away if the subscription
+         * stops being hidden and messages were dropped in the meantime.
+         */
+        public void setVisibility(Visibility visibility) {
+            boolean dropped;
+            boolean queued;
+            synchronized (this) {
+                if (mVisibility == visibility)
+                    return;
+                mVisibility = visibility;
+                if (visibility == Visibility.HIDDEN) {
+                    if (!mMessages.isEmpty())
+                        mDropped = true;
+                    mMessages = new ArrayList<>();
+                    mMessageIds = new ArrayList<>();
+                    return;
+                }
+                dropped = mDropped;
+                mDropped = false;
+                queued = mQueued;
+            }
+            if (dropped)
+                mReceiver.onMessagesDropped();
+            else if (queued)
+                enqueue(this); // the delay depends on the visibility
+        }
+
+        /**
+         * Must be called on the UI thread.
+         */
+        public void unsubscribe() {
+            mBus.unsubscribe(mChannel, this);
+            synchronized (this) {
+                mUnsubscribed = true;
+                mMessages = new ArrayList<>();
+                mMessageIds = new ArrayList<>();
+            }
+            mPending.remove(this);
+        }
+
+        private long getDelay(long now) {
+            synchronized (this) {
+                if (mVisibility != Visibility.BACKGROUND)
+                    return 0;
+            }
+            int rate = ChatSettings.getBackgroundRenderRate();
+            if (rate <= 0)
+                return 0;
+            return Math.max(0, mLastFlush + 1000 / rate - now);
+        }
+
+        private void flush(long now) {
+            List<MessageInfo> messages;
+            List<MessageId> messageIds;
+            synchronized (this) {
+                mQueued = false;
+                if (mMessages.isEmpty())
+                    return;
+                messages = mMessages;
+                messageIds = mMessageIds;
+                mMessages = new ArrayList<>();
+                mMessageIds = new ArrayList<>();
+            }
+            mLastFlush = now;
+            mReceiver.onMessages(messages, messageIds);
+        }
+
+    }
+
+}
@@ -0,0 +1,156 @@
+package io.mrarm.irc.chat;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+
+import io.mrarm.irc.chatlib.dto.MessageId;
+import io.mrarm.irc.chatlib.dto.MessageInfo;
+import io.mrarm.irc.chatlib.dto.ModeList;
+import io.mrarm.irc.chatlib.dto.RoomMessageId;
+import io.mrarm.irc.config.MessageFormatSettings;
+import io.mrarm.irc.config.SettingChangeCallback;
+import io.mrarm.irc.config.SettingsHelper;
+import io.mrarm.irc.util.MessageBuilder;
+import io.mrarm.irc.util.theme.ThemeManager;
+
+/**
+ * LRU cache of the text MessageBuilder renders for chat messages (formatting codes, links, timestamp and the message
+ * format template), keyed by the Room message id, so binding a message while scrolling back and forth does not build
+ * it again. Messages are rendered ahead of time on a background thread when they are added to a
+ * {@link ChatMessagesAdapter}; a bind which still misses builds the text itself and caches it.
+ * <p>
+ * Every entry records the format version it was built with. The version changes, and the cache is cleared, whenever
+ * the message format settings or the theme (which the IRC colors come from) change.
+ */
+public class RenderedMessageCache implements ThemeManager.ThemeChangeListener {
+
+    private static final String TAG = "RenderedMessageCache";
+
+    public static final int MAX_ENTRIES = 1000;
+
+    private static RenderedMessageCache sInstance;
+
+    public static synchronized RenderedMessageCache getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new RenderedMessageCache(context.getApplicationContext());
+        return sInstance;
+    }
+
+    private final Context mContext;
+    private final LruCache<Long, Entry> mCache = new LruCache<>(MAX_ENTRIES);
+    private volatile int mVersion = 0;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "MessageRender");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    private RenderedMessageCache(Context context) {
+        mContext = context;
+        SettingsHelper.registerCallbacks(this);
+        ThemeManager.getInstance(context).addThemeChangeListener(this);
+    }
+
+    /**
+     * Returns the rendered message, building it on the calling thread if it is not cached.
+     *
+     * @param channelTypes the CHANTYPES of the server, for channel links
+     */
+    public CharSequence get(MessageInfo message, MessageId messageId, boolean mention, ModeList channelTypes) {
+        Long key = getKey(messageId);
+        int version = mVersion;
+        if (key != null) {
+            Entry entry = mCache.get(key);
+            if (entry != null && entry.mVersion == version && entry.mMention == mention &&
+                    Objects.equals(entry.mChannelTypes, channelTypes))
+                return entry.mText;
+        }
+        CharSequence text = build(message, mention, channelTypes);
+        // Don't cache text built with the old settings if they changed in the meantime
+        if (key != null && version == mVersion)
+            mCache.put(key, new Entry(version, mention, channelTypes, text));
+        return text;
+    }
+
+    /**
+     * Renders the messages which are not cached yet, in the background.
+     */
+    public void precompute(List<MessageInfo> messages, List<MessageId> messageIds,
+                           Predicate<MessageInfo> mention, ModeList channelTypes) {
+        List<MessageInfo> messagesCopy = new ArrayList<>(messages);
+        List<MessageId> idsCopy = new ArrayList<>(messageIds);
+        mExecutor.execute(() -> {
+            try {
+                // From the end, which is shown first for both the initial page and the pages loaded above it
+                for (int i = messagesCopy.size() - 1; i >= 0; --i) {
+                    MessageInfo message = messagesCopy.get(i);
+                    get(message, idsCopy.get(i), mention.test(message), channelTypes);
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to render messages", e);
+            }
+        });
+    }
+
+    public void invalidate() {
+        mVersion++;
+        mCache.evictAll();
+    }
+
+    @SettingChangeCallback(keys = {
+            MessageFormatSettings.PREF_MESSAGE_FORMAT,
+            MessageFormatSettings.PREF_MESSAGE_FORMAT_MENTION,
+            MessageFormatSettings.PREF_MESSAGE_FORMAT_ACTION,
+            MessageFormatSettings.PREF_MESSAGE_FORMAT_ACTION_MENTION,
+            MessageFormatSettings.PREF_MESSAGE_FORMAT_NOTICE,
+            MessageFormatSettings.PREF_MESSAGE_FORMAT_EVENT,
+            MessageFormatSettings.PREF_MESSAGE_FORMAT_EVENT_HOSTNAME,
+            MessageFormatSettings.PREF_MESSAGE_TIME_FORMAT,
+            MessageFormatSettings.PREF_MESSAGE_TIME_FIXED_WIDTH
+    })
+    private void onFormatChanged() {
+        invalidate();
+    }
+
+    @Override
+    public void onThemeChanged() {
+        invalidate();
+    }
+
+    private CharSequence build(MessageInfo message, boolean mention, ModeList channelTypes) {
+        MessageBuilder builder = MessageBuilder.getInstance(mContext);
+        return mention ? builder.buildMessageWithMention(message, channelTypes)
+                : builder.buildMessage(message, channelTypes);
+    }
+
+    private static Long getKey(MessageId messageId) {
+        if (messageId instanceof RoomMessageId)
+            return ((RoomMessageId) messageId).getId();
+        return null;
+    }
+
+    private static class Entry {
+        final int mVersion;
+        final boolean mMention;
+        final ModeList mChannelTypes;
+        final CharSequence mText;
+
+        Entry(int version, boolean mention, ModeList channelTypes, CharSequence text) {
+            mVersion = version;
+            mMention = mention;
+            mChannelTypes = channelTypes;
+            mText = text;
+        }
+    }
+
+}
@@ -9,8 +9,25 @@ import io.mrarm.irc.chatlib.dto.NickWithPrefix;
 
 public interface ChannelInfoListener {
 
+    /**
+     * Called with a full, already sorted snapshot of the member list (after NAMES). Listeners that keep a copy of the
+     * list should replace it and then apply the incremental callbacks below to it; the indexes they carry refer to
+     * that same ordering.
+     */
     void onMemberListChanged(List<NickWithPrefix> newMembers);
 
+    default void onMemberAdded(NickWithPrefix member, int index) {
+    }
+
+    default void onMemberRemoved(NickWithPrefix member, int index) {
+    }
+
+    default void onMemberPrefixesChanged(NickWithPrefix member, int oldIndex, int newIndex) {
+    }
+
+    default void onMemberRenamed(String oldNick, NickWithPrefix member, int oldIndex, int newIndex) {
+    }
+
     void onTopicChanged(String newTopic, MessageSenderInfo newTopicSetBy, Date newTopicSetOn);
 
 }
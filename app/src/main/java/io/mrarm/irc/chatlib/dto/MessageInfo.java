@@ -28,12 +28,20 @@ public class MessageInfo {
         }
     }
 
+    private static final MessageType[] TYPES_BY_INT;
+
+    static {
+        int max = 0;
+        for (MessageType t : MessageType.values())
+            max = Math.max(max, t.asInt());
+        TYPES_BY_INT = new MessageType[max + 1];
+        for (MessageType t : MessageType.values())
+            TYPES_BY_INT[t.asInt()] = t;
+    }
+
     public static MessageInfo.MessageType typeFromInt(int i) {
-        for (MessageInfo.MessageType t : MessageInfo.MessageType.values()) {
-            if (t.asInt() == i)
-                return t;
-        }
-        return MessageInfo.MessageType.NORMAL;  // fallback
+        MessageType ret = (i >= 0 && i < TYPES_BY_INT.length ? TYPES_BY_INT[i] : null);
+        return ret != null ? ret : MessageType.NORMAL;  // fallback
     }
 
     private MessageSenderInfo sender;
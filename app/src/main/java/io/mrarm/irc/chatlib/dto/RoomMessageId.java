@@ -22,6 +22,11 @@ public class RoomMessageId implements MessageId {
                 ((RoomMessageId) obj).id == this.id;
     }
 
+    @Override
+    public int hashCode() {
+        return Long.hashCode(id);
+    }
+
     public static class Parser implements MessageId.Parser {
 
         @Override
@@ -0,0 +1,137 @@
+package io.mrarm.irc.chatlib.irc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Line framer reading the stream in large chunks into a single reusable buffer and scanning it for line terminators
+ * in bulk. Every line is decoded through the same {@link CharsetDecoder}, so apart from the returned String no
+ * per-line buffers are allocated.
+ * <p>
+ * Without a stream the framer works in push mode: the owner hands it received bytes with {@link #feed(ByteBuffer)}
+ * and drains complete lines with {@link #pollLine()}.
+ */
+public class BufferedLineFramer implements LineFramer {
+
+    public static final Factory FACTORY = BufferedLineFramer::new;
+
+    static final int READ_CHUNK_SIZE = 16 * 1024;
+
+    private final InputStream stream;
+    private final CharsetDecoder decoder;
+    // Holds the not yet consumed bytes between position and limit (read mode)
+    private final ByteBuffer buffer;
+    private final ByteBuffer lineView;
+    private final CharBuffer lineChars;
+    private boolean discardingLine;
+
+    public BufferedLineFramer(InputStream stream, Charset charset) {
+        this.stream = stream;
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.buffer = ByteBuffer.allocate(MAX_LINE_LENGTH + READ_CHUNK_SIZE);
+        this.buffer.limit(0);
+        this.lineView = buffer.duplicate();
+        this.lineChars = CharBuffer.allocate((int) Math.ceil(MAX_LINE_LENGTH * (double) decoder.maxCharsPerByte()));
+    }
+
+    public BufferedLineFramer(Charset charset) {
+        this(null, charset);
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        if (stream == null)
+            throw new IllegalStateException("The framer has no stream to read from");
+        while (true) {
+            String line = pollLine();
+            if (line != null)
+                return line;
+            fill();
+        }
+    }
+
+    /**
+     * Returns the next complete line from the already buffered data, or null if more data needs to be read first.
+     */
+    public String pollLine() {
+        byte[] data = buffer.array();
+        int start = buffer.position();
+        int end = buffer.limit();
+        while (start < end) {
+            int i = start;
+            while (i < end && data[i] != '\n' && data[i] != '\r')
+                i++;
+            if (i == end) {
+                if (discardingLine) {
+                    start = end;
+                } else if (end - start >= MAX_LINE_LENGTH) {
+                    String line = decode(start, MAX_LINE_LENGTH);
+                    discardingLine = true;
+                    buffer.position(end);
+                    return line;
+                }
+                break;
+            }
+            if (discardingLine) {
+                discardingLine = false;
+                start = i + 1;
+                continue;
+            }
+            if (i == start) {
+                start++;
+                continue;
+            }
+            String line = decode(start, Math.min(i - start, MAX_LINE_LENGTH));
+            buffer.position(i + 1);
+            return line;
+        }
+        buffer.position(start);
+        return null;
+    }
+
+    /**
+     * Copies as many bytes from src as fit into the buffer and returns their count. Draining the lines with
+     * {@link #pollLine()} after every call guarantees that the next call makes progress.
+     */
+    public int feed(ByteBuffer src) {
+        buffer.compact();
+        int n = Math.min(src.remaining(), buffer.remaining());
+        int srcLimit = src.limit();
+        src.limit(src.position() + n);
+        buffer.put(src);
+        src.limit(srcLimit);
+        buffer.flip();
+        return n;
+    }
+
+    private void fill() throws IOException {
+        buffer.compact();
+        int n = stream.read(buffer.array(), buffer.position(), buffer.remaining());
+        if (n == -1) {
+            buffer.flip();
+            throw new IOException("read() returned -1");
+        }
+        buffer.position(buffer.position() + n);
+        buffer.flip();
+    }
+
+    private String decode(int offset, int length) {
+        lineView.clear();
+        lineView.limit(offset + length);
+        lineView.position(offset);
+        lineChars.clear();
+        decoder.reset();
+        decoder.decode(lineView, lineChars, true);
+        decoder.flush(lineChars);
+        lineChars.flip();
+        return lineChars.toString();
+    }
+
+}
@@ -0,0 +1,90 @@
+package io.mrarm.irc.chatlib.irc;
+
+import java.util.Locale;
+
+/**
+ * Nick and channel name comparison rules announced by the server in the ISUPPORT CASEMAPPING token.
+ */
+public enum CaseMapping {
+
+    ASCII("ascii"),
+    RFC1459("rfc1459"),
+    STRICT_RFC1459("strict-rfc1459"),
+    RFC7613("rfc7613");
+
+    private final String name;
+
+    CaseMapping(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the mapping with the given ISUPPORT name. Unknown names fall back to RFC1459, the protocol default.
+     */
+    public static CaseMapping fromName(String name) {
+        for (CaseMapping mapping : values()) {
+            if (mapping.name.equalsIgnoreCase(name))
+                return mapping;
+        }
+        return RFC1459;
+    }
+
+    private char toLowerCase(char c) {
+        if (c >= 'A' && c <= 'Z')
+            return (char) (c + ('a' - 'A'));
+        if (this == RFC1459 || this == STRICT_RFC1459) {
+            if (c == '[')
+                return '{';
+            if (c == ']')
+                return '}';
+            if (c == '\\')
+                return '|';
+            if (c == '^' && this == RFC1459)
+                return '~';
+        }
+        return c;
+    }
+
+    /**
+     * Returns the lower case form of the string. The string itself is returned if it is already lower case.
+     */
+    public String toLowerCase(String str) {
+        if (this == RFC7613)
+            return str.toLowerCase(Locale.ROOT);
+        int len = str.length();
+        int i = 0;
+        while (i < len && toLowerCase(str.charAt(i)) == str.charAt(i))
+            i++;
+        if (i == len)
+            return str;
+        char[] chars = str.toCharArray();
+        for ( ; i < len; i++)
+            chars[i] = toLowerCase(chars[i]);
+        return new String(chars);
+    }
+
+    public boolean equals(String a, String b) {
+        return toLowerCase(a).equals(toLowerCase(b));
+    }
+
+    /**
+     * Compares the lower case forms of the strings, without creating them for the ASCII based mappings.
+     */
+    public int compareIgnoreCase(String a, String b) {
+        if (this == RFC7613)
+            return a.toLowerCase(Locale.ROOT).compareTo(b.toLowerCase(Locale.ROOT));
+        int len = Math.min(a.length(), b.length());
+        for (int i = 0; i < len; i++) {
+            char ca = toLowerCase(a.charAt(i));
+            char cb = toLowerCase(b.charAt(i));
+            if (ca != cb)
+                return ca - cb;
+        }
+        return a.length() - b.length();
+    }
+
+}
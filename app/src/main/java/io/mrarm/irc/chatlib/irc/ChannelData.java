@@ -1,6 +1,7 @@
 package io.mrarm.irc.chatlib.irc;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -8,7 +9,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ExecutionException;
 
 import io.mrarm.irc.chatlib.ChannelInfoListener;
 import io.mrarm.irc.chatlib.dto.MessageInfo;
@@ -16,7 +16,7 @@ import io.mrarm.irc.chatlib.dto.MessageSenderInfo;
 import io.mrarm.irc.chatlib.dto.ModeList;
 import io.mrarm.irc.chatlib.dto.NickPrefixList;
 import io.mrarm.irc.chatlib.dto.NickWithPrefix;
-import io.mrarm.irc.chatlib.irc.cap.Capability;
+import io.mrarm.irc.chatlib.util.SimpleRequestExecutor;
 import io.mrarm.irc.message.MessageSink;
 
 /**
@@ -29,9 +29,9 @@ import io.mrarm.irc.message.MessageSink;
  * IRCConnection.handleInput 
  *  → MessageHandler.handleLine 
  *  → MessageCommandHandler.handle 
- *    → resolveUser().get()          (BLOCKING) 
+ *    → resolveUserSync()            (in-memory) 
  *    → ChannelData.addMessage 
- *       → Capability.processMessage 
+ *       → CapabilityManager.processMessage (tag-indexed)
  *       → MessageFilterList.filterMessage 
  *             → ZNCPlaybackMessageFilter (may query history) 
  *         → MessageStorageApi.addMessage 
@@ -50,6 +50,9 @@ import io.mrarm.irc.message.MessageSink;
 
 public class ChannelData {
 
+    // Shared by all channels, only used to wait for ChannelDataStorage off the network thread
+    private static final SimpleRequestExecutor storageExecutor = new SimpleRequestExecutor();
+
     private ServerConnectionData connection;
 
     private String name;
@@ -59,6 +62,7 @@ public class ChannelData {
     private List<Member> members = new ArrayList<>();
     private Map<UUID, Member> membersMap = new HashMap<>();
     private final Object membersLock = new Object();
+    private CaseMapping membersCaseMapping; // what members is sorted by, guarded by membersLock
     private final List<ChannelInfoListener> infoListeners = new ArrayList<>();
     private Map<Character, Set<String>> modesList;
     private Map<Character, String> modesValueExactUnset;
@@ -71,19 +75,26 @@ public class ChannelData {
     }
 
     // NOTE Stored metadata load
+    // Runs off the network thread; the topic is applied (and listeners get onTopicChanged) once the storage answers,
+    // unless the server has sent the live topic in the meantime.
     public void loadFromStoredData() {
         ChannelDataStorage storage = connection.getChannelDataStorage();
         if (storage == null)
             return;
-        try {
-            ChannelDataStorage.StoredData data = storage.getOrCreateChannelData(getName()).get();
-            if (data != null)
-                loadFromStoredData(data);
-        } catch (InterruptedException | ExecutionException ignored) {
-        }
-    }
-
-    public void loadFromStoredData(ChannelDataStorage.StoredData data) {
+        storageExecutor.queue(() -> storage.getOrCreateChannelData(getName()).get(),
+                (ChannelDataStorage.StoredData data) -> {
+                    if (data == null)
+                        return;
+                    synchronized (this) {
+                        if (topic != null)
+                            return;
+                        loadFromStoredData(data);
+                    }
+                    callTopicChanged();
+                }, null);
+    }
+
+    public synchronized void loadFromStoredData(ChannelDataStorage.StoredData data) {
         topic = data.getTopic();
         topicSetOn = data.getTopicSetOn();
         topicSetBy = data.getTopicSetBy();
@@ -155,20 +166,13 @@ public class ChannelData {
     }
 
     // NOTE Nick list resolution
+    // Members cache their nick and prefix rank, and the list is kept sorted in display order (see
+    // compareMembers), so a snapshot is a plain copy with no user lookups and no sorting.
     public List<NickWithPrefix> getMembersAsNickPrefixList() {
         synchronized (membersLock) {
-            List<NickWithPrefix> list = new ArrayList<>();
-            List<UUID> nickRequestList = new ArrayList<>();
-            for (Member member : members)
-                nickRequestList.add(member.getUserUUID());
-            Map<UUID, String> nicks;
-            try {
-                nicks = connection.getUserInfoApi().getUsersNicks(nickRequestList, null, null).get();
-            } catch (InterruptedException | ExecutionException e) {
-                throw new RuntimeException("Failed to retrieve channel nick list", e);
-            }
+            List<NickWithPrefix> list = new ArrayList<>(members.size());
             for (Member member : members)
-                list.add(new NickWithPrefix(nicks.get(member.getUserUUID()), member.getNickPrefixes()));
+                list.add(member.toNickWithPrefix());
             return list;
         }
     }
@@ -183,21 +187,52 @@ public class ChannelData {
         }
     }
 
+    // NOTE Member list listeners
+    // Called after membersLock is released. Members are only changed by the command handlers, on the connection's
+    // thread, so the listeners still see the changes in the order the indices refer to.
     public void addMember(Member member) {
         connection.getUserInfoApi().setUserChannelPresence(member.getUserUUID(), name, true, null, null);
+        NickWithPrefix nickWithPrefix;
+        int index;
         synchronized (membersLock) {
-            members.add(member);
+            if (membersMap.containsKey(member.getUserUUID()))
+                return;
+            if (member.nick == null)
+                member.nick = connection.getUserInfoApi().getUsersNicksSync(
+                        Collections.singletonList(member.getUserUUID())).get(member.getUserUUID());
+            member.rank = getPrefixRank(member.nickPrefixes);
+            if (members.isEmpty())
+                membersCaseMapping = connection.getSupportList().getCaseMapping();
+            index = -findMemberIndex(member) - 1;
+            members.add(index, member);
             membersMap.put(member.getUserUUID(), member);
-            callMemberListChanged();
+            nickWithPrefix = member.toNickWithPrefix();
+        }
+        if (infoListeners.size() > 0) {
+            synchronized (infoListeners) {
+                for (ChannelInfoListener listener : infoListeners)
+                    listener.onMemberAdded(nickWithPrefix, index);
+            }
         }
     }
 
     public void removeMember(Member member) {
         connection.getUserInfoApi().setUserChannelPresence(member.getUserUUID(), name, false, null, null);
+        NickWithPrefix nickWithPrefix;
+        int index;
         synchronized (membersLock) {
-            members.remove(member);
+            index = findMemberIndex(member);
+            if (index < 0)
+                return;
+            members.remove(index);
             membersMap.remove(member.getUserUUID());
-            callMemberListChanged();
+            nickWithPrefix = member.toNickWithPrefix();
+        }
+        if (infoListeners.size() > 0) {
+            synchronized (infoListeners) {
+                for (ChannelInfoListener listener : infoListeners)
+                    listener.onMemberRemoved(nickWithPrefix, index);
+            }
         }
     }
 
@@ -214,12 +249,31 @@ public class ChannelData {
                     connection.getUserInfoApi().setUserChannelPresence(member.getUserUUID(), name, false, null, null);
             }
             membersMap.clear();
+            List<UUID> nickRequestList = new ArrayList<>();
             for (Member member : members) {
                 if (!this.members.contains(member))
                     connection.getUserInfoApi().setUserChannelPresence(member.getUserUUID(), name, true, null, null);
                 membersMap.put(member.getUserUUID(), member);
+                if (member.nick == null)
+                    nickRequestList.add(member.getUserUUID());
+            }
+            if (nickRequestList.size() > 0) {
+                Map<UUID, String> nicks = connection.getUserInfoApi().getUsersNicksSync(nickRequestList);
+                for (Member member : members) {
+                    if (member.nick == null)
+                        member.nick = nicks.get(member.getUserUUID());
+                }
             }
-            this.members = members;
+            for (Member member : members)
+                member.rank = getPrefixRank(member.nickPrefixes);
+            List<Member> sorted = new ArrayList<>(membersMap.size());
+            for (Member member : members) {
+                if (membersMap.get(member.getUserUUID()) == member)
+                    sorted.add(member);
+            }
+            membersCaseMapping = connection.getSupportList().getCaseMapping();
+            Collections.sort(sorted, this::compareMembers);
+            this.members = sorted;
         }
         callMemberListChanged();
     }
@@ -231,12 +285,94 @@ public class ChannelData {
     }
 
     public void setMemberNickPrefixes(Member member, NickPrefixList prefixes) {
+        NickWithPrefix nickWithPrefix;
+        int oldIndex;
+        int newIndex;
         synchronized (membersLock) {
+            oldIndex = findMemberIndex(member);
             member.nickPrefixes = prefixes;
-            callMemberListChanged();
+            if (oldIndex < 0)
+                return;
+            members.remove(oldIndex);
+            member.rank = getPrefixRank(prefixes);
+            newIndex = -findMemberIndex(member) - 1;
+            members.add(newIndex, member);
+            nickWithPrefix = member.toNickWithPrefix();
+        }
+        if (infoListeners.size() > 0) {
+            synchronized (infoListeners) {
+                for (ChannelInfoListener listener : infoListeners)
+                    listener.onMemberPrefixesChanged(nickWithPrefix, oldIndex, newIndex);
+            }
+        }
+    }
+
+    public void renameMember(Member member, String newNick) {
+        String oldNick;
+        NickWithPrefix nickWithPrefix;
+        int oldIndex;
+        int newIndex;
+        synchronized (membersLock) {
+            oldNick = member.nick;
+            oldIndex = findMemberIndex(member);
+            if (oldIndex < 0) {
+                member.nick = newNick;
+                return;
+            }
+            members.remove(oldIndex);
+            member.nick = newNick;
+            newIndex = -findMemberIndex(member) - 1;
+            members.add(newIndex, member);
+            nickWithPrefix = member.toNickWithPrefix();
+        }
+        if (infoListeners.size() > 0) {
+            synchronized (infoListeners) {
+                for (ChannelInfoListener listener : infoListeners)
+                    listener.onMemberRenamed(oldNick, nickWithPrefix, oldIndex, newIndex);
+            }
         }
     }
 
+    // Must be called with membersLock held; the member's nick and rank must be the ones it was inserted with
+    private int findMemberIndex(Member member) {
+        int index = Collections.binarySearch(members, member, this::compareMembers);
+        if (index >= 0 && members.get(index) != member) // a different instance for the same user
+            return -1;
+        return index;
+    }
+
+    /**
+     * Returns the position of the highest ranking prefix in the server's PREFIX list, so that ops sort before voiced
+     * users and users with no prefix sort last.
+     */
+    private int getPrefixRank(NickPrefixList prefixes) {
+        if (prefixes == null || prefixes.length() == 0)
+            return Integer.MAX_VALUE;
+        NickPrefixList supported = connection.getSupportList().getSupportedNickPrefixes();
+        int rank = supported.length();
+        for (char c : prefixes) {
+            int i = supported.find(c);
+            if (i != -1 && i < rank)
+                rank = i;
+        }
+        return rank;
+    }
+
+    // By the server's casemapping, as of when the list was last set (or started), so that the order stays the same
+    private int compareMembers(Member left, Member right) {
+        if (left.rank != right.rank)
+            return left.rank < right.rank ? -1 : 1;
+        String leftNick = left.nick != null ? left.nick : "";
+        String rightNick = right.nick != null ? right.nick : "";
+        CaseMapping caseMapping = membersCaseMapping != null ? membersCaseMapping : CaseMapping.RFC1459;
+        int ret = caseMapping.compareIgnoreCase(leftNick, rightNick);
+        if (ret == 0)
+            ret = leftNick.compareTo(rightNick);
+        if (ret == 0)
+            ret = left.getUserUUID().compareTo(right.getUserUUID());
+        return ret;
+    }
+
     public ModeList getFlagModes() {
         synchronized (this) {
             return modesFlag;
@@ -355,10 +491,7 @@ public class ChannelData {
     // - Capabilities are part of the protocol → domain transition
     // - They are not UI or storage concerns
     public void addMessage(MessageInfo.Builder message, Map<String, String> tags) {
-        if (tags != null) {
-            for (Capability cap : connection.getCapabilityManager().getEnabledCapabilities())
-                cap.processMessage(message, tags);
-        }
+        connection.getCapabilityManager().processMessage(message, tags);
         addMessage(message.build());
     }
 
@@ -379,6 +512,9 @@ public class ChannelData {
         private UUID userUUID;
         private ModeList modeList;
         private NickPrefixList nickPrefixes;
+        // Cached sort keys, only changed under the channel's membersLock
+        private String nick;
+        private int rank;
 
         public Member(UUID userUUID, ModeList modeList, NickPrefixList nickPrefixes) {
             this.userUUID = userUUID;
@@ -386,6 +522,11 @@ public class ChannelData {
             this.nickPrefixes = nickPrefixes;
         }
 
+        public Member(UUID userUUID, String nick, ModeList modeList, NickPrefixList nickPrefixes) {
+            this(userUUID, modeList, nickPrefixes);
+            this.nick = nick;
+        }
+
         public UUID getUserUUID() {
             return userUUID;
         }
@@ -398,6 +539,14 @@ public class ChannelData {
             return nickPrefixes;
         }
 
+        public String getNick() {
+            return nick;
+        }
+
+        NickWithPrefix toNickWithPrefix() {
+            return new NickWithPrefix(nick, nickPrefixes);
+        }
+
     }
 
 }
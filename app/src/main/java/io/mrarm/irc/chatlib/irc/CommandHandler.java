@@ -35,4 +35,13 @@ public interface CommandHandler {
                 Map<String, String> tags)
             throws InvalidMessageException;
 
+    /**
+     * Handles a message straight from the parsed line view. Handlers on hot paths override this to read only the
+     * parts they need; the default implementation materializes everything and calls the method above.
+     * The message view is reused for the next line and must not be retained.
+     */
+    default void handle(ServerConnectionData connection, ParsedMessage message) throws InvalidMessageException {
+        handle(connection, message.getPrefix(), message.getCommand(), message.getParams(), message.getTags());
+    }
+
 }
@@ -2,7 +2,10 @@ package io.mrarm.irc.chatlib.irc;
 
 import android.util.Log;
 
-import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import io.mrarm.irc.chatlib.irc.handlers.AwayCommandHandler;
 import io.mrarm.irc.chatlib.irc.handlers.CapCommandHandler;
@@ -24,9 +27,19 @@ import io.mrarm.irc.chatlib.irc.handlers.TopicWhoTimeCommandHandler;
 import io.mrarm.irc.chatlib.irc.handlers.WelcomeCommandHandler;
 import io.mrarm.irc.chatlib.irc.handlers.WhoisCommandHandler;
 
+/**
+ * Maps received commands to their handlers. Numerics (000-999) are looked up directly in an array, verb commands in a
+ * small open-addressing table that can be probed straight from the line buffer, and handlers can be fetched by class
+ * through a separate registry.
+ */
 public class CommandHandlerList {
 
-    private HashMap<String, CommandHandler> handlers = new HashMap<>();
+    private static final int NUMERIC_COUNT = 1000;
+
+    private final CommandHandler[] numericHandlers = new CommandHandler[NUMERIC_COUNT];
+    private final VerbTable verbHandlers = new VerbTable();
+    private final Map<Class<?>, CommandHandler> handlersByClass = new ConcurrentHashMap<>();
+    private final List<CommandHandler> registeredHandlers = new CopyOnWriteArrayList<>();
     private static CommandHandlerList defaultHandlers;
     private ErrorCommandHandler errorCommandHandler = new ErrorCommandHandler();
 
@@ -45,7 +58,8 @@ public class CommandHandlerList {
             defaultHandlers.registerHandler(new TopicWhoTimeCommandHandler());
             defaultHandlers.registerHandler(new KickCommandHandler());
         }
-        handlers.putAll(defaultHandlers.handlers);
+        for (CommandHandler handler : defaultHandlers.registeredHandlers)
+            registerHandler(handler);
 
         // per-connection handlers
         registerHandler(new MessageCommandHandler());
@@ -59,42 +73,88 @@ public class CommandHandlerList {
     }
 
     public CommandHandler getHandlerFor(String command) throws InvalidMessageException {
-        if (!handlers.containsKey(command)) {
+        int numeric = parseNumeric(command);
+        CommandHandler handler = numeric != -1 ? numericHandlers[numeric] :
+                verbHandlers.get(command, 0, command.length());
+        if (handler == null) {
             Log.d("[COMMAND HANDLER LIST]", "getHandlerFor() " + command);
             if (errorCommandHandler.canHandle(command))
                 return errorCommandHandler;
             throw new InvalidMessageException("No such command found (" + command + ")");
         }
-        return handlers.get(command);
+        return handler;
+    }
+
+    /**
+     * Same as {@link #getHandlerFor(String)}, but probes the tables straight from the message view without
+     * creating the command string.
+     */
+    public CommandHandler getHandlerFor(ParsedMessage message) throws InvalidMessageException {
+        int numeric = message.getNumeric();
+        CommandHandler handler = numeric != -1 ? numericHandlers[numeric] :
+                verbHandlers.get(message.getLine(), message.getCommandStart(), message.getCommandEnd());
+        if (handler == null) {
+            if (numeric != -1 && errorCommandHandler.canHandle(numeric))
+                return errorCommandHandler;
+            throw new InvalidMessageException("No such command found (" + message.getCommand() + ")");
+        }
+        return handler;
     }
 
     public void registerHandler(CommandHandler handler) {
         for (Object command : handler.getHandledCommands()) {
-            String s = getCommandString(command);
-            if (handlers.containsKey(s))
-                throw new RuntimeException("Handler registration name collision");
-            handlers.put(getCommandString(s), handler);
+            int numeric = getCommandNumeric(command);
+            if (numeric != -1) {
+                if (numericHandlers[numeric] != null)
+                    throw new RuntimeException("Handler registration name collision");
+                numericHandlers[numeric] = handler;
+            } else {
+                if (!verbHandlers.put(command.toString(), handler))
+                    throw new RuntimeException("Handler registration name collision");
+            }
         }
+        handlersByClass.putIfAbsent(handler.getClass(), handler);
+        if (!registeredHandlers.contains(handler))
+            registeredHandlers.add(handler);
     }
 
     public void unregisterHandler(CommandHandler handler) {
         for (Object command : handler.getHandledCommands()) {
-            handlers.remove(getCommandString(command));
+            int numeric = getCommandNumeric(command);
+            if (numeric != -1)
+                numericHandlers[numeric] = null;
+            else
+                verbHandlers.remove(command.toString());
         }
+        handlersByClass.remove(handler.getClass(), handler);
+        registeredHandlers.remove(handler);
     }
 
-    private String getCommandString(Object o) {
-        if (o instanceof Integer)
-            return String.format("%03d", (Integer) o);
-        return o.toString();
+    private static int getCommandNumeric(Object o) {
+        if (o instanceof Integer) {
+            int numeric = (Integer) o;
+            if (numeric < 0 || numeric >= NUMERIC_COUNT)
+                throw new IllegalArgumentException("Numeric out of range: " + numeric);
+            return numeric;
+        }
+        return parseNumeric(o.toString());
     }
 
-    public <T> T getHandler(Class<? extends T> cl) {
-        for (CommandHandler handler : handlers.values()) {
-            if (handler.getClass().equals(cl))
-                return (T) handler;
+    private static int parseNumeric(String s) {
+        if (s.length() != 3)
+            return -1;
+        int ret = 0;
+        for (int i = 0; i < 3; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            ret = ret * 10 + (c - '0');
         }
-        return null;
+        return ret;
+    }
+
+    public <T> T getHandler(Class<? extends T> cl) {
+        return (T) handlersByClass.get(cl);
     }
 
     public ErrorCommandHandler getErrorCommandHandler() {
@@ -102,10 +162,102 @@ public class CommandHandlerList {
     }
 
     public void notifyDisconnected() {
-        for (CommandHandler handler : handlers.values()) {
+        for (CommandHandler handler : registeredHandlers) {
             if (handler instanceof CommandDisconnectHandler)
                 ((CommandDisconnectHandler) handler).onDisconnected();
         }
     }
 
+    /**
+     * Linear probing table for the verb commands. It is kept at most a quarter full so a lookup is almost always a
+     * single probe, and it hashes a region of a CharSequence so it can be queried without a substring. Writes build
+     * a new table, so lookups from the network thread never take a lock.
+     */
+    private static class VerbTable {
+
+        private volatile Table table = new Table(64);
+
+        private static int hash(CharSequence s, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++)
+                h = 31 * h + s.charAt(i);
+            return h ^ (h >>> 16);
+        }
+
+        CommandHandler get(CharSequence s, int start, int end) {
+            return table.get(s, start, end);
+        }
+
+        synchronized boolean put(String key, CommandHandler value) {
+            Table old = table;
+            if (old.get(key, 0, key.length()) != null)
+                return false;
+            int capacity = old.keys.length;
+            while ((old.size + 1) * 4 > capacity)
+                capacity *= 2;
+            Table t = new Table(capacity);
+            t.copyFrom(old, null);
+            t.insert(key, value);
+            table = t;
+            return true;
+        }
+
+        synchronized void remove(String key) {
+            Table old = table;
+            Table t = new Table(old.keys.length);
+            t.copyFrom(old, key);
+            table = t;
+        }
+
+        private static class Table {
+
+            final String[] keys;
+            final CommandHandler[] values;
+            int size;
+
+            Table(int capacity) {
+                keys = new String[capacity];
+                values = new CommandHandler[capacity];
+            }
+
+            CommandHandler get(CharSequence s, int start, int end) {
+                int mask = keys.length - 1;
+                for (int i = hash(s, start, end) & mask; keys[i] != null; i = (i + 1) & mask) {
+                    if (regionEquals(keys[i], s, start, end))
+                        return values[i];
+                }
+                return null;
+            }
+
+            void copyFrom(Table other, String skipKey) {
+                for (int i = 0; i < other.keys.length; i++) {
+                    if (other.keys[i] != null && !other.keys[i].equals(skipKey))
+                        insert(other.keys[i], other.values[i]);
+                }
+            }
+
+            void insert(String key, CommandHandler value) {
+                int mask = keys.length - 1;
+                int i = hash(key, 0, key.length()) & mask;
+                while (keys[i] != null)
+                    i = (i + 1) & mask;
+                keys[i] = key;
+                values[i] = value;
+                size++;
+            }
+
+            private static boolean regionEquals(String key, CharSequence s, int start, int end) {
+                if (key.length() != end - start)
+                    return false;
+                for (int i = 0; i < key.length(); i++) {
+                    if (key.charAt(i) != s.charAt(start + i))
+                        return false;
+                }
+                return true;
+            }
+
+        }
+
+    }
+
 }
@@ -53,8 +53,12 @@ public class ErrorCommandHandler implements CommandHandler {
         } catch (NumberFormatException ex) {
             return false;
         }
+        return canHandle(cmdId);
+    }
+
+    public boolean canHandle(int numeric) {
         synchronized (callbacks) {
-            return callbacks.containsKey(cmdId);
+            return callbacks.containsKey(numeric);
         }
     }
 
@@ -0,0 +1,127 @@
+package io.mrarm.irc.chatlib.irc;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Token bucket pacing the lines sent to a server: up to {@link #getBurst()} lines can be sent at once, after which a
+ * new line is allowed every {@link #getRefillInterval()} milliseconds.
+ * <p>
+ * When a server disconnects us for flooding, the limits are tightened and remembered for that network for the rest
+ * of the process lifetime, so the following reconnects start with the learned values.
+ */
+public class FloodControl {
+
+    public static final int DEFAULT_BURST = 5;
+    public static final long DEFAULT_REFILL_INTERVAL = 2000L;
+
+    private static final long MAX_REFILL_INTERVAL = 10000L;
+    private static final Map<String, Rate> learnedRates = new HashMap<>();
+
+    private final String network;
+    private int burst;
+    private long refillInterval;
+    private double tokens;
+    private long lastRefill;
+
+    public FloodControl(int burst, long refillInterval) {
+        this(null, burst, refillInterval);
+    }
+
+    private FloodControl(String network, int burst, long refillInterval) {
+        this.network = network;
+        this.burst = Math.max(burst, 1);
+        this.refillInterval = Math.max(refillInterval, 1L);
+        this.tokens = this.burst;
+        this.lastRefill = now();
+    }
+
+    /**
+     * Creates a bucket using the limits learned for the given network, or the defaults.
+     */
+    public static FloodControl forNetwork(String network) {
+        Rate rate;
+        synchronized (learnedRates) {
+            rate = learnedRates.get(network);
+        }
+        if (rate == null)
+            return new FloodControl(network, DEFAULT_BURST, DEFAULT_REFILL_INTERVAL);
+        return new FloodControl(network, rate.burst, rate.refillInterval);
+    }
+
+    static long now() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    public synchronized int getBurst() {
+        return burst;
+    }
+
+    public synchronized long getRefillInterval() {
+        return refillInterval;
+    }
+
+    private void refill(long now) {
+        if (now > lastRefill) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) / (double) refillInterval);
+            lastRefill = now;
+        }
+    }
+
+    /**
+     * Takes a token if one is available.
+     */
+    public synchronized boolean tryAcquire(long now) {
+        refill(now);
+        if (tokens < 1.0)
+            return false;
+        tokens -= 1.0;
+        return true;
+    }
+
+    /**
+     * Takes a token even if none is available, delaying the lines that follow instead. Used for the lines that must
+     * not wait, like PONG replies.
+     */
+    public synchronized void consume(long now) {
+        refill(now);
+        tokens = Math.max(tokens - 1.0, -burst);
+    }
+
+    /**
+     * Returns the time in milliseconds until {@link #tryAcquire(long)} can succeed.
+     */
+    public synchronized long getDelayUntilNextToken(long now) {
+        refill(now);
+        if (tokens >= 1.0)
+            return 0L;
+        return Math.max((long) Math.ceil((1.0 - tokens) * refillInterval), 1L);
+    }
+
+    /**
+     * Called when the server closed the link because of excess flood.
+     */
+    public synchronized void onExcessFlood() {
+        burst = Math.max(burst - 1, 1);
+        refillInterval = Math.min(refillInterval * 3 / 2, MAX_REFILL_INTERVAL);
+        tokens = 0.0;
+        if (network != null) {
+            synchronized (learnedRates) {
+                learnedRates.put(network, new Rate(burst, refillInterval));
+            }
+        }
+    }
+
+    private static class Rate {
+
+        final int burst;
+        final long refillInterval;
+
+        Rate(int burst, long refillInterval) {
+            this.burst = burst;
+            this.refillInterval = refillInterval;
+        }
+
+    }
+
+}
@@ -3,9 +3,12 @@ package io.mrarm.irc.chatlib.irc;
 
 import android.util.Log;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
@@ -15,6 +18,7 @@ import java.util.UUID;
 import java.util.concurrent.Future;
 
 import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLSocket;
 
 import io.mrarm.irc.chatlib.ChatApiException;
@@ -27,7 +31,9 @@ import io.mrarm.irc.chatlib.irc.handlers.MessageCommandHandler;
 import io.mrarm.irc.chatlib.irc.handlers.NickCommandHandler;
 import io.mrarm.irc.chatlib.irc.handlers.PongCommandHandler;
 import io.mrarm.irc.chatlib.irc.handlers.WhoisCommandHandler;
-import io.mrarm.irc.chatlib.user.SimpleUserInfoApi;
+import io.mrarm.irc.chatlib.irc.transport.MultiplexedTransport;
+import io.mrarm.irc.chatlib.irc.transport.NetworkEngine;
+import io.mrarm.irc.chatlib.user.ConcurrentUserInfoApi;
 import io.mrarm.irc.chatlib.util.SettableFuture;
 import io.mrarm.irc.chatlib.util.SimpleRequestExecutor;
 
@@ -38,10 +44,19 @@ public class IRCConnection extends ServerConnectionApi {
     private static final String[] AUTH_COMMAND_PREFIXES = new String[]{"PASS ", "OPER", "PRIVMSG NickServ :IDENTIFY ",
             "NICKSERV IDENTIFY "};
 
+    // Including the TLS handshake; the blocking transport leaves this to the OS
+    private static final long MULTIPLEXED_CONNECT_TIMEOUT_MS = 30000;
+    // How long a clean disconnect waits for the QUIT to be written
+    private static final long QUIT_SEND_TIMEOUT_MS = 1000;
+
     private Charset charset; // Connection configuration state
     private Socket socket; // Transport state - It does indicate connection lifecycle. weather the ir a TCP connection open or not.
     private InputStream socketInputStream; // Transport mechanic - moves bytes
     private OutputStream socketOutputStream; // Transport mechanic - moves bytes
+    private LineFramer.Factory lineFramerFactory = BufferedLineFramer.FACTORY; // Transport configuration
+    private LineFramer lineFramer; // Transport mechanic - splits incoming bytes into lines
+    private volatile MultiplexedTransport transport; // Transport state - set instead of the socket fields when multiplexed
+    private final SendQueue sendQueue = new SendQueue(); // Transport mechanic - paces outgoing lines
     private MessageHandler inputHandler; // a Processor - Not state
     private ResponseCallback<Void> connectCallback; // Transient coordinator state
     private ResponseErrorCallback connectErrorCallback; // Transient coordinator state
@@ -52,27 +67,31 @@ public class IRCConnection extends ServerConnectionApi {
     public IRCConnection() {
         super(new ServerConnectionData());
         inputHandler = new MessageHandler(getServerConnectionData());
-        getServerConnectionData().setUserInfoApi(new SimpleUserInfoApi());
+        getServerConnectionData().setUserInfoApi(new ConcurrentUserInfoApi(getServerConnectionData()));
 
     }
 
     private void sendCommandRaw(String string, boolean flush) throws IOException {
-        synchronized (socketOutputStream) {
-            byte[] data = (string + "\r\n").getBytes(charset);
-            if (data.length > 512)
-                throw new IOException("Too long message");
-            socketOutputStream.write(data);
-            String printStr = string;
-            for (String s : AUTH_COMMAND_PREFIXES) {
-                if (string.regionMatches(true, 0, s, 0, s.length())) {
-                    printStr = s + "***";
-                    break;
-                }
+        byte[] data = (string + "\r\n").getBytes(charset);
+        if (data.length > 512)
+            throw new IOException("Too long message");
+        sendQueue.queue(data, getSendPriority(string), flush);
+        String printStr = string;
+        for (String s : AUTH_COMMAND_PREFIXES) {
+            if (string.regionMatches(true, 0, s, 0, s.length())) {
+                printStr = s + "***";
+                break;
             }
-            Log.d("Sent: ", printStr);
-            if (flush)
-                socketOutputStream.flush();
         }
+        Log.d("Sent: ", printStr);
+    }
+
+    private static SendQueue.Priority getSendPriority(String line) {
+        // PING too, so the lag check measures the server and not the lines waiting in the normal lane
+        if (line.regionMatches(true, 0, "PING ", 0, 5) || line.regionMatches(true, 0, "PONG ", 0, 5) ||
+                line.regionMatches(true, 0, "QUIT", 0, 4))
+            return SendQueue.Priority.HIGH;
+        return SendQueue.Priority.NORMAL;
     }
 
     private void sendCommand(boolean flush, String command, boolean isLastArgFullLine, String... args) throws IOException {
@@ -99,62 +118,88 @@ public class IRCConnection extends ServerConnectionApi {
         sendCommand(true, command, isLastArgFullLine, args);
     }
 
-    private String readCommand() throws IOException {
-        byte[] buf = new byte[1024];
-        int i, v;
-        for (i = 0; i < 1024; i++) {
-            v = socketInputStream.read();
-            if (v == -1)
-                throw new IOException("read() returned -1");
-            if (v == '\n' || v == '\r') {
-                if (i == 0) {
-                    --i;
-                    continue;
-                }
-                break;
-            }
-            buf[i] = (byte) v;
-        }
-        return new String(buf, 0, i, charset);
+    public void setLineFramerFactory(LineFramer.Factory factory) {
+        lineFramerFactory = factory;
+    }
+
+    /**
+     * Returns the outgoing queue; its depth shows how many lines are waiting to be sent.
+     */
+    public SendQueue getSendQueue() {
+        return sendQueue;
+    }
+
+    /**
+     * Stops reading from the socket of a multiplexed connection until {@link #resumeReading()}, so that a server sending
+     * faster than the received messages can be stored is held back by TCP flow control. Returns false if the
+     * connection uses the blocking transport, whose reader thread is expected to be blocked instead.
+     */
+    public boolean pauseReading() {
+        MultiplexedTransport transport = this.transport;
+        if (transport == null)
+            return false;
+        transport.setReadingPaused(true);
+        return true;
+    }
+
+    public void resumeReading() {
+        MultiplexedTransport transport = this.transport;
+        if (transport != null)
+            transport.setReadingPaused(false);
     }
 
     private void handleInput() {
         try {
-            while (true) {
-                String command = readCommand();
-                Log.i("Got: ", command);
-                try {
-                    // NOTE: Socket read loop
-                    // MessageHandler parses line
-                    // Dispatches to CommandHandlers
-                    // MessageCommandHandler is invoked here
-                    inputHandler.handleLine(command);
-                } catch (InvalidMessageException e) {
-                    getServerConnectionData().getServerStatusData().addMessage(new StatusMessageInfo(
-                            null, new Date(), StatusMessageInfo.MessageType.UNHANDLED_MESSAGE, command));
-                }
-            }
+            while (true)
+                handleLine(lineFramer.readLine());
         } catch (IOException e) {
+            onConnectionLost(e);
+        }
+    }
 
-            // Failure handling: disconnect warnings bypass normal channel routing;
-            // they go straight to conversation state
-            e.printStackTrace();
-            socketInputStream = null;
+    private void handleLine(String command) {
+        Log.i("Got: ", command);
+        if (command.startsWith("ERROR ") && command.contains("Excess Flood")) {
+            FloodControl floodControl = sendQueue.getFloodControl();
+            if (floodControl != null)
+                floodControl.onExcessFlood();
+        }
+        try {
+            // NOTE: Socket read loop
+            // MessageHandler parses line
+            // Dispatches to CommandHandlers
+            // MessageCommandHandler is invoked here
+            inputHandler.handleLine(command);
+        } catch (InvalidMessageException e) {
+            getServerConnectionData().getServerStatusData().addMessage(new StatusMessageInfo(
+                    null, new Date(), StatusMessageInfo.MessageType.UNHANDLED_MESSAGE, command));
+        }
+    }
+
+    private void onConnectionLost(IOException e) {
+        // Failure handling: disconnect warnings bypass normal channel routing;
+        // they go straight to conversation state
+        e.printStackTrace();
+        sendQueue.stop();
+        socketInputStream = null;
+        lineFramer = null;
+        transport = null;
+        if (socketOutputStream != null) {
             synchronized (socketOutputStream) {
                 socketOutputStream = null;
             }
-            getServerConnectionData().addLocalMessageToAllChannels(new MessageInfo(null, new Date(), null, MessageInfo.MessageType.DISCONNECT_WARNING));
-            getServerConnectionData().getServerStatusData().addMessage(new StatusMessageInfo(null, new Date(), StatusMessageInfo.MessageType.DISCONNECT_WARNING, null));
-            getServerConnectionData().getCommandHandlerList().notifyDisconnected();
-            synchronized (this) {
-                socket = null;
-                if (connectErrorCallback != null)
-                    connectErrorCallback.onError(e);
-            }
-            synchronized (disconnectListeners) {
-                for (DisconnectListener listener : disconnectListeners) {
-                    listener.onDisconnected(this, e);
-                }
+        }
+        getServerConnectionData().addLocalMessageToAllChannels(new MessageInfo(null, new Date(), null, MessageInfo.MessageType.DISCONNECT_WARNING));
+        getServerConnectionData().getServerStatusData().addMessage(new StatusMessageInfo(null, new Date(), StatusMessageInfo.MessageType.DISCONNECT_WARNING, null));
+        getServerConnectionData().getCommandHandlerList().notifyDisconnected();
+        synchronized (this) {
+            socket = null;
+            if (connectErrorCallback != null)
+                connectErrorCallback.onError(e);
+        }
+        synchronized (disconnectListeners) {
+            for (DisconnectListener listener : disconnectListeners) {
+                listener.onDisconnected(this, e);
             }
         }
     }
@@ -165,7 +210,7 @@ public class IRCConnection extends ServerConnectionApi {
         executor.queue(() -> {
             try {
                 synchronized (this) {
-                    if (socket != null)
+                    if (socket != null || transport != null)
                         throw new RuntimeException("Already connected");
                     connectCallback = (Void v) -> {
                         f.set(v);
@@ -186,6 +231,9 @@ public class IRCConnection extends ServerConnectionApi {
     }
 
     public void disconnect(boolean cleanly) {
+        MultiplexedTransport transport = this.transport;
+        if (transport != null)
+            transport.close();
         if (socket != null) {
             if (cleanly) {
                 try {
@@ -228,6 +276,7 @@ public class IRCConnection extends ServerConnectionApi {
     public Future<Void> quit(String message, ResponseCallback<Void> callback, ResponseErrorCallback errorCallback) {
         return executor.queue(() -> {
             sendCommand("QUIT", true, message);
+            sendQueue.sendNow(QUIT_SEND_TIMEOUT_MS);
             disconnect(true);
             return null;
         }, callback, errorCallback);
@@ -351,7 +400,8 @@ public class IRCConnection extends ServerConnectionApi {
         return executor.queue(() -> {
             String cmd = notice ? "NOTICE" : "PRIVMSG";
             if (split) {
-                String[] messages = MessageSplitHelper.split(getServerConnectionData(), channel, message, notice);
+                String[] messages = MessageSplitHelper.split(getServerConnectionData(), charset, channel,
+                        message, notice);
                 for (String submsg : messages)
                     sendMessageInternal(cmd, channel, submsg);
             } else {
@@ -374,6 +424,10 @@ public class IRCConnection extends ServerConnectionApi {
     }
 
     private void connectSync(IRCConnectionRequest request) throws IOException {
+        if (request.getTransportMode() == IRCConnectionRequest.TransportMode.MULTIPLEXED) {
+            connectMultiplexed(request);
+            return;
+        }
         try {
             getServerConnectionData().reset();
             charset = request.getCharset();
@@ -392,19 +446,21 @@ public class IRCConnection extends ServerConnectionApi {
             }
             socketInputStream = socket.getInputStream();
             socketOutputStream = socket.getOutputStream();
-            sendCommand(false, "CAP", false, "LS", "302");
-            if (request.getServerPass() != null)
-                sendCommand(false, "PASS", request.getServerPass().contains(" ") ||
-                                request.getServerPass().length() == 0 || request.getServerPass().startsWith(":"),
-                        request.getServerPass());
-            connectRequestNick(request.getNickList(), 0);
-            sendCommand("USER", true, request.getUser(), String.valueOf(request.getUserMode()), "*", request.getRealName());
-            System.out.println("Sent inital commands");
+            lineFramer = lineFramerFactory.create(socketInputStream, charset);
+            OutputStream out = new BufferedOutputStream(socketOutputStream);
+            sendQueue.start((List<byte[]> lines) -> {
+                for (byte[] line : lines)
+                    out.write(line);
+                out.flush();
+            }, createFloodControl(request));
+            sendInitialCommands(request);
         } catch (Throwable t) {
+            sendQueue.stop();
             disconnect(false);
             socket = null;
             socketInputStream = null;
             socketOutputStream = null;
+            lineFramer = null;
             throw t;
         }
 
@@ -415,9 +471,74 @@ public class IRCConnection extends ServerConnectionApi {
         thread.start();
     }
 
+    // NOTE: Multiplexed transport
+    // The socket is read on the shared NetworkEngine thread instead of a per-connection thread. Lines are handled
+    // in order on a pool thread which only exists while there are lines waiting, the MessageHandler dispatch is the same.
+    private void connectMultiplexed(IRCConnectionRequest request) throws IOException {
+        getServerConnectionData().reset();
+        charset = request.getCharset();
+        SSLEngine sslEngine = null;
+        if (request.isUsingSSL()) {
+            if (request.getSSLContext() == null)
+                throw new IOException("The multiplexed transport requires an SSLContext");
+            sslEngine = request.getSSLContext().createSSLEngine(request.getServerIP(), request.getServerPort());
+            sslEngine.setUseClientMode(true);
+        }
+        MultiplexedTransport transport = new MultiplexedTransport(NetworkEngine.getInstance(), charset, sslEngine,
+                new MultiplexedTransport.Listener() {
+                    @Override
+                    public void onLine(String line) {
+                        handleLine(line);
+                    }
+
+                    @Override
+                    public void onClosed(IOException reason) {
+                        onConnectionLost(reason);
+                    }
+                });
+        this.transport = transport;
+        try {
+            transport.connect(new InetSocketAddress(InetAddress.getByName(request.getServerIP()),
+                    request.getServerPort()), MULTIPLEXED_CONNECT_TIMEOUT_MS);
+            HostnameVerifier hostnameVerifier = request.getSSLHostnameVerifier();
+            if (sslEngine != null && hostnameVerifier != null &&
+                    !hostnameVerifier.verify(request.getServerIP(), sslEngine.getSession()))
+                throw new IOException("Failed to verify hostname: " + request.getServerIP());
+            sendQueue.start((List<byte[]> lines) -> {
+                for (byte[] line : lines)
+                    transport.send(line);
+            }, createFloodControl(request));
+            sendInitialCommands(request);
+        } catch (Throwable t) {
+            sendQueue.stop();
+            transport.abort();
+            this.transport = null;
+            throw t;
+        }
+    }
+
+    private static FloodControl createFloodControl(IRCConnectionRequest request) {
+        if (request.getFloodControlBurst() > 0)
+            return new FloodControl(request.getFloodControlBurst(), request.getFloodControlInterval());
+        return FloodControl.forNetwork(request.getServerIP());
+    }
+
+    private void sendInitialCommands(IRCConnectionRequest request) throws IOException {
+        sendCommand(false, "CAP", false, "LS", "302");
+        if (request.getServerPass() != null)
+            sendCommand(false, "PASS", request.getServerPass().contains(" ") ||
+                            request.getServerPass().length() == 0 || request.getServerPass().startsWith(":"),
+                    request.getServerPass());
+        connectRequestNick(request.getNickList(), 0, false);
+        sendCommand("USER", true, request.getUser(), String.valueOf(request.getUserMode()), "*", request.getRealName());
+        System.out.println("Sent inital commands");
+    }
+
     @Override
     public void notifyMotdReceived() {
         super.notifyMotdReceived();
+        // Registered; from now on the lines are paced
+        sendQueue.setPacing(true);
         getServerConnectionData().getCommandHandlerList().getHandler(NickCommandHandler.class).cancel(
                 getServerConnectionData().getUserNick());
         if (connectCallback != null)
@@ -426,7 +547,7 @@ public class IRCConnection extends ServerConnectionApi {
         connectErrorCallback = null;
     }
 
-    private void connectRequestNick(List<String> nickList, int index) throws IOException {
+    private void connectRequestNick(List<String> nickList, int index, boolean flush) throws IOException {
         getServerConnectionData().setUserNick(nickList.get(index));
         getServerConnectionData().getCommandHandlerList().getHandler(NickCommandHandler.class).onRequested(
                 nickList.get(0), null, (String n, int i, String err) -> {
@@ -438,14 +559,14 @@ public class IRCConnection extends ServerConnectionApi {
                             return;
                         }
                         try {
-                            connectRequestNick(nickList, index + 1);
+                            connectRequestNick(nickList, index + 1, true);
                         } catch (IOException e) {
                             if (connectErrorCallback != null)
                                 connectErrorCallback.onError(new ChatApiException("Failed to request nickname"));
                         }
                     }
                 });
-        sendCommand(false, "NICK", false, nickList.get(index));
+        sendCommand(flush, "NICK", false, nickList.get(index));
     }
 
     public interface DisconnectListener {
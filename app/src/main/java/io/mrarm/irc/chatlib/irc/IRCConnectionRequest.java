@@ -7,6 +7,7 @@ import java.util.List;
 
 import javax.net.SocketFactory;
 import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
 
 public class IRCConnectionRequest {
 
@@ -14,6 +15,7 @@ public class IRCConnectionRequest {
     private int serverPort;
     private boolean serverSSL = false;
     private SocketFactory sslSocketFactory;
+    private SSLContext sslContext;
     private HostnameVerifier sslHostnameVerifier;
     private Charset charset = StandardCharsets.UTF_8;
     private String serverPass;
@@ -21,6 +23,9 @@ public class IRCConnectionRequest {
     private int userMode;
     private String realname;
     private List<String> nickList;
+    private TransportMode transportMode = TransportMode.BLOCKING;
+    private int floodControlBurst;
+    private long floodControlInterval;
 
     public String getServerIP() {
         return serverIP;
@@ -38,6 +43,10 @@ public class IRCConnectionRequest {
         return sslSocketFactory;
     }
 
+    public SSLContext getSSLContext() {
+        return sslContext;
+    }
+
     public HostnameVerifier getSSLHostnameVerifier() {
         return sslHostnameVerifier;
     }
@@ -94,11 +103,18 @@ public class IRCConnectionRequest {
 
     public IRCConnectionRequest enableSSL(SocketFactory factory, HostnameVerifier verifier) {
         this.sslSocketFactory = factory;
+        this.sslContext = null;
         this.sslHostnameVerifier = verifier;
         this.serverSSL = true;
         return this;
     }
 
+    public IRCConnectionRequest enableSSL(SSLContext context, HostnameVerifier verifier) {
+        enableSSL(context.getSocketFactory(), verifier);
+        this.sslContext = context;
+        return this;
+    }
+
     public IRCConnectionRequest disableSSL() {
         this.serverSSL = false;
         return this;
@@ -120,4 +136,38 @@ public class IRCConnectionRequest {
         return this;
     }
 
+    public TransportMode getTransportMode() {
+        return transportMode;
+    }
+
+    public IRCConnectionRequest setTransportMode(TransportMode transportMode) {
+        this.transportMode = transportMode;
+        return this;
+    }
+
+    public int getFloodControlBurst() {
+        return floodControlBurst;
+    }
+
+    public long getFloodControlInterval() {
+        return floodControlInterval;
+    }
+
+    /**
+     * Overrides the outgoing line pacing: burst lines can be sent at once, then one line every interval ms. Without
+     * this the defaults (or the limits learned for the server) are used.
+     */
+    public IRCConnectionRequest setFloodControl(int burst, long interval) {
+        this.floodControlBurst = burst;
+        this.floodControlInterval = interval;
+        return this;
+    }
+
+    public enum TransportMode {
+        /** A dedicated socket and reader thread per connection. */
+        BLOCKING,
+        /** A non-blocking socket driven by the shared {@link io.mrarm.irc.chatlib.irc.transport.NetworkEngine}. */
+        MULTIPLEXED
+    }
+
 }
@@ -0,0 +1,32 @@
+package io.mrarm.irc.chatlib.irc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Splits the raw server byte stream into IRC lines.
+ */
+public interface LineFramer {
+
+    /**
+     * Maximum length of a single line in bytes, excluding the line terminator: 8191 bytes for IRCv3 message tags
+     * plus the 512 bytes allowed for the rest of the message.
+     */
+    int MAX_LINE_LENGTH = 8191 + 512;
+
+    /**
+     * Blocks until a full non-empty line is available and returns it without the CR/LF terminator.
+     * Lines longer than {@link #MAX_LINE_LENGTH} are truncated and the remaining bytes are discarded.
+     *
+     * @throws IOException if the stream has ended or failed
+     */
+    String readLine() throws IOException;
+
+    interface Factory {
+
+        LineFramer create(InputStream stream, Charset charset);
+
+    }
+
+}
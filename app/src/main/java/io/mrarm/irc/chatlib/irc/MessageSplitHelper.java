@@ -1,13 +1,29 @@
 package io.mrarm.irc.chatlib.irc;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
 
+/**
+ * Splits outgoing messages so that every line, as relayed by the server to the other clients, fits in 512 bytes in
+ * the connection's charset. The text is walked once, measuring every code point as it goes; chunks never end inside a
+ * surrogate pair or a formatting code, and the formatting active at the end of a chunk is repeated at the start of
+ * the next one.
+ */
 public class MessageSplitHelper {
 
     public static final int MAX_SPACE_LOOKUP_N = 10;
 
+    // Used for the server's prefix when we don't know our user and host yet
+    private static final int ASSUMED_USER_LENGTH = 10;
+    private static final int ASSUMED_HOST_LENGTH = 63;
+
     private static class FormattingState {
         int fg = 99, bg = 99;
         boolean bold, italic, underline;
@@ -18,10 +34,11 @@ public class MessageSplitHelper {
 
             StringBuilder ret = new StringBuilder(10);
             if (fg != 99 || bg != 99) {
+                // Always two digits, so that digits at the start of the chunk are not taken as part of the code
                 ret.append((char) 0x03);
-                ret.append(fg);
+                appendTwoDigits(ret, fg);
                 ret.append(',');
-                ret.append(bg);
+                appendTwoDigits(ret, bg);
             }
             if (bold)
                 ret.append((char) 0x02);
@@ -31,59 +48,184 @@ public class MessageSplitHelper {
                 ret.append((char) 0x1F);
             return ret.toString();
         }
+
+        private static void appendTwoDigits(StringBuilder builder, int value) {
+            if (value < 10)
+                builder.append('0');
+            builder.append(value);
+        }
+    }
+
+    /**
+     * Measures encoded lengths one code point at a time. UTF-8 is computed directly; other charsets go through a
+     * single reused encoder.
+     */
+    private static class ByteCounter {
+
+        private final CharsetEncoder encoder;
+        private final CharBuffer in;
+        private final ByteBuffer out;
+
+        ByteCounter(Charset charset) {
+            if (charset == null || charset.equals(StandardCharsets.UTF_8)) {
+                encoder = null;
+                in = null;
+                out = null;
+            } else {
+                encoder = charset.newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                in = CharBuffer.allocate(2);
+                out = ByteBuffer.allocate(Math.max((int) Math.ceil(encoder.maxBytesPerChar() * 2), 16));
+            }
+        }
+
+        /**
+         * Returns the encoded length of the charCount chars at the given index: a code point, a lone surrogate or two
+         * chars of a unit which must not be split.
+         */
+        int count(CharSequence s, int index, int charCount) {
+            if (encoder == null) {
+                if (charCount == 2) {
+                    if (Character.isHighSurrogate(s.charAt(index)) && Character.isLowSurrogate(s.charAt(index + 1)))
+                        return 4;
+                    return count(s, index, 1) + count(s, index + 1, 1);
+                }
+                char c = s.charAt(index);
+                if (c < 0x80 || Character.isSurrogate(c))
+                    return 1; // lone surrogates are replaced by '?'
+                return c < 0x800 ? 2 : 3;
+            }
+            in.clear();
+            in.put(s.charAt(index));
+            if (charCount == 2)
+                in.put(s.charAt(index + 1));
+            in.flip();
+            out.clear();
+            encoder.reset();
+            encoder.encode(in, out, true);
+            encoder.flush(out);
+            return out.position();
+        }
+
+        int count(CharSequence s) {
+            int ret = 0;
+            for (int i = 0; i < s.length(); ) {
+                int n = Character.isHighSurrogate(s.charAt(i)) && i + 1 < s.length() &&
+                        Character.isLowSurrogate(s.charAt(i + 1)) ? 2 : 1;
+                ret += count(s, i, n);
+                i += n;
+            }
+            return ret;
+        }
+
     }
 
     public static String[] split(ServerConnectionData conn, String channel, String message, boolean notice) {
+        return split(conn, StandardCharsets.UTF_8, channel, message, notice);
+    }
+
+    public static String[] split(ServerConnectionData conn, Charset charset, String channel, String message,
+                                 boolean notice) {
+        String userNick = conn.getUserNick();
         String userUser = conn.getUserUser();
         String userHost = conn.getUserHost();
-        if (userUser == null || userHost == null)
-            return new String[] { message };
-        int maxLength = 512;
-        maxLength -= 1 + conn.getUserNick().length() + 1 + userUser.length() + 1 + userHost.length() + 1; // ":n!u@h "
+        ByteCounter counter = new ByteCounter(charset);
+        int maxLength = 512 - 2; // "\r\n"
+        maxLength -= 1 + counter.count(userNick != null ? userNick : "") + 1 +
+                (userUser != null ? counter.count(userUser) : ASSUMED_USER_LENGTH) + 1 +
+                (userHost != null ? counter.count(userHost) : ASSUMED_HOST_LENGTH) + 1; // ":n!u@h "
         maxLength -= (notice ? 7 : 8); // "NOTICE "/"PRIVMSG "
-        maxLength -= channel.length() + 2; // "chan :"
-        if (message.length() < maxLength)
+        maxLength -= counter.count(channel) + 2; // "chan :"
+        if (message.length() * 4 <= maxLength || counter.count(message) <= maxLength)
             return new String[] { message }; // no splitting needed
 
         String messagePrefix = null;
         String messageSuffix = null;
+        int start = 0;
+        int end = message.length();
 
-        boolean isMeMessage = message.startsWith("\01ACTION ") && message.endsWith("\01");
+        boolean isMeMessage = message.startsWith("\01ACTION ") && message.endsWith("\01") &&
+                message.length() > 8;
         if (isMeMessage) {
             messagePrefix = "\01ACTION ";
             messageSuffix = "\01";
-            message = message.substring(messagePrefix.length(), message.length() - messageSuffix.length());
+            start = messagePrefix.length();
+            end -= messageSuffix.length();
+            maxLength -= messagePrefix.length() + messageSuffix.length();
         }
 
         List<String> ret = new ArrayList<>();
         FormattingState formattingState = new FormattingState();
-        for (int i = 0; i < message.length(); ) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = start; i < end; ) {
             String colorPrefix = formattingState.toColorCodes();
+            int budget = maxLength - (colorPrefix != null ? colorPrefix.length() : 0);
 
-            int len = Math.min(maxLength - (messagePrefix != null ? messagePrefix.length() : 0)
-                    - (messageSuffix != null ? messageSuffix.length() : 0)
-                    - (colorPrefix != null ? colorPrefix.length() : 0), message.length() - i);
-            if (i + len != message.length()) {
-                int slen = Math.max(len - MAX_SPACE_LOOKUP_N, 0);
-                for (int nlen = len; nlen >= slen; --nlen) {
-                    if (message.charAt(nlen - 1) == ' ') {
-                        len = nlen;
-                        break;
-                    }
-                }
+            int chunkEnd = i;
+            int spaceEnd = -1; // end of the chunk when breaking after the last space
+            int bytes = 0;
+            while (chunkEnd < end) {
+                int unitLen = getUnitLength(message, chunkEnd, end);
+                int unitBytes;
+                if (message.charAt(chunkEnd) == 0x03) // formatting codes are ASCII
+                    unitBytes = unitLen;
+                else
+                    unitBytes = counter.count(message, chunkEnd, unitLen);
+                if (bytes + unitBytes > budget && chunkEnd > i)
+                    break;
+                bytes += unitBytes;
+                chunkEnd += unitLen;
+                if (message.charAt(chunkEnd - 1) == ' ')
+                    spaceEnd = chunkEnd;
             }
+            if (chunkEnd != end && spaceEnd > i && chunkEnd - spaceEnd <= MAX_SPACE_LOOKUP_N)
+                chunkEnd = spaceEnd;
 
-            if (colorPrefix  != null)
-                ret.add(colorPrefix + message.substring(i, i + len));
-            else
-                ret.add(message.substring(i, i + len));
+            builder.setLength(0);
+            if (messagePrefix != null)
+                builder.append(messagePrefix);
+            if (colorPrefix != null)
+                builder.append(colorPrefix);
+            builder.append(message, i, chunkEnd);
+            if (messageSuffix != null)
+                builder.append(messageSuffix);
+            ret.add(builder.toString());
 
-            processColors(formattingState, message, i, i + len);
-            i += len;
+            processColors(formattingState, message, i, chunkEnd);
+            i = chunkEnd;
         }
         return ret.toArray(new String[ret.size()]);
     }
 
+    /**
+     * Returns the length in chars of the unit starting at the given index that must not be split: a surrogate pair,
+     * a color code with its numbers or a single char.
+     */
+    private static int getUnitLength(String string, int start, int end) {
+        char c = string.charAt(start);
+        if (Character.isHighSurrogate(c))
+            return start + 1 < end && Character.isLowSurrogate(string.charAt(start + 1)) ? 2 : 1;
+        if (c != 0x03)
+            return 1;
+        int i = start + 1;
+        int digits = 0;
+        while (digits < 2 && i < end && isDigit(string.charAt(i))) {
+            i++;
+            digits++;
+        }
+        if (digits > 0 && i + 1 < end && string.charAt(i) == ',' && isDigit(string.charAt(i + 1))) {
+            i += 2;
+            if (i < end && isDigit(string.charAt(i)))
+                i++;
+        }
+        return i - start;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
     private static void processColors(FormattingState f, String string, int start, int end) {
         for (int i = start; i < end; ) {
             switch (string.charAt(i)) {
@@ -111,7 +253,7 @@ public class MessageSplitHelper {
                 case 0x03: { // color
                     f.fg = -1;
                     i++;
-                    for (int j = 0; j < 2 && i < string.length(); i++, j++) {
+                    for (int j = 0; j < 2 && i < end; i++, j++) {
                         if (string.charAt(i) < '0' || string.charAt(i) > '9')
                             break;
                         f.fg = Math.max(f.fg, 0) * 10 + string.charAt(i) - '0';
@@ -121,11 +263,11 @@ public class MessageSplitHelper {
                         continue;
                     }
 
-                    if (string.charAt(i) != ',')
+                    if (i + 1 >= end || string.charAt(i) != ',' || !isDigit(string.charAt(i + 1)))
                         break;
                     i++;
                     f.bg = 0;
-                    for (int j = 0; j < 2 && i < string.length(); i++, j++) {
+                    for (int j = 0; j < 2 && i < end; i++, j++) {
                         if (string.charAt(i) < '0' || string.charAt(i) > '9')
                             break;
                         f.bg = f.bg * 10 + string.charAt(i) - '0';
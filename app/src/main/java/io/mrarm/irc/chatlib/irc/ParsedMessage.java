@@ -0,0 +1,330 @@
+package io.mrarm.irc.chatlib.irc;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reusable view over a single received IRC line. {@link #reset(String)} only records where the tags, prefix, command
+ * and params are located; the substrings, the {@link MessagePrefix} and the unescaped tag values are created only
+ * once a handler asks for them.
+ * <p>
+ * The same instance is reused for every line of a connection, so handlers must not keep a reference to it after
+ * returning. Values returned from it (Strings, the prefix, the tag map) are safe to keep.
+ */
+public class ParsedMessage {
+
+    private String line;
+    private int tagsStart;
+    private int tagsEnd;
+    private int prefixStart;
+    private int prefixEnd;
+    private int commandStart;
+    private int commandEnd;
+    private int paramCount;
+    private int[] paramBounds = new int[32];
+    private String[] paramValues = new String[16];
+
+    private String command;
+    private MessagePrefix prefix;
+    private List<String> params;
+    private Map<String, String> tags;
+
+    public void reset(String line) throws InvalidMessageException {
+        this.line = line;
+        command = null;
+        prefix = null;
+        params = null;
+        tags = null;
+        Arrays.fill(paramValues, 0, Math.min(paramCount, paramValues.length), null);
+        paramCount = 0;
+
+        int i = 0;
+        tagsStart = tagsEnd = -1;
+        if (line.length() > 0 && line.charAt(0) == '@') {
+            int tagsEndI = line.indexOf(' ');
+            if (tagsEndI == -1)
+                throw new InvalidMessageException();
+            tagsStart = 1;
+            tagsEnd = tagsEndI;
+            i = tagsEndI + 1;
+        }
+        prefixStart = prefixEnd = -1;
+        if (i < line.length() && line.charAt(i) == ':') {
+            int prefixEndI = line.indexOf(' ', i);
+            if (prefixEndI == -1)
+                throw new InvalidMessageException();
+            prefixStart = i + 1;
+            prefixEnd = prefixEndI;
+            i = prefixEndI + 1;
+        }
+        int commandEndI = line.indexOf(' ', i);
+        if (commandEndI == -1)
+            throw new InvalidMessageException();
+        commandStart = i;
+        commandEnd = commandEndI;
+
+        i = commandEndI + 1;
+        while (true) {
+            if (i < line.length() && line.charAt(i) == ':') {
+                addParam(i + 1, line.length());
+                break;
+            }
+            int j = line.indexOf(' ', i);
+            if (j == -1) {
+                addParam(i, line.length());
+                break;
+            }
+            addParam(i, j);
+            i = j + 1;
+        }
+    }
+
+    private void addParam(int start, int end) {
+        if (paramCount * 2 >= paramBounds.length)
+            paramBounds = Arrays.copyOf(paramBounds, paramBounds.length * 2);
+        paramBounds[paramCount * 2] = start;
+        paramBounds[paramCount * 2 + 1] = end;
+        paramCount++;
+    }
+
+    public String getLine() {
+        return line;
+    }
+
+    public String getCommand() {
+        if (command == null)
+            command = line.substring(commandStart, commandEnd);
+        return command;
+    }
+
+    int getCommandStart() {
+        return commandStart;
+    }
+
+    int getCommandEnd() {
+        return commandEnd;
+    }
+
+    public boolean isCommand(String command) {
+        return commandEnd - commandStart == command.length() &&
+                line.regionMatches(commandStart, command, 0, command.length());
+    }
+
+    /**
+     * Returns the value of a three digit numeric command, or -1 if the command is not a numeric.
+     */
+    public int getNumeric() {
+        if (commandEnd - commandStart != 3)
+            return -1;
+        int ret = 0;
+        for (int i = commandStart; i < commandEnd; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            ret = ret * 10 + (c - '0');
+        }
+        return ret;
+    }
+
+    public boolean hasPrefix() {
+        return prefixStart != -1;
+    }
+
+    public MessagePrefix getPrefix() {
+        if (prefix == null && prefixStart != -1)
+            prefix = new MessagePrefix(line.substring(prefixStart, prefixEnd));
+        return prefix;
+    }
+
+    /**
+     * Checks whether the nick part of the prefix equals (ignoring case) the given nick, without creating the prefix.
+     */
+    public boolean isPrefixNick(String nick) {
+        if (prefixStart == -1 || nick == null)
+            return false;
+        int nickEnd = prefixStart;
+        while (nickEnd < prefixEnd && line.charAt(nickEnd) != '!' && line.charAt(nickEnd) != '@')
+            nickEnd++;
+        return nickEnd - prefixStart == nick.length() &&
+                line.regionMatches(true, prefixStart, nick, 0, nick.length());
+    }
+
+    public int getParamCount() {
+        return paramCount;
+    }
+
+    public String getParam(int index) {
+        if (index < 0 || index >= paramCount)
+            return null;
+        if (index >= paramValues.length)
+            paramValues = Arrays.copyOf(paramValues, Math.max(paramValues.length * 2, index + 1));
+        String ret = paramValues[index];
+        if (ret == null) {
+            ret = line.substring(paramBounds[index * 2], paramBounds[index * 2 + 1]);
+            paramValues[index] = ret;
+        }
+        return ret;
+    }
+
+    public String getParamWithCheck(int index) throws InvalidMessageException {
+        if (index < 0 || index >= paramCount)
+            throw new InvalidMessageException("Missing parameter");
+        return getParam(index);
+    }
+
+    public List<String> getParams() {
+        if (params == null) {
+            params = new ArrayList<>(paramCount);
+            for (int i = 0; i < paramCount; i++)
+                params.add(getParam(i));
+        }
+        return params;
+    }
+
+    public boolean hasTags() {
+        return tagsStart != -1;
+    }
+
+    /**
+     * Returns a read-only map of the message tags. Values are unescaped only when they are looked up.
+     */
+    public Map<String, String> getTags() {
+        if (tags == null)
+            tags = tagsStart != -1 ? new MessageTags(line, tagsStart, tagsEnd) : Collections.emptyMap();
+        return tags;
+    }
+
+    static String unescapeTagValue(String text, int start, int end) {
+        int firstEscape = text.indexOf('\\', start);
+        if (firstEscape == -1 || firstEscape >= end)
+            return text.substring(start, end);
+        StringBuilder outpBuilder = new StringBuilder(end - start);
+        outpBuilder.append(text, start, firstEscape);
+        for (int i = firstEscape; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                if (++i >= end)
+                    break;
+                int cc = text.charAt(i);
+                switch (cc) {
+                    case ':':
+                        outpBuilder.append(';');
+                        break;
+                    case 's':
+                        outpBuilder.append(' ');
+                        break;
+                    case '\\':
+                        outpBuilder.append('\\');
+                        break;
+                    case 'r':
+                        outpBuilder.append('\r');
+                        break;
+                    case 'n':
+                        outpBuilder.append('\n');
+                        break;
+                    default:
+                        --i;
+                }
+            } else {
+                outpBuilder.append(c);
+            }
+        }
+        return outpBuilder.toString();
+    }
+
+    /**
+     * Tag map backed directly by the raw line. Lookups scan the tag section; iterating builds a regular map once.
+     */
+    private static class MessageTags extends AbstractMap<String, String> {
+
+        private final String line;
+        private final int start;
+        private final int end;
+        private Map<String, String> map;
+
+        MessageTags(String line, int start, int end) {
+            this.line = line;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Returns the position of the '=' or the end of the last tag with the given name, or -1 if not found.
+         */
+        private int findTagValue(String name) {
+            int ret = -1;
+            int i = start;
+            while (i < end) {
+                int tagEnd = line.indexOf(';', i);
+                if (tagEnd == -1 || tagEnd > end)
+                    tagEnd = end;
+                int nameEnd = line.indexOf('=', i);
+                if (nameEnd == -1 || nameEnd > tagEnd)
+                    nameEnd = tagEnd;
+                if (nameEnd - i == name.length() && line.regionMatches(i, name, 0, name.length()))
+                    ret = nameEnd;
+                i = tagEnd + 1;
+            }
+            return ret;
+        }
+
+        private String getValueAt(int nameEnd) {
+            if (nameEnd >= end || line.charAt(nameEnd) != '=')
+                return null;
+            int tagEnd = line.indexOf(';', nameEnd);
+            if (tagEnd == -1 || tagEnd > end)
+                tagEnd = end;
+            return unescapeTagValue(line, nameEnd + 1, tagEnd);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            if (map != null)
+                return map.containsKey(key);
+            return key instanceof String && findTagValue((String) key) != -1;
+        }
+
+        @Override
+        public String get(Object key) {
+            if (map != null)
+                return map.get(key);
+            if (!(key instanceof String))
+                return null;
+            int nameEnd = findTagValue((String) key);
+            return nameEnd != -1 ? getValueAt(nameEnd) : null;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return map != null ? map.isEmpty() : start >= end;
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            if (map == null) {
+                Map<String, String> m = new HashMap<>();
+                int i = start;
+                while (i < end) {
+                    int tagEnd = line.indexOf(';', i);
+                    if (tagEnd == -1 || tagEnd > end)
+                        tagEnd = end;
+                    int nameEnd = line.indexOf('=', i);
+                    if (nameEnd == -1 || nameEnd > tagEnd)
+                        nameEnd = tagEnd;
+                    m.put(line.substring(i, nameEnd), getValueAt(nameEnd));
+                    i = tagEnd + 1;
+                }
+                map = Collections.unmodifiableMap(m);
+            }
+            return map.entrySet();
+        }
+
+    }
+
+}
@@ -0,0 +1,269 @@
+package io.mrarm.irc.chatlib.irc;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outgoing line queue of a single connection. Normal lines are paced by a {@link FloodControl} bucket; priority lines
+ * (PING, PONG, QUIT) skip the normal lane and are written as soon as possible, only using up tokens. Lines ready at the same
+ * time are handed to the {@link Writer} together so they go out with a single flush.
+ * <p>
+ * Lines are written from a thread of the queue's own, so neither the callers nor the other connections ever wait for
+ * a slow socket. Pacing only starts with {@link #setPacing(boolean)}, so that registration is not slowed down.
+ */
+public class SendQueue {
+
+    /**
+     * How long a line queued without flush waits for the flushed line which ends its group, before it is sent anyway.
+     */
+    public static final long UNFLUSHED_DELAY_MS = 50;
+
+    public enum Priority {
+        HIGH, NORMAL
+    }
+
+    private final Scheduler.Factory schedulerFactory;
+    private final ArrayDeque<byte[]> priorityLines = new ArrayDeque<>();
+    private final ArrayDeque<byte[]> normalLines = new ArrayDeque<>();
+    private final List<DepthListener> depthListeners = new ArrayList<>();
+    private Writer writer;
+    private FloodControl floodControl;
+    private Scheduler scheduler;
+    private boolean pacing;
+    private long nextDrainAt = -1;
+    private int lastReportedDepth;
+
+    public SendQueue() {
+        this(ThreadScheduler::new);
+    }
+
+    SendQueue(Scheduler.Factory schedulerFactory) {
+        this.schedulerFactory = schedulerFactory;
+    }
+
+    public synchronized void start(Writer writer, FloodControl floodControl) {
+        if (scheduler != null)
+            scheduler.shutdown();
+        this.writer = writer;
+        this.floodControl = floodControl;
+        this.scheduler = schedulerFactory.create();
+        pacing = false;
+        nextDrainAt = -1;
+    }
+
+    /**
+     * Stops the queue, dropping the lines that were not sent yet.
+     */
+    public void stop() {
+        synchronized (this) {
+            writer = null;
+            priorityLines.clear();
+            normalLines.clear();
+            if (scheduler != null) {
+                scheduler.shutdown();
+                scheduler = null;
+            }
+        }
+        notifyDepthChanged();
+    }
+
+    public synchronized FloodControl getFloodControl() {
+        return floodControl;
+    }
+
+    /**
+     * Turns the pacing of normal lines on once registration completed. Until then lines go out as soon as they are
+     * queued without using up tokens: there are only a few of them, and servers expect them together.
+     */
+    public void setPacing(boolean pacing) {
+        synchronized (this) {
+            this.pacing = pacing;
+            if (writer != null && !normalLines.isEmpty())
+                scheduleDrain(0);
+        }
+    }
+
+    /**
+     * Queues a line (including the line terminator). If flush is false the line is sent together with the next
+     * flushed one, which lets the caller group lines it sends in a row, or after {@link #UNFLUSHED_DELAY_MS} if no
+     * flushed line follows. Priority lines are always sent right away.
+     */
+    public void queue(byte[] line, Priority priority, boolean flush) throws IOException {
+        synchronized (this) {
+            if (writer == null)
+                throw new IOException("Not connected");
+            if (priority == Priority.HIGH) {
+                priorityLines.add(line);
+                flush = true;
+            } else {
+                normalLines.add(line);
+            }
+            scheduleDrain(flush ? 0 : UNFLUSHED_DELAY_MS);
+        }
+        notifyDepthChanged();
+    }
+
+    /**
+     * Writes what can be sent of the lines queued so far, and waits until that was done or the timeout passed. Used
+     * before closing the connection, so that the QUIT goes out first.
+     */
+    public void sendNow(long timeoutMs) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        synchronized (this) {
+            if (writer == null)
+                return;
+            // Drains run one at a time in order, so this one runs after every drain scheduled so far
+            scheduler.schedule(() -> {
+                drain();
+                done.countDown();
+            }, 0);
+        }
+        done.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized int getQueueDepth() {
+        return priorityLines.size() + normalLines.size();
+    }
+
+    public void addDepthListener(DepthListener listener) {
+        synchronized (depthListeners) {
+            depthListeners.add(listener);
+        }
+    }
+
+    public void removeDepthListener(DepthListener listener) {
+        synchronized (depthListeners) {
+            depthListeners.remove(listener);
+        }
+    }
+
+    // Must be called with the queue locked. A drain already scheduled before the given time takes care of the lines.
+    private void scheduleDrain(long delay) {
+        long at = scheduler.now() + delay;
+        if (nextDrainAt != -1 && nextDrainAt <= at)
+            return;
+        nextDrainAt = at;
+        scheduler.schedule(this::onScheduledDrain, delay);
+    }
+
+    private void onScheduledDrain() {
+        synchronized (this) {
+            nextDrainAt = -1;
+        }
+        drain();
+    }
+
+    // Only called on the scheduler's thread, so batches are never reordered
+    private void drain() {
+        Writer writer;
+        List<byte[]> batch = new ArrayList<>();
+        synchronized (this) {
+            writer = this.writer;
+            if (writer == null)
+                return;
+            long now = scheduler.now();
+            while (!priorityLines.isEmpty()) {
+                floodControl.consume(now);
+                batch.add(priorityLines.poll());
+            }
+            while (!normalLines.isEmpty() && (!pacing || floodControl.tryAcquire(now)))
+                batch.add(normalLines.poll());
+            if (!normalLines.isEmpty())
+                scheduleDrain(floodControl.getDelayUntilNextToken(now));
+        }
+        if (!batch.isEmpty()) {
+            try {
+                writer.write(batch);
+            } catch (IOException e) {
+                // The reading side notices the broken connection and stops the queue
+                Log.w("SendQueue", "Failed to send queued lines", e);
+            }
+        }
+        notifyDepthChanged();
+    }
+
+    private void notifyDepthChanged() {
+        int depth;
+        synchronized (this) {
+            depth = getQueueDepth();
+            if (depth == lastReportedDepth)
+                return;
+            lastReportedDepth = depth;
+        }
+        synchronized (depthListeners) {
+            for (DepthListener listener : depthListeners)
+                listener.onQueueDepthChanged(depth);
+        }
+    }
+
+    /**
+     * Time source and thread of a single queue's drains. Tasks run one at a time, in the order they are due, and in
+     * the order they were scheduled if due at the same time.
+     */
+    interface Scheduler {
+
+        long now();
+
+        void schedule(Runnable task, long delayMs);
+
+        void shutdown();
+
+        interface Factory {
+            Scheduler create();
+        }
+
+    }
+
+    private static class ThreadScheduler implements Scheduler {
+
+        private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, (Runnable r) -> {
+            Thread thread = new Thread(r, "IRC Send Queue");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        @Override
+        public long now() {
+            return FloodControl.now();
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMs) {
+            try {
+                executor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ignored) {
+                // Stopped
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            executor.shutdownNow();
+        }
+
+    }
+
+    public interface Writer {
+
+        /**
+         * Writes all the lines and flushes them once.
+         */
+        void write(List<byte[]> lines) throws IOException;
+
+    }
+
+    public interface DepthListener {
+
+        void onQueueDepthChanged(int depth);
+
+    }
+
+}
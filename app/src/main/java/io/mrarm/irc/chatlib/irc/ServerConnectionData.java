@@ -4,7 +4,6 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.ExecutionException;
 
 import io.mrarm.irc.chatlib.ChannelListListener;
 import io.mrarm.irc.chatlib.NoSuchChannelException;
@@ -24,6 +23,7 @@ public class ServerConnectionData {
     private String userUser;
     private String userHost;
     private final HashMap<String, ChannelData> joinedChannels = new HashMap<>();
+    private CaseMapping joinedChannelsCaseMapping = CaseMapping.RFC1459;
     private UUID serverUUID;
     private ServerStatusData serverStatusData = new ServerStatusData();
     private final ServerSupportList supportList = new ServerSupportList();
@@ -158,15 +158,37 @@ public class ServerConnectionData {
         return messageFilterList;
     }
 
+    /**
+     * Returns the joinedChannels key of the channel, using the server's CASEMAPPING. The map is rebuilt if the server
+     * announced a different one since the channels were added. Must be called with joinedChannels locked.
+     */
+    private String getChannelKey(String channelName) {
+        CaseMapping caseMapping = supportList.getCaseMapping();
+        if (caseMapping != joinedChannelsCaseMapping) {
+            joinedChannelsCaseMapping = caseMapping;
+            List<ChannelData> channels = new ArrayList<>(joinedChannels.values());
+            joinedChannels.clear();
+            for (ChannelData data : channels)
+                joinedChannels.put(caseMapping.toLowerCase(data.getName()), data);
+        }
+        return caseMapping.toLowerCase(channelName);
+    }
+
     public ChannelData getJoinedChannelData(String channelName) throws NoSuchChannelException {
-        String lChannelName = channelName.toLowerCase();
         synchronized (joinedChannels) {
+            String lChannelName = getChannelKey(channelName);
             if (!joinedChannels.containsKey(lChannelName))
                 throw new NoSuchChannelException();
             return joinedChannels.get(lChannelName);
         }
     }
 
+    public boolean hasJoinedChannel(String channelName) {
+        synchronized (joinedChannels) {
+            return joinedChannels.containsKey(getChannelKey(channelName));
+        }
+    }
+
     public List<String> getJoinedChannelList() {
         synchronized (joinedChannels) {
             ArrayList<String> list = new ArrayList<>();
@@ -177,8 +199,8 @@ public class ServerConnectionData {
     }
 
     public void onChannelJoined(String channelName) {
-        String lChannelName = channelName.toLowerCase();
         synchronized (joinedChannels) {
+            String lChannelName = getChannelKey(channelName);
             if (joinedChannels.containsKey(lChannelName))
                 return;
             ChannelData data = new ChannelData(this, channelName);
@@ -197,8 +219,8 @@ public class ServerConnectionData {
     }
 
     public void onChannelLeft(String channelName) {
-        String lChannelName = channelName.toLowerCase();
         synchronized (joinedChannels) {
+            String lChannelName = getChannelKey(channelName);
             if (!joinedChannels.containsKey(lChannelName))
                 return;
             joinedChannels.remove(lChannelName);
@@ -219,11 +241,7 @@ public class ServerConnectionData {
             joinedChannels.clear();
         }
         getCapabilityManager().reset();
-        try {
-            getUserInfoApi().clearAllUsersChannelPresences(null, null).get();
-        } catch (InterruptedException | ExecutionException e) {
-            throw new RuntimeException(e);
-        }
+        getUserInfoApi().clearAllUsersChannelPresencesSync();
     }
 
     public void addLocalMessageToAllChannels(MessageInfo messageInfo) {
@@ -12,6 +12,7 @@ public class ServerSupportList {
     private ModeList channelModesValueExactUnset = new ModeList("k"); // single value, has add&remove param
     private ModeList channelModesValue = new ModeList("l"); // single value, has add param
     private ModeList channelModesFlag = new ModeList("imnpst"); // no params
+    private volatile CaseMapping caseMapping = CaseMapping.RFC1459;
 
     public NickPrefixList getSupportedNickPrefixes() {
         synchronized (this) {
@@ -45,6 +46,10 @@ public class ServerSupportList {
         return channelModesFlag;
     }
 
+    public CaseMapping getCaseMapping() {
+        return caseMapping;
+    }
+
     public void setSupportedNickPrefixes(NickPrefixList supportedNickPrefixes) {
         synchronized (this) {
             this.nickPrefixes = supportedNickPrefixes;
@@ -61,6 +66,10 @@ public class ServerSupportList {
         this.channelTypes = channelTypes;
     }
 
+    public void setCaseMapping(CaseMapping caseMapping) {
+        this.caseMapping = caseMapping;
+    }
+
     public void setSupportedChannelModes(ModeList a, ModeList b, ModeList c, ModeList d) {
         channelModesList = a;
         channelModesValueExactUnset = b;
@@ -28,6 +28,11 @@ public class BatchCapability extends Capability {
         return new String[] { "BATCH" };
     }
 
+    @Override
+    public String[] getHandledTags() {
+        return new String[] { "batch" };
+    }
+
     private BatchInfo getBatchForTags(Map<String, String> tags) {
         if (tags.containsKey("batch")) {
             String batchName = tags.get("batch");
@@ -9,6 +9,8 @@ import io.mrarm.irc.chatlib.irc.ServerConnectionData;
 
 public abstract class Capability implements CommandHandler {
 
+    private static final String[] NO_TAGS = new String[0];
+
     public abstract String[] getNames();
 
     public boolean shouldEnableCapability(ServerConnectionData connection, CapabilityEntryPair capability) {
@@ -25,6 +27,15 @@ public abstract class Capability implements CommandHandler {
     public void onDisabled(ServerConnectionData connection) {
     }
 
+    /**
+     * Returns the message tags this capability reads in {@link #processMessage(MessageInfo.Builder, Map)}; it is only
+     * called for messages carrying at least one of them. By default none, capabilities which read tags must override
+     * this. Null means it is called for every tagged message.
+     */
+    public String[] getHandledTags() {
+        return NO_TAGS;
+    }
+
     public void processMessage(MessageInfo.Builder message, Map<String, String> tags) {
     }
 
@@ -4,19 +4,23 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import io.mrarm.irc.chatlib.dto.MessageInfo;
 import io.mrarm.irc.chatlib.irc.ServerConnectionData;
 
 public class CapabilityManager {
 
     private ServerConnectionData connection;
     private Map<String, List<Capability>> supportedCapabilities = new HashMap<>();
+    private List<Capability> registeredCapabilities = new ArrayList<>();
     private List<Capability> enabledCapabilities = new ArrayList<>();
+    private volatile TagIndex tagIndex = new TagIndex(new ArrayList<>());
     private Set<Integer> negotationFinishLocks = new HashSet<>();
     private int nextNegotiationFinishLockId = 0;
     private boolean negotiationFinished = false;
@@ -58,6 +62,8 @@ public class CapabilityManager {
     }
 
     public void registerCapability(Capability capability) {
+        if (!registeredCapabilities.contains(capability))
+            registeredCapabilities.add(capability);
         for (String name : capability.getNames()) {
             if (!supportedCapabilities.containsKey(name))
                 supportedCapabilities.put(name, new ArrayList<>());
@@ -65,10 +71,32 @@ public class CapabilityManager {
         }
     }
 
+    /**
+     * Lets the enabled capabilities process a received message. Only the capabilities interested in one of the tags
+     * present on the message are called, each once and in the order they were registered in.
+     */
+    public void processMessage(MessageInfo.Builder message, Map<String, String> tags) {
+        if (tags == null || tags.isEmpty())
+            return;
+        TagIndex index = tagIndex;
+        BitSet called = (BitSet) index.allTagsCapabilityIds.clone();
+        for (int i = 0; i < index.tags.length; i++) {
+            if (tags.containsKey(index.tags[i])) {
+                for (int id : index.capabilityIds[i])
+                    called.set(id);
+            }
+        }
+        for (int id = called.nextSetBit(0); id != -1; id = called.nextSetBit(id + 1))
+            index.capabilities[id].processMessage(message, tags);
+    }
+
     private void setEnabledCapabilities(List<Capability> capabilities) {
         for (Capability cap : enabledCapabilities)
             connection.getCommandHandlerList().unregisterHandler(cap);
+        // processMessage() calls them in this order, keep it independent of the order the server acked them in
+        capabilities.sort((a, b) -> registeredCapabilities.indexOf(a) - registeredCapabilities.indexOf(b));
         enabledCapabilities = capabilities;
+        tagIndex = new TagIndex(capabilities);
         for (Capability cap : capabilities) {
             connection.getCommandHandlerList().registerHandler(cap);
             cap.onEnabled(connection);
@@ -111,6 +139,7 @@ public class CapabilityManager {
                 }
             }
         }
+        tagIndex = new TagIndex(enabledCapabilities);
     }
 
     public void onCapabilitiesAck(List<String> capabilities) {
@@ -171,4 +200,44 @@ public class CapabilityManager {
         }
     }
 
+    /**
+     * Immutable index from a message tag name to the enabled capabilities that read it, rebuilt whenever the enabled
+     * capabilities change. Capabilities are identified by their position in the enabled list.
+     */
+    private static class TagIndex {
+
+        final Capability[] capabilities;
+        final BitSet allTagsCapabilityIds = new BitSet();
+        final String[] tags;
+        final int[][] capabilityIds;
+
+        TagIndex(List<Capability> enabled) {
+            capabilities = enabled.toArray(new Capability[0]);
+            Map<String, List<Integer>> byTag = new HashMap<>();
+            for (int i = 0; i < capabilities.length; i++) {
+                String[] handledTags = capabilities[i].getHandledTags();
+                if (handledTags == null) {
+                    allTagsCapabilityIds.set(i);
+                    continue;
+                }
+                for (String tag : handledTags) {
+                    if (!byTag.containsKey(tag))
+                        byTag.put(tag, new ArrayList<>());
+                    byTag.get(tag).add(i);
+                }
+            }
+            tags = new String[byTag.size()];
+            capabilityIds = new int[byTag.size()][];
+            int i = 0;
+            for (Map.Entry<String, List<Integer>> e : byTag.entrySet()) {
+                tags[i] = e.getKey();
+                capabilityIds[i] = new int[e.getValue().size()];
+                for (int j = 0; j < capabilityIds[i].length; j++)
+                    capabilityIds[i][j] = e.getValue().get(j);
+                i++;
+            }
+        }
+
+    }
+
 }
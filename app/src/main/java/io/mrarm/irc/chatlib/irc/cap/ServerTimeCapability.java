@@ -1,24 +1,18 @@
 package io.mrarm.irc.chatlib.irc.cap;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
-import java.util.TimeZone;
 
 import io.mrarm.irc.chatlib.dto.MessageInfo;
 import io.mrarm.irc.chatlib.irc.InvalidMessageException;
 import io.mrarm.irc.chatlib.irc.MessagePrefix;
 import io.mrarm.irc.chatlib.irc.ServerConnectionData;
+import io.mrarm.irc.chatlib.util.IsoDateParser;
 
 public class ServerTimeCapability extends Capability {
 
-    private SimpleDateFormat parser;
-
-    public ServerTimeCapability() {
-        parser = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-        parser.setTimeZone(TimeZone.getTimeZone("UTC"));
-    }
+    private static final String[] HANDLED_TAGS = new String[]{"time"};
 
     @Override
     public String[] getNames() {
@@ -30,15 +24,17 @@ public class ServerTimeCapability extends Capability {
         return new String[0];
     }
 
+    @Override
+    public String[] getHandledTags() {
+        return HANDLED_TAGS;
+    }
+
     @Override
     public void processMessage(MessageInfo.Builder message, Map<String, String> tags) {
-        if (tags.containsKey("time")) {
-            try {
-                message.setDate(parser.parse(tags.get("time")));
-            } catch (ParseException e) {
-                throw new RuntimeException(e);
-            }
-        }
+        // Malformed values keep the local receive time
+        long time = IsoDateParser.parse(tags.get("time"));
+        if (time != IsoDateParser.INVALID)
+            message.setDate(new Date(time));
     }
 
     @Override
@@ -5,6 +5,7 @@ import java.util.Map;
 
 import io.mrarm.irc.chatlib.dto.ModeList;
 import io.mrarm.irc.chatlib.dto.NickPrefixList;
+import io.mrarm.irc.chatlib.irc.CaseMapping;
 import io.mrarm.irc.chatlib.irc.CommandHandler;
 import io.mrarm.irc.chatlib.irc.InvalidMessageException;
 import io.mrarm.irc.chatlib.irc.MessagePrefix;
@@ -18,6 +19,7 @@ public class ISupportCommandHandler implements CommandHandler {
     public static final String PARAM_PREFIX_LIST = "PREFIX";
     public static final String PARAM_CHANTYPES = "CHANTYPES";
     public static final String PARAM_CHANMODES = "CHANMODES";
+    public static final String PARAM_CASEMAPPING = "CASEMAPPING";
 
     @Override
     public Object[] getHandledCommands() {
@@ -62,6 +64,8 @@ public class ISupportCommandHandler implements CommandHandler {
             String[] modes = value.split(",", -1);
             supportList.setSupportedChannelModes(new ModeList(modes[0]), new ModeList(modes[1]), new ModeList(modes[2]),
                     new ModeList(modes[3]));
+        } else if (param.equals(PARAM_CASEMAPPING)) {
+            supportList.setCaseMapping(remove || value == null ? CaseMapping.RFC1459 : CaseMapping.fromName(value));
         }
     }
 
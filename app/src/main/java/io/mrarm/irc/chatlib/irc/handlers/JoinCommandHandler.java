@@ -3,7 +3,6 @@ package io.mrarm.irc.chatlib.irc.handlers;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ExecutionException;
 
 import io.mrarm.irc.chatlib.NoSuchChannelException;
 import io.mrarm.irc.chatlib.dto.MessageInfo;
@@ -37,19 +36,17 @@ public class JoinCommandHandler implements CommandHandler {
                 connection.onChannelJoined(channel);
         }
         try {
-            UUID userUUID = connection.getUserInfoApi().resolveUser(sender.getNick(), sender.getUser(),
-                    sender.getHost(), null, null).get();
+            UUID userUUID = connection.getUserInfoApi().resolveUserSync(sender.getNick(), sender.getUser(),
+                    sender.getHost());
             MessageSenderInfo senderInfo = new MessageSenderInfo(sender.getNick(), sender.getUser(), sender.getHost(),
                     null, userUUID);
             for (String channel : channels) {
                 ChannelData channelData = connection.getJoinedChannelData(channel);
-                channelData.addMember(new ChannelData.Member(userUUID, null, null));
+                channelData.addMember(new ChannelData.Member(userUUID, sender.getNick(), null, null));
                 channelData.addMessage(new MessageInfo.Builder(senderInfo, null, MessageInfo.MessageType.JOIN), tags);
             }
         } catch (NoSuchChannelException e) {
             throw new InvalidMessageException("Invalid channel specified in a JOIN message", e);
-        } catch (InterruptedException | ExecutionException e) {
-            throw new RuntimeException(e);
         }
     }
 
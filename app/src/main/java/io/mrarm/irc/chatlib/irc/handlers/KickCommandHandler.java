@@ -3,7 +3,6 @@ package io.mrarm.irc.chatlib.irc.handlers;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ExecutionException;
 
 import io.mrarm.irc.chatlib.NoSuchChannelException;
 import io.mrarm.irc.chatlib.dto.KickMessageInfo;
@@ -38,9 +37,9 @@ public class KickCommandHandler implements CommandHandler {
             connection.onChannelLeft(channel);
         }
         try {
-            UUID senderUUID = connection.getUserInfoApi().resolveUser(sender.getNick(), sender.getUser(),
-                    sender.getHost(), null, null).get();
-            UUID kickedUUID = connection.getUserInfoApi().resolveUser(kicked, null, null, null, null).get();
+            UUID senderUUID = connection.getUserInfoApi().resolveUserSync(sender.getNick(), sender.getUser(),
+                    sender.getHost());
+            UUID kickedUUID = connection.getUserInfoApi().resolveUserSync(kicked, null, null);
             MessageSenderInfo senderInfo = new MessageSenderInfo(sender.getNick(), sender.getUser(), sender.getHost(),
                     null, senderUUID);
             String message = CommandHandler.getParamOrNull(params, 2);
@@ -53,8 +52,6 @@ public class KickCommandHandler implements CommandHandler {
 
         } catch (NoSuchChannelException e) {
             throw new InvalidMessageException("Invalid channel specified in a KICK message", e);
-        } catch (InterruptedException | ExecutionException e) {
-            throw new RuntimeException(e);
         }
     }
 
@@ -6,7 +6,6 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ExecutionException;
 
 import io.mrarm.irc.chatlib.NoSuchChannelException;
 import io.mrarm.irc.chatlib.dto.MessageInfo;
@@ -15,6 +14,7 @@ import io.mrarm.irc.chatlib.irc.ChannelData;
 import io.mrarm.irc.chatlib.irc.CommandHandler;
 import io.mrarm.irc.chatlib.irc.InvalidMessageException;
 import io.mrarm.irc.chatlib.irc.MessagePrefix;
+import io.mrarm.irc.chatlib.irc.ParsedMessage;
 import io.mrarm.irc.chatlib.irc.ServerConnectionData;
 import io.mrarm.irc.chatlib.irc.dcc.DCCClientManager;
 import io.mrarm.irc.chatlib.irc.dcc.DCCServerManager;
@@ -55,66 +55,73 @@ public class MessageCommandHandler implements CommandHandler {
     public void handle(ServerConnectionData connection, MessagePrefix sender, String command, List<String> params,
                        Map<String, String> tags)
             throws InvalidMessageException {
-        Log.d("[MESSAGE COMMAND HANDLER]", "handle() " + command + " " + sender);
-        try {
-            MessageInfo.MessageType type = (command.equals("NOTICE") ? MessageInfo.MessageType.NOTICE :
-                    MessageInfo.MessageType.NORMAL);
-            UUID userUUID = null;
-            if (sender != null)
+        handleMessage(connection, sender, command.equals("NOTICE"), CommandHandler.getParamWithCheck(params, 0),
+                CommandHandler.getParamWithCheck(params, 1), tags);
+    }
+
+    @Override
+    public void handle(ServerConnectionData connection, ParsedMessage message) throws InvalidMessageException {
+        handleMessage(connection, message.getPrefix(), message.isCommand("NOTICE"), message.getParamWithCheck(0),
+                message.getParamWithCheck(1), message.getTags());
+    }
 
-                // NOTE Resolves sender identity (BLOCKING)
-                // .get() => blocking Future
-                // Happens on network thread
-                userUUID = connection.getUserInfoApi().resolveUser(sender.getNick(), sender.getUser(), sender.getHost(),
-                        null, null).get();
+    private void handleMessage(ServerConnectionData connection, MessagePrefix sender, boolean notice,
+                               String targets, String text, Map<String, String> tags)
+            throws InvalidMessageException {
+        Log.d("[MESSAGE COMMAND HANDLER]", "handle() " + sender);
+        MessageInfo.MessageType type = (notice ? MessageInfo.MessageType.NOTICE :
+                MessageInfo.MessageType.NORMAL);
+        UUID userUUID = null;
+        if (sender != null)
 
-            String[] targetChannels = CommandHandler.getParamWithCheck(params, 0).split(",");
+            // NOTE Resolves sender identity
+            // Synchronous in-memory lookup, happens on network thread
+            userUUID = connection.getUserInfoApi().resolveUserSync(sender.getNick(), sender.getUser(),
+                    sender.getHost());
 
-            // NOTE CTCP handling: pure protocol logic
-            // Side effects: ServerStatusData.addMessage(...) - connection.getApi().sendNotice(...)
-            String text = CommandHandler.getParamWithCheck(params, 1);
-            if (text.indexOf('\20') != -1)
-                text = lowDequote(text);
-            int ctcpS = text.indexOf('\01');
-            int ctcpE = text.lastIndexOf('\01');
-            if (ctcpS != -1 && ctcpE != -1 && sender != null) {
-                for (String ctcpCommand : text.substring(ctcpS, ctcpE).split("\01"))
-                    processCtcp(connection, sender, userUUID, targetChannels, ctcpCommand.indexOf('\134') == -1 ? ctcpCommand : ctcpDequote(ctcpCommand), type == MessageInfo.MessageType.NOTICE, tags);
-                if (ctcpS == 0 && ctcpE == text.length() - 1)
-                    return;
-                text = text.substring(0, ctcpS) + text.substring(ctcpE + 1, text.length());
+        String[] targetChannels = targets.indexOf(',') == -1 ? new String[]{targets} : targets.split(",");
+
+        // NOTE CTCP handling: pure protocol logic
+        // Side effects: ServerStatusData.addMessage(...) - connection.getApi().sendNotice(...)
+        if (text.indexOf('\20') != -1)
+            text = lowDequote(text);
+        int ctcpS = text.indexOf('\01');
+        int ctcpE = text.lastIndexOf('\01');
+        if (ctcpS != -1 && ctcpE != -1 && sender != null) {
+            for (String ctcpCommand : text.substring(ctcpS, ctcpE).split("\01"))
+                processCtcp(connection, sender, userUUID, targetChannels, ctcpCommand.indexOf('\134') == -1 ? ctcpCommand : ctcpDequote(ctcpCommand), type == MessageInfo.MessageType.NOTICE, tags);
+            if (ctcpS == 0 && ctcpE == text.length() - 1)
+                return;
+            text = text.substring(0, ctcpS) + text.substring(ctcpE + 1, text.length());
+        }
+
+        // NOTE Channel resolution (conversation logic mixed in)
+        // Architectural violation: Conversation state mutation happening inside protocol handler
+        for (String channel : targetChannels) {
+            ChannelData channelData = null;
+            try {
+                channelData = connection.getJoinedChannelData(channel);
+            } catch (NoSuchChannelException ignored) {
+            }
+            if (sender == null || (channelData == null && sender.getUser() == null && sender.getHost() == null)) {
+                connection.getServerStatusData().addMessage(new StatusMessageInfo(sender != null ?
+                        sender.getServerName() : null, new Date(), StatusMessageInfo.MessageType.NOTICE, text));
+                continue;
             }
 
-            // NOTE Channel resolution (conversation logic mixed in)
-            // Architectural violation: Conversation state mutation happening inside protocol handler
-            for (String channel : targetChannels) {
-                ChannelData channelData = null;
-                try {
-                    channelData = connection.getJoinedChannelData(channel);
-                } catch (NoSuchChannelException ignored) {
-                }
-                if (sender == null || (channelData == null && sender.getUser() == null && sender.getHost() == null)) {
-                    connection.getServerStatusData().addMessage(new StatusMessageInfo(sender != null ?
-                            sender.getServerName() : null, new Date(), StatusMessageInfo.MessageType.NOTICE, text));
+            if (channel.equalsIgnoreCase(connection.getUserNick()) || channelData == null) {
+                channelData = getChannelData(connection, sender, channel);
+                if (channelData == null)
                     continue;
-                }
-
-                if (channel.equalsIgnoreCase(connection.getUserNick()) || channelData == null) {
-                    channelData = getChannelData(connection, sender, channel);
-                    if (channelData == null)
-                        continue;
-                }
-                // NOTE: Message dispatch: at this point protocol layer hands off to ChannelData
-                // -> everything downstream is no longer protocol
-                // Message creation (domain object)
-                channelData.addMessage(new MessageInfo.Builder(sender.toSenderInfo(userUUID, channelData), text, type), tags);
             }
-        } catch (InterruptedException | ExecutionException e) {
-            throw new RuntimeException(e);
+            // NOTE: Message dispatch: at this point protocol layer hands off to ChannelData
+            // -> everything downstream is no longer protocol
+            // Message creation (domain object)
+            channelData.addMessage(new MessageInfo.Builder(sender.toSenderInfo(userUUID, channelData), text, type), tags);
         }
     }
 
-    private void processCtcp(ServerConnectionData connection, MessagePrefix sender, UUID userUUID, String[] targetChannels, String data, boolean notice, Map<String, String> tags) throws InterruptedException, ExecutionException, InvalidMessageException {
+    private void processCtcp(ServerConnectionData connection, MessagePrefix sender, UUID userUUID, String[] targetChannels, String data, boolean notice, Map<String, String> tags) throws InvalidMessageException {
         Log.d("[MESSAGE COMMAND HANDLER]", "processCtcp() " + data);
         int iof = data.indexOf(' ');
         String command = iof == -1 ? data : data.substring(0, iof);
@@ -4,7 +4,6 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ExecutionException;
 
 import io.mrarm.irc.chatlib.NoSuchChannelException;
 import io.mrarm.irc.chatlib.dto.ChannelModeMessageInfo;
@@ -31,8 +30,8 @@ public class ModeCommandHandler implements CommandHandler {
                        Map<String, String> tags)
             throws InvalidMessageException {
         try {
-            UUID userUUID = sender != null ? connection.getUserInfoApi().resolveUser(sender.getNick(), sender.getUser(),
-                    sender.getHost(), null, null).get() : null;
+            UUID userUUID = sender != null ? connection.getUserInfoApi().resolveUserSync(sender.getNick(),
+                    sender.getUser(), sender.getHost()) : null;
 
             String target = CommandHandler.getParamWithCheck(params, 0);
             boolean isChannelTarget = connection.getSupportList().getSupportedChannelTypes().contains(target.charAt(0));
@@ -45,8 +44,6 @@ public class ModeCommandHandler implements CommandHandler {
             }
         } catch (NoSuchChannelException e) {
             throw new InvalidMessageException("Invalid channel specified in a MODE message", e);
-        } catch (InterruptedException | ExecutionException e) {
-            throw new RuntimeException(e);
         }
     }
 
@@ -109,12 +106,8 @@ public class ModeCommandHandler implements CommandHandler {
     }
 
     private ChannelData.Member getUser(ServerConnectionData connection, ChannelData channelData, String nick) {
-        try {
-            UUID userUUID = connection.getUserInfoApi().resolveUser(nick, null, null, null, null).get();
-            return channelData.getMember(userUUID);
-        } catch (InterruptedException | ExecutionException e) {
-            throw new RuntimeException(e);
-        }
+        UUID userUUID = connection.getUserInfoApi().resolveUserSync(nick, null, null);
+        return channelData.getMember(userUUID);
     }
 
     private void addMode(ChannelData channel, ChannelData.Member member, char mode) {
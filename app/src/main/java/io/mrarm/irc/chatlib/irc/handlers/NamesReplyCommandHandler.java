@@ -5,7 +5,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ExecutionException;
 
 import io.mrarm.irc.chatlib.NoSuchChannelException;
 import io.mrarm.irc.chatlib.dto.ModeList;
@@ -55,12 +54,7 @@ public class NamesReplyCommandHandler implements CommandDisconnectHandler {
                 nicksWithPrefixes.add(nickWithPrefix);
                 uuidRequestList.add(nickWithPrefix.getNick());
             }
-            Map<String, UUID> uuidResponse;
-            try {
-                uuidResponse = connection.getUserInfoApi().resolveUsers(uuidRequestList, null, null).get();
-            } catch (InterruptedException | ExecutionException e) {
-                throw new RuntimeException("Failed to resolve user list", e);
-            }
+            Map<String, UUID> uuidResponse = connection.getUserInfoApi().resolveUsersSync(uuidRequestList);
             for (NickWithPrefix nickWithPrefix : nicksWithPrefixes) {
                 UUID uuid = uuidResponse.get(nickWithPrefix.getNick());
                 if (uuid == null)
@@ -73,8 +67,9 @@ public class NamesReplyCommandHandler implements CommandDisconnectHandler {
                     for (char c : nickWithPrefix.getNickPrefixes())
                         prefixModes[i++] = s.getSupportedNickPrefixModes().get(s.getSupportedNickPrefixes().find(c));
                 }
-                list.add(new ChannelData.Member(uuid, prefixModes != null ? new ModeList(String.valueOf(prefixModes))
-                        : null, nickWithPrefix.getNickPrefixes()));
+                list.add(new ChannelData.Member(uuid, nickWithPrefix.getNick(),
+                        prefixModes != null ? new ModeList(String.valueOf(prefixModes)) : null,
+                        nickWithPrefix.getNickPrefixes()));
             }
         } else if (numeric == RPL_ENDOFNAMES) {
             String channelName = CommandHandler.getParamWithCheck(params, 1);
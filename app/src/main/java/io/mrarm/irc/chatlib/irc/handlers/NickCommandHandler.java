@@ -2,7 +2,6 @@ package io.mrarm.irc.chatlib.irc.handlers;
 
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
 
 import io.mrarm.irc.chatlib.dto.MessageSenderInfo;
 import io.mrarm.irc.chatlib.dto.NickChangeMessageInfo;
@@ -49,24 +48,21 @@ public class NickCommandHandler extends RequestResponseCommandHandler<String, St
             connection.setUserNick(newNick);
             onResponse(newNick, newNick);
         }
-        try {
-            UserInfo userInfo = connection.getUserInfoApi().getUser(sender.getNick(), sender.getUser(),
-                    sender.getHost(), null, null).get();
-            MessageSenderInfo senderInfo = new MessageSenderInfo(sender.getNick(), sender.getUser(), sender.getHost(),
-                    null, userInfo.getUUID());
-            connection.getUserInfoApi().setUserNick(userInfo.getUUID(),
-                    CommandHandler.getParamWithCheck(params, 0), null, null).get();
-            for (String channel : userInfo.getChannels()) {
-                try {
-                    ChannelData channelData = connection.getJoinedChannelData(channel);
-                    channelData.addMessage(new NickChangeMessageInfo.Builder(senderInfo, newNick), tags);
-                    channelData.callMemberListChanged();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+        UserInfo userInfo = connection.getUserInfoApi().getUserSync(sender.getNick(), sender.getUser(),
+                sender.getHost());
+        MessageSenderInfo senderInfo = new MessageSenderInfo(sender.getNick(), sender.getUser(), sender.getHost(),
+                null, userInfo.getUUID());
+        connection.getUserInfoApi().setUserNickSync(userInfo.getUUID(), newNick);
+        for (String channel : userInfo.getChannels()) {
+            try {
+                ChannelData channelData = connection.getJoinedChannelData(channel);
+                channelData.addMessage(new NickChangeMessageInfo.Builder(senderInfo, newNick), tags);
+                ChannelData.Member member = channelData.getMember(userInfo.getUUID());
+                if (member != null)
+                    channelData.renameMember(member, newNick);
+            } catch (Exception e) {
+                e.printStackTrace();
             }
-        } catch (InterruptedException | ExecutionException e) {
-            throw new RuntimeException(e);
         }
     }
 
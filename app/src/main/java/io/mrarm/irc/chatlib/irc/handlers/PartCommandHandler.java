@@ -3,7 +3,6 @@ package io.mrarm.irc.chatlib.irc.handlers;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ExecutionException;
 
 import io.mrarm.irc.chatlib.NoSuchChannelException;
 import io.mrarm.irc.chatlib.dto.MessageInfo;
@@ -37,8 +36,8 @@ public class PartCommandHandler implements CommandHandler {
                 connection.onChannelLeft(channel);
         }
         try {
-            UUID userUUID = connection.getUserInfoApi().resolveUser(sender.getNick(), sender.getUser(),
-                    sender.getHost(), null, null).get();
+            UUID userUUID = connection.getUserInfoApi().resolveUserSync(sender.getNick(), sender.getUser(),
+                    sender.getHost());
             MessageSenderInfo senderInfo = new MessageSenderInfo(sender.getNick(), sender.getUser(), sender.getHost(),
                     null, userUUID);
             String message = CommandHandler.getParamOrNull(params, 1);
@@ -51,8 +50,6 @@ public class PartCommandHandler implements CommandHandler {
             }
         } catch (NoSuchChannelException e) {
             throw new InvalidMessageException("Invalid channel specified in a PART message", e);
-        } catch (InterruptedException | ExecutionException e) {
-            throw new RuntimeException(e);
         }
     }
 
@@ -7,6 +7,7 @@ import java.util.Map;
 import io.mrarm.irc.chatlib.irc.CommandHandler;
 import io.mrarm.irc.chatlib.irc.InvalidMessageException;
 import io.mrarm.irc.chatlib.irc.MessagePrefix;
+import io.mrarm.irc.chatlib.irc.ParsedMessage;
 import io.mrarm.irc.chatlib.irc.ServerConnectionData;
 
 public class PingCommandHandler implements CommandHandler {
@@ -27,4 +28,12 @@ public class PingCommandHandler implements CommandHandler {
         }
     }
 
+    @Override
+    public void handle(ServerConnectionData connection, ParsedMessage message) throws InvalidMessageException {
+        try {
+            connection.getApi().sendCommand("PONG", true, message.getParamWithCheck(0));
+        } catch (IOException ignored) {
+        }
+    }
+
 }
@@ -2,7 +2,6 @@ package io.mrarm.irc.chatlib.irc.handlers;
 
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
 
 import io.mrarm.irc.chatlib.NoSuchChannelException;
 import io.mrarm.irc.chatlib.dto.MessageInfo;
@@ -32,8 +31,8 @@ public class QuitCommandHandler implements CommandHandler {
         }
 
         try {
-            UserInfo userInfo = connection.getUserInfoApi().getUser(sender.getNick(), sender.getUser(),
-                    sender.getHost(), null, null).get();
+            UserInfo userInfo = connection.getUserInfoApi().getUserSync(sender.getNick(), sender.getUser(),
+                    sender.getHost());
             MessageSenderInfo senderInfo = new MessageSenderInfo(sender.getNick(), sender.getUser(), sender.getHost(),
                     null, userInfo.getUUID());
             String message = CommandHandler.getParamOrNull(params, 0);
@@ -47,8 +46,6 @@ public class QuitCommandHandler implements CommandHandler {
             }
         } catch (NoSuchChannelException e) {
             throw new InvalidMessageException("Invalid channel specified in a QUIT message", e);
-        } catch (InterruptedException | ExecutionException e) {
-            throw new RuntimeException(e);
         }
     }
 
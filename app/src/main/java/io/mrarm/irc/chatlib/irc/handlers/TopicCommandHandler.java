@@ -4,7 +4,6 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ExecutionException;
 
 import io.mrarm.irc.chatlib.NoSuchChannelException;
 import io.mrarm.irc.chatlib.dto.MessageInfo;
@@ -41,12 +40,9 @@ public class TopicCommandHandler implements CommandHandler {
 
             MessageSenderInfo senderInfo = null;
             if (command.equals("TOPIC") && sender != null) {
-                try {
-                    UUID userUUID = connection.getUserInfoApi().resolveUser(sender.getNick(), sender.getUser(),
-                            sender.getHost(), null, null).get();
-                    senderInfo = sender.toSenderInfo(userUUID, channelData);
-                } catch (InterruptedException | ExecutionException ignored) {
-                }
+                UUID userUUID = connection.getUserInfoApi().resolveUserSync(sender.getNick(), sender.getUser(),
+                        sender.getHost());
+                senderInfo = sender.toSenderInfo(userUUID, channelData);
             }
 
             String oldTopic = channelData.getTopic();
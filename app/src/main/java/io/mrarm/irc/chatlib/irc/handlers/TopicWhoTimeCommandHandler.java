@@ -44,8 +44,8 @@ public class TopicWhoTimeCommandHandler implements CommandHandler {
             if (setByChanged || !when.equals(channelData.getTopicSetOn())) {
                 UUID userUUID = null;
                 try {
-                    userUUID = connection.getUserInfoApi().resolveUser(
-                            prefix.getNick(), prefix.getUser(), prefix.getHost(), null, null).get();
+                    userUUID = connection.getUserInfoApi().resolveUserSync(
+                            prefix.getNick(), prefix.getUser(), prefix.getHost());
                 } catch (Exception ignored) {
                 }
                 if (setByChanged) { // do not add a channel message if only time has changed
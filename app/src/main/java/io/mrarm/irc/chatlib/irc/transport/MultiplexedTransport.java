@@ -0,0 +1,471 @@
+package io.mrarm.irc.chatlib.irc.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+
+import io.mrarm.irc.chatlib.irc.BufferedLineFramer;
+import io.mrarm.irc.chatlib.util.SettableFuture;
+
+/**
+ * Non-blocking connection to an IRC server driven by the shared {@link NetworkEngine}. TLS goes through an
+ * {@link SSLEngine}. Received lines are framed with a {@link BufferedLineFramer} on the engine thread and handed to
+ * the listener in order on a pool thread, see {@link #dispatch(Runnable)}; outgoing data is queued and written in as
+ * few writes as possible.
+ */
+public class MultiplexedTransport {
+
+    private static final int PLAIN_BUFFER_SIZE = 16 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    // Received lines waiting for the listener before the socket stops being read
+    private static final int MAX_PENDING_EVENTS = 1000;
+
+    private final NetworkEngine engine;
+    private final Listener listener;
+    private final BufferedLineFramer framer;
+    private final SSLEngine sslEngine;
+    private final ArrayDeque<ByteBuffer> outQueue = new ArrayDeque<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final SettableFuture<Void> connectedFuture = new SettableFuture<>();
+    private final ArrayDeque<Runnable> pendingEvents = new ArrayDeque<>(); // guarded by itself
+    private boolean dispatching; // guarded by pendingEvents
+
+    // Only accessed on the engine thread
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer netIn;
+    private ByteBuffer appIn;
+    private ByteBuffer netOut;
+    private boolean tcpConnected;
+    private boolean connected;
+    private boolean taskRunning;
+    private boolean readingPaused;
+    private boolean dispatchBacklogged;
+    private boolean finished;
+    private volatile boolean closed;
+    private volatile boolean aborted;
+
+    public MultiplexedTransport(NetworkEngine engine, Charset charset, SSLEngine sslEngine, Listener listener) {
+        this.engine = engine;
+        this.listener = listener;
+        this.sslEngine = sslEngine;
+        this.framer = new BufferedLineFramer(charset);
+    }
+
+    /**
+     * Connects to the address and, for TLS connections, performs the handshake. Blocks the calling thread (never the
+     * engine thread) until the connection is ready for use, or aborts it once the timeout has passed.
+     */
+    public void connect(InetSocketAddress address, long timeoutMs) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.connect(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        engine.execute(() -> {
+            this.channel = channel;
+            try {
+                if (closed)
+                    throw new IOException("Connection closed");
+                key = channel.register(engine.getSelector(), SelectionKey.OP_CONNECT, this);
+                if (!channel.isConnectionPending())
+                    onTcpConnected();
+            } catch (IOException e) {
+                close(e, false);
+            }
+        });
+        try {
+            connectedFuture.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            abort();
+            throw new SocketTimeoutException("Timed out connecting to " + address);
+        } catch (InterruptedException e) {
+            abort();
+            throw new IOException("Interrupted while connecting", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Queues the data to be sent. Data queued from any number of calls before the engine gets to it is written
+     * together.
+     */
+    public void send(byte[] data) throws IOException {
+        if (closed)
+            throw new IOException("Connection closed");
+        synchronized (outQueue) {
+            outQueue.add(ByteBuffer.wrap(data));
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            engine.execute(() -> {
+                flushScheduled.set(false);
+                if (closed || !tcpConnected)
+                    return;
+                try {
+                    flushOutgoing();
+                } catch (IOException e) {
+                    close(e, true);
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops (or resumes) reading from the socket, so that a server sending faster than the lines can be handled is held
+     * back by TCP flow control. Lines already received are still delivered.
+     */
+    public void setReadingPaused(boolean paused) {
+        engine.execute(() -> {
+            readingPaused = paused;
+            updateInterestOps();
+        });
+    }
+
+    /**
+     * Closes the connection; the listener is notified the same way as when the server drops it.
+     */
+    public void close() {
+        engine.execute(() -> close(new IOException("Connection closed"), true));
+    }
+
+    /**
+     * Closes the connection without notifying the listener.
+     */
+    public void abort() {
+        closed = true;
+        aborted = true;
+        engine.execute(() -> close(new IOException("Connection aborted"), false));
+    }
+
+    void onReady(SelectionKey key) {
+        try {
+            if (!key.isValid())
+                return;
+            if (key.isConnectable()) {
+                if (channel.finishConnect())
+                    onTcpConnected();
+                return;
+            }
+            if (key.isReadable())
+                onReadable();
+            if (key.isValid() && key.isWritable() && !closed) {
+                if (sslEngine != null && !connected)
+                    processSsl();
+                else
+                    flushOutgoing();
+            }
+        } catch (IOException e) {
+            close(e, true);
+        } catch (RuntimeException e) {
+            close(new IOException(e), true);
+        }
+    }
+
+    private void onTcpConnected() throws IOException {
+        tcpConnected = true;
+        if (sslEngine != null) {
+            int packetSize = sslEngine.getSession().getPacketBufferSize();
+            netIn = ByteBuffer.allocate(packetSize);
+            netOut = ByteBuffer.allocate(packetSize);
+            appIn = ByteBuffer.allocate(Math.max(sslEngine.getSession().getApplicationBufferSize(),
+                    PLAIN_BUFFER_SIZE));
+            sslEngine.beginHandshake();
+            processSsl();
+        } else {
+            appIn = ByteBuffer.allocate(PLAIN_BUFFER_SIZE);
+            onConnectionReady();
+            flushOutgoing();
+        }
+    }
+
+    private void onConnectionReady() {
+        connected = true;
+        connectedFuture.set(null);
+    }
+
+    private void onReadable() throws IOException {
+        int n = channel.read(sslEngine != null ? netIn : appIn);
+        if (n == -1)
+            throw new IOException("read() returned -1");
+        if (sslEngine != null)
+            processSsl();
+        else
+            deliverAppData();
+    }
+
+    private void deliverAppData() {
+        appIn.flip();
+        while (appIn.hasRemaining() && !closed) {
+            framer.feed(appIn);
+            String line;
+            while (!closed && (line = framer.pollLine()) != null) {
+                String receivedLine = line;
+                dispatch(() -> {
+                    if (!aborted)
+                        listener.onLine(receivedLine);
+                });
+            }
+        }
+        appIn.clear();
+        synchronized (pendingEvents) {
+            if (pendingEvents.size() >= MAX_PENDING_EVENTS)
+                dispatchBacklogged = true;
+        }
+        if (dispatchBacklogged)
+            updateInterestOps();
+    }
+
+    // NOTE: Listener dispatch
+    // The command handlers behind the listener may be slow (they update the channel data and store the messages), so
+    // they never run on the engine thread, where they would hold up every other connection. Events are queued and run
+    // in order on a pool thread, at most one at a time per transport; the pool thread only exists while there is
+    // something to run. Once too many lines are waiting, the socket is not read until the listener caught up.
+    private void dispatch(Runnable event) {
+        synchronized (pendingEvents) {
+            pendingEvents.add(event);
+            if (dispatching)
+                return;
+            dispatching = true;
+        }
+        engine.executeBlocking(this::runPendingEvents);
+    }
+
+    private void runPendingEvents() {
+        while (true) {
+            Runnable event;
+            boolean caughtUp;
+            synchronized (pendingEvents) {
+                event = pendingEvents.poll();
+                if (event == null) {
+                    dispatching = false;
+                    return;
+                }
+                // The size only goes down one at a time, so this is never skipped on the way down
+                caughtUp = pendingEvents.size() == MAX_PENDING_EVENTS / 2;
+            }
+            if (caughtUp)
+                engine.execute(this::onDispatchCaughtUp);
+            try {
+                event.run();
+            } catch (RuntimeException e) {
+                engine.execute(() -> close(new IOException(e), true));
+            }
+        }
+    }
+
+    private void onDispatchCaughtUp() {
+        if (!dispatchBacklogged)
+            return;
+        dispatchBacklogged = false;
+        updateInterestOps();
+    }
+
+    private void processSsl() throws IOException {
+        while (!closed && !taskRunning) {
+            SSLEngineResult.HandshakeStatus status = sslEngine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+                return;
+            } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                if (!wrap(EMPTY))
+                    break;
+            } else if (status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING ||
+                    status == SSLEngineResult.HandshakeStatus.FINISHED) {
+                if (!connected)
+                    onConnectionReady();
+                if (!unwrap())
+                    break;
+            } else if (!unwrap()) {
+                break;
+            }
+        }
+        flushOutgoing();
+    }
+
+    private void runDelegatedTasks() {
+        taskRunning = true;
+        updateInterestOps();
+        engine.executeBlocking(() -> {
+            Runnable task;
+            while ((task = sslEngine.getDelegatedTask()) != null)
+                task.run();
+            engine.execute(() -> {
+                taskRunning = false;
+                if (closed)
+                    return;
+                try {
+                    processSsl();
+                } catch (IOException e) {
+                    close(e, true);
+                }
+            });
+        });
+    }
+
+    /**
+     * Unwraps the received network data. Returns false if nothing could be done until more data arrives.
+     */
+    private boolean unwrap() throws IOException {
+        netIn.flip();
+        SSLEngineResult result;
+        try {
+            result = sslEngine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+        }
+        switch (result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                if (appIn.position() > 0)
+                    deliverAppData();
+                else
+                    appIn = ByteBuffer.allocate(appIn.capacity() * 2);
+                return true;
+            case BUFFER_UNDERFLOW:
+                if (!netIn.hasRemaining()) {
+                    ByteBuffer b = ByteBuffer.allocate(Math.max(netIn.capacity() * 2,
+                            sslEngine.getSession().getPacketBufferSize()));
+                    netIn.flip();
+                    b.put(netIn);
+                    netIn = b;
+                }
+                return false;
+            case CLOSED:
+                throw new IOException("Connection closed by the server");
+            default:
+                break;
+        }
+        if (appIn.position() > 0)
+            deliverAppData();
+        return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+    }
+
+    /**
+     * Wraps the data into the outgoing network buffer. Returns false if the buffer is full and the socket cannot
+     * take more data right now.
+     */
+    private boolean wrap(ByteBuffer src) throws IOException {
+        SSLEngineResult result = sslEngine.wrap(src, netOut);
+        switch (result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                if (netOut.position() > 0)
+                    return writeNetOut();
+                netOut = ByteBuffer.allocate(netOut.capacity() * 2);
+                return true;
+            case CLOSED:
+                throw new IOException("SSL engine closed");
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Writes the pending encrypted data. Returns true if everything was written.
+     */
+    private boolean writeNetOut() throws IOException {
+        netOut.flip();
+        try {
+            channel.write(netOut);
+        } finally {
+            netOut.compact();
+        }
+        return netOut.position() == 0;
+    }
+
+    private void flushOutgoing() throws IOException {
+        if (sslEngine == null) {
+            synchronized (outQueue) {
+                while (!outQueue.isEmpty()) {
+                    ByteBuffer[] buffers = outQueue.toArray(new ByteBuffer[0]);
+                    channel.write(buffers);
+                    while (!outQueue.isEmpty() && !outQueue.peek().hasRemaining())
+                        outQueue.poll();
+                    if (buffers[buffers.length - 1].hasRemaining())
+                        break;
+                }
+            }
+        } else {
+            while (writeNetOut() && connected && !taskRunning) {
+                ByteBuffer next;
+                synchronized (outQueue) {
+                    next = outQueue.peek();
+                }
+                if (next == null)
+                    break;
+                if (!wrap(next))
+                    break;
+                if (!next.hasRemaining()) {
+                    synchronized (outQueue) {
+                        outQueue.poll();
+                    }
+                }
+            }
+        }
+        updateInterestOps();
+    }
+
+    private boolean hasPendingOutput() {
+        if (netOut != null && netOut.position() > 0)
+            return true;
+        if (sslEngine != null && (!connected || taskRunning))
+            return false;
+        synchronized (outQueue) {
+            return !outQueue.isEmpty();
+        }
+    }
+
+    private void updateInterestOps() {
+        if (key == null || !key.isValid() || !tcpConnected)
+            return;
+        int ops = taskRunning || ((readingPaused || dispatchBacklogged) && connected) ? 0 : SelectionKey.OP_READ;
+        if (hasPendingOutput())
+            ops |= SelectionKey.OP_WRITE;
+        key.interestOps(ops);
+    }
+
+    private void close(IOException reason, boolean notify) {
+        closed = true;
+        if (finished)
+            return;
+        finished = true;
+        if (key != null)
+            key.cancel();
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+        if (!connected)
+            connectedFuture.setExecutionException(reason);
+        else if (notify)
+            dispatch(() -> listener.onClosed(reason)); // after the lines received before it
+        connected = false;
+    }
+
+    public interface Listener {
+
+        void onLine(String line);
+
+        void onClosed(IOException reason);
+
+    }
+
+}
@@ -0,0 +1,91 @@
+package io.mrarm.irc.chatlib.irc.transport;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A single selector thread driving the sockets of every {@link MultiplexedTransport}. All socket and SSLEngine state
+ * of the transports is only touched on this thread; other threads hand work to it through {@link #execute(Runnable)}.
+ * Potentially slow work (SSL delegated tasks, which may end up asking the user to accept a certificate) is moved to a
+ * separate pool so it never stalls the other connections.
+ */
+public class NetworkEngine {
+
+    private static final String TAG = "NetworkEngine";
+
+    private static NetworkEngine instance;
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    private final ExecutorService taskExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "IRC Network Engine Task");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public static synchronized NetworkEngine getInstance() throws IOException {
+        if (instance == null)
+            instance = new NetworkEngine();
+        return instance;
+    }
+
+    private NetworkEngine() throws IOException {
+        selector = Selector.open();
+        Thread thread = new Thread(this::run);
+        thread.setName("IRC Network Engine");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Queues the task to be run on the selector thread.
+     */
+    void execute(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the task on the background pool, outside of the selector thread.
+     */
+    void executeBlocking(Runnable task) {
+        taskExecutor.execute(task);
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                Log.e(TAG, "select() failed", e);
+                continue;
+            }
+            Runnable task;
+            while ((task = pendingTasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Task failed", e);
+                }
+            }
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                ((MultiplexedTransport) key.attachment()).onReady(key);
+            }
+        }
+    }
+
+}
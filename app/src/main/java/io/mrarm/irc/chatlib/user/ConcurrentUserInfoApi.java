@@ -0,0 +1,431 @@
+package io.mrarm.irc.chatlib.user;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.mrarm.irc.chatlib.ResponseCallback;
+import io.mrarm.irc.chatlib.ResponseErrorCallback;
+import io.mrarm.irc.chatlib.irc.CaseMapping;
+import io.mrarm.irc.chatlib.irc.ServerConnectionData;
+import io.mrarm.irc.chatlib.util.SimpleRequestExecutor;
+
+/**
+ * User registry for long running connections. Nicks are keyed using the server's CASEMAPPING, so "Foo" and "foo" are
+ * the same user. Lookups don't lock: the maps are concurrent and every {@link UserInfo} is guarded by its own monitor.
+ * Only adding, renaming and evicting users is serialized.
+ * <p>
+ * Users that share no channel with us and have no open query are evicted once they haven't been looked up for
+ * {@link #EVICTION_IDLE_TIME} ms. The sweep runs on the calling thread, at most once every
+ * {@link #SWEEP_INTERVAL} ms. An evicted user's UUID is kept (up to {@link #MAX_EVICTED_UUIDS} of them), so that a
+ * user looked up again after an eviction still has the UUID it had before.
+ */
+public class ConcurrentUserInfoApi implements WritableUserInfoApi {
+
+    public static final long EVICTION_IDLE_TIME = 10 * 60 * 1000L;
+    public static final long SWEEP_INTERVAL = 60 * 1000L;
+    public static final int MAX_EVICTED_UUIDS = 10000;
+
+    // Rough per-user heap cost: the Entry, UserInfo, UUID, the channel HashSet, both map nodes and the key String
+    private static final int ENTRY_OVERHEAD_BYTES = 320;
+    private static final int CHANNEL_OVERHEAD_BYTES = 48;
+    // The UUID, the map node and the key String of an evicted user
+    private static final int EVICTED_UUID_OVERHEAD_BYTES = 120;
+
+    private final ServerConnectionData connection;
+    private final ConcurrentHashMap<UUID, Entry> uuidToEntry = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Entry> nickToEntry = new ConcurrentHashMap<>();
+    private final List<UserNickChangeListener> nickChangeListeners = new CopyOnWriteArrayList<>();
+    private final Object writeLock = new Object();
+    // Keyed like nickToEntry, least recently evicted or looked up first; guarded by writeLock
+    private final LinkedHashMap<String, UUID> evictedUuids = new LinkedHashMap<String, UUID>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, UUID> eldest) {
+            return size() > MAX_EVICTED_UUIDS;
+        }
+    };
+    private CaseMapping keyCaseMapping;
+    private long lastSweepTime = now();
+
+    private final AtomicLong lookupHits = new AtomicLong();
+    private final AtomicLong lookupMisses = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    public ConcurrentUserInfoApi(ServerConnectionData connection) {
+        this.connection = connection;
+        this.keyCaseMapping = connection.getSupportList().getCaseMapping();
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    private String getKey(String nick) {
+        CaseMapping caseMapping = connection.getSupportList().getCaseMapping();
+        if (caseMapping != keyCaseMapping)
+            rekey(caseMapping);
+        return caseMapping.toLowerCase(nick);
+    }
+
+    /**
+     * Rebuilds the nick index after the server announced a different CASEMAPPING.
+     */
+    private void rekey(CaseMapping caseMapping) {
+        synchronized (writeLock) {
+            if (keyCaseMapping == caseMapping)
+                return;
+            keyCaseMapping = caseMapping;
+            nickToEntry.clear();
+            for (Entry entry : uuidToEntry.values())
+                nickToEntry.put(caseMapping.toLowerCase(entry.getNick()), entry);
+            // only the old keys are known, which is close enough as the mappings differ in a few chars only
+            List<Map.Entry<String, UUID>> evicted = new ArrayList<>(evictedUuids.entrySet());
+            evictedUuids.clear();
+            for (Map.Entry<String, UUID> e : evicted)
+                evictedUuids.put(caseMapping.toLowerCase(e.getKey()), e.getValue());
+        }
+    }
+
+    private Entry getOrCreateEntry(String nick) {
+        String key = getKey(nick);
+        Entry entry = nickToEntry.get(key);
+        if (entry != null) {
+            entry.lastUsed = now();
+            // the sweep re-checks lastUsed after removing an entry, so if it is still mapped here it stays
+            if (uuidToEntry.get(entry.info.getUUID()) == entry) {
+                lookupHits.incrementAndGet();
+                return entry;
+            }
+        }
+        synchronized (writeLock) {
+            entry = nickToEntry.get(key);
+            if (entry == null) {
+                lookupMisses.incrementAndGet();
+                UUID uuid = evictedUuids.remove(key);
+                if (uuid == null)
+                    uuid = UUID.randomUUID();
+                entry = new Entry(new UserInfo(uuid, nick));
+                uuidToEntry.put(entry.info.getUUID(), entry);
+                nickToEntry.put(key, entry);
+            }
+            entry.lastUsed = now();
+            maybeSweep(entry.lastUsed);
+        }
+        return entry;
+    }
+
+    private void maybeSweep(long now) {
+        if (now - lastSweepTime < SWEEP_INTERVAL)
+            return;
+        lastSweepTime = now;
+        evictUnused(now - EVICTION_IDLE_TIME);
+    }
+
+    /**
+     * Evicts the users not looked up since the given time that share no channel with us and have no open query.
+     * Returns the number of evicted users.
+     */
+    private int evictUnused(long usedBefore) {
+        int count = 0;
+        synchronized (writeLock) {
+            for (Iterator<Entry> it = uuidToEntry.values().iterator(); it.hasNext(); ) {
+                Entry entry = it.next();
+                if (entry.lastUsed >= usedBefore)
+                    continue;
+                String nick;
+                synchronized (entry.info) {
+                    if (!entry.info.getChannels().isEmpty())
+                        continue;
+                    nick = entry.info.getCurrentNick();
+                }
+                if (connection.hasJoinedChannel(nick))
+                    continue; // open query
+                String key = keyCaseMapping.toLowerCase(nick);
+                it.remove();
+                nickToEntry.remove(key, entry);
+                if (entry.lastUsed >= usedBefore) { // looked up concurrently
+                    uuidToEntry.put(entry.info.getUUID(), entry);
+                    nickToEntry.put(key, entry);
+                    continue;
+                }
+                evictedUuids.put(key, entry.info.getUUID());
+                count++;
+            }
+        }
+        evictedCount.addAndGet(count);
+        return count;
+    }
+
+    /**
+     * Runs the eviction immediately, ignoring the idle time. Returns the number of evicted users.
+     */
+    public int evictUnusedNow() {
+        synchronized (writeLock) {
+            lastSweepTime = now();
+        }
+        return evictUnused(Long.MAX_VALUE);
+    }
+
+    public Stats getStats() {
+        int users = 0;
+        int channelEntries = 0;
+        long bytes = 0;
+        for (Entry entry : uuidToEntry.values()) {
+            synchronized (entry.info) {
+                users++;
+                channelEntries += entry.info.getChannels().size();
+                bytes += ENTRY_OVERHEAD_BYTES + entry.info.getCurrentNick().length() * 4L;
+                for (String channel : entry.info.getChannels())
+                    bytes += CHANNEL_OVERHEAD_BYTES + channel.length() * 2L;
+            }
+        }
+        synchronized (writeLock) {
+            bytes += evictedUuids.size() * (long) EVICTED_UUID_OVERHEAD_BYTES;
+        }
+        return new Stats(users, channelEntries, bytes, lookupHits.get(), lookupMisses.get(), evictedCount.get());
+    }
+
+    @Override
+    public Future<List<String>> findUsers(String query, ResponseCallback<List<String>> callback,
+                                          ResponseErrorCallback errorCallback) {
+        return SimpleRequestExecutor.run(() -> {
+            List<String> ret = new ArrayList<>();
+            for (Entry entry : uuidToEntry.values()) {
+                String nick = entry.getNick();
+                if (nick.regionMatches(true, 0, query, 0, query.length()))
+                    ret.add(nick);
+            }
+            return ret;
+        }, callback, errorCallback);
+    }
+
+    @Override
+    public Future<UserInfo> getUser(UUID uuid, ResponseCallback<UserInfo> callback,
+                                    ResponseErrorCallback errorCallback) {
+        return SimpleRequestExecutor.run(() -> {
+            Entry entry = uuidToEntry.get(uuid);
+            return entry != null ? entry.copy() : null;
+        }, callback, errorCallback);
+    }
+
+    @Override
+    public Future<UserInfo> getUser(String nick, String user, String host, ResponseCallback<UserInfo> callback,
+                                    ResponseErrorCallback errorCallback) {
+        return SimpleRequestExecutor.run(() -> getUserSync(nick, user, host), callback, errorCallback);
+    }
+
+    @Override
+    public UserInfo getUserSync(String nick, String user, String host) {
+        return getOrCreateEntry(nick).copy();
+    }
+
+    @Override
+    public Future<UUID> resolveUser(String nick, String user, String host, ResponseCallback<UUID> callback,
+                                    ResponseErrorCallback errorCallback) {
+        return SimpleRequestExecutor.run(() -> resolveUserSync(nick, user, host), callback, errorCallback);
+    }
+
+    @Override
+    public UUID resolveUserSync(String nick, String user, String host) {
+        return getOrCreateEntry(nick).info.getUUID();
+    }
+
+    @Override
+    public Future<Map<String, UUID>> resolveUsers(List<String> nicks, ResponseCallback<Map<String, UUID>> callback,
+                                                  ResponseErrorCallback errorCallback) {
+        return SimpleRequestExecutor.run(() -> resolveUsersSync(nicks), callback, errorCallback);
+    }
+
+    @Override
+    public Map<String, UUID> resolveUsersSync(List<String> nicks) {
+        Map<String, UUID> ret = new HashMap<>();
+        for (String nick : nicks)
+            ret.put(nick, resolveUserSync(nick, null, null));
+        return ret;
+    }
+
+    @Override
+    public Future<Map<UUID, String>> getUsersNicks(List<UUID> uuids, ResponseCallback<Map<UUID, String>> callback,
+                                                   ResponseErrorCallback errorCallback) {
+        return SimpleRequestExecutor.run(() -> getUsersNicksSync(uuids), callback, errorCallback);
+    }
+
+    @Override
+    public Map<UUID, String> getUsersNicksSync(List<UUID> uuids) {
+        Map<UUID, String> ret = new HashMap<>();
+        for (UUID uuid : uuids) {
+            Entry entry = uuidToEntry.get(uuid);
+            if (entry != null)
+                ret.put(uuid, entry.getNick());
+        }
+        return ret;
+    }
+
+    @Override
+    public Future<Void> subscribeNickChanges(UserNickChangeListener listener, ResponseCallback<Void> callback,
+                                             ResponseErrorCallback errorCallback) {
+        return SimpleRequestExecutor.run(() -> {
+            nickChangeListeners.add(listener);
+            return null;
+        }, callback, errorCallback);
+    }
+
+    @Override
+    public Future<Void> unsubscribeNickChanges(UserNickChangeListener listener, ResponseCallback<Void> callback,
+                                               ResponseErrorCallback errorCallback) {
+        return SimpleRequestExecutor.run(() -> {
+            nickChangeListeners.remove(listener);
+            return null;
+        }, callback, errorCallback);
+    }
+
+    @Override
+    public Future<Void> setUserNick(UUID user, String newNick, ResponseCallback<Void> callback,
+                                    ResponseErrorCallback errorCallback) {
+        return SimpleRequestExecutor.run(() -> {
+            setUserNickSync(user, newNick);
+            return null;
+        }, callback, errorCallback);
+    }
+
+    @Override
+    public void setUserNickSync(UUID user, String newNick) {
+        Entry entry = uuidToEntry.get(user);
+        if (entry == null)
+            return;
+        String newKey = getKey(newNick);
+        UserInfo userInfo;
+        String oldNick;
+        synchronized (writeLock) {
+            synchronized (entry.info) {
+                oldNick = entry.info.getCurrentNick();
+                entry.info.setCurrentNick(newNick);
+                userInfo = new UserInfo(entry.info);
+            }
+            nickToEntry.remove(keyCaseMapping.toLowerCase(oldNick), entry);
+            evictedUuids.remove(newKey);
+            Entry replaced = nickToEntry.put(newKey, entry);
+            if (replaced != null && replaced != entry) // a stale user we didn't know had left
+                uuidToEntry.remove(replaced.info.getUUID(), replaced);
+        }
+        entry.lastUsed = now();
+        for (UserNickChangeListener listener : nickChangeListeners)
+            listener.onNickChanged(userInfo, oldNick, newNick);
+    }
+
+    @Override
+    public Future<Void> setUserChannelPresence(UUID user, String channel, boolean present,
+                                               ResponseCallback<Void> callback, ResponseErrorCallback errorCallback) {
+        return SimpleRequestExecutor.run(() -> {
+            Entry entry = uuidToEntry.get(user);
+            if (entry != null) {
+                synchronized (entry.info) {
+                    entry.info.setChannelPresence(channel, present);
+                }
+                entry.lastUsed = now();
+            }
+            return null;
+        }, callback, errorCallback);
+    }
+
+    @Override
+    public Future<Void> clearAllUsersChannelPresences(ResponseCallback<Void> callback,
+                                                      ResponseErrorCallback errorCallback) {
+        return SimpleRequestExecutor.run(() -> {
+            clearAllUsersChannelPresencesSync();
+            return null;
+        }, callback, errorCallback);
+    }
+
+    @Override
+    public void clearAllUsersChannelPresencesSync() {
+        for (Entry entry : uuidToEntry.values()) {
+            synchronized (entry.info) {
+                entry.info.clearChannelPresences();
+            }
+        }
+    }
+
+    private static class Entry {
+
+        final UserInfo info;
+        volatile long lastUsed;
+
+        Entry(UserInfo info) {
+            this.info = info;
+        }
+
+        String getNick() {
+            synchronized (info) {
+                return info.getCurrentNick();
+            }
+        }
+
+        UserInfo copy() {
+            synchronized (info) {
+                return new UserInfo(info);
+            }
+        }
+
+    }
+
+    public static class Stats {
+
+        private final int userCount;
+        private final int channelPresenceCount;
+        private final long estimatedBytes;
+        private final long lookupHits;
+        private final long lookupMisses;
+        private final long evictedCount;
+
+        public Stats(int userCount, int channelPresenceCount, long estimatedBytes, long lookupHits,
+                     long lookupMisses, long evictedCount) {
+            this.userCount = userCount;
+            this.channelPresenceCount = channelPresenceCount;
+            this.estimatedBytes = estimatedBytes;
+            this.lookupHits = lookupHits;
+            this.lookupMisses = lookupMisses;
+            this.evictedCount = evictedCount;
+        }
+
+        public int getUserCount() {
+            return userCount;
+        }
+
+        public int getChannelPresenceCount() {
+            return channelPresenceCount;
+        }
+
+        public long getEstimatedBytes() {
+            return estimatedBytes;
+        }
+
+        public long getLookupHits() {
+            return lookupHits;
+        }
+
+        public long getLookupMisses() {
+            return lookupMisses;
+        }
+
+        public long getEvictedCount() {
+            return evictedCount;
+        }
+
+        @Override
+        public String toString() {
+            return "users=" + userCount + " presences=" + channelPresenceCount + " ~" + (estimatedBytes / 1024) +
+                    "KiB hits=" + lookupHits + " misses=" + lookupMisses + " evicted=" + evictedCount;
+        }
+
+    }
+
+}
@@ -47,58 +47,61 @@ public class SimpleUserInfoApi implements WritableUserInfoApi {
     @Override
     public Future<UserInfo> getUser(String nick, String user, String host, ResponseCallback<UserInfo> callback,
                                                           ResponseErrorCallback errorCallback) {
-        return SimpleRequestExecutor.run(() -> {
-            synchronized (SimpleUserInfoApi.this) {
-                UUID uuid = resolveUser(nick, user, host, null, null).get();
-                return getUser(uuid, null, null).get();
-            }
-        }, callback, errorCallback);
+        return SimpleRequestExecutor.run(() -> getUserSync(nick, user, host), callback, errorCallback);
+    }
+
+    @Override
+    public synchronized UserInfo getUserSync(String nick, String user, String host) {
+        return new UserInfo(uuidToUserInfo.get(resolveUserSync(nick, user, host)));
     }
 
     @Override
     public Future<UUID> resolveUser(String nick, String user, String host, ResponseCallback<UUID> callback,
                                     ResponseErrorCallback errorCallback) {
-        return SimpleRequestExecutor.run(() -> {
-            synchronized (SimpleUserInfoApi.this) {
-                if (nickToUserInfo.containsKey(nick))
-                    return nickToUserInfo.get(nick).getUUID();
-                UserInfo userInfo = new UserInfo(UUID.randomUUID(), nick);
-                uuidToUserInfo.put(userInfo.getUUID(), userInfo);
-                nickToUserInfo.put(userInfo.getCurrentNick(), userInfo);
-                return userInfo.getUUID();
-            }
-        }, callback, errorCallback);
+        return SimpleRequestExecutor.run(() -> resolveUserSync(nick, user, host), callback, errorCallback);
+    }
+
+    @Override
+    public synchronized UUID resolveUserSync(String nick, String user, String host) {
+        UserInfo userInfo = nickToUserInfo.get(nick);
+        if (userInfo != null)
+            return userInfo.getUUID();
+        userInfo = new UserInfo(UUID.randomUUID(), nick);
+        uuidToUserInfo.put(userInfo.getUUID(), userInfo);
+        nickToUserInfo.put(userInfo.getCurrentNick(), userInfo);
+        return userInfo.getUUID();
     }
 
     @Override
     public Future<Map<String, UUID>> resolveUsers(List<String> nicks, ResponseCallback<Map<String, UUID>> callback,
                                                   ResponseErrorCallback errorCallback) {
-        return SimpleRequestExecutor.run(() -> {
-            synchronized (SimpleUserInfoApi.this) {
-                Map<String, UUID> ret = new HashMap<>();
-                for (String nick : nicks) {
-                    ret.put(nick, getUser(nick, null, null, null, null).get().getUUID());
-                }
-                return ret;
-            }
-        }, callback, errorCallback);
+        return SimpleRequestExecutor.run(() -> resolveUsersSync(nicks), callback, errorCallback);
+    }
+
+    @Override
+    public synchronized Map<String, UUID> resolveUsersSync(List<String> nicks) {
+        Map<String, UUID> ret = new HashMap<>();
+        for (String nick : nicks)
+            ret.put(nick, resolveUserSync(nick, null, null));
+        return ret;
     }
 
     @Override
     public Future<Map<UUID, String>> getUsersNicks(List<UUID> uuids, ResponseCallback<Map<UUID, String>> callback,
                                                    ResponseErrorCallback errorCallback) {
-        return SimpleRequestExecutor.run(() -> {
-            synchronized (SimpleUserInfoApi.this) {
-                Map<UUID, String> ret = new HashMap<>();
-                for (UUID uuid : uuids) {
-                    UserInfo userInfo = uuidToUserInfo.get(uuid);
-                    if (userInfo == null)
-                        continue;
-                    ret.put(uuid, userInfo.getCurrentNick());
-                }
-                return ret;
-            }
-        }, callback, errorCallback);
+        return SimpleRequestExecutor.run(() -> getUsersNicksSync(uuids), callback, errorCallback);
+    }
+
+    @Override
+    public synchronized Map<UUID, String> getUsersNicksSync(List<UUID> uuids) {
+        Map<UUID, String> ret = new HashMap<>();
+        for (UUID uuid : uuids) {
+            UserInfo userInfo = uuidToUserInfo.get(uuid);
+            if (userInfo == null)
+                continue;
+            ret.put(uuid, userInfo.getCurrentNick());
+        }
+        return ret;
     }
 
     @Override
@@ -127,21 +130,24 @@ public class SimpleUserInfoApi implements WritableUserInfoApi {
     public Future<Void> setUserNick(UUID user, String newNick, ResponseCallback<Void> callback,
                                     ResponseErrorCallback errorCallback) {
         return SimpleRequestExecutor.run(() -> {
-            synchronized (SimpleUserInfoApi.this) {
-                UserInfo userInfo = uuidToUserInfo.get(user);
-                String oldNick = userInfo.getCurrentNick();
-                userInfo.setCurrentNick(newNick);
-                if (nickToUserInfo.get(oldNick) == userInfo) {
-                    nickToUserInfo.remove(oldNick);
-                    nickToUserInfo.put(newNick, userInfo);
-                }
-                for (UserNickChangeListener listener : nickChangeListeners)
-                    listener.onNickChanged(userInfo, oldNick, newNick);
-            }
+            setUserNickSync(user, newNick);
             return null;
         }, callback, errorCallback);
     }
 
+    @Override
+    public synchronized void setUserNickSync(UUID user, String newNick) {
+        UserInfo userInfo = uuidToUserInfo.get(user);
+        String oldNick = userInfo.getCurrentNick();
+        userInfo.setCurrentNick(newNick);
+        if (nickToUserInfo.get(oldNick) == userInfo) {
+            nickToUserInfo.remove(oldNick);
+            nickToUserInfo.put(newNick, userInfo);
+        }
+        for (UserNickChangeListener listener : nickChangeListeners)
+            listener.onNickChanged(userInfo, oldNick, newNick);
+    }
+
     @Override
     public Future<Void> setUserChannelPresence(UUID user, String channel, boolean present,
                                                ResponseCallback<Void> callback, ResponseErrorCallback errorCallback) {
@@ -158,12 +164,15 @@ public class SimpleUserInfoApi implements WritableUserInfoApi {
     public Future<Void> clearAllUsersChannelPresences(ResponseCallback<Void> callback,
                                                       ResponseErrorCallback errorCallback) {
         return SimpleRequestExecutor.run(() -> {
-            synchronized (SimpleUserInfoApi.this) {
-                for (UserInfo userInfo : uuidToUserInfo.values())
-                    userInfo.clearChannelPresences();
-            }
+            clearAllUsersChannelPresencesSync();
             return null;
         }, callback, errorCallback);
     }
 
+    @Override
+    public synchronized void clearAllUsersChannelPresencesSync() {
+        for (UserInfo userInfo : uuidToUserInfo.values())
+            userInfo.clearChannelPresences();
+    }
+
 }
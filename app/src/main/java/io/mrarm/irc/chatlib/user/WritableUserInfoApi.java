@@ -1,7 +1,10 @@
 package io.mrarm.irc.chatlib.user;
 
 
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
 import io.mrarm.irc.chatlib.ResponseCallback;
@@ -17,4 +20,40 @@ public interface WritableUserInfoApi extends UserInfoApi {
 
     Future<Void> clearAllUsersChannelPresences(ResponseCallback<Void> callback, ResponseErrorCallback errorCallback);
 
+    // NOTE: Synchronous variants
+    // These are called from the network thread. Implementations keeping the users in memory should override them so
+    // that nothing waits there; the defaults only wait for the asynchronous variants.
+
+    default UUID resolveUserSync(String nick, String user, String host) {
+        return waitFor(resolveUser(nick, user, host, null, null));
+    }
+
+    default UserInfo getUserSync(String nick, String user, String host) {
+        return waitFor(getUser(nick, user, host, null, null));
+    }
+
+    default Map<String, UUID> resolveUsersSync(List<String> nicks) {
+        return waitFor(resolveUsers(nicks, null, null));
+    }
+
+    default Map<UUID, String> getUsersNicksSync(List<UUID> uuids) {
+        return waitFor(getUsersNicks(uuids, null, null));
+    }
+
+    default void setUserNickSync(UUID user, String newNick) {
+        waitFor(setUserNick(user, newNick, null, null));
+    }
+
+    default void clearAllUsersChannelPresencesSync() {
+        waitFor(clearAllUsersChannelPresences(null, null));
+    }
+
+    static <T> T waitFor(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("User info request failed", e);
+        }
+    }
+
 }
@@ -0,0 +1,115 @@
+package io.mrarm.irc.chatlib.util;
+
+/**
+ * Parser for the ISO-8601 timestamps used by IRCv3 server-time ("2011-10-19T16:40:51.620Z"). Works directly on the
+ * string, allocates nothing and is safe to use from any thread. Also accepts a missing fraction, any number of
+ * fraction digits and numeric UTC offsets.
+ */
+public class IsoDateParser {
+
+    public static final long INVALID = Long.MIN_VALUE;
+
+    /**
+     * Returns the time in milliseconds since the epoch, or {@link #INVALID} if the value is not a valid timestamp.
+     */
+    public static long parse(String s) {
+        if (s == null || s.length() < 19)
+            return INVALID;
+        int year = parseDigits(s, 0, 4);
+        int month = parseDigits(s, 5, 2);
+        int day = parseDigits(s, 8, 2);
+        int hour = parseDigits(s, 11, 2);
+        int minute = parseDigits(s, 14, 2);
+        int second = parseDigits(s, 17, 2);
+        if (year < 1 || month < 1 || month > 12 || day < 1 || day > getDaysInMonth(year, month) || hour < 0 ||
+                hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60)
+            return INVALID;
+        if (s.charAt(4) != '-' || s.charAt(7) != '-' || (s.charAt(10) != 'T' && s.charAt(10) != 't' &&
+                s.charAt(10) != ' ') || s.charAt(13) != ':' || s.charAt(16) != ':')
+            return INVALID;
+
+        int i = 19;
+        int millis = 0;
+        if (i < s.length() && (s.charAt(i) == '.' || s.charAt(i) == ',')) {
+            i++;
+            int digits = 0;
+            while (i < s.length() && isDigit(s.charAt(i))) {
+                if (digits < 3)
+                    millis = millis * 10 + (s.charAt(i) - '0');
+                digits++;
+                i++;
+            }
+            if (digits == 0)
+                return INVALID;
+            for ( ; digits < 3; digits++)
+                millis *= 10;
+        }
+
+        int offsetMinutes = 0;
+        if (i < s.length()) {
+            char c = s.charAt(i);
+            if (c == 'Z' || c == 'z') {
+                i++;
+            } else if (c == '+' || c == '-') {
+                int offsetHour = parseDigits(s, i + 1, 2);
+                if (offsetHour < 0 || offsetHour > 23)
+                    return INVALID;
+                i += 3;
+                int offsetMinute = 0;
+                if (i < s.length()) {
+                    if (s.charAt(i) == ':')
+                        i++;
+                    offsetMinute = parseDigits(s, i, 2);
+                    if (offsetMinute < 0 || offsetMinute > 59)
+                        return INVALID;
+                    i += 2;
+                }
+                offsetMinutes = offsetHour * 60 + offsetMinute;
+                if (c == '-')
+                    offsetMinutes = -offsetMinutes;
+            } else {
+                return INVALID;
+            }
+        }
+        if (i != s.length())
+            return INVALID;
+
+        long days = daysFromCivil(year, month, day);
+        long seconds = days * 86400L + hour * 3600L + minute * 60L + second - offsetMinutes * 60L;
+        return seconds * 1000L + millis;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int parseDigits(String s, int start, int count) {
+        if (start + count > s.length())
+            return -1;
+        int ret = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = s.charAt(i);
+            if (!isDigit(c))
+                return -1;
+            ret = ret * 10 + (c - '0');
+        }
+        return ret;
+    }
+
+    private static int getDaysInMonth(int year, int month) {
+        if (month == 2)
+            return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+        return (month == 4 || month == 6 || month == 9 || month == 11) ? 30 : 31;
+    }
+
+    // Days since 1970-01-01 in the proleptic Gregorian calendar
+    private static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        int era = year / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468L;
+    }
+
+}
@@ -42,10 +42,16 @@ public class SettableFuture<V> implements Future<V> {
 
     @Override
     public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
         synchronized (this) {
             while (!valueSet) {
-                wait(unit.toMillis(timeout), (int) (unit.toNanos(timeout) % 1000000L));
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    throw new TimeoutException();
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
             }
+            if (exception != null)
+                throw new ExecutionException(exception);
             return value;
         }
     }
@@ -8,9 +8,12 @@ import java.util.regex.Pattern;
 
 import io.mrarm.irc.NotificationManager;
 import io.mrarm.irc.chatlib.dto.MessageInfo;
+import io.mrarm.irc.util.MessageTokenizer;
 
 public class NotificationRule {
 
+    public static final String NICK_MENTION_REGEX = "(^|[ ,:;@])${nick}($|[ ,:;'?])";
+
     private String name;
     private int nameId = -1;
     private String regex;
@@ -117,8 +120,16 @@ public class NotificationRule {
         return conn.getCompiledPatterns().get(this);
     }
 
+    private boolean matches(NotificationManager.ConnectionManager conn, String text) {
+        // NOTE: The nick mention rule is checked on every channel message, so it is matched by hand instead of
+        // compiling a pattern for the nick
+        if (regexCaseInsensitive && NICK_MENTION_REGEX.equals(regex))
+            return MessageTokenizer.containsMention(text, conn.getConnection().getUserNick());
+        return getCompiledPattern(conn).matcher(text).find();
+    }
+
     public boolean appliesTo(NotificationManager.ConnectionManager conn, String channel, MessageInfo message) {
-        if (regex != null && !getCompiledPattern(conn).matcher(message.getMessage()).find())
+        if (regex != null && !matches(conn, message.getMessage()))
             return false;
         boolean isNotice = message.getType() == MessageInfo.MessageType.NOTICE;
         for (AppliesToEntry entry : appliesTo) {
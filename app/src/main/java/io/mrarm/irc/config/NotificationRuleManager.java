@@ -48,7 +48,7 @@ public class NotificationRuleManager {
     private static void initDefaultRules() {
         sDefaultTopRules = new ArrayList<>();
         sDefaultBottomRules = new ArrayList<>();
-        sNickMentionRule = new NotificationRule(R.string.notification_rule_nick, NotificationRule.AppliesToEntry.channelEvents(), "(^|[ ,:;@])${nick}($|[ ,:;'?])", true);
+        sNickMentionRule = new NotificationRule(R.string.notification_rule_nick, NotificationRule.AppliesToEntry.channelEvents(), NotificationRule.NICK_MENTION_REGEX, true);
         sDirectMessageRule = new NotificationRule(R.string.notification_rule_direct, NotificationRule.AppliesToEntry.directMessages(), null);
         sDirectMessageRule.settings.mentionFormatting = false;
         sDirectNoticeRule = new NotificationRule(R.string.notification_rule_notice, NotificationRule.AppliesToEntry.directNotices(), null);
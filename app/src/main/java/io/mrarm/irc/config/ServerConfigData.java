@@ -29,6 +29,7 @@ public class ServerConfigData {
     public int port;
     public boolean ssl;
     public String charset;
+    public boolean multiplexedTransport;
     public String pass;
     public String authMode;
     public String authUser;
@@ -44,6 +45,7 @@ public class ServerConfigData {
     public List<String> autojoinChannels;
     public boolean rejoinChannels = true;
     public List<String> execCommandsConnected;
+    public int floodControlBurst; // 0 for the network's default
 
     public List<IgnoreEntry> ignoreList;
 
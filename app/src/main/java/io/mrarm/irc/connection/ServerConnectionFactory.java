@@ -12,6 +12,7 @@ import javax.net.ssl.TrustManager;
 
 import io.mrarm.irc.UserKeyManager;
 import io.mrarm.irc.UserOverrideTrustManager;
+import io.mrarm.irc.chatlib.irc.FloodControl;
 import io.mrarm.irc.chatlib.irc.IRCConnectionRequest;
 import io.mrarm.irc.chatlib.irc.cap.SASLOptions;
 import io.mrarm.irc.config.AppSettings;
@@ -39,6 +40,10 @@ public class ServerConnectionFactory {
 
         if (data.charset != null)
             request.setCharset(Charset.forName(data.charset));
+        if (data.multiplexedTransport)
+            request.setTransportMode(IRCConnectionRequest.TransportMode.MULTIPLEXED);
+        if (data.floodControlBurst > 0)
+            request.setFloodControl(data.floodControlBurst, FloodControl.DEFAULT_REFILL_INTERVAL);
         if (data.nicks != null && !data.nicks.isEmpty()) {
             for (String nick : data.nicks)
                 request.addNick(nick);
@@ -84,7 +89,7 @@ public class ServerConnectionFactory {
                 if (userKeyManager != null)
                     keyManagers = new KeyManager[]{userKeyManager};
                 sslContext.init(keyManagers, new TrustManager[]{sslHelper}, null);
-                request.enableSSL(sslContext.getSocketFactory(), sslHelper);
+                request.enableSSL(sslContext, sslHelper);
             } catch (GeneralSecurityException e) {
                 throw new RuntimeException(e);
             }
@@ -169,6 +169,7 @@ public class ServerConnectionManager {
             if (saveAutoconnect)
                 saveAutoconnectListAsync();
         }
+        connection.getNotificationManager().loadUnreadState(mContext);
         synchronized (mListeners) {
             for (ConnectionsListener listener : mListeners)
                 listener.onConnectionAdded(connection);
@@ -2,11 +2,14 @@ package io.mrarm.irc.connection;
 
 import android.content.Context;
 
+import java.util.Date;
+
 import io.mrarm.irc.BuildConfig;
 import io.mrarm.irc.DCCManager;
 import io.mrarm.irc.NotificationManager;
 import io.mrarm.irc.R;
 import io.mrarm.irc.chatlib.dto.RoomMessageId;
+import io.mrarm.irc.chatlib.dto.StatusMessageInfo;
 import io.mrarm.irc.chatlib.irc.IRCConnection;
 import io.mrarm.irc.chatlib.irc.ServerConnectionData;
 import io.mrarm.irc.chatlib.irc.cap.SASLCapability;
@@ -17,7 +20,6 @@ import io.mrarm.irc.config.ServerConfigData;
 import io.mrarm.irc.message.DefaultMessageBus;
 import io.mrarm.irc.message.DefaultMessagePipeline;
 import io.mrarm.irc.message.MessageBus;
-import io.mrarm.irc.message.MessagePipeline;
 import io.mrarm.irc.message.MessagePipelineContext;
 import io.mrarm.irc.storage.MessageStorageRepository;
 import io.mrarm.irc.util.IgnoreListMessageFilter;
@@ -42,7 +44,22 @@ public class SessionInitializer {
         MessageBus bus = new DefaultMessageBus();
         MessagePipelineContext pipelineContext = new MessagePipelineContext(config.uuid, repo);
 
-        MessagePipeline pipeline = new DefaultMessagePipeline(pipelineContext, bus);
+        DefaultMessagePipeline pipeline = new DefaultMessagePipeline(pipelineContext, bus);
+        pipeline.setDropListener((count) -> serverConnectionData.getServerStatusData().addMessage(
+                new StatusMessageInfo(null, new Date(), StatusMessageInfo.MessageType.NOTICE,
+                        context.getResources().getQuantityString(R.plurals.message_pipeline_dropped,
+                                (int) Math.min(count, Integer.MAX_VALUE), count))));
+        pipeline.setReadControl(new DefaultMessagePipeline.ReadControl() {
+            @Override
+            public boolean pauseReading() {
+                return connection.pauseReading();
+            }
+
+            @Override
+            public void resumeReading() {
+                connection.resumeReading();
+            }
+        });
 
         serverConnectionData.setServerUUID(config.uuid);
         serverConnectionData.setMessageStorageRepository(repo);
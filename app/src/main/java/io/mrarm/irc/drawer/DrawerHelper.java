@@ -15,6 +15,7 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import java.util.List;
 
+import io.mrarm.irc.ChannelNotificationManager;
 import io.mrarm.irc.NotificationManager;
 import io.mrarm.irc.R;
 import io.mrarm.irc.SettingsActivity;
@@ -26,6 +27,7 @@ import io.mrarm.irc.config.UiSettingChangeCallback;
 import io.mrarm.irc.connection.ServerConnectionManager;
 import io.mrarm.irc.connection.ServerConnectionSession;
 import io.mrarm.irc.dialog.ChannelSearchDialog;
+import io.mrarm.irc.storage.MessageStorageRepository;
 import io.mrarm.irc.view.LockableDrawerLayout;
 
 public class DrawerHelper implements ServerConnectionManager.ConnectionsListener,
@@ -33,6 +35,9 @@ public class DrawerHelper implements ServerConnectionManager.ConnectionsListener
         NotificationManager.UnreadMessageCountCallback,
         SharedPreferences.OnSharedPreferenceChangeListener {
 
+    private static final int PREFETCH_NEIGHBOUR_CHANNELS = 2; // on each side of the current one
+    private static final int PREFETCH_UNREAD_CHANNELS = 3;
+
     private Activity mActivity;
     private LockableDrawerLayout mDrawerLayout;
     private RecyclerView mRecyclerView;
@@ -42,6 +47,8 @@ public class DrawerHelper implements ServerConnectionManager.ConnectionsListener
     private DrawerMenuItem mManageServersItem;
     private DrawerMenuItem mSettingsItem;
     private boolean mHasRegisteredListeners = false;
+    private ServerConnectionSession mSelectedServer;
+    private String mSelectedChannel;
     private final NavigationHost mNavigationHost;
 
     public DrawerHelper(Activity activity, NavigationHost navigationHost) {
@@ -76,6 +83,7 @@ public class DrawerHelper implements ServerConnectionManager.ConnectionsListener
 
         mDrawerLayout.addDrawerListener(new DrawerLayout.DrawerListener() {
             boolean wasClosed = false;
+            boolean prefetched = false;
 
             @Override
             public void onDrawerSlide(View drawerView, float slideOffset) {
@@ -84,11 +92,16 @@ public class DrawerHelper implements ServerConnectionManager.ConnectionsListener
             @Override
             public void onDrawerOpened(View drawerView) {
                 wasClosed = false;
+                if (!prefetched) {
+                    prefetched = true;
+                    prefetchChannels();
+                }
             }
 
             @Override
             public void onDrawerClosed(View drawerView) {
                 wasClosed = true;
+                prefetched = false;
             }
 
             @Override
@@ -97,6 +110,12 @@ public class DrawerHelper implements ServerConnectionManager.ConnectionsListener
                     updateScrollPosition();
                     wasClosed = false;
                 }
+                // As soon as the drawer starts opening, so the reads are done by the time a channel is picked
+                if (newState != DrawerLayout.STATE_IDLE && !prefetched &&
+                        !mDrawerLayout.isDrawerOpen(GravityCompat.START)) {
+                    prefetched = true;
+                    prefetchChannels();
+                }
             }
         });
         mRecyclerView.addOnLayoutChangeListener(new View.OnLayoutChangeListener() {
@@ -229,6 +248,8 @@ public class DrawerHelper implements ServerConnectionManager.ConnectionsListener
     }
 
     public void setSelectedChannel(ServerConnectionSession server, String channel) {
+        mSelectedServer = server;
+        mSelectedChannel = channel;
         mAdapter.setSelectedChannel(server, channel);
     }
 
@@ -236,6 +257,55 @@ public class DrawerHelper implements ServerConnectionManager.ConnectionsListener
         mAdapter.setSelectedMenuItem(menuItem);
     }
 
+    /**
+     * Reads the newest messages of the channels the user is likely to switch to into memory, so that opening one of
+     * them does not wait for a query: the ones next to the current channel in the pager, and the ones with the most
+     * unread messages.
+     */
+    private void prefetchChannels() {
+        MessageStorageRepository repo = MessageStorageRepository.getInstance(mActivity);
+        ServerConnectionSession selectedServer = mSelectedServer;
+        List<String> selectedServerChannels = selectedServer != null ? selectedServer.getChannels() : null;
+        if (selectedServerChannels != null && mSelectedChannel != null) {
+            int i = selectedServerChannels.indexOf(mSelectedChannel);
+            if (i != -1) {
+                int end = Math.min(selectedServerChannels.size() - 1, i + PREFETCH_NEIGHBOUR_CHANNELS);
+                for (int j = Math.max(0, i - PREFETCH_NEIGHBOUR_CHANNELS); j <= end; j++) {
+                    if (j != i)
+                        repo.prefetchRecent(selectedServer.getUUID(), selectedServerChannels.get(j));
+                }
+            }
+        }
+
+        // The channels with the most unread messages, in descending order
+        ChannelNotificationManager[] top = new ChannelNotificationManager[PREFETCH_UNREAD_CHANNELS];
+        int[] topCounts = new int[PREFETCH_UNREAD_CHANNELS];
+        for (ServerConnectionSession server : ServerConnectionManager.getInstance(mActivity).getConnections()) {
+            List<String> channels = server.getChannels();
+            if (channels == null)
+                continue;
+            for (String channel : channels) {
+                if (server == selectedServer && channel.equals(mSelectedChannel))
+                    continue;
+                ChannelNotificationManager mgr = server.getNotificationManager().getChannelManager(channel, false);
+                int count = mgr != null ? mgr.getUnreadMessageCount() : 0;
+                int i = top.length;
+                while (i > 0 && count > topCounts[i - 1])
+                    i--;
+                if (i == top.length)
+                    continue;
+                System.arraycopy(top, i, top, i + 1, top.length - i - 1);
+                System.arraycopy(topCounts, i, topCounts, i + 1, top.length - i - 1);
+                top[i] = mgr;
+                topCounts[i] = count;
+            }
+        }
+        for (ChannelNotificationManager mgr : top) {
+            if (mgr != null)
+                repo.prefetchRecent(mgr.getConnection().getUUID(), mgr.getChannel());
+        }
+    }
+
     private void updateScrollPosition() {
         int pos = mAdapter.getSelectedItemIndex();
         if (pos == -1)
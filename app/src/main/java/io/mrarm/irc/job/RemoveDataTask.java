@@ -81,6 +81,7 @@ public class RemoveDataTask {
         try {
             if (deleteMessageEntries != null && !deleteMessageEntries.isEmpty()) {
                 roomRepository.deleteMessages(deleteMessageEntries);
+                roomRepository.secureWipe();
                 return;
             }
 
@@ -95,6 +96,8 @@ public class RemoveDataTask {
             } else {
                 roomRepository.deleteAllLogs();
             }
+            // The user asked for these to be gone, don't leave them in free pages until the next compaction
+            roomRepository.secureWipe();
         } catch (Exception e) {
             Log.e("RemoveDataTask", "Error deleting data", e);
         }
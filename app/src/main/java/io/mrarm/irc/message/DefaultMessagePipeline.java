@@ -1,25 +1,102 @@
 package io.mrarm.irc.message;
 
+import android.os.Looper;
 import android.util.Log;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 import io.mrarm.irc.chatlib.dto.MessageId;
 import io.mrarm.irc.chatlib.dto.MessageInfo;
 import io.mrarm.irc.chatlib.dto.RoomMessageId;
+import io.mrarm.irc.storage.MessageBatchWriter;
 import io.mrarm.irc.storage.db.MessageEntity;
 
 public class DefaultMessagePipeline implements MessagePipeline {
 
+    public static final int DEFAULT_QUEUE_CAPACITY = 2000;
+
+    /**
+     * What accept() does once storage can't keep up. Messages which are not dropped by the policy are never dropped:
+     * once the queue is full the connection is held back instead, see {@link ReadControl}.
+     */
+    public enum OverloadPolicy {
+        /** Never drop messages. */
+        BLOCK,
+        /** Drop low value events (joins, parts, quits, nick and mode changes) once the queue is half full. */
+        DROP_LOW_VALUE
+    }
+
+    /**
+     * Told how many messages were dropped once the queue drained again after an overload, so that the user can be
+     * told some are missing. Called on a pipeline or writer thread.
+     */
+    public interface DropListener {
+        void onMessagesDropped(long count);
+    }
+
+    /**
+     * Holds back the connection feeding the pipeline while the queue is full. A connection which reads on a thread of
+     * its own returns false from pauseReading(), and accept() blocks that thread until there is room, which stops
+     * reading from the socket just the same. One whose socket is read on a thread shared with other connections stops
+     * reading from it instead, and accept() takes the lines already received without waiting.
+     */
+    public interface ReadControl {
+        /** Returns whether reading was paused; false if accept() should wait for room instead. */
+        boolean pauseReading();
+
+        void resumeReading();
+    }
+
     private final MessagePipelineContext pipelineContext;
     private final MessageBus messageBus;
+    private final int queueCapacity;
+    private final OverloadPolicy overloadPolicy;
 
+    // NOTE Backpressure
+    // A message is counted from accept() until it was emitted (or failed to persist). This covers both our executor
+    // and the shared MessageBatchWriter, so neither can grow without bound while storage is slow (cleanup, VACUUM).
+    private final Object queueLock = new Object();
+    private int queueDepth;
+    private boolean overloaded;
+    private boolean readingPaused;
+    private boolean shutDown;
+    private int maxQueueDepth;
+    private long completedCount;
+    private long totalQueueNanos;
+    private long maxQueueNanos;
+    private long droppedCount;
+    private long unreportedDropCount;
+    private long heldBackCount;
+    private DropListener dropListener;
+    private ReadControl readControl;
 
     public DefaultMessagePipeline(MessagePipelineContext context,
                                   MessageBus messageBus) {
+        this(context, messageBus, DEFAULT_QUEUE_CAPACITY, OverloadPolicy.DROP_LOW_VALUE);
+    }
+
+    public DefaultMessagePipeline(MessagePipelineContext context,
+                                  MessageBus messageBus,
+                                  int queueCapacity,
+                                  OverloadPolicy overloadPolicy) {
         this.pipelineContext = context;
         this.messageBus = messageBus;
+        this.queueCapacity = queueCapacity;
+        this.overloadPolicy = overloadPolicy;
+    }
+
+    public void setDropListener(DropListener listener) {
+        synchronized (queueLock) {
+            dropListener = listener;
+        }
+    }
+
+    public void setReadControl(ReadControl control) {
+        synchronized (queueLock) {
+            readControl = control;
+        }
     }
 
     public final ExecutorService pipelineExecutor =
@@ -39,32 +116,207 @@ public class DefaultMessagePipeline implements MessagePipeline {
                         " text=" + message.getMessage()
         );
 
-        pipelineExecutor.execute(() -> {
-            final MessageId messageId;
-            try {
-                messageId = persist(channelName, message);
-            } catch (Throwable t) {
-                Log.e("MessagePipeline", "persist failed", t);
-                return;
+        if (!enterQueue(message)) {
+            Log.d("MessagePipeline", "dropped: server=" + pipelineContext.serverId + " room=" + channelName +
+                    " type=" + message.getType());
+            return;
+        }
+        final long enqueuedAt = System.nanoTime();
+
+        try {
+            pipelineExecutor.execute(() -> {
+                final MessageEntity entity;
+                try {
+                    entity = MessageEntity.from(pipelineContext.serverId, channelName, message);
+                } catch (Throwable t) {
+                    Log.e("MessagePipeline", "persist failed", t);
+                    leaveQueue(enqueuedAt);
+                    return;
+                }
+                // NOTE Group commit
+                // The row is written together with other pending messages (from all servers) by the shared
+                // MessageBatchWriter; the id comes back on its thread, in submission order, and is emitted from our
+                // own executor so listeners never run on (or hold up) the writer.
+                pipelineContext.repository.getBatchWriter().submit(entity, (long id) -> {
+                    if (id == MessageBatchWriter.FAILED_ID) {
+                        leaveQueue(enqueuedAt);
+                        return;
+                    }
+                    // On the writer thread, so the recent message cache sees the messages in id order
+                    pipelineContext.repository.onMessagePersisted(pipelineContext.serverId, channelName, message, id);
+                    try {
+                        pipelineExecutor.execute(() -> {
+                            emit(channelName, message, new RoomMessageId(id));
+                            leaveQueue(enqueuedAt);
+                        });
+                    } catch (RejectedExecutionException e) {
+                        Log.d("MessagePipeline", "dropped emit after shutdown: room=" + channelName + " id=" + id);
+                        leaveQueue(enqueuedAt);
+                    }
+                });
+            });
+        } catch (RejectedExecutionException e) {
+            leaveQueue(enqueuedAt);
+        }
+    }
+
+    private void emit(String channelName, MessageInfo message, MessageId messageId) {
+        Log.d(
+                "MessagePipeline",
+                "emit: room=" + channelName +
+                        " id=" + messageId
+        );
+
+        messageBus.emit(channelName, message, messageId);
+    }
+
+    private static boolean isLowValue(MessageInfo message) {
+        switch (message.getType()) {
+            case JOIN:
+            case PART:
+            case QUIT:
+            case NICK_CHANGE:
+            case MODE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private boolean enterQueue(MessageInfo message) {
+        ReadControl control;
+        synchronized (queueLock) {
+            if (shutDown)
+                return false;
+            if (overloadPolicy == OverloadPolicy.DROP_LOW_VALUE && queueDepth >= queueCapacity / 2 &&
+                    isLowValue(message)) {
+                if (!overloaded) {
+                    overloaded = true;
+                    Log.w("MessagePipeline", "queue overloaded, dropping low value events: server=" +
+                            pipelineContext.serverId + " depth=" + queueDepth);
+                }
+                droppedCount++;
+                unreportedDropCount++;
+                return false;
+            }
+            // Already paused: these are the lines which were received before it took effect
+            if (queueDepth < queueCapacity || readingPaused) {
+                addToQueue();
+                return true;
             }
+            control = readControl;
+        }
+        boolean paused = control != null && control.pauseReading();
+        synchronized (queueLock) {
+            heldBackCount++;
+            if (paused) {
+                Log.w("MessagePipeline", "queue full, pausing reads: server=" + pipelineContext.serverId);
+                readingPaused = true;
+            } else if (Looper.myLooper() != Looper.getMainLooper()) {
+                // The connection's own reader thread; not reading holds back the server through TCP
+                boolean interrupted = false;
+                while (queueDepth >= queueCapacity && !shutDown) {
+                    try {
+                        queueLock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+                if (shutDown)
+                    return false;
+            }
+            addToQueue();
+            return true;
+        }
+    }
 
-            Log.d(
-                    "MessagePipeline",
-                    "emit: room=" + channelName +
-                            " id=" + messageId
-            );
+    private void addToQueue() {
+        queueDepth++;
+        maxQueueDepth = Math.max(maxQueueDepth, queueDepth);
+    }
 
-            messageBus.emit(channelName, message, messageId);
-        });
+    private void leaveQueue(long enqueuedAt) {
+        long took = System.nanoTime() - enqueuedAt;
+        DropListener listener = null;
+        long dropped = 0;
+        ReadControl resume = null;
+        synchronized (queueLock) {
+            queueDepth--;
+            completedCount++;
+            totalQueueNanos += took;
+            maxQueueNanos = Math.max(maxQueueNanos, took);
+            if (queueDepth < queueCapacity)
+                queueLock.notifyAll();
+            // Resumed with room for a few reads, so that it does not pause again right away
+            if (readingPaused && queueDepth <= queueCapacity / 2) {
+                readingPaused = false;
+                resume = readControl;
+            }
+            // Reported only once well below the point where low value events are dropped, so that a queue hovering
+            // around it doesn't add a status line for every few messages
+            if (overloaded && queueDepth < queueCapacity / 4) {
+                overloaded = false;
+                Log.w("MessagePipeline", "queue drained: server=" + pipelineContext.serverId +
+                        " dropped=" + unreportedDropCount);
+                listener = dropListener;
+                dropped = unreportedDropCount;
+                unreportedDropCount = 0;
+            }
+        }
+        if (resume != null)
+            resume.resumeReading();
+        if (listener != null && dropped > 0)
+            listener.onMessagesDropped(dropped);
+    }
+
+    public Stats getStats() {
+        synchronized (queueLock) {
+            return new Stats(queueDepth, maxQueueDepth, completedCount,
+                    completedCount > 0 ? totalQueueNanos / completedCount / 1000000L : 0L,
+                    maxQueueNanos / 1000000L, droppedCount, heldBackCount);
+        }
     }
 
     @Override
     public void shutdown() {
+        ReadControl resume = null;
+        synchronized (queueLock) {
+            shutDown = true;
+            queueLock.notifyAll();
+            if (readingPaused) {
+                readingPaused = false;
+                resume = readControl;
+            }
+        }
+        if (resume != null)
+            resume.resumeReading();
         pipelineExecutor.shutdown();
     }
 
-    protected MessageId persist(String channelName, MessageInfo message) {
-        MessageEntity entity = MessageEntity.from(pipelineContext.serverId, channelName, message);
-        return new RoomMessageId(pipelineContext.repository.insertMessage(entity));
+    /**
+     * Queue metrics of a single server's pipeline; times are from accept() until the message was emitted.
+     */
+    public static class Stats {
+        public final int queueDepth;
+        public final int maxQueueDepth;
+        public final long completedCount;
+        public final long averageTimeInQueueMs;
+        public final long maxTimeInQueueMs;
+        public final long droppedCount;
+        /** How many times the queue was full and the connection was held back. */
+        public final long heldBackCount;
+
+        public Stats(int queueDepth, int maxQueueDepth, long completedCount, long averageTimeInQueueMs,
+                     long maxTimeInQueueMs, long droppedCount, long heldBackCount) {
+            this.queueDepth = queueDepth;
+            this.maxQueueDepth = maxQueueDepth;
+            this.completedCount = completedCount;
+            this.averageTimeInQueueMs = averageTimeInQueueMs;
+            this.maxTimeInQueueMs = maxTimeInQueueMs;
+            this.droppedCount = droppedCount;
+            this.heldBackCount = heldBackCount;
+        }
     }
 }
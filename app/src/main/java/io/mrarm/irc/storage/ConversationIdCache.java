@@ -0,0 +1,148 @@
+package io.mrarm.irc.storage;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.mrarm.irc.storage.db.ConversationDao;
+import io.mrarm.irc.storage.db.ConversationEntity;
+import io.mrarm.irc.storage.db.MessageEntity;
+import io.mrarm.irc.storage.db.MessageKind;
+
+/**
+ * In-memory copy of the conversations dictionary, so that mapping (server, channel) to the id stored in messages_logs
+ * (and back) does not need a query per message. Entries are only added once the row is committed, and removed when
+ * the rows are deleted. A row read before {@link #forgetServer} was called is not added afterwards: every forget bumps
+ * the generation, and entries read under an older one are returned but not cached.
+ */
+public class ConversationIdCache {
+
+    private final ConversationDao dao;
+
+    private final Map<Key, ConversationEntity> byKey = new ConcurrentHashMap<>();
+    private final Map<Long, ConversationEntity> byId = new ConcurrentHashMap<>();
+    private long generation; // guarded by this
+
+    ConversationIdCache(ConversationDao dao) {
+        this.dao = dao;
+    }
+
+    /**
+     * Returns the id of the conversation, creating it if needed. Must not be called inside of a transaction which
+     * might be rolled back, the id would be cached without the row.
+     */
+    public long getOrCreate(UUID serverId, String channel, MessageKind kind) {
+        while (true) {
+            ConversationEntity ret = byKey.get(new Key(serverId, channel));
+            if (ret != null)
+                return ret.id;
+            long gen = getGeneration();
+            ConversationEntity entity = new ConversationEntity();
+            entity.serverId = serverId;
+            entity.channel = channel;
+            entity.kind = kind;
+            long id = dao.insert(entity);
+            if (id == -1) {
+                Long existing = dao.findId(serverId, channel);
+                if (existing == null)
+                    throw new IllegalStateException("Failed to create conversation " + serverId + "/" + channel);
+                id = existing;
+            }
+            entity.id = id;
+            // Otherwise the row may have been deleted in the meantime, create it again
+            if (put(entity, gen))
+                return id;
+        }
+    }
+
+    /**
+     * Returns the id of the conversation, or null if it has no messages stored.
+     */
+    public Long find(UUID serverId, String channel) {
+        ConversationEntity ret = byKey.get(new Key(serverId, channel));
+        if (ret != null)
+            return ret.id;
+        long gen = getGeneration();
+        Long id = dao.findId(serverId, channel);
+        if (id != null) {
+            ConversationEntity entity = dao.findById(id);
+            if (entity != null)
+                put(entity, gen);
+        }
+        return id;
+    }
+
+    public ConversationEntity get(long id) {
+        ConversationEntity ret = byId.get(id);
+        if (ret == null) {
+            long gen = getGeneration();
+            ret = dao.findById(id);
+            if (ret != null)
+                put(ret, gen);
+        }
+        return ret;
+    }
+
+    /**
+     * Fills in the serverId, channel and kind of messages loaded from the database.
+     */
+    public void resolve(Iterable<MessageEntity> messages) {
+        for (MessageEntity e : messages) {
+            ConversationEntity c = get(e.conversationId);
+            if (c != null) {
+                e.serverId = c.serverId;
+                e.channel = c.channel;
+                e.kind = c.kind;
+            }
+        }
+    }
+
+    /**
+     * Drops the cached conversations of the server, or all if null. Called once their rows were deleted.
+     */
+    public void forgetServer(UUID serverId) {
+        synchronized (this) {
+            generation++;
+            byKey.values().removeIf(c -> serverId == null || serverId.equals(c.serverId));
+            byId.values().removeIf(c -> serverId == null || serverId.equals(c.serverId));
+        }
+    }
+
+    private synchronized long getGeneration() {
+        return generation;
+    }
+
+    // Caches the entity unless forgetServer() was called since it was read; returns whether it was cached
+    private synchronized boolean put(ConversationEntity entity, long readGeneration) {
+        if (generation != readGeneration)
+            return false;
+        byKey.put(new Key(entity.serverId, entity.channel), entity);
+        byId.put(entity.id, entity);
+        return true;
+    }
+
+    private static final class Key {
+        final UUID serverId;
+        final String channel;
+
+        Key(UUID serverId, String channel) {
+            this.serverId = serverId;
+            this.channel = channel;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return serverId.equals(key.serverId) && channel.equals(key.channel);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(serverId, channel);
+        }
+    }
+
+}
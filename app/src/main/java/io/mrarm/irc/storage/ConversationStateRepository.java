@@ -1,55 +1,376 @@
 package io.mrarm.irc.storage;
 
 import android.content.Context;
+import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import io.mrarm.irc.storage.db.ChatLogDatabase;
 import io.mrarm.irc.storage.db.ConversationStateDao;
 import io.mrarm.irc.storage.db.ConversationStateEntity;
+import io.mrarm.irc.storage.db.ConversationUnreadState;
 
+/**
+ * Per-conversation read state (see {@link ConversationStateEntity}) plus the unread message count.
+ * <p>
+ * The state is kept in memory once loaded, so recording an unread message is a couple of field updates instead of
+ * three statements on the pipeline thread. Changes are written back to conversation_state in one transaction,
+ * {@link #FLUSH_DELAY_MS} after the first change. The unread count is only computed with SQL when a conversation is
+ * first loaded and after messages were deleted.
+ */
 public class ConversationStateRepository {
 
+    private static final String TAG = "ConversationStateRepo";
+
+    private static volatile ConversationStateRepository INSTANCE;
+
+    public static final long FLUSH_DELAY_MS = 2000;
+
     private final ConversationStateDao dao;
     private final ChatLogDatabase db;
 
-    public ConversationStateRepository(Context context) {
+    private final Map<Key, State> states = new ConcurrentHashMap<>();
+    private final Map<Key, State> dirtyStates = new ConcurrentHashMap<>();
+    private final Object flushLock = new Object();
+    private final Object bootstrapLock = new Object();
+    private boolean bootstrapped = false; // guarded by bootstrapLock
+    private boolean flushScheduled = false; // guarded by dirtyStates
+    private final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ConversationStateFlush");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private ConversationStateRepository(Context context) {
         this.db = ChatLogDatabase.getInstance(context);
-        this.dao = ChatLogDatabase.getInstance(context).conversationStateDao();
+        this.dao = db.conversationStateDao();
     }
 
-    public ConversationStateEntity getState(UUID serverId, String channel) {
-        final ConversationStateEntity[] out = new ConversationStateEntity[1];
+    public static ConversationStateRepository getInstance(Context context) {
+        if (INSTANCE == null) {
+            synchronized (ConversationStateRepository.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new ConversationStateRepository(context.getApplicationContext());
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    private State getLoadedState(UUID serverId, String channel) {
+        Key key = new Key(serverId, channel);
+        State state = states.get(key);
+        if (state == null) {
+            state = new State(key);
+            State prev = states.putIfAbsent(key, state);
+            if (prev != null)
+                state = prev;
+        }
+        synchronized (state) {
+            if (!state.loaded || state.countStale)
+                load(state);
+        }
+        return state;
+    }
 
+    // Must be called with the state's monitor held
+    private void load(State state) {
+        UUID serverId = state.key.serverId;
+        String channel = state.key.channel;
         db.runInTransaction(() -> {
-            dao.ensureExists(serverId, channel);
-            out[0] = dao.get(serverId, channel);
+            if (!state.loaded) {
+                dao.ensureExists(serverId, channel);
+                ConversationStateEntity entity = dao.get(serverId, channel);
+                if (entity != null) {
+                    state.lastReadId = entity.lastReadId;
+                    state.firstUnreadId = entity.firstUnreadId;
+                    state.lastNotifiedId = entity.lastNotifiedId;
+                    state.mutedUntilMs = entity.mutedUntilMs;
+                }
+            }
+            state.unreadCount = dao.getUnreadCount(serverId, channel, state.lastReadId);
+            if (state.firstUnreadId == 0 && state.unreadCount > 0) {
+                Long firstUnread = dao.getFirstUnreadId(serverId, channel, state.lastReadId);
+                state.firstUnreadId = firstUnread != null ? firstUnread : 0;
+            }
+            Long latest = dao.getLatestMessageId(serverId, channel);
+            state.countedUpToId = latest != null ? latest : 0;
         });
+        state.loaded = true;
+        state.countStale = false;
+    }
+
+    /**
+     * Loads the state and unread count of every conversation of every server with a single query, so that the
+     * per-conversation loads are not needed at startup. Only queries once per process, later calls return right away.
+     * Blocks, must not be called on the main thread.
+     */
+    public void bootstrap() {
+        synchronized (bootstrapLock) {
+            if (bootstrapped)
+                return;
+            List<ConversationUnreadState> rows;
+            try {
+                rows = dao.getAllUnreadStates();
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to load the unread state", e);
+                return;
+            }
+            for (ConversationUnreadState row : rows) {
+                State state = states.computeIfAbsent(new Key(row.serverId, row.channel), State::new);
+                synchronized (state) {
+                    if (state.loaded)
+                        continue;
+                    state.lastReadId = row.lastReadId;
+                    state.firstUnreadId = row.firstUnreadId;
+                    if (state.firstUnreadId == 0 && row.unreadCount > 0 && row.firstUnreadMessageId != null)
+                        state.firstUnreadId = row.firstUnreadMessageId;
+                    state.lastNotifiedId = row.lastNotifiedId;
+                    state.mutedUntilMs = row.mutedUntilMs;
+                    state.unreadCount = row.unreadCount;
+                    state.countedUpToId = row.latestMessageId != null ? row.latestMessageId : 0;
+                    state.loaded = true;
+                }
+            }
+            bootstrapped = true;
+            Log.d(TAG, "Bootstrapped " + rows.size() + " conversations");
+        }
+    }
 
-        return out[0];
+    /**
+     * Whether the conversation's state is in memory, i.e. {@link #getState} and {@link #getUnreadCount} won't query.
+     */
+    public boolean isLoaded(UUID serverId, String channel) {
+        State state = states.get(new Key(serverId, channel));
+        if (state == null)
+            return false;
+        synchronized (state) {
+            return state.loaded && !state.countStale;
+        }
+    }
+
+    /**
+     * Returns the unread counts of the server's loaded conversations which have unread messages.
+     */
+    public Map<String, Long> getUnreadCounts(UUID serverId) {
+        Map<String, Long> ret = new HashMap<>();
+        for (State state : states.values()) {
+            if (!serverId.equals(state.key.serverId))
+                continue;
+            synchronized (state) {
+                if (state.loaded && state.unreadCount > 0)
+                    ret.put(state.key.channel, state.unreadCount);
+            }
+        }
+        return ret;
+    }
+
+    public ConversationStateEntity getState(UUID serverId, String channel) {
+        State state = getLoadedState(serverId, channel);
+        synchronized (state) {
+            return state.toEntity();
+        }
+    }
+
+    public long getUnreadCount(UUID serverId, String channel) {
+        State state = getLoadedState(serverId, channel);
+        synchronized (state) {
+            return state.unreadCount;
+        }
+    }
+
+    /**
+     * Records an unread message and returns the new unread count. Messages already included in the count (such as
+     * playback dedupe hits, which reuse an existing id) are not counted again.
+     */
+    public long onUnreadMessageArrived(UUID serverId, String channel, long messageId) {
+        State state = getLoadedState(serverId, channel);
+        synchronized (state) {
+            if (messageId > state.countedUpToId && messageId > state.lastReadId) {
+                state.countedUpToId = messageId;
+                state.unreadCount++;
+            }
+            if (state.firstUnreadId == 0 && messageId > state.lastReadId) {
+                state.firstUnreadId = messageId;
+                markDirty(state);
+            }
+            return state.unreadCount;
+        }
     }
 
-    public void onUnreadMessageArrived(UUID serverId, String channel, long messageId) {
-        dao.ensureExists(serverId, channel);
-        dao.setFirstUnreadIfEmpty(serverId, channel, messageId);
+    /**
+     * Resets the in-memory unread count right away, for when the user opens the conversation. The read position
+     * itself is stored by a following {@link #markConversationRead} call once the latest message id is known.
+     */
+    public void resetUnreadCount(UUID serverId, String channel) {
+        State state = states.get(new Key(serverId, channel));
+        if (state == null)
+            return;
+        synchronized (state) {
+            state.unreadCount = 0;
+            state.firstUnreadId = 0;
+            markDirty(state);
+        }
     }
 
     public void markConversationRead(UUID serverId, String channel, long lastReadId) {
-        dao.ensureExists(serverId, channel);
-        dao.markRead(serverId, channel, lastReadId);
+        State state = getLoadedState(serverId, channel);
+        synchronized (state) {
+            state.lastReadId = Math.max(state.lastReadId, lastReadId);
+            if (state.lastReadId >= state.countedUpToId) {
+                state.unreadCount = 0;
+                state.firstUnreadId = 0;
+            } else {
+                // Some messages past the read position are still unread, recount them on next use
+                if (state.firstUnreadId <= state.lastReadId)
+                    state.firstUnreadId = 0;
+                state.countStale = true;
+            }
+            markDirty(state);
+        }
     }
 
     public void markNotified(UUID serverId, String channel, long messageId) {
-        dao.ensureExists(serverId, channel);
-        dao.setLastNotified(serverId, channel, messageId);
+        State state = getLoadedState(serverId, channel);
+        synchronized (state) {
+            if (messageId <= state.lastNotifiedId)
+                return;
+            state.lastNotifiedId = messageId;
+            markDirty(state);
+        }
     }
 
-    public long getUnreadCount(UUID serverId, String channel) {
-        ConversationStateEntity state = getState(serverId, channel);
-        if (state == null) {
-            // State not ready yet; treat as unread-from-start
-            return dao.getUnreadCount(serverId, channel, 0);
+    /**
+     * Called after messages were deleted: unread counts of the affected conversations are recomputed on next use.
+     * Pass null to affect all servers.
+     */
+    public void onMessagesDeleted(UUID serverId) {
+        for (State state : states.values()) {
+            // Not synchronized, this may be called with the database (or the storage lock) held
+            if (serverId == null || serverId.equals(state.key.serverId))
+                state.countStale = true;
+        }
+    }
+
+    /**
+     * Drops the cached (and not yet written) state of the server, or of all servers if null. Must be called before
+     * the conversation_state rows are deleted, so that a pending flush does not recreate them.
+     */
+    public void forgetServer(UUID serverId) {
+        synchronized (flushLock) {
+            removeMatching(states, serverId);
+            removeMatching(dirtyStates, serverId);
+        }
+    }
+
+    private static void removeMatching(Map<Key, State> map, UUID serverId) {
+        for (Iterator<Key> it = map.keySet().iterator(); it.hasNext(); ) {
+            if (serverId == null || serverId.equals(it.next().serverId))
+                it.remove();
+        }
+    }
+
+    private void markDirty(State state) {
+        synchronized (dirtyStates) {
+            dirtyStates.put(state.key, state);
+            if (flushScheduled)
+                return;
+            flushScheduled = true;
+        }
+        flushExecutor.schedule(this::flush, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes all pending changes to the database, on the calling thread.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            List<State> dirty;
+            synchronized (dirtyStates) {
+                flushScheduled = false;
+                if (dirtyStates.isEmpty())
+                    return;
+                dirty = new ArrayList<>(dirtyStates.values());
+                dirtyStates.clear();
+            }
+            // State monitors are taken outside of dirtyStates, markDirty is called with them held
+            List<ConversationStateEntity> entities = new ArrayList<>(dirty.size());
+            for (State state : dirty) {
+                synchronized (state) {
+                    entities.add(state.toEntity());
+                }
+            }
+            try {
+                db.runInTransaction(() -> {
+                    for (ConversationStateEntity e : entities) {
+                        dao.ensureExists(e.serverId, e.channel);
+                        dao.updateReadState(e.serverId, e.channel, e.lastReadId, e.firstUnreadId, e.lastNotifiedId);
+                    }
+                });
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to write " + entities.size() + " conversation states", e);
+            }
+        }
+    }
+
+    private static final class Key {
+        final UUID serverId;
+        final String channel;
+
+        Key(UUID serverId, String channel) {
+            this.serverId = serverId;
+            this.channel = channel;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return serverId.equals(key.serverId) && channel.equals(key.channel);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(serverId, channel);
+        }
+    }
+
+    private static final class State {
+        final Key key;
+        boolean loaded;
+        volatile boolean countStale;
+        long lastReadId;
+        long firstUnreadId;
+        long lastNotifiedId;
+        long mutedUntilMs;
+        long unreadCount;
+        /** Highest message id already reflected in unreadCount */
+        long countedUpToId;
+
+        State(Key key) {
+            this.key = key;
+        }
+
+        ConversationStateEntity toEntity() {
+            ConversationStateEntity e = new ConversationStateEntity();
+            e.serverId = key.serverId;
+            e.channel = key.channel;
+            e.lastReadId = lastReadId;
+            e.firstUnreadId = firstUnreadId;
+            e.lastNotifiedId = lastNotifiedId;
+            e.mutedUntilMs = mutedUntilMs;
+            return e;
         }
-        return dao.getUnreadCount(serverId, channel, state.lastReadId);
     }
 }
@@ -0,0 +1,163 @@
+package io.mrarm.irc.storage;
+
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import io.mrarm.irc.chatlib.dto.MessageList;
+import io.mrarm.irc.infrastructure.threading.AppAsyncExecutor;
+
+/**
+ * Pages of history loaded ahead of time, while the user is still scrolling towards the edge of what is loaded. A page
+ * is identified by the conversation, the direction and the id it continues from, and is handed over once
+ * ({@link #take}), so the load which would otherwise start when the edge is reached gets the page right away, or
+ * waits for the prefetch which is already running instead of issuing the same query again.
+ * <p>
+ * Only the last {@link #MAX_PAGES} pages are kept. Pages towards newer messages are dropped when messages are
+ * inserted, as they may be missing them; everything is dropped when messages are deleted.
+ */
+public class HistoryPrefetcher {
+
+    private static final String TAG = "HistoryPrefetcher";
+
+    public static final int MAX_PAGES = 4;
+
+    public enum Direction {
+        OLDER, NEWER
+    }
+
+    private final Map<Key, Page> pages = new LinkedHashMap<Key, Page>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Page> eldest) {
+            return size() > MAX_PAGES;
+        }
+    }; // guarded by itself
+
+    /**
+     * Starts loading the page in the background, unless it is loaded or being loaded already.
+     */
+    public void prefetch(UUID serverId, String channel, Direction direction, long fromId, int limit,
+                         Supplier<MessageList> loader) {
+        Key key = new Key(serverId, channel, direction, fromId, limit);
+        Page page;
+        synchronized (pages) {
+            if (pages.containsKey(key))
+                return;
+            page = new Page(loader);
+            pages.put(key, page);
+        }
+        AppAsyncExecutor.io(() -> {
+            MessageList result = null;
+            try {
+                result = loader.get();
+            } catch (Exception e) {
+                Log.e(TAG, "Prefetch failed", e);
+            }
+            complete(page, result);
+        });
+    }
+
+    /**
+     * Hands the prefetched page over to the callback, on the UI thread. Returns false if the page was not prefetched
+     * (or the prefetch failed), the caller has to load it itself then. If the prefetch the callback waits for fails,
+     * the page is loaded again for it.
+     */
+    public boolean take(UUID serverId, String channel, Direction direction, long fromId, int limit,
+                        Consumer<MessageList> uiCallback) {
+        Key key = new Key(serverId, channel, direction, fromId, limit);
+        MessageList result;
+        synchronized (pages) {
+            Page page = pages.remove(key);
+            if (page == null || (page.done && page.result == null))
+                return false;
+            if (!page.done) {
+                page.waiter = uiCallback;
+                return true;
+            }
+            result = page.result;
+        }
+        AppAsyncExecutor.ui(() -> uiCallback.accept(result));
+        return true;
+    }
+
+    public void onMessagesInserted() {
+        synchronized (pages) {
+            Iterator<Key> it = pages.keySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().direction == Direction.NEWER)
+                    it.remove();
+            }
+        }
+    }
+
+    public void invalidate() {
+        synchronized (pages) {
+            pages.clear();
+        }
+    }
+
+    private void complete(Page page, MessageList result) {
+        Consumer<MessageList> waiter;
+        synchronized (pages) {
+            page.done = true;
+            page.result = result;
+            waiter = page.waiter;
+        }
+        if (waiter == null)
+            return;
+        if (result == null) {
+            // Same as if it was never prefetched
+            AppAsyncExecutor.io(page.loader, waiter);
+            return;
+        }
+        AppAsyncExecutor.ui(() -> waiter.accept(result));
+    }
+
+    private static class Page {
+        final Supplier<MessageList> loader;
+        boolean done;
+        MessageList result;
+        Consumer<MessageList> waiter;
+
+        Page(Supplier<MessageList> loader) {
+            this.loader = loader;
+        }
+    }
+
+    private static final class Key {
+        final UUID serverId;
+        final String channel;
+        final Direction direction;
+        final long fromId;
+        final int limit;
+
+        Key(UUID serverId, String channel, Direction direction, long fromId, int limit) {
+            this.serverId = serverId;
+            this.channel = channel;
+            this.direction = direction;
+            this.fromId = fromId;
+            this.limit = limit;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return fromId == key.fromId && limit == key.limit && direction == key.direction &&
+                    serverId.equals(key.serverId) && channel.equals(key.channel);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(serverId, channel, direction, fromId, limit);
+        }
+    }
+
+}
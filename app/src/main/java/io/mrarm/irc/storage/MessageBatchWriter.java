@@ -0,0 +1,219 @@
+package io.mrarm.irc.storage;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+import io.mrarm.irc.storage.db.MessageEntity;
+
+/**
+ * Group-commit writer for live messages.
+ * <p>
+ * Messages from all servers are queued here and written by a single thread, up to {@link #DEFAULT_MAX_BATCH_SIZE}
+ * rows per transaction. A batch is committed as soon as it is full or {@link #DEFAULT_MAX_DELAY_MS} after its first
+ * message was queued, whichever comes first. Rows are inserted in the order they were submitted, so per-channel
+ * ordering (and the id order the history queries rely on) is the same as with one insert per message.
+ * <p>
+ * The callback receives the row id (the existing one on a playback dedupe hit), or {@link #FAILED_ID} if the row
+ * could not be written, and is invoked on the writer thread, in submission order. It should only hand the result off
+ * to another thread.
+ */
+public class MessageBatchWriter {
+
+    private static final String TAG = "MessageBatchWriter";
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 200;
+    public static final long DEFAULT_MAX_DELAY_MS = 25;
+
+    public static final long FAILED_ID = -1;
+
+    private final MessageStorageRepository repository;
+    private final int maxBatchSize;
+    private final long maxDelayMs;
+
+    private final Object lock = new Object();
+    private List<PendingMessage> pending = new ArrayList<>();
+    private long firstPendingTime;
+    private Thread thread;
+
+    // Metrics, guarded by lock
+    private long batchCount;
+    private long rowCount;
+    private int lastBatchSize;
+    private int maxBatchSizeSeen;
+    private long totalCommitNanos;
+    private long lastCommitNanos;
+    private long maxCommitNanos;
+    private long failedBatchCount;
+
+    public MessageBatchWriter(MessageStorageRepository repository) {
+        this(repository, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_DELAY_MS);
+    }
+
+    public MessageBatchWriter(MessageStorageRepository repository, int maxBatchSize, long maxDelayMs) {
+        this.repository = repository;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMs = maxDelayMs;
+    }
+
+    public void submit(MessageEntity entity, LongConsumer callback) {
+        synchronized (lock) {
+            if (thread == null) {
+                thread = new Thread(this::run, "MessageBatchWriter");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            if (pending.isEmpty())
+                firstPendingTime = System.nanoTime();
+            pending.add(new PendingMessage(entity, callback));
+            if (pending.size() == 1 || pending.size() >= maxBatchSize)
+                lock.notifyAll();
+        }
+    }
+
+    public int getPendingCount() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    public Stats getStats() {
+        synchronized (lock) {
+            return new Stats(batchCount, rowCount, lastBatchSize, maxBatchSizeSeen,
+                    batchCount > 0 ? totalCommitNanos / batchCount / 1000L : 0L,
+                    lastCommitNanos / 1000L, maxCommitNanos / 1000L, failedBatchCount, pending.size());
+        }
+    }
+
+    private void run() {
+        while (true) {
+            List<PendingMessage> batch;
+            try {
+                batch = takeBatch();
+            } catch (InterruptedException e) {
+                return;
+            }
+            commit(batch);
+        }
+    }
+
+    private List<PendingMessage> takeBatch() throws InterruptedException {
+        synchronized (lock) {
+            while (pending.isEmpty())
+                lock.wait();
+            long deadline = firstPendingTime + maxDelayMs * 1000000L;
+            while (pending.size() < maxBatchSize) {
+                long waitMs = (deadline - System.nanoTime()) / 1000000L;
+                if (waitMs <= 0)
+                    break;
+                lock.wait(waitMs);
+            }
+            List<PendingMessage> batch;
+            if (pending.size() <= maxBatchSize) {
+                batch = pending;
+                pending = new ArrayList<>();
+            } else {
+                batch = new ArrayList<>(pending.subList(0, maxBatchSize));
+                pending.subList(0, maxBatchSize).clear();
+                firstPendingTime = System.nanoTime();
+            }
+            return batch;
+        }
+    }
+
+    private void commit(List<PendingMessage> batch) {
+        List<MessageEntity> entities = new ArrayList<>(batch.size());
+        for (PendingMessage m : batch)
+            entities.add(m.entity);
+
+        long start = System.nanoTime();
+        long[] ids;
+        try {
+            ids = repository.insertMessages(entities);
+        } catch (Throwable t) {
+            Log.e(TAG, "Batch insert of " + batch.size() + " messages failed, retrying one by one", t);
+            synchronized (lock) {
+                failedBatchCount++;
+            }
+            commitIndividually(batch);
+            return;
+        }
+        long took = System.nanoTime() - start;
+        synchronized (lock) {
+            batchCount++;
+            rowCount += batch.size();
+            lastBatchSize = batch.size();
+            maxBatchSizeSeen = Math.max(maxBatchSizeSeen, batch.size());
+            totalCommitNanos += took;
+            lastCommitNanos = took;
+            maxCommitNanos = Math.max(maxCommitNanos, took);
+        }
+
+        for (int i = 0; i < batch.size(); i++)
+            deliver(batch.get(i), ids[i]);
+    }
+
+    // A single bad row must not drop the rest of the batch
+    private void commitIndividually(List<PendingMessage> batch) {
+        for (PendingMessage m : batch) {
+            long id;
+            try {
+                id = repository.insertMessage(m.entity);
+            } catch (Throwable t) {
+                Log.e(TAG, "persist failed", t);
+                id = FAILED_ID;
+            }
+            deliver(m, id);
+        }
+    }
+
+    private static void deliver(PendingMessage m, long id) {
+        try {
+            m.callback.accept(id);
+        } catch (Throwable t) {
+            Log.e(TAG, "Message callback failed", t);
+        }
+    }
+
+    private static class PendingMessage {
+        final MessageEntity entity;
+        final LongConsumer callback;
+
+        PendingMessage(MessageEntity entity, LongConsumer callback) {
+            this.entity = entity;
+            this.callback = callback;
+        }
+    }
+
+    public static class Stats {
+        public final long batchCount;
+        public final long rowCount;
+        public final int lastBatchSize;
+        public final int maxBatchSize;
+        public final long averageCommitMicros;
+        public final long lastCommitMicros;
+        public final long maxCommitMicros;
+        public final long failedBatchCount;
+        public final int pendingCount;
+
+        public Stats(long batchCount, long rowCount, int lastBatchSize, int maxBatchSize, long averageCommitMicros,
+                     long lastCommitMicros, long maxCommitMicros, long failedBatchCount, int pendingCount) {
+            this.batchCount = batchCount;
+            this.rowCount = rowCount;
+            this.lastBatchSize = lastBatchSize;
+            this.maxBatchSize = maxBatchSize;
+            this.averageCommitMicros = averageCommitMicros;
+            this.lastCommitMicros = lastCommitMicros;
+            this.maxCommitMicros = maxCommitMicros;
+            this.failedBatchCount = failedBatchCount;
+            this.pendingCount = pendingCount;
+        }
+
+        public double getAverageBatchSize() {
+            return batchCount > 0 ? (double) rowCount / batchCount : 0.0;
+        }
+    }
+
+}
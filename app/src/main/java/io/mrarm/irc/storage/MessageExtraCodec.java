@@ -0,0 +1,248 @@
+package io.mrarm.irc.storage;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import io.mrarm.irc.chatlib.dto.ChannelModeMessageInfo;
+
+/**
+ * Binary encoding of the type-specific message fields, stored in messages_logs.extra.
+ * <p>
+ * Format: a version byte ({@link #VERSION}), then fields as {@code tag, varint length, payload}. Strings are UTF-8,
+ * numbers unsigned varints. A reader skips tags it does not know, so fields can be added without a version bump;
+ * the version only changes if the existing fields change meaning. Messages without any of these fields are stored as
+ * NULL rather than as an empty record.
+ */
+public class MessageExtraCodec {
+
+    private static final String TAG = "MessageExtraCodec";
+
+    public static final int VERSION = 1;
+
+    private static final int TAG_BATCH = 1;
+    private static final int TAG_NEW_NICK = 2;
+    private static final int TAG_KICKED_NICK = 3;
+    private static final int TAG_MODE_ENTRIES = 4;
+    private static final int TAG_TOPIC_SET_BY = 5;
+    private static final int TAG_TOPIC_SET_ON = 6;
+
+    private static final int MODE_FLAG_REMOVED = 1;
+    private static final int MODE_FLAG_HAS_PARAM = 2;
+    // The type, mode and flags varints
+    private static final int MIN_MODE_ENTRY_SIZE = 3;
+
+    private static final ChannelModeMessageInfo.EntryType[] ENTRY_TYPES = ChannelModeMessageInfo.EntryType.values();
+
+    /**
+     * The decoded fields, null if not present.
+     */
+    public static class Extras {
+        public UUID batch;
+        public String newNick;
+        public String kickedNick;
+        public List<ChannelModeMessageInfo.Entry> modeEntries;
+        /** Serialized with {@link MessageStorageHelper#serializeSenderInfo} */
+        public String topicSetBy;
+        /** In seconds */
+        public Long topicSetOn;
+
+        public boolean isEmpty() {
+            return batch == null && newNick == null && kickedNick == null && modeEntries == null &&
+                    topicSetBy == null && topicSetOn == null;
+        }
+    }
+
+    /**
+     * Returns the encoded fields, or null if there is nothing to store.
+     */
+    public static byte[] encode(Extras extras) {
+        if (extras == null || extras.isEmpty())
+            return null;
+        Writer out = new Writer();
+        out.buf.write(VERSION);
+        if (extras.batch != null) {
+            Writer f = new Writer();
+            f.writeLong64(extras.batch.getMostSignificantBits());
+            f.writeLong64(extras.batch.getLeastSignificantBits());
+            out.writeField(TAG_BATCH, f);
+        }
+        if (extras.newNick != null)
+            out.writeField(TAG_NEW_NICK, Writer.ofString(extras.newNick));
+        if (extras.kickedNick != null)
+            out.writeField(TAG_KICKED_NICK, Writer.ofString(extras.kickedNick));
+        if (extras.modeEntries != null) {
+            Writer f = new Writer();
+            f.writeVarint(extras.modeEntries.size());
+            for (ChannelModeMessageInfo.Entry e : extras.modeEntries) {
+                f.writeVarint(e.getType() != null ? e.getType().ordinal() : 0);
+                f.writeVarint(e.getMode());
+                f.writeVarint((e.isRemoved() ? MODE_FLAG_REMOVED : 0) |
+                        (e.getParam() != null ? MODE_FLAG_HAS_PARAM : 0));
+                if (e.getParam() != null)
+                    f.writeString(e.getParam());
+            }
+            out.writeField(TAG_MODE_ENTRIES, f);
+        }
+        if (extras.topicSetBy != null)
+            out.writeField(TAG_TOPIC_SET_BY, Writer.ofString(extras.topicSetBy));
+        if (extras.topicSetOn != null) {
+            Writer f = new Writer();
+            f.writeVarint(extras.topicSetOn);
+            out.writeField(TAG_TOPIC_SET_ON, f);
+        }
+        return out.buf.toByteArray();
+    }
+
+    /**
+     * Decodes the fields, returns null for NULL or a record this version can't read.
+     */
+    public static Extras decode(byte[] data) {
+        if (data == null || data.length == 0)
+            return null;
+        if (data[0] != VERSION) {
+            Log.w(TAG, "Unsupported extra data version " + data[0]);
+            return null;
+        }
+        Extras ret = new Extras();
+        Reader in = new Reader(data, 1);
+        try {
+            while (in.pos < data.length) {
+                int tag = (int) in.readVarint();
+                long fieldLen = in.readVarint();
+                if (fieldLen < 0 || fieldLen > data.length - in.pos)
+                    throw new IndexOutOfBoundsException("Field " + tag + " past the end");
+                int len = (int) fieldLen;
+                int end = in.pos + len;
+                switch (tag) {
+                    case TAG_BATCH:
+                        ret.batch = new UUID(in.readLong64(), in.readLong64());
+                        break;
+                    case TAG_NEW_NICK:
+                        ret.newNick = in.readString(len);
+                        break;
+                    case TAG_KICKED_NICK:
+                        ret.kickedNick = in.readString(len);
+                        break;
+                    case TAG_MODE_ENTRIES: {
+                        long count = in.readVarint();
+                        // Each entry takes at least 3 bytes, so a corrupt count can't make us allocate a huge list
+                        if (count < 0 || count > (end - in.pos) / MIN_MODE_ENTRY_SIZE)
+                            throw new IndexOutOfBoundsException("Mode entries past the end of the field");
+                        List<ChannelModeMessageInfo.Entry> entries = new ArrayList<>((int) count);
+                        for (int i = 0; i < count; i++) {
+                            int type = (int) in.readVarint();
+                            char mode = (char) in.readVarint();
+                            int flags = (int) in.readVarint();
+                            String param = null;
+                            if ((flags & MODE_FLAG_HAS_PARAM) != 0)
+                                param = in.readString((int) in.readVarint());
+                            entries.add(new ChannelModeMessageInfo.Entry(
+                                    type < ENTRY_TYPES.length ? ENTRY_TYPES[type] : null, mode, param,
+                                    (flags & MODE_FLAG_REMOVED) != 0));
+                        }
+                        ret.modeEntries = entries;
+                        break;
+                    }
+                    case TAG_TOPIC_SET_BY:
+                        ret.topicSetBy = in.readString(len);
+                        break;
+                    case TAG_TOPIC_SET_ON:
+                        ret.topicSetOn = in.readVarint();
+                        break;
+                    default:
+                        // Added by a newer version, skip
+                        break;
+                }
+                in.pos = end;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            Log.w(TAG, "Truncated extra data", e);
+        }
+        return ret;
+    }
+
+    private static class Writer {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+
+        static Writer ofString(String s) {
+            Writer w = new Writer();
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            w.buf.write(b, 0, b.length);
+            return w;
+        }
+
+        void writeVarint(long v) {
+            while ((v & ~0x7FL) != 0) {
+                buf.write((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            buf.write((int) v);
+        }
+
+        void writeLong64(long v) {
+            for (int i = 56; i >= 0; i -= 8)
+                buf.write((int) (v >>> i));
+        }
+
+        void writeString(String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            writeVarint(b.length);
+            buf.write(b, 0, b.length);
+        }
+
+        void writeField(int tag, Writer field) {
+            writeVarint(tag);
+            writeVarint(field.buf.size());
+            byte[] b = field.buf.toByteArray();
+            buf.write(b, 0, b.length);
+        }
+    }
+
+    private static class Reader {
+        final byte[] data;
+        int pos;
+
+        Reader(byte[] data, int pos) {
+            this.data = data;
+            this.pos = pos;
+        }
+
+        private byte next() {
+            if (pos >= data.length)
+                throw new IndexOutOfBoundsException("Unexpected end of extra data");
+            return data[pos++];
+        }
+
+        long readVarint() {
+            long ret = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = next();
+                ret |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return ret;
+            }
+            throw new IndexOutOfBoundsException("Malformed varint");
+        }
+
+        long readLong64() {
+            long ret = 0;
+            for (int i = 0; i < 8; i++)
+                ret = (ret << 8) | (next() & 0xFF);
+            return ret;
+        }
+
+        String readString(int len) {
+            if (len < 0 || pos + len > data.length)
+                throw new IndexOutOfBoundsException("String past the end");
+            String ret = new String(data, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return ret;
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+package io.mrarm.irc.storage;
+
+import static io.mrarm.irc.storage.MessageStorageHelper.deserializeMessage;
+
+import android.database.Cursor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Consumer;
+
+import io.mrarm.irc.chatlib.dto.MessageId;
+import io.mrarm.irc.chatlib.dto.MessageInfo;
+import io.mrarm.irc.chatlib.dto.MessageList;
+import io.mrarm.irc.chatlib.dto.MessageSenderInfo;
+import io.mrarm.irc.chatlib.dto.RoomMessageId;
+import io.mrarm.irc.storage.db.ChatLogDatabase;
+import io.mrarm.irc.storage.db.MessageEntity;
+
+/**
+ * Reads chat history from a messages_logs cursor straight into a MessageList, without building a MessageEntity per
+ * row. Every query walks the (conversation_id, id) index, so rows come back in id order, or in reverse id order and
+ * are then filled in from the end. The list never has to be sorted.
+ */
+public class MessageHistoryReader {
+
+    private static final String COLUMNS = "id, timestamp, type, text, sender, extra, extra_json";
+    private static final int COL_ID = 0;
+    private static final int COL_TIMESTAMP = 1;
+    private static final int COL_TYPE = 2;
+    private static final int COL_TEXT = 3;
+    private static final int COL_SENDER = 4;
+    private static final int COL_EXTRA = 5;
+    private static final int COL_EXTRA_JSON = 6;
+
+    private final ChatLogDatabase db;
+    private final Consumer<List<MessageEntity>> legacyConverter;
+
+    /**
+     * @param legacyConverter receives the rows which still have extra_json (only id and extraJson are set)
+     */
+    MessageHistoryReader(ChatLogDatabase db, Consumer<List<MessageEntity>> legacyConverter) {
+        this.db = db;
+        this.legacyConverter = legacyConverter;
+    }
+
+    /**
+     * The newest {@code limit} messages.
+     */
+    public MessageList loadRecent(long conversationId, int limit) {
+        return read("SELECT " + COLUMNS + " FROM messages_logs WHERE conversation_id = ? " +
+                "ORDER BY id DESC LIMIT ?", new Object[]{conversationId, limit}, true);
+    }
+
+    /**
+     * Up to {@code limit} messages right before {@code beforeId} (scroll up).
+     */
+    public MessageList loadBefore(long conversationId, long beforeId, int limit) {
+        return read("SELECT " + COLUMNS + " FROM messages_logs WHERE conversation_id = ? AND id < ? " +
+                "ORDER BY id DESC LIMIT ?", new Object[]{conversationId, beforeId, limit}, true);
+    }
+
+    /**
+     * Up to {@code limit} messages right after {@code afterId} (scroll down).
+     */
+    public MessageList loadAfter(long conversationId, long afterId, int limit) {
+        return read("SELECT " + COLUMNS + " FROM messages_logs WHERE conversation_id = ? AND id > ? " +
+                "ORDER BY id ASC LIMIT ?", new Object[]{conversationId, afterId, limit}, false);
+    }
+
+    /**
+     * The message {@code centerId} and up to {@code limit} messages on either side of it, in one statement: both
+     * bounds are looked up on the index, then the range between them is read in order.
+     */
+    public MessageList loadAround(long conversationId, long centerId, int limit) {
+        return read("SELECT " + COLUMNS + """
+                 FROM messages_logs
+                WHERE conversation_id = ?1
+                AND id >= COALESCE((SELECT MIN(id) FROM (SELECT id FROM messages_logs
+                    WHERE conversation_id = ?1 AND id < ?2 ORDER BY id DESC LIMIT ?3)), ?2)
+                AND id <= COALESCE((SELECT MAX(id) FROM (SELECT id FROM messages_logs
+                    WHERE conversation_id = ?1 AND id > ?2 ORDER BY id ASC LIMIT ?3)), ?2)
+                ORDER BY id ASC
+                """, new Object[]{conversationId, centerId, limit}, false);
+    }
+
+    private MessageList read(String sql, Object[] args, boolean reversed) {
+        MessageInfo[] messages;
+        MessageId[] ids;
+        List<MessageEntity> legacy = null;
+        try (Cursor c = db.query(sql, args)) {
+            int count = c.getCount();
+            messages = new MessageInfo[count];
+            ids = new MessageId[count];
+            for (int i = 0; i < count && c.moveToNext(); i++) {
+                int pos = reversed ? count - 1 - i : i;
+                long id = c.getLong(COL_ID);
+                String senderText = c.getString(COL_SENDER);
+                MessageSenderInfo sender = (senderText != null
+                        ? new MessageSenderInfo(senderText, null, null, null, null)
+                        : null);
+                byte[] extra = c.isNull(COL_EXTRA) ? null : c.getBlob(COL_EXTRA);
+                String extraJson = c.isNull(COL_EXTRA_JSON) ? null : c.getString(COL_EXTRA_JSON);
+
+                messages[pos] = deserializeMessage(sender, new Date(c.getLong(COL_TIMESTAMP)),
+                        c.getString(COL_TEXT), c.getInt(COL_TYPE), extra, extraJson);
+                ids[pos] = new RoomMessageId(id);
+
+                if (extraJson != null) {
+                    MessageEntity e = new MessageEntity();
+                    e.id = id;
+                    e.extraJson = extraJson;
+                    if (legacy == null)
+                        legacy = new ArrayList<>();
+                    legacy.add(e);
+                }
+            }
+        }
+        if (legacy != null)
+            legacyConverter.accept(legacy);
+        return new MessageList(Arrays.asList(messages), Arrays.asList(ids), null, null);
+    }
+
+}
@@ -0,0 +1,33 @@
+package io.mrarm.irc.storage;
+
+import java.util.UUID;
+
+/**
+ * A full-text search over the chat logs, see {@link MessageStorageRepository#searchMessages}. Every word of
+ * {@link #text} has to appear in the message (the last one as a prefix); the other fields are optional filters,
+ * null matches anything.
+ */
+public class MessageSearchQuery {
+
+    public enum Order {
+        /** Newest first, read straight from the index. */
+        NEWEST,
+        /** Most matched words first, then newest first. Has to score every match. */
+        RELEVANCE
+    }
+
+    public final String text;
+    public UUID serverId;
+    public String channel;
+    public String sender;
+    /** Inclusive, in ms */
+    public Long fromTimestamp;
+    /** Exclusive, in ms */
+    public Long toTimestamp;
+    public Order order = Order.NEWEST;
+
+    public MessageSearchQuery(String text) {
+        this.text = text;
+    }
+
+}
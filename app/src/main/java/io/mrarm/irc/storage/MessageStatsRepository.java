@@ -2,38 +2,55 @@ package io.mrarm.irc.storage;
 
 import android.content.Context;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
 import io.mrarm.irc.storage.db.ChatLogDatabase;
-import io.mrarm.irc.storage.db.MessageDao;
+import io.mrarm.irc.storage.db.StorageStatsTable;
 
+/**
+ * Storage usage, read from the incrementally maintained storage_stats table (see {@link StorageStatsTable}).
+ */
 public class MessageStatsRepository {
 
-    private final MessageDao dao;
+    private final StorageStatsTable stats;
 
     public MessageStatsRepository(Context context) {
-        this.dao = ChatLogDatabase.getInstance(context).messageDao();
+        this.stats = new StorageStatsTable(ChatLogDatabase.getInstance(context));
     }
 
     public long getGlobalUsage() {
-        return dao.getGlobalUsage();
+        return stats.getGlobalUsage();
     }
 
     public long getUsageForServer(UUID serverId) {
-        return dao.getUsageForServer(serverId);
+        return stats.getUsageForServer(serverId);
     }
 
     public long getMessageCountForServer(UUID serverId) {
-        return dao.getMessageCountForServer(serverId);
+        return stats.getMessageCountForServer(serverId);
     }
 
     public List<ServerUsage> getUsageForAllServers() {
-        return dao.getUsageForAllServers();
+        List<ServerUsage> ret = new ArrayList<>();
+        for (StorageStatsTable.ServerStats s : stats.getUsageForAllServers()) {
+            ServerUsage usage = new ServerUsage();
+            usage.serverId = s.serverId;
+            usage.size = s.byteCount;
+            usage.messageCount = s.rowCount;
+            ret.add(usage);
+        }
+        return ret;
+    }
+
+    public List<StorageStatsTable.ChannelStats> getUsageForChannels(UUID serverId) {
+        return stats.getChannelStats(serverId);
     }
 
     public static class ServerUsage {
         public UUID serverId;
         public Long size;
+        public long messageCount;
     }
 }
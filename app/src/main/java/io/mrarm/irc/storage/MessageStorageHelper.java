@@ -1,5 +1,7 @@
 package io.mrarm.irc.storage;
 
+import android.util.Log;
+
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
@@ -34,40 +36,46 @@ public class MessageStorageHelper {
     private static final Gson gson = new Gson();
 
     static MessageInfo deserializeMessage(MessageSenderInfo sender, Date date, String text,
-                                          int typeInt, String extraData) {
-        MessageInfo.MessageType type = MessageInfo.MessageType.NORMAL;
-        for (MessageInfo.MessageType t : MessageInfo.MessageType.values()) {
-            if (t.asInt() == typeInt)
-                type = t;
-        }
-        JsonObject o = gson.fromJson(extraData, JsonObject.class);
+                                          int typeInt, byte[] extra, String extraJson) {
+        MessageInfo.MessageType type = MessageInfo.typeFromInt(typeInt);
+        MessageExtraCodec.Extras extras = null;
+        if (extra != null)
+            extras = MessageExtraCodec.decode(extra);
+        else if (extraJson != null && hasExtraFields(type))
+            extras = parseLegacyExtraData(extraJson);
+        if (extras == null)
+            extras = new MessageExtraCodec.Extras();
+
         // TODO: These should be moved to builders as well?
         if (type == MessageInfo.MessageType.NICK_CHANGE)
-            return new NickChangeMessageInfo(sender, date, o.get(PROP_NICKCHANGE_NEWNICK).getAsString());
+            return new NickChangeMessageInfo(sender, date, extras.newNick);
         if (type == MessageInfo.MessageType.KICK)
-            return new KickMessageInfo(sender, date, o.get(PROP_KICK_TARGET).getAsString(), text);
+            return new KickMessageInfo(sender, date, extras.kickedNick, text);
 
         MessageInfo.Builder builder;
         if (type == MessageInfo.MessageType.MODE) {
-            JsonArray entriesArray = o.get(PROP_CHANNELMODE_ENTRIES).getAsJsonArray();
-            List<ChannelModeMessageInfo.Entry> entries = new ArrayList<>(entriesArray.size());
-            for (JsonElement e : entriesArray)
-                entries.add(gson.fromJson(e.getAsJsonObject(), ChannelModeMessageInfo.Entry.class));
-            builder = new ChannelModeMessageInfo.Builder(sender, entries);
+            builder = new ChannelModeMessageInfo.Builder(sender,
+                    extras.modeEntries != null ? extras.modeEntries : new ArrayList<>());
         } else if (type == MessageInfo.MessageType.TOPIC_WHOTIME) {
             builder = new TopicWhoTimeMessageInfo.Builder(sender,
-                    deserializeSenderInfo(o.get(PROP_TOPICWHOTIME_SET_BY).getAsString(), null),
-                    new Date(o.get(PROP_TOPICWHOTIME_SET_ON).getAsLong() * 1000L));
+                    deserializeSenderInfo(extras.topicSetBy, null),
+                    new Date((extras.topicSetOn != null ? extras.topicSetOn : 0L) * 1000L));
         } else {
             builder = new MessageInfo.Builder(sender, text, type);
         }
         builder.setDate(date);
-//        if (o.has(PROP_BATCH)) {
+//        if (extras.batch != null) {
 //            // TODO: find the batch
 //        }
         return builder.build();
     }
 
+    // Types which need their extra fields to be rebuilt; the batch id is not used when reading yet
+    private static boolean hasExtraFields(MessageInfo.MessageType type) {
+        return type == MessageInfo.MessageType.NICK_CHANGE || type == MessageInfo.MessageType.KICK ||
+                type == MessageInfo.MessageType.MODE || type == MessageInfo.MessageType.TOPIC_WHOTIME;
+    }
+
     static String serializeSenderInfo(MessageSenderInfo sender) {
         return (sender.getNickPrefixes() == null ? "" :
                 sender.getNickPrefixes().toString()) + " " + sender.getNick() +
@@ -95,30 +103,72 @@ public class MessageStorageHelper {
         return new MessageSenderInfo(nick, user, host, prefixes.length() > 0 ? new NickPrefixList(prefixes) : null, uuid);
     }
 
-    public static String serializeExtraData(MessageInfo info) {
-        JsonObject object = new JsonObject();
+    /**
+     * Returns the extra fields of the message in the {@link MessageExtraCodec} format, or null if it has none.
+     */
+    public static byte[] serializeExtraData(MessageInfo info) {
+        MessageExtraCodec.Extras extras = new MessageExtraCodec.Extras();
         if (info.getBatch() != null)
-            object.addProperty(PROP_BATCH, info.getBatch().getUUID().toString());
+            extras.batch = info.getBatch().getUUID();
         if (info instanceof NickChangeMessageInfo) {
             NickChangeMessageInfo nickChangeMessage = ((NickChangeMessageInfo) info);
-            object.addProperty(PROP_NICKCHANGE_NEWNICK, nickChangeMessage.getNewNick());
+            extras.newNick = nickChangeMessage.getNewNick();
         }
         if (info instanceof ChannelModeMessageInfo) {
             ChannelModeMessageInfo modeMessage = ((ChannelModeMessageInfo) info);
-            object.add(PROP_CHANNELMODE_ENTRIES, gson.toJsonTree(modeMessage.getEntries()));
+            extras.modeEntries = modeMessage.getEntries();
         }
         if (info instanceof KickMessageInfo) {
             KickMessageInfo kickMessage = ((KickMessageInfo) info);
-            object.addProperty(PROP_KICK_TARGET, kickMessage.getKickedNick());
+            extras.kickedNick = kickMessage.getKickedNick();
         }
         if (info instanceof TopicWhoTimeMessageInfo) {
             TopicWhoTimeMessageInfo topicMessage = ((TopicWhoTimeMessageInfo) info);
-            object.addProperty(PROP_TOPICWHOTIME_SET_BY,
-                    serializeSenderInfo(topicMessage.getSetBy()));
-            object.addProperty(PROP_TOPICWHOTIME_SET_ON,
-                    topicMessage.getSetOnDate().getTime() / 1000L);
+            extras.topicSetBy = serializeSenderInfo(topicMessage.getSetBy());
+            extras.topicSetOn = topicMessage.getSetOnDate().getTime() / 1000L;
+        }
+        return MessageExtraCodec.encode(extras);
+    }
+
+    /**
+     * Reads the Gson JSON extra_json of rows written before {@link MessageExtraCodec}.
+     */
+    static MessageExtraCodec.Extras parseLegacyExtraData(String extraJson) {
+        MessageExtraCodec.Extras extras = new MessageExtraCodec.Extras();
+        JsonObject o = gson.fromJson(extraJson, JsonObject.class);
+        if (o == null)
+            return extras;
+        if (o.has(PROP_BATCH))
+            extras.batch = UUID.fromString(o.get(PROP_BATCH).getAsString());
+        if (o.has(PROP_NICKCHANGE_NEWNICK))
+            extras.newNick = o.get(PROP_NICKCHANGE_NEWNICK).getAsString();
+        if (o.has(PROP_KICK_TARGET))
+            extras.kickedNick = o.get(PROP_KICK_TARGET).getAsString();
+        if (o.has(PROP_CHANNELMODE_ENTRIES)) {
+            JsonArray entriesArray = o.get(PROP_CHANNELMODE_ENTRIES).getAsJsonArray();
+            List<ChannelModeMessageInfo.Entry> entries = new ArrayList<>(entriesArray.size());
+            for (JsonElement e : entriesArray)
+                entries.add(gson.fromJson(e.getAsJsonObject(), ChannelModeMessageInfo.Entry.class));
+            extras.modeEntries = entries;
+        }
+        if (o.has(PROP_TOPICWHOTIME_SET_BY))
+            extras.topicSetBy = o.get(PROP_TOPICWHOTIME_SET_BY).getAsString();
+        if (o.has(PROP_TOPICWHOTIME_SET_ON))
+            extras.topicSetOn = o.get(PROP_TOPICWHOTIME_SET_ON).getAsLong();
+        return extras;
+    }
+
+    /**
+     * Converts a legacy extra_json value to the binary format (null if it held nothing).
+     */
+    static byte[] convertLegacyExtraData(String extraJson) {
+        try {
+            return MessageExtraCodec.encode(parseLegacyExtraData(extraJson));
+        } catch (RuntimeException e) {
+            // Unreadable either way, don't keep retrying it
+            Log.w("MessageStorageHelper", "Dropping malformed extra_json: " + extraJson, e);
+            return null;
         }
-        return gson.toJson(object);
     }
 
 
@@ -1,10 +1,8 @@
 package io.mrarm.irc.storage;
 
-import static io.mrarm.irc.storage.MessageStorageHelper.deserializeMessage;
-
 import android.content.Context;
+import android.os.BatteryManager;
 import android.util.Log;
-import android.util.Pair;
 
 import androidx.sqlite.db.SupportSQLiteDatabase;
 
@@ -12,24 +10,22 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.Date;
 import java.util.List;
 import java.util.UUID;
 import java.util.function.Consumer;
 
-import io.mrarm.irc.chatlib.dto.MessageId;
 import io.mrarm.irc.chatlib.dto.MessageInfo;
 import io.mrarm.irc.chatlib.dto.MessageList;
-import io.mrarm.irc.chatlib.dto.MessageSenderInfo;
-import io.mrarm.irc.chatlib.dto.RoomMessageId;
 import io.mrarm.irc.config.AppSettings;
 import io.mrarm.irc.infrastructure.threading.AppAsyncExecutor;
 import io.mrarm.irc.storage.db.ChatLogDatabase;
+import io.mrarm.irc.storage.db.ConversationDao;
 import io.mrarm.irc.storage.db.ConversationStateDao;
 import io.mrarm.irc.storage.db.IdSizePair;
 import io.mrarm.irc.storage.db.MessageDao;
 import io.mrarm.irc.storage.db.MessageEntity;
+import io.mrarm.irc.storage.db.MessageSearchTable;
+import io.mrarm.irc.storage.db.StorageStatsTable;
 
 public class MessageStorageRepository {
     private static volatile MessageStorageRepository INSTANCE;
@@ -37,11 +33,22 @@ public class MessageStorageRepository {
     private final ChatLogDatabase db;
     private final MessageDao dao;
     private final ConversationStateDao conversationStateDao;
+    private final ConversationDao conversationDao;
+    private final ConversationIdCache conversationIds;
+    private final MessageBatchWriter batchWriter;
+    private final ConversationStateRepository conversationStateRepository;
+    private final StorageStatsTable storageStats;
+    private final StorageCompactor compactor;
+    private final SearchIndexBackfill searchBackfill;
+    private final MessageHistoryReader history;
+    private final HistoryPrefetcher prefetcher = new HistoryPrefetcher();
+    private final RecentMessageCache recentMessages = new RecentMessageCache();
     private final Context context;
     private static final int AUTO_CLEANUP_CHECK_EVERY = 500;
     private static final double AUTO_CLEANUP_HYSTERESIS = 1.10; // 10%
 
     private int insertCounter = 0;
+    private volatile long lastWriteTime = 0;
 
     // Global monitor lock for all maintenance & write operations
     private final Object maintenanceLock = new Object();
@@ -51,6 +58,20 @@ public class MessageStorageRepository {
         db = ChatLogDatabase.getInstance(ctx);
         dao = db.messageDao();
         conversationStateDao = db.conversationStateDao();
+        conversationDao = db.conversationDao();
+        conversationIds = new ConversationIdCache(conversationDao);
+        batchWriter = new MessageBatchWriter(this);
+        conversationStateRepository = ConversationStateRepository.getInstance(ctx);
+        storageStats = new StorageStatsTable(db);
+        BatteryManager batteryManager = ctx.getSystemService(BatteryManager.class);
+        compactor = new StorageCompactor(db, maintenanceLock, () -> lastWriteTime,
+                () -> batteryManager != null && batteryManager.isCharging());
+        // Reclaims whatever was left over from the last run (and converts databases created without incremental
+        // vacuum) once idle
+        compactor.requestCompaction();
+        searchBackfill = new SearchIndexBackfill(new MessageSearchTable(db), maintenanceLock);
+        searchBackfill.start();
+        history = new MessageHistoryReader(db, this::convertLegacyExtrasAsync);
     }
 
     public static MessageStorageRepository getInstance(Context context) {
@@ -66,94 +87,222 @@ public class MessageStorageRepository {
 
     public long insertMessage(MessageEntity msg) {
         synchronized (maintenanceLock) {
-            long id = dao.insert(msg);
+            assignConversation(msg);
+            long id = insertMessageUnlocked(msg);
+            onMessagesInserted(1);
+            return id;
+        }
+    }
 
-            if (id == -1 && msg.dedupeKey != null) {
-                long existing = dao.findIdByDedupeKey(msg.dedupeKey);
-                Log.d("[MessageStorageRepository]", "Playback dedupe hit, reusing id=" + existing);
-                id = existing;
-            }
+    /**
+     * Inserts all the messages in a single transaction and returns their ids, in the same order.
+     */
+    public long[] insertMessages(List<MessageEntity> msgs) {
+        long[] ids = new long[msgs.size()];
+        synchronized (maintenanceLock) {
+            // Outside of the transaction, see ConversationIdCache.getOrCreate()
+            for (MessageEntity msg : msgs)
+                assignConversation(msg);
+            db.runInTransaction(() -> {
+                for (int i = 0; i < ids.length; i++)
+                    ids[i] = insertMessageUnlocked(msgs.get(i));
+            });
+            onMessagesInserted(ids.length);
+        }
+        return ids;
+    }
 
-            if (++insertCounter >= AUTO_CLEANUP_CHECK_EVERY) {
-                insertCounter = 0;
-                considerAutoCleanup();
-            }
-            return id;
+    public MessageBatchWriter getBatchWriter() {
+        return batchWriter;
+    }
+
+    public StorageCompactor getCompactor() {
+        return compactor;
+    }
+
+    // Must be called with maintenanceLock held, so that the conversation can't be deleted before the insert
+    private void assignConversation(MessageEntity msg) {
+        msg.conversationId = conversationIds.getOrCreate(msg.serverId, msg.channel, msg.kind);
+    }
+
+    private long insertMessageUnlocked(MessageEntity msg) {
+        long id = dao.insert(msg);
+
+        if (id == -1 && msg.dedupeKey != null) {
+            long existing = dao.findIdByDedupeKey(msg.dedupeKey);
+            Log.d("[MessageStorageRepository]", "Playback dedupe hit, reusing id=" + existing);
+            id = existing;
+        }
+        return id;
+    }
+
+    private void onMessagesInserted(int count) {
+        prefetcher.onMessagesInserted();
+        lastWriteTime = System.currentTimeMillis();
+        compactor.requestCheckpoint();
+        insertCounter += count;
+        if (insertCounter >= AUTO_CLEANUP_CHECK_EVERY) {
+            insertCounter = 0;
+            considerAutoCleanup();
         }
     }
 
     // Async variants
     public void loadOlderAsync(UUID serverId, String channel, long beforeId, int limit,
-                               Consumer<List<MessageEntity>> callback) {
-        AppAsyncExecutor.io(() -> dao.loadBefore(serverId, channel, beforeId, limit),
-                callback);
+                               Consumer<MessageList> uiCallback) {
+        if (prefetcher.take(serverId, channel, HistoryPrefetcher.Direction.OLDER, beforeId, limit, uiCallback))
+            return;
+        AppAsyncExecutor.io(() -> loadOlder(serverId, channel, beforeId, limit), uiCallback);
     }
 
     public void loadNewerAsync(UUID serverId, String channel, long afterId, int limit,
-                               Consumer<List<MessageEntity>> callback) {
-        AppAsyncExecutor.io(() -> dao.loadAfter(serverId, channel, afterId, limit),
-                callback);
+                               Consumer<MessageList> uiCallback) {
+        if (prefetcher.take(serverId, channel, HistoryPrefetcher.Direction.NEWER, afterId, limit, uiCallback))
+            return;
+        AppAsyncExecutor.io(() -> loadNewer(serverId, channel, afterId, limit), uiCallback);
     }
 
-    public void loadRecentAsync(UUID serverId, String channel, int limit,
-                                Consumer<MessageList> uiCallback) {
-        AppAsyncExecutor.io(() -> toMessageListFromRoom(dao.loadRecent(serverId, channel, limit)),
-                uiCallback
-        );
+    /**
+     * Starts loading the page before {@code beforeId} in the background, so that a following
+     * {@link #loadOlderAsync} with the same arguments is served from memory. Called by the chat view as it scrolls
+     * towards the oldest loaded message.
+     */
+    public void prefetchOlder(UUID serverId, String channel, long beforeId, int limit) {
+        prefetcher.prefetch(serverId, channel, HistoryPrefetcher.Direction.OLDER, beforeId, limit,
+                () -> loadOlder(serverId, channel, beforeId, limit));
     }
 
-    public void loadNearAsync(UUID serverId, String channel, long centerId, int limit,
-                              Consumer<List<MessageEntity>> callback) {
+    /**
+     * Same as {@link #prefetchOlder}, for {@link #loadNewerAsync}.
+     */
+    public void prefetchNewer(UUID serverId, String channel, long afterId, int limit) {
+        prefetcher.prefetch(serverId, channel, HistoryPrefetcher.Direction.NEWER, afterId, limit,
+                () -> loadNewer(serverId, channel, afterId, limit));
+    }
 
-        AppAsyncExecutor.io(() -> {
-            // older → chronological descending, so reverse later
-            List<MessageEntity> older = dao.loadBefore(serverId, channel, centerId, limit);
+    private MessageList loadOlder(UUID serverId, String channel, long beforeId, int limit) {
+        Long conversationId = conversationIds.find(serverId, channel);
+        if (conversationId == null)
+            return emptyMessageList();
+        return history.loadBefore(conversationId, beforeId, limit);
+    }
 
-            // newer → chronological ascending
-            List<MessageEntity> newer = dao.loadAfter(serverId, channel, centerId, limit);
+    private MessageList loadNewer(UUID serverId, String channel, long afterId, int limit) {
+        Long conversationId = conversationIds.find(serverId, channel);
+        if (conversationId == null)
+            return emptyMessageList();
+        return history.loadAfter(conversationId, afterId, limit);
+    }
 
-            List<MessageEntity> combined = new ArrayList<>(older.size() + newer.size());
+    /**
+     * Loads the newest {@code limit} messages. Up to {@link RecentMessageCache#CAPACITY} messages are served from
+     * memory once the conversation was opened (or prefetched, see {@link #prefetchRecent}) before; the callback is
+     * invoked right away then if this is called on the UI thread.
+     */
+    public void loadRecentAsync(UUID serverId, String channel, int limit,
+                                Consumer<MessageList> uiCallback) {
+        if (limit <= RecentMessageCache.CAPACITY) {
+            recentMessages.get(serverId, channel, limit,
+                    () -> loadRecent(serverId, channel, RecentMessageCache.CAPACITY), uiCallback);
+            return;
+        }
+        AppAsyncExecutor.io(() -> loadRecent(serverId, channel, limit), uiCallback);
+    }
 
-            // Put older first (correct chronological order)
-            older.sort(Comparator.comparingLong(a -> a.id));
-            combined.addAll(older);
+    /**
+     * Starts reading the newest messages of the conversation into memory in the background, so that opening it is
+     * served by {@link #loadRecentAsync} without a query. Called for the channels the user is likely to switch to
+     * when the drawer is opened.
+     */
+    public void prefetchRecent(UUID serverId, String channel) {
+        recentMessages.get(serverId, channel, RecentMessageCache.CAPACITY,
+                () -> loadRecent(serverId, channel, RecentMessageCache.CAPACITY), null);
+    }
 
-            // Add the center message itself
-            MessageEntity center = dao.findById(centerId);
-            if (center != null)
-                combined.add(center);
+    /**
+     * Called by the message pipeline once a message is persisted, with the id it was stored under, in id order.
+     */
+    public void onMessagePersisted(UUID serverId, String channel, MessageInfo message, long id) {
+        recentMessages.add(serverId, channel, message, id);
+    }
 
-            // Add newer
-            combined.addAll(newer);
+    private MessageList loadRecent(UUID serverId, String channel, int limit) {
+        Long conversationId = conversationIds.find(serverId, channel);
+        if (conversationId == null)
+            return emptyMessageList();
+        return history.loadRecent(conversationId, limit);
+    }
 
-            return combined;
+    /**
+     * Loads the message {@code centerId} with up to {@code limit} messages on each side of it.
+     */
+    public void loadNearAsync(UUID serverId, String channel, long centerId, int limit,
+                              Consumer<MessageList> uiCallback) {
+        AppAsyncExecutor.io(() -> {
+            Long conversationId = conversationIds.find(serverId, channel);
+            if (conversationId == null)
+                return emptyMessageList();
+            return history.loadAround(conversationId, centerId, limit);
+        }, uiCallback);
+    }
 
-        }, callback);
+    private static MessageList emptyMessageList() {
+        return new MessageList(new ArrayList<>(), new ArrayList<>(), null, null);
     }
 
-    public MessageList toMessageListFromRoom(List<MessageEntity> entities) {
-        List<Pair<MessageInfo, MessageId>> pairs = new ArrayList<>(entities.size());
+    /**
+     * Full-text search over the stored messages, see {@link MessageSearchQuery}. Returns at most {@code limit}
+     * results, skipping the first {@code offset}. Until the search index backfill is done
+     * ({@link #isSearchIndexComplete()}) older messages may be missing from the results.
+     */
+    public List<MessageEntity> searchMessages(MessageSearchQuery query, int offset, int limit) {
+        String match = MessageSearchTable.toMatchExpression(query.text);
+        if (match == null)
+            return new ArrayList<>();
+        return resolve(dao.search(MessageSearchTable.buildQuery(match, query.serverId, query.channel,
+                query.sender, query.fromTimestamp, query.toTimestamp,
+                query.order == MessageSearchQuery.Order.RELEVANCE, offset, limit)));
+    }
 
-        for (MessageEntity e : entities) {
-            MessageSenderInfo sender = (e.sender != null
-                    ? new MessageSenderInfo(e.sender, null, null, null, null)
-                    : null);
+    public void searchMessagesAsync(MessageSearchQuery query, int offset, int limit,
+                                    Consumer<List<MessageEntity>> callback) {
+        AppAsyncExecutor.io(() -> searchMessages(query, offset, limit), callback);
+    }
 
-            MessageInfo info = deserializeMessage(sender, new Date(e.timestamp), e.text, e.type, e.extraJson);
-            MessageId id = new RoomMessageId(e.id);
-            pairs.add(new Pair<>(info, id));
-        }
+    /**
+     * Loads the conversation around a search result, for jumping to it.
+     */
+    public void loadSearchResultAsync(MessageEntity result, int limit, Consumer<MessageList> callback) {
+        loadNearAsync(result.serverId, result.channel, result.id, limit, callback);
+    }
 
-        pairs.sort(Comparator.comparing(p -> p.first.getDate()));
+    // Fills in serverId and channel, which are not stored in the rows
+    private List<MessageEntity> resolve(List<MessageEntity> messages) {
+        conversationIds.resolve(messages);
+        return messages;
+    }
 
-        List<MessageInfo> infos = new ArrayList<>(pairs.size());
-        List<MessageId> ids = new ArrayList<>(pairs.size());
-        for (Pair<MessageInfo, MessageId> p : pairs) {
-            infos.add(p.first);
-            ids.add(p.second);
-        }
+    public boolean isSearchIndexComplete() {
+        return searchBackfill.isDone();
+    }
 
-        return new MessageList(infos, ids, null, null);
+    /**
+     * Rewrites the extra_json of rows written before the binary extra format, so old history is converted as it is
+     * read. The row size estimate is left as it was, it only differs by a few bytes.
+     */
+    private void convertLegacyExtrasAsync(List<MessageEntity> legacy) {
+        AppAsyncExecutor.io(() -> {
+            try {
+                synchronized (maintenanceLock) {
+                    db.runInTransaction(() -> {
+                        for (MessageEntity e : legacy)
+                            dao.convertLegacyExtra(e.id, MessageStorageHelper.convertLegacyExtraData(e.extraJson));
+                    });
+                }
+            } catch (Exception e) {
+                Log.e("[MessageStorageRepository]", "Failed to convert " + legacy.size() + " legacy rows", e);
+            }
+        });
     }
 
     public void deleteMessages(List<Long> ids) {
@@ -166,51 +315,75 @@ public class MessageStorageRepository {
                 dao.deleteByIds(ids);
             });
         }
+        conversationStateRepository.onMessagesDeleted(null);
 
-        compactUnlocked();
+        prefetcher.invalidate();
+        recentMessages.invalidate();
+        compactor.requestCompaction();
     }
 
 
     public void deleteLogsForServer(UUID serverId) {
+        conversationStateRepository.forgetServer(serverId);
         synchronized (maintenanceLock) {
             db.runInTransaction(() -> dao.replaceDataByServer(serverId));
 
             db.runInTransaction(() -> {
                 dao.deleteByServer(serverId);
                 conversationStateDao.deleteByServer(serverId);
+                conversationDao.deleteByServer(serverId);
             });
+            conversationIds.forgetServer(serverId);
         }
-        compactUnlocked();
+        prefetcher.invalidate();
+        recentMessages.invalidate();
+        compactor.requestCompaction();
     }
 
     public void deleteAllLogs() {
+        conversationStateRepository.forgetServer(null);
         synchronized (maintenanceLock) {
             db.runInTransaction(dao::replaceAll);
 
             db.runInTransaction(() -> {
                 dao.deleteAll();
                 conversationStateDao.clear();
+                conversationDao.deleteAll();
             });
+            conversationIds.forgetServer(null);
         }
-        compactUnlocked();
+        prefetcher.invalidate();
+        recentMessages.invalidate();
+        compactor.requestCompaction();
     }
 
-    private void compactUnlocked() {
-        SupportSQLiteDatabase raw = db.getOpenHelper().getWritableDatabase();
-
-        try {
-            raw.execSQL("PRAGMA wal_checkpoint(TRUNCATE);");
-            raw.close();
-        } catch (Exception ignored) {
-        }
+    /**
+     * Rewrites the whole database file and zero-fills the WAL and shared memory files, so that the contents of deleted
+     * messages can no longer be recovered from free pages or old WAL frames. Unlike the background compaction this
+     * blocks all writes for as long as the VACUUM takes, so it is only run when the user explicitly deletes logs
+     * (see {@link io.mrarm.irc.job.RemoveDataTask}). Blocks, must not be called on the main thread.
+     */
+    public void secureWipe() {
+        synchronized (maintenanceLock) {
+            SupportSQLiteDatabase raw = db.getOpenHelper().getWritableDatabase();
+            long start = System.currentTimeMillis();
+            try {
+                StorageCompactor.drain(raw, "PRAGMA wal_checkpoint(TRUNCATE)");
+                // Deleted messages stay in the search index segments until they are merged
+                MessageSearchTable.optimize(raw);
+                // Databases too large for the background conversion are converted by this rebuild
+                StorageCompactor.setIncrementalVacuum(raw);
+                raw.execSQL("VACUUM");
+                // VACUUM writes the new copy of the database through the WAL
+                StorageCompactor.drain(raw, "PRAGMA wal_checkpoint(TRUNCATE)");
+            } catch (Exception e) {
+                Log.e("[MessageStorageRepository]", "Secure wipe failed", e);
+            }
 
-        try {
-            raw.execSQL("VACUUM;");
-        } catch (Exception ignored) {
+            wipeFile(new File(context.getDatabasePath("chatlogs.db") + "-wal"), true);
+            wipeFile(new File(context.getDatabasePath("chatlogs.db") + "-shm"), false);
+            Log.d("[MessageStorageRepository]", "Secure wipe took " + (System.currentTimeMillis() - start) + "ms");
         }
-
-        wipeFile(new File(context.getDatabasePath("chatlogs.db") + "-wal"), true);
-        wipeFile(new File(context.getDatabasePath("chatlogs.db") + "-shm"), false);
     }
 
 
@@ -239,8 +412,7 @@ public class MessageStorageRepository {
         long globalLimit = AppSettings.getStorageLimitGlobal();
         if (globalLimit < 0) return;
 
-        Long usageObj = dao.getGlobalUsage();
-        long usage = usageObj != null ? usageObj : 0L;
+        long usage = storageStats.getGlobalUsage();
 
         if (usage > (long) (globalLimit * AUTO_CLEANUP_HYSTERESIS)) {
             enforceGlobalLimit(globalLimit);
@@ -265,9 +437,8 @@ public class MessageStorageRepository {
         }
 
         synchronized (maintenanceLock) {
-            Long usageObj = dao.getGlobalUsage();
-            Log.d("Enforce Global cleaning hit: ", String.valueOf(dao.getGlobalUsage()));
-            long usage = usageObj != null ? usageObj : 0L;
+            long usage = storageStats.getGlobalUsage();
+            Log.d("Enforce Global cleaning hit: ", String.valueOf(usage));
 
             if (usage <= globalLimitBytes) {
                 return new CleanupResult(0, 0);
@@ -294,6 +465,12 @@ public class MessageStorageRepository {
                 if (deleted == 0) break; // safety
             }
 
+            if (rowsDeleted > 0) {
+                conversationStateRepository.onMessagesDeleted(null);
+                prefetcher.invalidate();
+                recentMessages.invalidate();
+                compactor.requestCompaction();
+            }
             return new CleanupResult(rowsDeleted, freed);
         }
     }
@@ -305,8 +482,7 @@ public class MessageStorageRepository {
 
 
         synchronized (maintenanceLock) {
-            Long usageObj = dao.getUsageForServer(serverId);
-            long usage = usageObj != null ? usageObj : 0L;
+            long usage = storageStats.getUsageForServer(serverId);
             Log.d("Enforce Server cleaning hit: ", String.valueOf(usage));
 
             if (usage <= serverLimitBytes) {
@@ -336,6 +512,12 @@ public class MessageStorageRepository {
                 if (deleted == 0) break; // safety
             }
 
+            if (rowsDeleted > 0) {
+                conversationStateRepository.onMessagesDeleted(serverId);
+                prefetcher.invalidate();
+                recentMessages.invalidate();
+                compactor.requestCompaction();
+            }
             return new CleanupResult(rowsDeleted, freed);
         }
     }
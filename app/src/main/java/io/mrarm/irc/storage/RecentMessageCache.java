@@ -0,0 +1,241 @@
+package io.mrarm.irc.storage;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import io.mrarm.irc.chatlib.dto.MessageId;
+import io.mrarm.irc.chatlib.dto.MessageInfo;
+import io.mrarm.irc.chatlib.dto.MessageList;
+import io.mrarm.irc.chatlib.dto.RoomMessageId;
+import io.mrarm.irc.infrastructure.threading.AppAsyncExecutor;
+
+/**
+ * The newest {@link #CAPACITY} messages of the recently opened conversations, kept in a ring buffer per conversation,
+ * so that opening a channel again (or one prefetched when the drawer was opened) is served from memory instead of a
+ * query.
+ * <p>
+ * A conversation's tail is read from the database once; from then on the pipeline adds messages as they are
+ * persisted ({@link #add}), in id order, and the oldest ones fall out of the buffer. Messages persisted while the
+ * tail is still being read are kept aside and merged in once it is, skipping the ones the query already returned.
+ * Only the last {@link #MAX_CONVERSATIONS} conversations are kept; everything is dropped when messages are deleted.
+ */
+public class RecentMessageCache {
+
+    private static final String TAG = "RecentMessageCache";
+
+    public static final int CAPACITY = 100;
+    public static final int MAX_CONVERSATIONS = 16;
+
+    private final Map<Key, Tail> tails = new LinkedHashMap<Key, Tail>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Tail> eldest) {
+            return size() > MAX_CONVERSATIONS;
+        }
+    }; // guarded by itself
+
+    /**
+     * Hands the newest {@code limit} (at most {@link #CAPACITY}) messages of the conversation to the callback, on the
+     * UI thread. They are delivered right away if the tail is cached; otherwise the callback waits for it to be read,
+     * starting the read with {@code loader} (which must return the newest {@link #CAPACITY} messages) if it is not
+     * running yet. A null callback only prefetches the tail. The callback is never passed null: if the read fails, the
+     * waiting callbacks get the result of reading again with the loader of the failed read, or an empty list if that
+     * fails as well.
+     */
+    public void get(UUID serverId, String channel, int limit, Supplier<MessageList> loader,
+                    Consumer<MessageList> uiCallback) {
+        Key key = new Key(serverId, channel);
+        Tail tail;
+        MessageList result;
+        synchronized (tails) {
+            tail = tails.get(key);
+            if (tail != null && tail.loading) {
+                if (uiCallback != null)
+                    tail.waiters.add(new Waiter(limit, uiCallback));
+                return;
+            }
+            if (tail == null) {
+                tail = new Tail();
+                if (uiCallback != null)
+                    tail.waiters.add(new Waiter(limit, uiCallback));
+                tails.put(key, tail);
+                result = null;
+            } else {
+                result = tail.snapshot(limit);
+            }
+        }
+        if (result != null) {
+            if (uiCallback != null)
+                AppAsyncExecutor.ui(() -> uiCallback.accept(result));
+            return;
+        }
+        Tail loadingTail = tail;
+        AppAsyncExecutor.io(() -> complete(key, loadingTail, loader, load(loader)));
+    }
+
+    /**
+     * Called by the pipeline once a message is persisted, in the order of the ids. Ignored unless the conversation's
+     * tail is cached or being read.
+     */
+    public void add(UUID serverId, String channel, MessageInfo message, long id) {
+        Key key = new Key(serverId, channel);
+        synchronized (tails) {
+            Tail tail = tails.get(key);
+            if (tail == null)
+                return;
+            if (tail.loading) {
+                tail.pendingMessages.add(message);
+                tail.pendingIds.add(id);
+            } else {
+                tail.add(message, id);
+            }
+        }
+    }
+
+    public void invalidate() {
+        synchronized (tails) {
+            tails.clear();
+        }
+    }
+
+    private static MessageList load(Supplier<MessageList> loader) {
+        try {
+            return loader.get();
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to load recent messages", e);
+            return null;
+        }
+    }
+
+    private void complete(Key key, Tail tail, Supplier<MessageList> loader, MessageList loaded) {
+        List<Waiter> waiters;
+        List<MessageList> results = new ArrayList<>();
+        synchronized (tails) {
+            tail.loading = false;
+            if (loaded != null) {
+                List<MessageInfo> messages = loaded.getMessages();
+                List<MessageId> ids = loaded.getMessageIds();
+                for (int i = Math.max(0, messages.size() - CAPACITY); i < messages.size(); i++)
+                    tail.add(messages.get(i), ((RoomMessageId) ids.get(i)).getId());
+                for (int i = 0; i < tail.pendingMessages.size(); i++)
+                    tail.add(tail.pendingMessages.get(i), tail.pendingIds.get(i));
+            }
+            tail.pendingMessages = null;
+            tail.pendingIds = null;
+            // A failed read is not cached. If the tail was dropped while it was being read (messages were deleted, or
+            // it was evicted), the result is still as good as a direct query for the waiters, it just isn't kept.
+            if (loaded == null && tails.get(key) == tail)
+                tails.remove(key);
+            waiters = tail.waiters;
+            tail.waiters = null;
+            if (loaded != null) {
+                for (Waiter w : waiters)
+                    results.add(tail.snapshot(w.limit));
+            }
+        }
+        if (waiters.isEmpty())
+            return;
+        if (loaded == null) {
+            // The failed read may have been a prefetch started before anyone waited for it; read once more for the
+            // waiters, without caching the result
+            MessageList retried = load(loader);
+            for (Waiter w : waiters)
+                results.add(newest(retried, w.limit));
+        }
+        AppAsyncExecutor.ui(() -> {
+            for (int i = 0; i < waiters.size(); i++)
+                waiters.get(i).callback.accept(results.get(i));
+        });
+    }
+
+    // The last limit messages of the list, or an empty list if it is null
+    private static MessageList newest(MessageList list, int limit) {
+        if (list == null)
+            return new MessageList(new ArrayList<>(), new ArrayList<>(), null, null);
+        List<MessageInfo> messages = list.getMessages();
+        List<MessageId> ids = list.getMessageIds();
+        int from = Math.max(0, messages.size() - limit);
+        return new MessageList(new ArrayList<>(messages.subList(from, messages.size())),
+                new ArrayList<>(ids.subList(from, ids.size())), null, null);
+    }
+
+    private static class Tail {
+        final MessageInfo[] messages = new MessageInfo[CAPACITY];
+        final long[] ids = new long[CAPACITY];
+        int start;
+        int size;
+
+        boolean loading = true;
+        List<MessageInfo> pendingMessages = new ArrayList<>();
+        List<Long> pendingIds = new ArrayList<>();
+        List<Waiter> waiters = new ArrayList<>();
+
+        void add(MessageInfo message, long id) {
+            // Already read from the database, or a playback dedupe hit
+            if (size > 0 && id <= ids[(start + size - 1) % CAPACITY])
+                return;
+            if (size < CAPACITY) {
+                int i = (start + size++) % CAPACITY;
+                messages[i] = message;
+                ids[i] = id;
+            } else {
+                messages[start] = message;
+                ids[start] = id;
+                start = (start + 1) % CAPACITY;
+            }
+        }
+
+        MessageList snapshot(int limit) {
+            int n = Math.min(limit, size);
+            List<MessageInfo> retMessages = new ArrayList<>(n);
+            List<MessageId> retIds = new ArrayList<>(n);
+            for (int j = size - n; j < size; j++) {
+                int i = (start + j) % CAPACITY;
+                retMessages.add(messages[i]);
+                retIds.add(new RoomMessageId(ids[i]));
+            }
+            return new MessageList(retMessages, retIds, null, null);
+        }
+    }
+
+    private static class Waiter {
+        final int limit;
+        final Consumer<MessageList> callback;
+
+        Waiter(int limit, Consumer<MessageList> callback) {
+            this.limit = limit;
+            this.callback = callback;
+        }
+    }
+
+    private static final class Key {
+        final UUID serverId;
+        final String channel;
+
+        Key(UUID serverId, String channel) {
+            this.serverId = serverId;
+            this.channel = channel;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return serverId.equals(key.serverId) && channel.equals(key.channel);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(serverId, channel);
+        }
+    }
+
+}
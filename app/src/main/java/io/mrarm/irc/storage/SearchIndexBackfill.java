@@ -0,0 +1,97 @@
+package io.mrarm.irc.storage;
+
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import io.mrarm.irc.storage.db.MessageSearchTable;
+
+/**
+ * Indexes the messages which were stored before the search index existed, newest first, so that recent history
+ * becomes searchable first. Works in chunks of {@link #CHUNK_SIZE} rows, each in its own transaction under the
+ * maintenance lock, with a {@link #CHUNK_DELAY_MS} pause in between so live inserts are not held up for long.
+ * New messages are indexed by triggers and never need this.
+ */
+public class SearchIndexBackfill {
+
+    private static final String TAG = "SearchIndexBackfill";
+
+    public static final int CHUNK_SIZE = 1000;
+    public static final long CHUNK_DELAY_MS = 50;
+    public static final long RETRY_DELAY_MS = 30000;
+
+    private final MessageSearchTable searchTable;
+    private final Object maintenanceLock;
+
+    private final Object lock = new Object();
+    private boolean started = false; // guarded by lock
+    private volatile boolean done = false;
+    private long indexedRows; // guarded by lock
+    private long startTime; // guarded by lock
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "SearchIndexBackfill");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    SearchIndexBackfill(MessageSearchTable searchTable, Object maintenanceLock) {
+        this.searchTable = searchTable;
+        this.maintenanceLock = maintenanceLock;
+    }
+
+    /**
+     * Starts the backfill in the background, if it is not done or running already.
+     */
+    public void start() {
+        synchronized (lock) {
+            if (started || done)
+                return;
+            started = true;
+            startTime = System.currentTimeMillis();
+        }
+        executor.execute(this::runChunk);
+    }
+
+    /**
+     * Whether all the stored messages are indexed, i.e. search results are complete.
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    public long getIndexedRows() {
+        synchronized (lock) {
+            return indexedRows;
+        }
+    }
+
+    private void runChunk() {
+        int count;
+        try {
+            synchronized (maintenanceLock) {
+                count = searchTable.backfill(CHUNK_SIZE);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Backfill failed, retrying later", e);
+            executor.schedule(this::runChunk, RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+            return;
+        }
+        if (count == 0) {
+            done = true;
+            synchronized (lock) {
+                Log.i(TAG, "Indexed " + indexedRows + " messages in " +
+                        (System.currentTimeMillis() - startTime) + "ms");
+            }
+            return;
+        }
+        synchronized (lock) {
+            indexedRows += count;
+        }
+        executor.schedule(this::runChunk, CHUNK_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+}
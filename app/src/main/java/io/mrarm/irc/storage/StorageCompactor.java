@@ -0,0 +1,263 @@
+package io.mrarm.irc.storage;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+import io.mrarm.irc.storage.db.ChatLogDatabase;
+
+/**
+ * Background compaction of chatlogs.db.
+ * <p>
+ * The database uses {@code auto_vacuum=INCREMENTAL}, so pages freed by deletes stay on the freelist until they are
+ * reclaimed here with {@code PRAGMA incremental_vacuum(N)}, {@link #PAGES_PER_STEP} pages at a time, for at most
+ * {@link #RUN_BUDGET_MS} per run and with runs {@link #RUN_INTERVAL_MS} apart. The maintenance lock is taken for each
+ * step only, so inserts are held up for one step at worst. Runs (and the WAL checkpoint which follows them) only
+ * happen once no message was written for {@link #IDLE_MS}, otherwise they are postponed.
+ * <p>
+ * Databases created before incremental vacuum was enabled are converted by an idle run with a single full VACUUM. As
+ * it holds the maintenance lock for the whole rebuild, databases over {@link #MAX_CONVERSION_SIZE} bytes are only
+ * converted by a run while the device is charging, when nobody is waiting on a message being stored, or by the next
+ * {@link MessageStorageRepository#secureWipe()}, which runs a full VACUUM anyway. While not charging they are checked
+ * again {@link #CHARGING_CHECK_MS} later; a failed conversion is retried {@link #CONVERSION_RETRY_MS} later.
+ */
+public class StorageCompactor {
+
+    private static final String TAG = "StorageCompactor";
+
+    public static final long IDLE_MS = 10000;
+    public static final long RETRY_DELAY_MS = 30000;
+    public static final long RUN_BUDGET_MS = 200;
+    public static final long RUN_INTERVAL_MS = 1000;
+    public static final int PAGES_PER_STEP = 128;
+    public static final long MAX_CONVERSION_SIZE = 4L * 1024 * 1024;
+    public static final long CONVERSION_RETRY_MS = 6L * 60 * 60 * 1000;
+    public static final long CHARGING_CHECK_MS = 15L * 60 * 1000;
+
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private final ChatLogDatabase db;
+    private final Object maintenanceLock;
+    private final LongSupplier lastWriteTime;
+    private final BooleanSupplier charging;
+
+    private final Object lock = new Object();
+    private boolean scheduled = false; // guarded by lock
+    private boolean checkpointNeeded = false; // guarded by lock
+    private volatile boolean incrementalVacuumEnabled = false; // only written from the executor
+    private long nextConversionTime = 0; // only accessed from the executor
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "StorageCompactor");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    // Metrics, guarded by lock
+    private long runCount;
+    private long pagesReclaimed;
+    private long checkpointCount;
+    private long lastRunMs;
+
+    /**
+     * @param lastWriteTime returns the {@link System#currentTimeMillis()} of the last message write
+     * @param charging returns whether the device is charging, see {@link #MAX_CONVERSION_SIZE}
+     */
+    StorageCompactor(ChatLogDatabase db, Object maintenanceLock, LongSupplier lastWriteTime, BooleanSupplier charging) {
+        this.db = db;
+        this.maintenanceLock = maintenanceLock;
+        this.lastWriteTime = lastWriteTime;
+        this.charging = charging;
+    }
+
+    /**
+     * Schedules a compaction run, followed by a checkpoint, for the next time the app is idle. Called after rows were
+     * deleted.
+     */
+    public void requestCompaction() {
+        requestCheckpoint();
+    }
+
+    /**
+     * Schedules a WAL checkpoint for the next time the app is idle, so that it rarely has to happen on the writer
+     * thread (SQLite checkpoints automatically once the WAL grows past 1000 pages). Called after messages were
+     * written; calls made while a run is already pending are coalesced.
+     */
+    public void requestCheckpoint() {
+        synchronized (lock) {
+            checkpointNeeded = true;
+        }
+        schedule(IDLE_MS);
+    }
+
+    private void schedule(long delayMs) {
+        synchronized (lock) {
+            if (scheduled)
+                return;
+            scheduled = true;
+        }
+        executor.schedule(this::run, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean isIdle() {
+        return System.currentTimeMillis() - lastWriteTime.getAsLong() >= IDLE_MS;
+    }
+
+    // Package-private for tests, which call it on their own thread
+    void run() {
+        synchronized (lock) {
+            scheduled = false;
+        }
+        if (!isIdle()) {
+            schedule(RETRY_DELAY_MS);
+            return;
+        }
+        try {
+            SupportSQLiteDatabase raw = db.getOpenHelper().getWritableDatabase();
+            if (!incrementalVacuumEnabled && System.currentTimeMillis() >= nextConversionTime)
+                incrementalVacuumEnabled = enableIncrementalVacuum(raw);
+
+            long start = System.currentTimeMillis();
+            long deadline = start + RUN_BUDGET_MS;
+            long reclaimed = 0;
+            long remaining = queryLong(raw, "PRAGMA freelist_count");
+            boolean stalled = false;
+            while (remaining > 0 && System.currentTimeMillis() < deadline) {
+                if (!isIdle())
+                    break;
+                synchronized (maintenanceLock) {
+                    drain(raw, "PRAGMA incremental_vacuum(" + PAGES_PER_STEP + ")");
+                    long left = queryLong(raw, "PRAGMA freelist_count");
+                    if (left >= remaining) {
+                        stalled = true; // auto_vacuum is not incremental, nothing to do
+                        break;
+                    }
+                    reclaimed += remaining - left;
+                    remaining = left;
+                }
+            }
+            long took = System.currentTimeMillis() - start;
+            synchronized (lock) {
+                runCount++;
+                pagesReclaimed += reclaimed;
+                lastRunMs = took;
+            }
+            if (reclaimed > 0)
+                Log.d(TAG, "Reclaimed " + reclaimed + " pages in " + took + "ms, " + remaining + " left");
+
+            if (remaining > 0 && !stalled) {
+                // Out of budget (or no longer idle), continue with the next run
+                schedule(isIdle() ? RUN_INTERVAL_MS : RETRY_DELAY_MS);
+                return;
+            }
+            checkpointIfIdle(raw);
+        } catch (Exception e) {
+            Log.e(TAG, "Compaction failed", e);
+        }
+    }
+
+    // NOTE auto_vacuum can't be changed on an existing database without rebuilding it, see
+    // https://www.sqlite.org/pragma.html#pragma_auto_vacuum
+    private boolean enableIncrementalVacuum(SupportSQLiteDatabase raw) {
+        if (queryLong(raw, "PRAGMA auto_vacuum") == AUTO_VACUUM_INCREMENTAL)
+            return true;
+        long size = queryLong(raw, "PRAGMA page_count") * queryLong(raw, "PRAGMA page_size");
+        if (size > MAX_CONVERSION_SIZE && !charging.getAsBoolean()) {
+            Log.i(TAG, "Not enabling incremental vacuum until charging, the database is " + size + " bytes");
+            nextConversionTime = System.currentTimeMillis() + CHARGING_CHECK_MS;
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            synchronized (maintenanceLock) {
+                setIncrementalVacuum(raw);
+                raw.execSQL("VACUUM");
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to enable incremental vacuum", e);
+            nextConversionTime = System.currentTimeMillis() + CONVERSION_RETRY_MS;
+            return false;
+        }
+        Log.i(TAG, "Enabled incremental vacuum in " + (System.currentTimeMillis() - start) + "ms");
+        return true;
+    }
+
+    /**
+     * Makes the next VACUUM convert the database to incremental vacuum, if it is not already.
+     */
+    static void setIncrementalVacuum(SupportSQLiteDatabase raw) {
+        raw.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+    }
+
+    private void checkpointIfIdle(SupportSQLiteDatabase raw) {
+        synchronized (lock) {
+            if (!checkpointNeeded)
+                return;
+            checkpointNeeded = false;
+        }
+        if (!isIdle()) {
+            synchronized (lock) {
+                checkpointNeeded = true;
+            }
+            schedule(RETRY_DELAY_MS);
+            return;
+        }
+        // PASSIVE never waits for readers or writers; the WAL is truncated by the next TRUNCATE checkpoint
+        // (secure wipe) or reused from the start once fully checkpointed
+        drain(raw, "PRAGMA wal_checkpoint(PASSIVE)");
+        synchronized (lock) {
+            checkpointCount++;
+        }
+    }
+
+    static long queryLong(SupportSQLiteDatabase raw, String sql) {
+        try (Cursor c = raw.query(sql)) {
+            return c.moveToFirst() && !c.isNull(0) ? c.getLong(0) : 0L;
+        }
+    }
+
+    // PRAGMAs which do work per row (incremental_vacuum) or return a result (wal_checkpoint) have to be run as
+    // queries and stepped to the end
+    static void drain(SupportSQLiteDatabase raw, String sql) {
+        try (Cursor c = raw.query(sql)) {
+            while (c.moveToNext()) {
+                // nothing to read
+            }
+        }
+    }
+
+    public Stats getStats() {
+        synchronized (lock) {
+            return new Stats(runCount, pagesReclaimed, checkpointCount, lastRunMs, scheduled,
+                    incrementalVacuumEnabled);
+        }
+    }
+
+    public static class Stats {
+        public final long runCount;
+        public final long pagesReclaimed;
+        public final long checkpointCount;
+        public final long lastRunMs;
+        public final boolean scheduled;
+        /** False until the database was converted, only known after the first run. */
+        public final boolean incrementalVacuumEnabled;
+
+        public Stats(long runCount, long pagesReclaimed, long checkpointCount, long lastRunMs, boolean scheduled,
+                     boolean incrementalVacuumEnabled) {
+            this.runCount = runCount;
+            this.pagesReclaimed = pagesReclaimed;
+            this.checkpointCount = checkpointCount;
+            this.lastRunMs = lastRunMs;
+            this.scheduled = scheduled;
+            this.incrementalVacuumEnabled = incrementalVacuumEnabled;
+        }
+    }
+
+}
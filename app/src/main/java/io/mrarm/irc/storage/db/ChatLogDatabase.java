@@ -1,20 +1,23 @@
 package io.mrarm.irc.storage.db;
 
 import android.content.Context;
+import android.database.Cursor;
 
 import androidx.annotation.NonNull;
 import androidx.room.Database;
 import androidx.room.Room;
 import androidx.room.RoomDatabase;
 import androidx.room.TypeConverters;
+import androidx.room.migration.Migration;
 import androidx.sqlite.db.SupportSQLiteDatabase;
 
 @Database(
         entities = {
                 MessageEntity.class,
-                ConversationStateEntity.class
+                ConversationStateEntity.class,
+                ConversationEntity.class
         },
-        version = 1
+        version = 3
 )
 @TypeConverters({Converters.class})
 public abstract class ChatLogDatabase extends RoomDatabase {
@@ -23,8 +26,88 @@ public abstract class ChatLogDatabase extends RoomDatabase {
 
     public abstract ConversationStateDao conversationStateDao();
 
+    public abstract ConversationDao conversationDao();
+
     private static volatile ChatLogDatabase INSTANCE;
 
+    // Binary extra data, extra_json is kept for the rows written before
+    static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE messages_logs ADD COLUMN extra BLOB");
+        }
+    };
+
+    // Conversations dictionary: messages_logs refers to conversations.id instead of storing serverId, channel and
+    // kind in every row. Ids are kept, so conversation_state and the search index stay valid.
+    static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("""
+                    CREATE TABLE IF NOT EXISTS `conversations` (
+                        `id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL,
+                        `serverId` TEXT NOT NULL,
+                        `channel` TEXT NOT NULL,
+                        `kind` TEXT NOT NULL
+                    )
+                    """);
+            db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS `index_conversations_serverId_channel` " +
+                    "ON `conversations` (`serverId`, `channel`)");
+            db.execSQL("""
+                    INSERT INTO conversations(serverId, channel, kind)
+                    SELECT serverId, channel, MIN(kind) FROM messages_logs GROUP BY serverId, channel
+                    """);
+
+            long oldSequence = 0;
+            try (Cursor c = db.query("SELECT seq FROM sqlite_sequence WHERE name = 'messages_logs'")) {
+                if (c.moveToFirst())
+                    oldSequence = c.getLong(0);
+            }
+            db.execSQL("""
+                    CREATE TABLE `messages_logs_new` (
+                        `id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL,
+                        `conversation_id` INTEGER NOT NULL,
+                        `timestamp` INTEGER NOT NULL,
+                        `type` INTEGER NOT NULL,
+                        `text` TEXT,
+                        `sender` TEXT,
+                        `extra_json` TEXT,
+                        `extra` BLOB,
+                        `dedupe_key` TEXT,
+                        `aprox_row_size` INTEGER NOT NULL
+                    )
+                    """);
+            // The size estimate no longer includes the channel name, the UUID and kind strings and their indices
+            db.execSQL("""
+                    INSERT INTO messages_logs_new(id, conversation_id, timestamp, type, text, sender, extra_json, extra,
+                        dedupe_key, aprox_row_size)
+                    SELECT m.id, c.id, m.timestamp, m.type, m.text, m.sender, m.extra_json, m.extra, m.dedupe_key,
+                        MAX(m.aprox_row_size - ? - length(CAST(m.channel AS BLOB)), 0)
+                    FROM messages_logs m
+                    JOIN conversations c ON c.serverId = m.serverId AND c.channel = m.channel
+                    ORDER BY m.id
+                    """, new Object[]{MessageEntity.FIXED_ROW_SIZE_V2 - MessageEntity.FIXED_ROW_SIZE});
+            // Don't hand out the ids of deleted messages again, even if none are left. sqlite_sequence has no unique key
+            // (INSERT OR REPLACE would add a second row) and the new table may not have a row in it yet.
+            db.execSQL("DELETE FROM sqlite_sequence WHERE name = 'messages_logs_new'");
+            db.execSQL("""
+                    INSERT INTO sqlite_sequence(name, seq)
+                    VALUES ('messages_logs_new', MAX(?, COALESCE((SELECT MAX(id) FROM messages_logs_new), 0)))
+                    """, new Object[]{oldSequence});
+            // Also drops the old indices and the storage_stats and search index triggers
+            db.execSQL("DROP TABLE messages_logs");
+            db.execSQL("ALTER TABLE messages_logs_new RENAME TO messages_logs");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_messages_logs_conversation_id_id` " +
+                    "ON `messages_logs` (`conversation_id`, `id`)");
+
+            // storage_stats is keyed by conversation now and rebuilt by StorageStatsTable.install(). The search
+            // index only needs its triggers back, as the ids did not change.
+            db.execSQL("DROP TABLE IF EXISTS " + StorageStatsTable.TABLE);
+            if (MessageSearchTable.isCreated(db))
+                MessageSearchTable.createTriggers(db);
+        }
+    };
+
     public static ChatLogDatabase getInstance(Context context) {
         if (INSTANCE == null) {
             synchronized (ChatLogDatabase.class) {
@@ -34,7 +117,8 @@ public abstract class ChatLogDatabase extends RoomDatabase {
                                     ChatLogDatabase.class,
                                     "chatlogs.db"
                             )
-                            .fallbackToDestructiveMigration()
+                            .addMigrations(MIGRATION_1_2, MIGRATION_2_3)
+                            .fallbackToDestructiveMigrationOnDowngrade()
                             .setJournalMode(JournalMode.WRITE_AHEAD_LOGGING)
                             .addCallback(new RoomDatabase.Callback() {
                                 @Override
@@ -45,6 +129,8 @@ public abstract class ChatLogDatabase extends RoomDatabase {
                                             WHERE dedupe_key IS NOT NULL
                                             """
                                     );
+                                    StorageStatsTable.install(db);
+                                    MessageSearchTable.install(db);
                                 }
                             })
                             .build();
@@ -0,0 +1,34 @@
+package io.mrarm.irc.storage.db;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+import java.util.List;
+import java.util.UUID;
+
+@Dao
+public interface ConversationDao {
+
+    @Query("SELECT id FROM conversations WHERE serverId = :serverId AND channel = :channel")
+    Long findId(UUID serverId, String channel);
+
+    @Query("SELECT * FROM conversations WHERE id = :id")
+    ConversationEntity findById(long id);
+
+    @Query("SELECT * FROM conversations")
+    List<ConversationEntity> getAll();
+
+    /**
+     * Returns -1 if the conversation exists already
+     */
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    long insert(ConversationEntity entity);
+
+    @Query("DELETE FROM conversations WHERE serverId = :serverId")
+    void deleteByServer(UUID serverId);
+
+    @Query("DELETE FROM conversations")
+    void deleteAll();
+}
@@ -0,0 +1,38 @@
+package io.mrarm.irc.storage.db;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+import java.util.UUID;
+
+/**
+ * Dictionary of conversations: messages_logs rows refer to their (server, channel) through this compact id instead of
+ * repeating the UUID string and channel name in every row and index entry.
+ */
+@Entity(
+        tableName = "conversations",
+        indices = {
+                @Index(value = {"serverId", "channel"}, unique = true)
+        }
+)
+public class ConversationEntity {
+
+    @PrimaryKey(autoGenerate = true)
+    @ColumnInfo(name = "id")
+    public long id;
+
+    @NonNull
+    @ColumnInfo(name = "serverId")
+    public UUID serverId;
+
+    @NonNull
+    @ColumnInfo(name = "channel")
+    public String channel;
+
+    @NonNull
+    @ColumnInfo(name = "kind")
+    public MessageKind kind;
+}
@@ -5,6 +5,7 @@ import androidx.room.Insert;
 import androidx.room.OnConflictStrategy;
 import androidx.room.Query;
 
+import java.util.List;
 import java.util.UUID;
 
 @Dao
@@ -23,8 +24,7 @@ public interface ConversationStateDao {
     @Query("""
                 SELECT COUNT(*)
                 FROM messages_logs
-                WHERE serverId = :serverId
-                  AND channel = :channel
+                WHERE conversation_id = (SELECT id FROM conversations WHERE serverId = :serverId AND channel = :channel)
                   AND id > :lastReadId
             """)
     long getUnreadCount(UUID serverId, String channel, long lastReadId);
@@ -32,8 +32,7 @@ public interface ConversationStateDao {
     @Query("""
                 SELECT MIN(id)
                 FROM messages_logs
-                WHERE serverId = :serverId
-                  AND channel = :channel
+                WHERE conversation_id = (SELECT id FROM conversations WHERE serverId = :serverId AND channel = :channel)
                   AND id > :lastReadId
             """)
     Long getFirstUnreadId(UUID serverId, String channel, long lastReadId);
@@ -41,11 +40,30 @@ public interface ConversationStateDao {
     @Query("""
                 SELECT MAX(id)
                 FROM messages_logs
-                WHERE serverId = :serverId
-                  AND channel = :channel
+                WHERE conversation_id = (SELECT id FROM conversations WHERE serverId = :serverId AND channel = :channel)
             """)
     Long getLatestMessageId(UUID serverId, String channel);
 
+    /**
+     * Read state and unread count of every conversation of every server, for the startup bootstrap. The subqueries
+     * are answered from the (conversation_id, id) index of messages_logs.
+     */
+    @Query("""
+                SELECT cs.serverId, cs.channel, cs.lastReadId, cs.firstUnreadId, cs.lastNotifiedId, cs.mutedUntilMs,
+                    (SELECT COUNT(*) FROM messages_logs m
+                        WHERE m.conversation_id = c.id AND m.id > cs.lastReadId)
+                        AS unreadCount,
+                    (SELECT MIN(m.id) FROM messages_logs m
+                        WHERE m.conversation_id = c.id AND m.id > cs.lastReadId)
+                        AS firstUnreadMessageId,
+                    (SELECT MAX(m.id) FROM messages_logs m
+                        WHERE m.conversation_id = c.id)
+                        AS latestMessageId
+                FROM conversation_state cs
+                LEFT JOIN conversations c ON c.serverId = cs.serverId AND c.channel = cs.channel
+            """)
+    List<ConversationUnreadState> getAllUnreadStates();
+
     /* ---------- Writes ---------- */
 
     @Insert(onConflict = OnConflictStrategy.IGNORE)
@@ -83,6 +101,16 @@ public interface ConversationStateDao {
             """)
     void setLastNotified(UUID serverId, String channel, long messageId);
 
+    @Query("""
+                UPDATE conversation_state
+                SET lastReadId = :lastReadId,
+                    firstUnreadId = :firstUnreadId,
+                    lastNotifiedId = :lastNotifiedId
+                WHERE serverId = :serverId
+                  AND channel = :channel
+            """)
+    void updateReadState(UUID serverId, String channel, long lastReadId, long firstUnreadId, long lastNotifiedId);
+
 
     /* ---------- Lifecycle ---------- */
 
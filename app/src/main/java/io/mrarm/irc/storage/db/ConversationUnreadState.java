@@ -0,0 +1,15 @@
+package io.mrarm.irc.storage.db;
+
+import java.util.UUID;
+
+public class ConversationUnreadState {
+    public UUID serverId;
+    public String channel;
+    public long lastReadId;
+    public long firstUnreadId;
+    public long lastNotifiedId;
+    public long mutedUntilMs;
+    public long unreadCount;
+    public Long firstUnreadMessageId;
+    public Long latestMessageId;
+}
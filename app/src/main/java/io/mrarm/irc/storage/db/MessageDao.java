@@ -4,51 +4,18 @@ import androidx.room.Dao;
 import androidx.room.Insert;
 import androidx.room.OnConflictStrategy;
 import androidx.room.Query;
+import androidx.room.RawQuery;
+import androidx.sqlite.db.SupportSQLiteQuery;
 
 import java.util.List;
 import java.util.UUID;
 
-import io.mrarm.irc.storage.MessageStatsRepository;
-
 @Dao
 public interface MessageDao {
 
     @Insert(onConflict = OnConflictStrategy.IGNORE)
     long insert(MessageEntity msg);
 
-    /**
-     * Load messages older than a certain ID (scroll up)
-     */
-    @Query("""
-                SELECT * FROM messages_logs
-                WHERE serverId = :serverId AND channel = :channel AND id < :beforeId
-                ORDER BY id DESC
-                LIMIT :limit
-            """)
-    List<MessageEntity> loadBefore(UUID serverId, String channel, long beforeId, int limit);
-
-    /**
-     * Load messages newer than a certain ID (scroll down)
-     */
-    @Query("""
-                SELECT * FROM messages_logs
-                WHERE serverId = :serverId AND channel = :channel AND id > :afterId
-                ORDER BY id ASC
-                LIMIT :limit
-            """)
-    List<MessageEntity> loadAfter(UUID serverId, String channel, long afterId, int limit);
-
-    /**
-     * Initial tail loadConnectedServers
-     */
-    @Query("""
-                SELECT * FROM messages_logs
-                WHERE serverId = :serverId AND channel = :channel
-                ORDER BY id DESC
-                LIMIT :limit
-            """)
-    List<MessageEntity> loadRecent(UUID serverId, String channel, int limit);
-
     /**
      * Find specific message
      */
@@ -56,29 +23,22 @@ public interface MessageDao {
     MessageEntity findById(long id);
 
     /**
-     * Stats
+     * Full-text search, the query is built by MessageSearchTable.buildQuery()
      */
-    @Query("SELECT SUM(aprox_row_size) FROM messages_logs")
-    Long getGlobalUsage();
-
-    @Query("SELECT SUM(aprox_row_size) FROM messages_logs WHERE serverId = :serverId")
-    Long getUsageForServer(UUID serverId);
+    @RawQuery
+    List<MessageEntity> search(SupportSQLiteQuery query);
 
-    @Query("SELECT COUNT(*) FROM messages_logs WHERE serverId = :serverId")
-    Long getMessageCountForServer(UUID serverId);
-
-    @Query("""
-                SELECT serverId, SUM(aprox_row_size) AS size
-                FROM messages_logs
-                GROUP BY serverId
-                ORDER BY size DESC
-            """)
-    List<MessageStatsRepository.ServerUsage> getUsageForAllServers();
+    /**
+     * Stats are kept in storage_stats, see StorageStatsTable
+     */
 
     /**
      * Deletion
      */
-    @Query("DELETE FROM messages_logs WHERE serverId = :serverId")
+    @Query("""
+            DELETE FROM messages_logs
+            WHERE conversation_id IN (SELECT id FROM conversations WHERE serverId = :serverId)
+            """)
     void deleteByServer(UUID serverId);
 
     @Query("DELETE FROM messages_logs")
@@ -89,10 +49,10 @@ public interface MessageDao {
             SET
                 text = NULL,
                 sender = NULL,
-                channel = 'null',
                 timestamp = 0,
-                extra_json = NULL
-            WHERE serverId = :serverId;
+                extra_json = NULL,
+                extra = NULL
+            WHERE conversation_id IN (SELECT id FROM conversations WHERE serverId = :serverId);
             """)
     void replaceDataByServer(UUID serverId);
 
@@ -101,9 +61,9 @@ public interface MessageDao {
             SET
                 text = NULL,
                 sender = NULL,
-                channel = 'null',
                 timestamp = 0,
-                extra_json = NULL
+                extra_json = NULL,
+                extra = NULL
             """)
     void replaceAll();
 
@@ -121,7 +81,7 @@ public interface MessageDao {
                 SELECT id,
                 aprox_row_size AS aproxRowSize
                 FROM messages_logs
-                WHERE serverId = :serverId
+                WHERE conversation_id IN (SELECT id FROM conversations WHERE serverId = :serverId)
                 ORDER BY id ASC
                 LIMIT :limit
             """)
@@ -133,6 +93,16 @@ public interface MessageDao {
             """)
     int deleteByIds(List<Long> ids);
 
+    /**
+     * Lazy conversion of a legacy extra_json row to the binary extra column
+     */
+    @Query("""
+            UPDATE messages_logs
+            SET extra = :extra, extra_json = NULL
+            WHERE id = :id AND extra_json IS NOT NULL
+            """)
+    void convertLegacyExtra(long id, byte[] extra);
+
     @Query("""
             SELECT id FROM messages_logs 
             WHERE dedupe_key = :dedupeKey 
@@ -147,9 +117,9 @@ public interface MessageDao {
             SET
                 text = NULL,
                 sender = NULL,
-                channel = 'null',
                 timestamp = 0,
-                extra_json = NULL
+                extra_json = NULL,
+                extra = NULL
             WHERE id in (:ids);
             """)
     int replaceDataByIds(List<Long> ids);
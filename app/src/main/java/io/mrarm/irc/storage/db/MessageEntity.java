@@ -7,6 +7,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.room.ColumnInfo;
 import androidx.room.Entity;
+import androidx.room.Ignore;
 import androidx.room.Index;
 import androidx.room.PrimaryKey;
 
@@ -20,8 +21,7 @@ import io.mrarm.irc.chatlib.dto.MessageInfo;
 @Entity(
         tableName = "messages_logs",
         indices = {
-                @Index("serverId"),
-                @Index({"serverId", "channel", "id"})
+                @Index({"conversation_id", "id"})
         }
 )
 public class MessageEntity {
@@ -30,16 +30,20 @@ public class MessageEntity {
     @ColumnInfo(name = "id")
     public long id;
 
-    @NonNull
-    @ColumnInfo(name = "serverId")
+    /**
+     * See {@link ConversationEntity}; set by MessageStorageRepository from serverId and channel on insert
+     */
+    @ColumnInfo(name = "conversation_id")
+    public long conversationId;
+
+    // Resolved from conversationId, not stored in the row
+    @Ignore
     public UUID serverId;
 
-    @NonNull
-    @ColumnInfo(name = "channel")
+    @Ignore
     public String channel;
 
-    @NonNull
-    @ColumnInfo(name = "kind")
+    @Ignore
     public MessageKind kind;
 
     @ColumnInfo(name = "timestamp")
@@ -55,9 +59,19 @@ public class MessageEntity {
     @ColumnInfo(name = "sender")
     public String sender;
 
+    /**
+     * Only set on rows written before {@link #extra}, converted when they are read
+     */
     @ColumnInfo(name = "extra_json")
     public String extraJson;
 
+    /**
+     * Type-specific fields in the MessageExtraCodec format, null if the message has none
+     */
+    @ColumnInfo(name = "extra", typeAffinity = ColumnInfo.BLOB)
+    @Nullable
+    public byte[] extra;
+
     @ColumnInfo(name = "dedupe_key")
     @Nullable
     public String dedupeKey;
@@ -77,7 +91,7 @@ public class MessageEntity {
         e.type = (info.getType() != null ? info.getType().asInt() : MessageInfo.MessageType.NORMAL.asInt());
         e.sender = (info.getSender() != null ? info.getSender().getNick() : null);
         e.kind = isChannel ? MessageKind.CHANNEL : MessageKind.PRIVATE;
-        e.extraJson = serializeExtraData(info);
+        e.extra = serializeExtraData(info);
         e.dedupeKey = info.isPlayback() ? computeDedupeKey(serverId, channel, info) : null;
         e.aproxRowSize = computeSize(e);
         return e;
@@ -122,12 +136,26 @@ public class MessageEntity {
         return sb.toString();
     }
 
+    /**
+     * Per-row overhead on top of the variable length columns:
+     * 20 row header for 10 columns table (conservative in case of more cols),
+     * 4 conversation_id INTEGER varint, 8 fixed timestamp length, 1 type INTEGER varint,
+     * 1 aprox_row_size column itself (INTEGER varint), 10 aprox B-tree cell overhead,
+     * 20 index on (conversation_id, id)
+     */
+    public static final long FIXED_ROW_SIZE = 64;
+
+    /**
+     * What FIXED_ROW_SIZE used to be before version 3 (serverId string, kind string and three indices), on top of
+     * the channel name; used to correct aprox_row_size of existing rows in the migration
+     */
+    static final long FIXED_ROW_SIZE_V2 = 240;
+
     private static long computeSize(MessageEntity e) {
         long size = 0;
 
         // Strings are UTF-16 in memory, but stored as UTF-8 in SQLite.
         size += utf8Length(e.text);
-        size += utf8Length(e.channel);
         size += utf8Length(e.dedupeKey);
 
         if (e.sender != null) {
@@ -138,17 +166,11 @@ public class MessageEntity {
             size += utf8Length(e.extraJson);
         }
 
-        size += 20; // row header for 10 columns table (conservative in case of more cols)
-        size += 37; // fixed UUID.toString() value
-        size += 8; // fixed enum value CHANNEL vs PRIVATE
-        size += 8; // fixed timestamp length
-        size += 1; // type INTEGER varint
-        size += 1; // aprox_row_size column inteslt (INTEGER varint)
-        size += 10; // aprox B-tree cell overhead
-        size += 45; // index on serverId
-        size += 55; // index on (serverId, timestamp)
-        size += 55; // index on (serverId, channel)
-        // total aprox 240
+        if (e.extra != null) {
+            size += e.extra.length;
+        }
+
+        size += FIXED_ROW_SIZE;
 
         return size;
     }
@@ -0,0 +1,227 @@
+package io.mrarm.irc.storage.db;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import androidx.sqlite.db.SimpleSQLiteQuery;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * messages_fts: FTS4 full-text index over messages_logs.text.
+ * <p>
+ * The index is an external content table, so the text is not stored twice; triggers on messages_logs keep it up to
+ * date as messages are written (the pipeline's batch inserts included). Rows which existed before the index was
+ * created are indexed by a backfill, newest first: messages_fts_backfill.next_id is the highest id not indexed yet,
+ * so everything above it is searchable. The delete and update triggers skip rows at or below it, as removing a row
+ * which was never indexed would corrupt an external content index.
+ * <p>
+ * FTS4 rather than FTS5, as the framework SQLite is not built with FTS5 on all supported Android versions. Like
+ * storage_stats, the tables and triggers are created outside of the Room schema (see {@link ChatLogDatabase}).
+ */
+public class MessageSearchTable {
+
+    private static final String TAG = "MessageSearchTable";
+
+    public static final String TABLE = "messages_fts";
+    private static final String BACKFILL_TABLE = "messages_fts_backfill";
+
+    private static final String TRIGGER_INSERT = "messages_fts_insert";
+    private static final String TRIGGER_DELETE = "messages_fts_delete";
+    private static final String TRIGGER_UPDATE_BEFORE = "messages_fts_update_before";
+    private static final String TRIGGER_UPDATE_AFTER = "messages_fts_update_after";
+
+    private static final String INDEXED_ABOVE = "(SELECT next_id FROM messages_fts_backfill)";
+
+    /**
+     * Creates the index and its triggers if needed. If the triggers were missing (new database, or messages_logs was
+     * recreated) the index is recreated empty and every existing row is left to the backfill.
+     */
+    public static void install(SupportSQLiteDatabase db) {
+        if (hasTrigger(db, TRIGGER_INSERT) && hasTrigger(db, TRIGGER_DELETE) &&
+                hasTrigger(db, TRIGGER_UPDATE_BEFORE) && hasTrigger(db, TRIGGER_UPDATE_AFTER))
+            return;
+
+        db.beginTransaction();
+        try {
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + BACKFILL_TABLE);
+            db.execSQL("CREATE VIRTUAL TABLE " + TABLE +
+                    " USING fts4(content='messages_logs', text, tokenize=unicode61)");
+            db.execSQL("CREATE TABLE " + BACKFILL_TABLE + " (next_id INTEGER NOT NULL)");
+            db.execSQL("INSERT INTO " + BACKFILL_TABLE + "(next_id) SELECT COALESCE(MAX(id), 0) FROM messages_logs");
+            createTriggers(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Log.i(TAG, "Created the search index");
+    }
+
+    /**
+     * (Re)creates the triggers which keep the index up to date. Called on its own by the version 3 migration, which
+     * rebuilds messages_logs with the same ids, so the existing index and backfill position stay valid.
+     */
+    static void createTriggers(SupportSQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS " + TRIGGER_INSERT);
+        db.execSQL("DROP TRIGGER IF EXISTS " + TRIGGER_DELETE);
+        db.execSQL("DROP TRIGGER IF EXISTS " + TRIGGER_UPDATE_BEFORE);
+        db.execSQL("DROP TRIGGER IF EXISTS " + TRIGGER_UPDATE_AFTER);
+        db.execSQL("CREATE TRIGGER " + TRIGGER_INSERT + " AFTER INSERT ON messages_logs BEGIN " +
+                "INSERT INTO messages_fts(docid, text) VALUES (NEW.id, NEW.text); END");
+        // External content: the old text has to be removed before the row changes
+        db.execSQL("CREATE TRIGGER " + TRIGGER_DELETE + " BEFORE DELETE ON messages_logs " +
+                "WHEN OLD.id > " + INDEXED_ABOVE + " BEGIN " +
+                "DELETE FROM messages_fts WHERE docid = OLD.id; END");
+        db.execSQL("CREATE TRIGGER " + TRIGGER_UPDATE_BEFORE + " BEFORE UPDATE OF text ON messages_logs " +
+                "WHEN OLD.id > " + INDEXED_ABOVE + " BEGIN " +
+                "DELETE FROM messages_fts WHERE docid = OLD.id; END");
+        db.execSQL("CREATE TRIGGER " + TRIGGER_UPDATE_AFTER + " AFTER UPDATE OF text ON messages_logs " +
+                "WHEN NEW.id > " + INDEXED_ABOVE + " BEGIN " +
+                "INSERT INTO messages_fts(docid, text) VALUES (NEW.id, NEW.text); END");
+    }
+
+    static boolean isCreated(SupportSQLiteDatabase db) {
+        try (Cursor c = db.query("SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name IN (?, ?)",
+                new Object[]{TABLE, BACKFILL_TABLE})) {
+            return c.moveToFirst() && c.getInt(0) == 2;
+        }
+    }
+
+    private static boolean hasTrigger(SupportSQLiteDatabase db, String name) {
+        try (Cursor c = db.query("SELECT 1 FROM sqlite_master WHERE type = 'trigger' AND name = ?",
+                new Object[]{name})) {
+            return c.moveToFirst();
+        }
+    }
+
+    /**
+     * Builds an FTS MATCH expression from what the user typed: every word has to appear, and the last one may be
+     * incomplete (prefix match). Returns null if there is nothing to search for.
+     */
+    public static String toMatchExpression(String text) {
+        if (text == null)
+            return null;
+        StringBuilder ret = new StringBuilder();
+        String[] words = text.trim().split("\\s+");
+        for (int i = 0; i < words.length; i++) {
+            String word = words[i].replace("\"", "");
+            if (word.isEmpty())
+                continue;
+            if (ret.length() > 0)
+                ret.append(' ');
+            ret.append('"').append(word);
+            if (i == words.length - 1)
+                ret.append('*');
+            ret.append('"');
+        }
+        return ret.length() > 0 ? ret.toString() : null;
+    }
+
+    private final ChatLogDatabase db;
+
+    public MessageSearchTable(ChatLogDatabase db) {
+        this.db = db;
+    }
+
+    /**
+     * Builds the search query, to be run with {@link MessageDao#search}. The filters are optional (null to match
+     * anything); with {@code byRelevance} the results are ordered by the number of matched words first, which scores
+     * every match and so gets slower for very common words, otherwise newest first straight from the index.
+     */
+    public static SimpleSQLiteQuery buildQuery(String matchExpression, UUID serverId, String channel, String sender,
+                                               Long fromTimestamp, Long toTimestamp, boolean byRelevance,
+                                               int offset, int limit) {
+        StringBuilder sql = new StringBuilder("""
+                SELECT m.* FROM messages_fts f
+                JOIN messages_logs m ON m.id = f.docid
+                WHERE messages_fts MATCH ?""");
+        List<Object> args = new ArrayList<>();
+        args.add(matchExpression);
+        if (serverId != null && channel != null) {
+            sql.append(" AND m.conversation_id = (SELECT id FROM conversations WHERE serverId = ? AND channel = ?)");
+            args.add(Converters.uuidToString(serverId));
+            args.add(channel);
+        } else if (serverId != null) {
+            sql.append(" AND m.conversation_id IN (SELECT id FROM conversations WHERE serverId = ?)");
+            args.add(Converters.uuidToString(serverId));
+        } else if (channel != null) {
+            sql.append(" AND m.conversation_id IN (SELECT id FROM conversations WHERE channel = ?)");
+            args.add(channel);
+        }
+        if (sender != null) {
+            sql.append(" AND m.sender = ? COLLATE NOCASE");
+            args.add(sender);
+        }
+        if (fromTimestamp != null) {
+            sql.append(" AND m.timestamp >= ?");
+            args.add(fromTimestamp);
+        }
+        if (toTimestamp != null) {
+            sql.append(" AND m.timestamp < ?");
+            args.add(toTimestamp);
+        }
+        if (byRelevance) {
+            // offsets() lists four numbers per matched word occurrence
+            sql.append(" ORDER BY (length(offsets(messages_fts)) - " +
+                    "length(replace(offsets(messages_fts), ' ', '')) + 1) / 4 DESC, f.docid DESC");
+        } else {
+            sql.append(" ORDER BY f.docid DESC");
+        }
+        sql.append(" LIMIT ? OFFSET ?");
+        args.add(limit);
+        args.add(offset);
+        return new SimpleSQLiteQuery(sql.toString(), args.toArray());
+    }
+
+    /**
+     * Returns the highest message id which is not indexed yet, or 0 once the backfill is done.
+     */
+    public long getBackfillPosition() {
+        try (Cursor c = db.query("SELECT next_id FROM messages_fts_backfill", null)) {
+            return c.moveToFirst() ? c.getLong(0) : 0L;
+        }
+    }
+
+    /**
+     * Indexes up to {@code maxRows} of the newest rows which are not indexed yet, in one transaction. Returns the
+     * number of rows indexed, 0 once the backfill is done.
+     */
+    public int backfill(int maxRows) {
+        return db.runInTransaction(() -> {
+            long next = getBackfillPosition();
+            if (next <= 0)
+                return 0;
+            long from = 0;
+            int count = 0;
+            try (Cursor c = db.query("""
+                    SELECT MIN(id), COUNT(*) FROM (
+                        SELECT id FROM messages_logs WHERE id <= ? ORDER BY id DESC LIMIT ?
+                    )
+                    """, new Object[]{next, maxRows})) {
+                if (c.moveToFirst() && !c.isNull(0)) {
+                    from = c.getLong(0);
+                    count = c.getInt(1);
+                }
+            }
+            SupportSQLiteDatabase raw = db.getOpenHelper().getWritableDatabase();
+            if (count > 0) {
+                raw.execSQL("INSERT INTO messages_fts(docid, text) " +
+                        "SELECT id, text FROM messages_logs WHERE id BETWEEN ? AND ?", new Object[]{from, next});
+            }
+            raw.execSQL("UPDATE messages_fts_backfill SET next_id = ?", new Object[]{count > 0 ? from - 1 : 0});
+            return count;
+        });
+    }
+
+    /**
+     * Merges the index segments, which also drops what is left of deleted messages in them.
+     */
+    public static void optimize(SupportSQLiteDatabase db) {
+        db.execSQL("INSERT INTO messages_fts(messages_fts) VALUES('optimize')");
+    }
+
+}
@@ -0,0 +1,196 @@
+package io.mrarm.irc.storage.db;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * storage_stats: row count, byte estimate (sum of aprox_row_size) and oldest id per conversation, kept up to date
+ * by triggers on messages_logs, so that usage queries read a few rows instead of scanning the whole log.
+ * <p>
+ * Like the dedupe index, the table and its triggers are created outside of the Room schema (see
+ * {@link ChatLogDatabase}), which is why it is queried with plain SQL here rather than through a DAO.
+ */
+public class StorageStatsTable {
+
+    private static final String TAG = "StorageStatsTable";
+
+    public static final String TABLE = "storage_stats";
+
+    private static final String TRIGGER_INSERT = "storage_stats_insert";
+    private static final String TRIGGER_DELETE = "storage_stats_delete";
+    private static final String TRIGGER_UPDATE = "storage_stats_update";
+
+    private static final String ADD_ROW = """
+            INSERT OR IGNORE INTO storage_stats(conversation_id, row_count, byte_count, oldest_id)
+            VALUES (NEW.conversation_id, 0, 0, NEW.id);
+            UPDATE storage_stats
+            SET row_count = row_count + 1,
+                byte_count = byte_count + NEW.aprox_row_size,
+                oldest_id = CASE WHEN oldest_id IS NULL OR NEW.id < oldest_id THEN NEW.id ELSE oldest_id END
+            WHERE conversation_id = NEW.conversation_id;
+            """;
+
+    // Uses the (conversation_id, id) index to find the next oldest row when the oldest one goes away
+    private static final String REMOVE_ROW = """
+            UPDATE storage_stats
+            SET row_count = row_count - 1,
+                byte_count = byte_count - OLD.aprox_row_size,
+                oldest_id = CASE WHEN oldest_id = OLD.id
+                    THEN (SELECT MIN(id) FROM messages_logs WHERE conversation_id = OLD.conversation_id)
+                    ELSE oldest_id END
+            WHERE conversation_id = OLD.conversation_id;
+            DELETE FROM storage_stats
+            WHERE conversation_id = OLD.conversation_id AND row_count <= 0;
+            """;
+
+    /**
+     * Creates the table and triggers if needed. If the triggers were missing (new database, or messages_logs was
+     * recreated) the stats are rebuilt from messages_logs, which is the only time it gets scanned.
+     */
+    public static void install(SupportSQLiteDatabase db) {
+        db.execSQL("""
+                CREATE TABLE IF NOT EXISTS storage_stats (
+                    conversation_id INTEGER PRIMARY KEY NOT NULL,
+                    row_count INTEGER NOT NULL DEFAULT 0,
+                    byte_count INTEGER NOT NULL DEFAULT 0,
+                    oldest_id INTEGER
+                )
+                """);
+        if (hasTrigger(db, TRIGGER_INSERT) && hasTrigger(db, TRIGGER_DELETE) && hasTrigger(db, TRIGGER_UPDATE))
+            return;
+
+        long start = System.currentTimeMillis();
+        db.beginTransaction();
+        try {
+            db.execSQL("DROP TRIGGER IF EXISTS " + TRIGGER_INSERT);
+            db.execSQL("DROP TRIGGER IF EXISTS " + TRIGGER_DELETE);
+            db.execSQL("DROP TRIGGER IF EXISTS " + TRIGGER_UPDATE);
+            db.execSQL("CREATE TRIGGER " + TRIGGER_INSERT + " AFTER INSERT ON messages_logs BEGIN " +
+                    ADD_ROW + " END");
+            db.execSQL("CREATE TRIGGER " + TRIGGER_DELETE + " AFTER DELETE ON messages_logs BEGIN " +
+                    REMOVE_ROW + " END");
+            db.execSQL("CREATE TRIGGER " + TRIGGER_UPDATE +
+                    " AFTER UPDATE OF conversation_id, aprox_row_size ON messages_logs BEGIN " +
+                    REMOVE_ROW + ADD_ROW + " END");
+            db.execSQL("DELETE FROM storage_stats");
+            db.execSQL("""
+                    INSERT INTO storage_stats(conversation_id, row_count, byte_count, oldest_id)
+                    SELECT conversation_id, COUNT(*), COALESCE(SUM(aprox_row_size), 0), MIN(id)
+                    FROM messages_logs
+                    GROUP BY conversation_id
+                    """);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Log.i(TAG, "Rebuilt storage stats in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private static boolean hasTrigger(SupportSQLiteDatabase db, String name) {
+        try (Cursor c = db.query("SELECT 1 FROM sqlite_master WHERE type = 'trigger' AND name = ?",
+                new Object[]{name})) {
+            return c.moveToFirst();
+        }
+    }
+
+    private final ChatLogDatabase db;
+
+    public StorageStatsTable(ChatLogDatabase db) {
+        this.db = db;
+    }
+
+    private long queryLong(String sql, Object... args) {
+        try (Cursor c = db.query(sql, args)) {
+            return c.moveToFirst() && !c.isNull(0) ? c.getLong(0) : 0L;
+        }
+    }
+
+    public long getGlobalUsage() {
+        return queryLong("SELECT SUM(byte_count) FROM storage_stats");
+    }
+
+    public long getUsageForServer(UUID serverId) {
+        return queryLong("""
+                SELECT SUM(s.byte_count) FROM storage_stats s
+                JOIN conversations c ON c.id = s.conversation_id
+                WHERE c.serverId = ?
+                """, Converters.uuidToString(serverId));
+    }
+
+    public long getMessageCountForServer(UUID serverId) {
+        return queryLong("""
+                SELECT SUM(s.row_count) FROM storage_stats s
+                JOIN conversations c ON c.id = s.conversation_id
+                WHERE c.serverId = ?
+                """, Converters.uuidToString(serverId));
+    }
+
+    public long getGlobalMessageCount() {
+        return queryLong("SELECT SUM(row_count) FROM storage_stats");
+    }
+
+    public List<ServerStats> getUsageForAllServers() {
+        List<ServerStats> ret = new ArrayList<>();
+        try (Cursor c = db.query("""
+                SELECT c.serverId, SUM(s.row_count), SUM(s.byte_count), MIN(s.oldest_id)
+                FROM storage_stats s
+                JOIN conversations c ON c.id = s.conversation_id
+                GROUP BY c.serverId
+                ORDER BY SUM(s.byte_count) DESC
+                """, null)) {
+            while (c.moveToNext()) {
+                ServerStats s = new ServerStats();
+                s.serverId = Converters.fromString(c.getString(0));
+                s.rowCount = c.getLong(1);
+                s.byteCount = c.getLong(2);
+                s.oldestId = c.isNull(3) ? null : c.getLong(3);
+                ret.add(s);
+            }
+        }
+        return ret;
+    }
+
+    public List<ChannelStats> getChannelStats(UUID serverId) {
+        List<ChannelStats> ret = new ArrayList<>();
+        try (Cursor c = db.query("""
+                SELECT c.channel, s.row_count, s.byte_count, s.oldest_id
+                FROM storage_stats s
+                JOIN conversations c ON c.id = s.conversation_id
+                WHERE c.serverId = ?
+                ORDER BY s.byte_count DESC
+                """, new Object[]{Converters.uuidToString(serverId)})) {
+            while (c.moveToNext()) {
+                ChannelStats s = new ChannelStats();
+                s.serverId = serverId;
+                s.channel = c.getString(0);
+                s.rowCount = c.getLong(1);
+                s.byteCount = c.getLong(2);
+                s.oldestId = c.isNull(3) ? null : c.getLong(3);
+                ret.add(s);
+            }
+        }
+        return ret;
+    }
+
+    public static class ServerStats {
+        public UUID serverId;
+        public long rowCount;
+        public long byteCount;
+        public Long oldestId;
+    }
+
+    public static class ChannelStats {
+        public UUID serverId;
+        public String channel;
+        public long rowCount;
+        public long byteCount;
+        public Long oldestId;
+    }
+
+}
@@ -5,16 +5,12 @@ import android.text.SpannableString;
 import android.text.Spanned;
 import android.text.style.ClickableSpan;
 import android.text.style.URLSpan;
-import android.text.util.Linkify;
 import android.view.View;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import io.mrarm.irc.chatlib.dto.ModeList;
 
 public class LinkHelper {
 
-    private static final Pattern sChannelLinksPattern = Pattern.compile("(^| )(#[^ ,\u0007]+)");
-
     public interface ChannelLinkHandler {
         void onChannelClicked(String channel, View view);
     }
@@ -26,19 +22,24 @@ public class LinkHelper {
     }
 
     public static CharSequence addLinks(CharSequence spannable) {
-        if (!(spannable instanceof Spannable))
-            spannable = new SpannableString(spannable);
-        Linkify.addLinks((Spannable) spannable, Linkify.WEB_URLS);
-        Matcher matcher = sChannelLinksPattern.matcher(spannable);
-        while (matcher.find()) {
-            int start = matcher.start(2);
-            int end = matcher.end(2);
-            String text = matcher.group(2);
-            for (Object o : ((Spannable) spannable).getSpans(start, end, URLSpan.class))
-                ((Spannable) spannable).removeSpan(o);
-            ((Spannable) spannable).setSpan(new ChannelLinkSpan(text), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-        }
-        return spannable;
+        return addLinks(spannable, null);
+    }
+
+    /**
+     * Links web URLs and channel names, the channel names starting with one of channelTypes ('#' if null). Both are
+     * found by MessageTokenizer in one pass.
+     */
+    public static CharSequence addLinks(CharSequence spannable, ModeList channelTypes) {
+        Spannable ret = spannable instanceof Spannable ? (Spannable) spannable : new SpannableString(spannable);
+        MessageTokenizer.tokenize(ret, channelTypes, (type, start, end) -> {
+            if (type == MessageTokenizer.TOKEN_URL)
+                ret.setSpan(new URLSpan(MessageTokenizer.toUrl(ret.subSequence(start, end))), start, end,
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            else if (type == MessageTokenizer.TOKEN_CHANNEL)
+                ret.setSpan(new ChannelLinkSpan(ret.subSequence(start, end).toString()), start, end,
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        });
+        return ret;
     }
 
     public static class ChannelLinkSpan extends ClickableSpan {
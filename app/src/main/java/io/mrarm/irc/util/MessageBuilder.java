@@ -10,7 +10,6 @@ import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 import android.text.format.DateUtils;
 import android.text.style.ForegroundColorSpan;
-import android.util.Log;
 
 import androidx.appcompat.content.res.AppCompatResources;
 import androidx.core.graphics.drawable.DrawableCompat;
@@ -35,6 +34,7 @@ import io.mrarm.irc.chatlib.dto.HostInfoMessageInfo;
 import io.mrarm.irc.chatlib.dto.KickMessageInfo;
 import io.mrarm.irc.chatlib.dto.MessageInfo;
 import io.mrarm.irc.chatlib.dto.MessageSenderInfo;
+import io.mrarm.irc.chatlib.dto.ModeList;
 import io.mrarm.irc.chatlib.dto.NickChangeMessageInfo;
 import io.mrarm.irc.chatlib.dto.NickWithPrefix;
 import io.mrarm.irc.chatlib.dto.StatusMessageInfo;
@@ -282,7 +282,12 @@ public class MessageBuilder {
     }
 
     public CharSequence createTimestamp(Date date, boolean addDefaultColorSpan) {
-        String ds = getMessageTimeFormat().format(date);
+        // Messages are also rendered ahead of time on a background thread (RenderedMessageCache)
+        SimpleDateFormat format = getMessageTimeFormat();
+        String ds;
+        synchronized (format) {
+            ds = format.format(date);
+        }
         if (!mMessageTimeFixedWidth && !addDefaultColorSpan)
             return ds;
         SpannableString ret = new SpannableString(ds + (mMessageTimeFixedWidth ? " " : ""));
@@ -326,19 +331,28 @@ public class MessageBuilder {
     }
 
     public CharSequence buildMessage(MessageInfo message) {
+        return buildMessage(message, null);
+    }
+
+    /**
+     * @param channelTypes the CHANTYPES of the server the message comes from, used to link channel names
+     */
+    public CharSequence buildMessage(MessageInfo message, ModeList channelTypes) {
         String senderNick = message.getSender() == null ? null : message.getSender().getNick();
-        Log.d("IRC", "Message: type=" + message.getType() + " class=" + message.getClass());
 
         switch (message.getType()) {
             case NORMAL:
                 return processFormat(mMessageFormat, message.getDate(), message.getSender(),
-                        LinkHelper.addLinks(IRCColorUtils.getFormattedString(mContext, message.getMessage())));
+                        LinkHelper.addLinks(IRCColorUtils.getFormattedString(mContext, message.getMessage()),
+                                channelTypes));
             case NOTICE:
                 return processFormat(mNoticeMessageFormat, message.getDate(), message.getSender(),
-                        LinkHelper.addLinks(IRCColorUtils.getFormattedString(mContext, message.getMessage())));
+                        LinkHelper.addLinks(IRCColorUtils.getFormattedString(mContext, message.getMessage()),
+                                channelTypes));
             case ME:
                 return processFormat(mActionMessageFormat, message.getDate(), message.getSender(),
-                        LinkHelper.addLinks(IRCColorUtils.getFormattedString(mContext, message.getMessage())));
+                        LinkHelper.addLinks(IRCColorUtils.getFormattedString(mContext, message.getMessage()),
+                                channelTypes));
             case JOIN:
                 return processFormat(mEventMessageFormat, message.getDate(), null,
                         SpannableStringHelper.getText(mContext, R.string.message_join,
@@ -376,7 +390,7 @@ public class MessageBuilder {
                     return processFormat(mEventMessageFormat, message.getDate(), null,
                             SpannableStringHelper.getText(mContext, R.string.message_topic_none));
                 CharSequence topicText = buildColoredMessage(LinkHelper.addLinks(
-                        IRCColorUtils.getFormattedString(mContext, message.getMessage())),
+                        IRCColorUtils.getFormattedString(mContext, message.getMessage()), channelTypes),
                         IRCColorUtils.getTopicTextColor(mContext), true);
                 if (message.getSender() == null)
                     return processFormat(mEventMessageFormat, message.getDate(), null,
@@ -402,15 +416,21 @@ public class MessageBuilder {
     }
 
     public CharSequence buildMessageWithMention(MessageInfo message) {
+        return buildMessageWithMention(message, null);
+    }
+
+    public CharSequence buildMessageWithMention(MessageInfo message, ModeList channelTypes) {
         switch (message.getType()) {
             case NORMAL:
                 return processFormat(mMentionMessageFormat, message.getDate(), message.getSender(),
-                        LinkHelper.addLinks(IRCColorUtils.getFormattedString(mContext, message.getMessage())));
+                        LinkHelper.addLinks(IRCColorUtils.getFormattedString(mContext, message.getMessage()),
+                                channelTypes));
             case ME:
                 return processFormat(mActionMentionMessageFormat, message.getDate(), message.getSender(),
-                        LinkHelper.addLinks(IRCColorUtils.getFormattedString(mContext, message.getMessage())));
+                        LinkHelper.addLinks(IRCColorUtils.getFormattedString(mContext, message.getMessage()),
+                                channelTypes));
         }
-        return buildMessage(message);
+        return buildMessage(message, channelTypes);
     }
 
     public CharSequence buildStatusMessage(StatusMessageInfo message) {
@@ -0,0 +1,237 @@
+package io.mrarm.irc.util;
+
+import io.mrarm.irc.chatlib.dto.ModeList;
+
+/**
+ * Finds web links and channel names in message text, in a single pass over it and without regular expressions.
+ * <p>
+ * Channel names start with one of the server's CHANTYPES at the beginning of the text or after a space and run until
+ * a space, comma or BEL. Links either start with one of {@link #SCHEMES}, with "www.", or are a bare host name
+ * which is directly followed by a path ("example.com/page") or ends with one of {@link #BARE_HOST_TLDS}
+ * ("github.com"); other bare host names are not linked, so that file names and the like ("node.js") are not either.
+ * Trailing punctuation and unbalanced closing brackets are not part of a link.
+ * <p>
+ * {@link #containsMention(CharSequence, String)} matches the default nick notification rule without a regex. It is a
+ * separate scan on purpose: the rule is checked on the raw message when it arrives, while links are found in the
+ * formatted text when it is shown, and it has to match what the rule's regex would (including inside links).
+ */
+public class MessageTokenizer {
+
+    public static final int TOKEN_URL = 1;
+    public static final int TOKEN_CHANNEL = 2;
+
+    public interface TokenCallback {
+        void onToken(int type, int start, int end);
+    }
+
+    static final String[] SCHEMES = {"http://", "https://", "ftp://", "rtsp://", "ircs://", "irc://"};
+    // Only common ones which are not also file extensions ("sh", "py", "js", "rs", "md")
+    static final String[] BARE_HOST_TLDS = {"com", "net", "org", "edu", "gov", "io", "dev", "app", "info", "chat",
+            "social", "eu", "uk", "de", "fr", "nl", "ru", "jp", "us", "ca", "au", "ch", "se", "fi", "pl"};
+
+    private static final String DEFAULT_CHANNEL_TYPES = "#";
+    private static final String MENTION_PREFIX_CHARS = " ,:;@";
+    private static final String MENTION_SUFFIX_CHARS = " ,:;'?";
+    private static final String URL_TRAILING_CHARS = ".,;:!?'\"*";
+
+    /**
+     * Reports the tokens in the order they appear; they never overlap. {@code channelTypes} defaults to '#'.
+     */
+    public static void tokenize(CharSequence text, ModeList channelTypes, TokenCallback callback) {
+        String types = channelTypes != null && channelTypes.length() > 0 ? channelTypes.toString()
+                : DEFAULT_CHANNEL_TYPES;
+        int len = text.length();
+        int i = 0;
+        while (i < len) {
+            char c = text.charAt(i);
+            char prev = i > 0 ? text.charAt(i - 1) : ' ';
+            if (prev == ' ' && types.indexOf(c) != -1) {
+                int end = i + 1;
+                while (end < len && !isChannelTerminator(text.charAt(end)))
+                    end++;
+                if (end > i + 1) {
+                    callback.onToken(TOKEN_CHANNEL, i, end);
+                    i = end;
+                    continue;
+                }
+            }
+            if (isAsciiLetterOrDigit(c) && !Character.isLetterOrDigit(prev) && prev != '.' && prev != '-' &&
+                    prev != '@') {
+                int end = matchUrl(text, i);
+                if (end != -1) {
+                    callback.onToken(TOKEN_URL, i, end);
+                    i = end;
+                    continue;
+                }
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Whether the text mentions the nick: the nick (ASCII case insensitive) between the same delimiters the default
+     * nick notification rule uses.
+     */
+    public static boolean containsMention(CharSequence text, String nick) {
+        if (text == null || nick == null || nick.isEmpty())
+            return false;
+        int len = text.length();
+        for (int i = 0; i + nick.length() <= len; i++) {
+            if ((i == 0 || MENTION_PREFIX_CHARS.indexOf(text.charAt(i - 1)) != -1) &&
+                    matchMention(text, i, nick) != -1)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Turns a link token into the URL to open: links without a scheme get "http://", the scheme is lowercased.
+     */
+    public static String toUrl(CharSequence token) {
+        String str = token.toString();
+        for (String scheme : SCHEMES) {
+            if (startsWithIgnoreCase(str, 0, scheme))
+                return scheme + str.substring(scheme.length());
+        }
+        return "http://" + str;
+    }
+
+    private static int matchMention(CharSequence text, int start, String nick) {
+        int end = start + nick.length();
+        if (end > text.length() || !startsWithIgnoreCase(text, start, nick))
+            return -1;
+        if (end < text.length() && MENTION_SUFFIX_CHARS.indexOf(text.charAt(end)) == -1)
+            return -1;
+        return end;
+    }
+
+    private static int matchUrl(CharSequence text, int start) {
+        int hostStart = -1;
+        for (String scheme : SCHEMES) {
+            if (startsWithIgnoreCase(text, start, scheme)) {
+                hostStart = start + scheme.length();
+                break;
+            }
+        }
+        boolean needsPath = false;
+        if (hostStart == -1) {
+            int hostEnd = scanHostName(text, start);
+            if (hostEnd == -1)
+                return -1;
+            boolean www = startsWithIgnoreCase(text, start, "www.");
+            char next = hostEnd < text.length() ? text.charAt(hostEnd) : ' ';
+            if (!www && next != '/') {
+                // Just the host name ("github.com's"), or with a port
+                if (!hasBareHostTld(text, start, hostEnd))
+                    return -1;
+                if (next != ':')
+                    return hostEnd;
+            }
+            needsPath = !www;
+            hostStart = start;
+        }
+
+        int len = text.length();
+        int end = hostStart;
+        int parens = 0;
+        int brackets = 0;
+        while (end < len) {
+            char c = text.charAt(end);
+            if (c <= ' ' || c == '<' || c == '>' || c == '"' || c == 0x7f || Character.isWhitespace(c))
+                break;
+            if (c == '(') parens++;
+            else if (c == ')') parens--;
+            else if (c == '[') brackets++;
+            else if (c == ']') brackets--;
+            end++;
+        }
+        while (end > hostStart) {
+            char c = text.charAt(end - 1);
+            if (URL_TRAILING_CHARS.indexOf(c) != -1) {
+                end--;
+            } else if (c == ')' && parens < 0) {
+                parens++;
+                end--;
+            } else if (c == ']' && brackets < 0) {
+                brackets++;
+                end--;
+            } else {
+                break;
+            }
+        }
+        if (end <= hostStart || (!needsPath && !isAsciiLetterOrDigit(text.charAt(hostStart)) &&
+                text.charAt(hostStart) != '['))
+            return -1;
+        return end;
+    }
+
+    /**
+     * Returns the end of the host name at start if it looks like one (at least two labels, the last one being two
+     * or more letters), or -1.
+     */
+    private static int scanHostName(CharSequence text, int start) {
+        int len = text.length();
+        int labelStart = start;
+        int labels = 0;
+        boolean lastAlpha = true;
+        int i = start;
+        for (; i < len; i++) {
+            char c = text.charAt(i);
+            if (c == '.') {
+                if (i == labelStart || i + 1 >= len || !isAsciiLetterOrDigit(text.charAt(i + 1)))
+                    break;
+                labels++;
+                labelStart = i + 1;
+                lastAlpha = true;
+            } else if (isAsciiLetterOrDigit(c) || c == '-') {
+                if (!isAsciiLetter(c))
+                    lastAlpha = false;
+            } else {
+                break;
+            }
+        }
+        if (labels == 0 || !lastAlpha || i - labelStart < 2)
+            return -1;
+        return i;
+    }
+
+    private static boolean hasBareHostTld(CharSequence text, int start, int hostEnd) {
+        int tldStart = hostEnd;
+        while (tldStart > start && text.charAt(tldStart - 1) != '.')
+            tldStart--;
+        for (String tld : BARE_HOST_TLDS) {
+            if (tld.length() == hostEnd - tldStart && startsWithIgnoreCase(text, tldStart, tld))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean isChannelTerminator(char c) {
+        return c == ' ' || c == ',' || c == '\u0007';
+    }
+
+    private static boolean isAsciiLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isAsciiLetterOrDigit(char c) {
+        return isAsciiLetter(c) || (c >= '0' && c <= '9');
+    }
+
+    private static boolean startsWithIgnoreCase(CharSequence text, int start, String prefix) {
+        if (start + prefix.length() > text.length())
+            return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            char a = text.charAt(start + i);
+            char b = prefix.charAt(i);
+            if (a != b && toLowerAscii(a) != toLowerAscii(b))
+                return false;
+        }
+        return true;
+    }
+
+    private static char toLowerAscii(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+}
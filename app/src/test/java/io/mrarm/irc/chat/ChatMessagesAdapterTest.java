@@ -0,0 +1,283 @@
+package io.mrarm.irc.chat;
+
+import android.content.Context;
+import android.text.format.DateUtils;
+
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.mrarm.irc.chatlib.dto.MessageId;
+import io.mrarm.irc.chatlib.dto.MessageInfo;
+import io.mrarm.irc.chatlib.dto.RoomMessageId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the window of pages the adapter keeps: the item ids have to stay the same while items are added and dropped
+ * around them, and every day has to start with its day marker.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ChatMessagesAdapterTest {
+
+    private static final int PAGE = ChatMessagesAdapter.PAGE_SIZE;
+    // Message n is sent on day n / MESSAGES_PER_DAY, so that pages don't start or end with a day
+    private static final int MESSAGES_PER_DAY = 70;
+
+    private Context context;
+    private VisibleRangeLayoutManager layoutManager;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        layoutManager = new VisibleRangeLayoutManager(context);
+    }
+
+    private ChatMessagesAdapter createAdapter(long from, long to) {
+        ChatMessagesAdapter adapter = new ChatMessagesAdapter(messages(from, to), ids(from, to));
+        RecyclerView recyclerView = new RecyclerView(context);
+        recyclerView.setLayoutManager(layoutManager);
+        recyclerView.setAdapter(adapter);
+        return adapter;
+    }
+
+    private static Date dateOf(long id) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2024, Calendar.JANUARY, 1);
+        calendar.add(Calendar.DAY_OF_YEAR, (int) (id / MESSAGES_PER_DAY));
+        calendar.add(Calendar.MINUTE, (int) (id % MESSAGES_PER_DAY));
+        return calendar.getTime();
+    }
+
+    private static List<MessageInfo> messages(long from, long to) {
+        List<MessageInfo> ret = new ArrayList<>();
+        for (long id = from; id < to; id++)
+            ret.add(new MessageInfo(null, dateOf(id), "message " + id, MessageInfo.MessageType.NORMAL));
+        return ret;
+    }
+
+    private static List<MessageId> ids(long from, long to) {
+        List<MessageId> ret = new ArrayList<>();
+        for (long id = from; id < to; id++)
+            ret.add(new RoomMessageId(id));
+        return ret;
+    }
+
+    private static int positionOf(ChatMessagesAdapter adapter, long id) {
+        return adapter.findMessageWithId(new RoomMessageId(id));
+    }
+
+    private static Map<ChatMessagesAdapter.Item, Long> itemIds(ChatMessagesAdapter adapter) {
+        Map<ChatMessagesAdapter.Item, Long> ret = new IdentityHashMap<>();
+        for (int i = 0; i < adapter.getItemCount(); i++)
+            ret.put(adapter.getMessage(i), adapter.getItemId(i));
+        return ret;
+    }
+
+    // Returns how many of the items are still there
+    private static int assertSameItemIds(Map<ChatMessagesAdapter.Item, Long> before, ChatMessagesAdapter adapter) {
+        int kept = 0;
+        for (int i = 0; i < adapter.getItemCount(); i++) {
+            Long itemId = before.get(adapter.getMessage(i));
+            if (itemId != null) {
+                assertEquals("item id at " + i, (long) itemId, adapter.getItemId(i));
+                kept++;
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Checks that the messages are in order, can be found by their id, and that each day starts with its marker and
+     * has no other. Returns the ids of the messages.
+     */
+    private List<Long> assertWindow(ChatMessagesAdapter adapter) {
+        List<Long> ret = new ArrayList<>();
+        int count = adapter.getItemCount();
+        assertTrue(count == 0 || adapter.getMessage(0) instanceof ChatMessagesAdapter.DayMarkerItem);
+        for (int i = 0; i < count; i++) {
+            ChatMessagesAdapter.Item item = adapter.getMessage(i);
+            if (item instanceof ChatMessagesAdapter.DayMarkerItem) {
+                assertTrue("day marker at " + i + " without a message after it",
+                        i + 1 < count && adapter.getMessage(i + 1) instanceof ChatMessagesAdapter.MessageItem);
+                MessageInfo next = ((ChatMessagesAdapter.MessageItem) adapter.getMessage(i + 1)).mMessage;
+                assertEquals(DateUtils.formatDateTime(context, next.getDate().getTime(),
+                        DateUtils.FORMAT_SHOW_DATE), ((ChatMessagesAdapter.DayMarkerItem) item).getMessageText(context));
+                continue;
+            }
+            long id = ((RoomMessageId) ((ChatMessagesAdapter.MessageItem) item).mMessageId).getId();
+            assertEquals(i, positionOf(adapter, id));
+            if (!ret.isEmpty()) {
+                long prev = ret.get(ret.size() - 1);
+                assertTrue(id > prev);
+                boolean newDay = id / MESSAGES_PER_DAY != prev / MESSAGES_PER_DAY;
+                assertEquals("day marker before message " + id, newDay,
+                        adapter.getMessage(i - 1) instanceof ChatMessagesAdapter.DayMarkerItem);
+            }
+            ret.add(id);
+        }
+        return ret;
+    }
+
+    private static List<Long> range(long from, long to) {
+        List<Long> ret = new ArrayList<>();
+        for (long id = from; id < to; id++)
+            ret.add(id);
+        return ret;
+    }
+
+    private void showLast(ChatMessagesAdapter adapter, int count) {
+        layoutManager.show(adapter.getItemCount() - count, adapter.getItemCount() - 1);
+    }
+
+    @Test
+    public void keepsItemIdsWhenAddingPages() {
+        ChatMessagesAdapter adapter = createAdapter(PAGE, 2 * PAGE);
+        assertEquals(range(PAGE, 2 * PAGE), assertWindow(adapter));
+
+        Map<ChatMessagesAdapter.Item, Long> before = itemIds(adapter);
+        adapter.addMessagesToTop(messages(0, PAGE), ids(0, PAGE));
+        assertEquals(range(0, 2 * PAGE), assertWindow(adapter));
+        // All but the day marker at the top, which is replaced by the one of the new first message
+        assertEquals(before.size() - 1, assertSameItemIds(before, adapter));
+
+        before = itemIds(adapter);
+        adapter.addMessagesToBottom(messages(2 * PAGE, 3 * PAGE), ids(2 * PAGE, 3 * PAGE));
+        assertEquals(range(0, 3 * PAGE), assertWindow(adapter));
+        assertEquals(before.size(), assertSameItemIds(before, adapter));
+        assertTrue(adapter.isAtLatest());
+    }
+
+    private void evictsFromTopWhenAppending(long first) {
+        // One page prepended and the rest set, so that the evicted items span both lists
+        ChatMessagesAdapter adapter = createAdapter(first + PAGE, first + ChatMessagesAdapter.MAX_PAGES * PAGE);
+        adapter.addMessagesToTop(messages(first, first + PAGE), ids(first, first + PAGE));
+        long end = first + ChatMessagesAdapter.MAX_PAGES * PAGE;
+        assertEquals(range(first, end), assertWindow(adapter));
+
+        showLast(adapter, 20);
+        Map<ChatMessagesAdapter.Item, Long> before = itemIds(adapter);
+        adapter.addMessagesToBottom(messages(end, end + PAGE), ids(end, end + PAGE));
+
+        long kept = end + PAGE - (ChatMessagesAdapter.MAX_PAGES - 1) * PAGE;
+        assertEquals(range(kept, end + PAGE), assertWindow(adapter));
+        for (long id = first; id < kept; id++)
+            assertEquals(-1, positionOf(adapter, id));
+        assertSameItemIds(before, adapter);
+        assertEquals(kept, adapter.getFirstMessageId());
+        assertTrue(adapter.isAtLatest());
+    }
+
+    @Test
+    public void evictsFromTopWhenAppending() {
+        // The first message kept is in the middle of its day, its marker is added
+        evictsFromTopWhenAppending(0);
+    }
+
+    @Test
+    public void evictsFromTopUpToDayMarker() {
+        // The first message kept starts a day, its marker is kept
+        evictsFromTopWhenAppending(80);
+    }
+
+    private void evictsFromBottomWhenPrepending(long base) {
+        long end = base + (ChatMessagesAdapter.MAX_PAGES + 1) * PAGE;
+        ChatMessagesAdapter adapter = createAdapter(end - PAGE, end);
+        layoutManager.show(0, 20);
+        // Positions are only updated on the next layout, the same as while loading pages faster than they are shown
+        for (long start = end - 2 * PAGE; start >= base + PAGE; start -= PAGE)
+            adapter.addMessagesToTop(messages(start, start + PAGE), ids(start, start + PAGE));
+        assertEquals(range(base + PAGE, end), assertWindow(adapter));
+        assertTrue(adapter.isAtLatest());
+
+        layoutManager.show(0, 20);
+        Map<ChatMessagesAdapter.Item, Long> before = itemIds(adapter);
+        adapter.addMessagesToTop(messages(base, base + PAGE), ids(base, base + PAGE));
+
+        long kept = base + (ChatMessagesAdapter.MAX_PAGES - 1) * PAGE;
+        assertEquals(range(base, kept), assertWindow(adapter));
+        for (long id = kept; id < end; id++)
+            assertEquals(-1, positionOf(adapter, id));
+        assertSameItemIds(before, adapter);
+        assertEquals(kept - 1, adapter.getLastMessageId());
+        assertFalse(adapter.isAtLatest());
+
+        // Loading the dropped page again adds back its day marker if it starts a day
+        adapter.addMessagesToBottom(messages(kept, kept + PAGE), ids(kept, kept + PAGE));
+        assertEquals(range(base, kept + PAGE), assertWindow(adapter));
+    }
+
+    @Test
+    public void evictsFromBottomWhenPrepending() {
+        // The first message dropped is in the middle of its day
+        evictsFromBottomWhenPrepending(0);
+    }
+
+    @Test
+    public void evictsFromBottomWithDayMarker() {
+        // The first message dropped starts a day, its marker goes with it
+        evictsFromBottomWhenPrepending(20);
+    }
+
+    @Test
+    public void keepsWhatIsOnScreen() {
+        long end = ChatMessagesAdapter.MAX_PAGES * PAGE;
+        ChatMessagesAdapter adapter = createAdapter(0, end);
+        int firstVisible = positionOf(adapter, 100);
+        layoutManager.show(firstVisible, firstVisible + 20);
+        ChatMessagesAdapter.Item margin = adapter.getMessage(firstVisible - 50);
+        Map<ChatMessagesAdapter.Item, Long> before = itemIds(adapter);
+
+        adapter.addMessagesToBottom(messages(end, end + PAGE), ids(end, end + PAGE));
+
+        // Less than the 200 messages over the limit are dropped, down to the margin above the screen
+        List<Long> ids = assertWindow(adapter);
+        long first = ids.get(0);
+        assertTrue(first > 0 && first < 100);
+        assertEquals(range(first, end + PAGE), ids);
+        assertTrue(itemIds(adapter).containsKey(margin));
+        assertEquals(-1, positionOf(adapter, first - 1));
+        assertSameItemIds(before, adapter);
+    }
+
+    // Reports a fixed range of positions as visible, without laying anything out
+    private static class VisibleRangeLayoutManager extends LinearLayoutManager {
+
+        private int mFirst = RecyclerView.NO_POSITION;
+        private int mLast = RecyclerView.NO_POSITION;
+
+        VisibleRangeLayoutManager(Context context) {
+            super(context);
+        }
+
+        void show(int first, int last) {
+            mFirst = first;
+            mLast = last;
+        }
+
+        @Override
+        public int findFirstVisibleItemPosition() {
+            return mFirst;
+        }
+
+        @Override
+        public int findLastVisibleItemPosition() {
+            return mLast;
+        }
+
+    }
+
+}
@@ -0,0 +1,113 @@
+package io.mrarm.irc.chatlib.irc;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BufferedLineFramerTest {
+
+    private static final String[] SAMPLE_LINES = {
+            ":irc.example.net 001 tester :Welcome to the Example IRC Network tester!user@host",
+            ":irc.example.net 353 tester = #channel :@op +voice user1 user2 user3 user4 user5",
+            "PING :irc.example.net",
+            "@time=2024-03-01T12:00:00.000Z;batch=abc :nick!user@host PRIVMSG #channel :hello there",
+            "@time=2024-03-01T12:00:01.123Z;msgid=a\\sb\\:c :nick!user@host PRIVMSG #channel :здравствуйте 你好 😀",
+            ":nick!user@host JOIN #channel",
+            ":nick!user@host QUIT :Ping timeout: 240 seconds",
+            ":nick!user@host NOTICE tester :\u0002bold\u0002 \u000304colored\u000f text"
+    };
+    private static final String[] TERMINATORS = {"\r\n", "\n", "\r\n\r\n", "\r"};
+
+    @Test
+    public void streamsRecordedTraffic() throws IOException {
+        Random random = new Random(1234);
+        List<String> expected = new ArrayList<>();
+        ByteArrayOutputStream traffic = new ByteArrayOutputStream();
+        while (traffic.size() < 8 * 1024 * 1024) {
+            String line = SAMPLE_LINES[random.nextInt(SAMPLE_LINES.length)];
+            if (random.nextInt(50) == 0)
+                line = "@" + repeat("k=v;", 2000) + "x=y " + line;
+            expected.add(line);
+            traffic.write(line.getBytes(StandardCharsets.UTF_8));
+            traffic.write(TERMINATORS[random.nextInt(TERMINATORS.length)].getBytes(StandardCharsets.UTF_8));
+        }
+        LineFramer framer = new BufferedLineFramer(
+                new ChunkedInputStream(traffic.toByteArray(), random), StandardCharsets.UTF_8);
+        for (String line : expected)
+            assertEquals(line, framer.readLine());
+        try {
+            framer.readLine();
+            fail("Expected end of stream");
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Test
+    public void truncatesOverlongLines() throws IOException {
+        String longLine = repeat("a", LineFramer.MAX_LINE_LENGTH + 5000);
+        byte[] data = (longLine + "\r\nPING :x\r\n").getBytes(StandardCharsets.UTF_8);
+        LineFramer framer = new BufferedLineFramer(new ByteArrayInputStream(data), StandardCharsets.UTF_8);
+        assertEquals(longLine.substring(0, LineFramer.MAX_LINE_LENGTH), framer.readLine());
+        assertEquals("PING :x", framer.readLine());
+    }
+
+    @Test
+    public void decodesCharactersSplitAcrossReads() throws IOException {
+        String line = "PRIVMSG #c :😀你好з";
+        byte[] data = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        LineFramer framer = new BufferedLineFramer(new ChunkedInputStream(data, null), StandardCharsets.UTF_8);
+        assertEquals(line, framer.readLine());
+    }
+
+    private static String repeat(String s, int count) {
+        StringBuilder builder = new StringBuilder(s.length() * count);
+        for (int i = 0; i < count; i++)
+            builder.append(s);
+        return builder.toString();
+    }
+
+    /**
+     * Returns the data in randomly sized chunks, or byte by byte if no random is given, the way a socket would.
+     */
+    private static class ChunkedInputStream extends InputStream {
+
+        private final byte[] data;
+        private final Random random;
+        private int position;
+
+        ChunkedInputStream(byte[] data, Random random) {
+            this.data = data;
+            this.random = random;
+        }
+
+        @Override
+        public int read() {
+            return position < data.length ? (data[position++] & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position >= data.length)
+                return -1;
+            int n = Math.min(len, data.length - position);
+            if (random != null)
+                n = Math.min(n, 1 + random.nextInt(4096));
+            else
+                n = 1;
+            System.arraycopy(data, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+    }
+
+}
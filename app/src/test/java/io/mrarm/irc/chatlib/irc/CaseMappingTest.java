@@ -0,0 +1,55 @@
+package io.mrarm.irc.chatlib.irc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CaseMappingTest {
+
+    @Test
+    public void mapsSpecialCharsPerMapping() {
+        assertEquals("nick{}|~", CaseMapping.RFC1459.toLowerCase("NICK[]\\^"));
+        assertEquals("nick{}|^", CaseMapping.STRICT_RFC1459.toLowerCase("NICK[]\\^"));
+        assertEquals("nick[]\\^", CaseMapping.ASCII.toLowerCase("NICK[]\\^"));
+        // lower case chars are never mapped back
+        assertEquals("{}|~", CaseMapping.RFC1459.toLowerCase("{}|~"));
+        assertEquals("ник", CaseMapping.RFC7613.toLowerCase("НИК"));
+        assertEquals("НИК", CaseMapping.RFC1459.toLowerCase("НИК"));
+    }
+
+    @Test
+    public void returnsSameStringIfAlreadyLowerCase() {
+        String str = "already{lower}";
+        assertSame(str, CaseMapping.RFC1459.toLowerCase(str));
+    }
+
+    @Test
+    public void comparesIgnoringCase() {
+        assertTrue(CaseMapping.RFC1459.equals("Foo^", "foo~"));
+        assertFalse(CaseMapping.STRICT_RFC1459.equals("Foo^", "foo~"));
+        assertEquals(0, CaseMapping.RFC1459.compareIgnoreCase("[Foo]", "{fOO}"));
+        assertTrue(CaseMapping.ASCII.compareIgnoreCase("a", "B") < 0);
+        assertTrue(CaseMapping.ASCII.compareIgnoreCase("ab", "A") > 0);
+        assertEquals(0, CaseMapping.RFC7613.compareIgnoreCase("НИК", "ник"));
+    }
+
+    @Test
+    public void fallsBackToRfc1459() {
+        assertEquals(CaseMapping.ASCII, CaseMapping.fromName("ASCII"));
+        assertEquals(CaseMapping.RFC1459, CaseMapping.fromName("unknown"));
+        assertEquals(CaseMapping.RFC1459, CaseMapping.fromName(null));
+    }
+
+    @Test
+    public void findsJoinedChannelsUsingServerCaseMapping() {
+        ServerConnectionData connection = new ServerConnectionData();
+        connection.onChannelJoined("#Chan[1]");
+        assertTrue(connection.hasJoinedChannel("#chan{1}"));
+        connection.getSupportList().setCaseMapping(CaseMapping.ASCII);
+        assertFalse(connection.hasJoinedChannel("#chan{1}"));
+        assertTrue(connection.hasJoinedChannel("#CHAN[1]"));
+        connection.onChannelLeft("#chan[1]");
+        assertFalse(connection.hasJoinedChannel("#Chan[1]"));
+    }
+
+}
@@ -0,0 +1,76 @@
+package io.mrarm.irc.chatlib.irc;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.mrarm.irc.chatlib.irc.handlers.PongCommandHandler;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures the per-line dispatch cost of {@link CommandHandlerList} against the previous String-keyed HashMap lookup.
+ * The numbers are printed rather than asserted, as they depend on the machine running the tests. Skipped unless the
+ * tests are run with {@code -Pbenchmarks}; {@link CommandHandlerListTest} checks the dispatch itself.
+ */
+public class CommandHandlerListBenchmark {
+
+    private static final String[] LINES = {
+            ":nick!user@host PRIVMSG #channel :hello there",
+            ":nick!user@host NOTICE #channel :hello there",
+            "PING :irc.example.net",
+            ":irc.example.net 353 tester = #channel :@op +voice user1 user2",
+            ":irc.example.net 366 tester #channel :End of /NAMES list.",
+            ":nick!user@host JOIN #channel",
+            ":nick!user@host QUIT :Ping timeout: 240 seconds",
+            ":irc.example.net 372 tester :- message of the day"
+    };
+    private static final int ITERATIONS = 2_000_000;
+
+    @Test
+    public void benchmarkDispatch() throws InvalidMessageException {
+        assumeTrue("benchmarks are only run with -Pbenchmarks", Boolean.getBoolean("benchmarks"));
+        CommandHandlerList list = new CommandHandlerList();
+        list.addDefaultHandlers();
+        Map<String, CommandHandler> legacy = new HashMap<>();
+        for (String line : LINES) {
+            ParsedMessage message = new ParsedMessage();
+            message.reset(line);
+            legacy.put(message.getCommand(), list.getHandlerFor(message));
+        }
+        ParsedMessage[] messages = new ParsedMessage[LINES.length];
+        for (int i = 0; i < LINES.length; i++) {
+            messages[i] = new ParsedMessage();
+            messages[i].reset(LINES[i]);
+        }
+
+        for (int round = 0; round < 3; round++) {
+            long sink = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                ParsedMessage message = messages[i % messages.length];
+                String command = message.getLine().substring(message.getCommandStart(), message.getCommandEnd());
+                if (legacy.containsKey(command))
+                    sink += legacy.get(command).hashCode();
+            }
+            long legacyTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++)
+                sink += list.getHandlerFor(messages[i % messages.length]).hashCode();
+            long tableTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++)
+                sink += list.getHandler(PongCommandHandler.class).hashCode();
+            long classTime = System.nanoTime() - start;
+
+            System.out.printf("CommandHandlerList dispatch: HashMap %.1f ns/line, table %.1f ns/line, " +
+                            "getHandler(Class) %.1f ns/call (%d)%n",
+                    legacyTime / (double) ITERATIONS, tableTime / (double) ITERATIONS,
+                    classTime / (double) ITERATIONS, sink & 1);
+        }
+    }
+
+}
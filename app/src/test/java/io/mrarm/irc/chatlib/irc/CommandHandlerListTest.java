@@ -0,0 +1,42 @@
+package io.mrarm.irc.chatlib.irc;
+
+import org.junit.Test;
+
+import io.mrarm.irc.chatlib.irc.handlers.MessageCommandHandler;
+import io.mrarm.irc.chatlib.irc.handlers.NamesReplyCommandHandler;
+import io.mrarm.irc.chatlib.irc.handlers.PingCommandHandler;
+import io.mrarm.irc.chatlib.irc.handlers.PongCommandHandler;
+import io.mrarm.irc.chatlib.irc.handlers.WhoisCommandHandler;
+
+import static org.junit.Assert.*;
+
+public class CommandHandlerListTest {
+
+    @Test
+    public void resolvesRegisteredHandlers() throws InvalidMessageException {
+        CommandHandlerList list = new CommandHandlerList();
+        list.addDefaultHandlers();
+        ParsedMessage message = new ParsedMessage();
+        message.reset(":nick!user@host PRIVMSG #channel :hello there");
+        assertTrue(list.getHandlerFor(message) instanceof MessageCommandHandler);
+        message.reset(":nick!user@host NOTICE #channel :hello there");
+        assertTrue(list.getHandlerFor(message) instanceof MessageCommandHandler);
+        message.reset("PING :irc.example.net");
+        assertTrue(list.getHandlerFor(message) instanceof PingCommandHandler);
+        message.reset(":irc.example.net 353 tester = #channel :@op +voice user1 user2");
+        assertTrue(list.getHandlerFor(message) instanceof NamesReplyCommandHandler);
+        assertTrue(list.getHandlerFor("353") instanceof NamesReplyCommandHandler);
+        assertNotNull(list.<PongCommandHandler>getHandler(PongCommandHandler.class));
+        assertNotNull(list.<WhoisCommandHandler>getHandler(WhoisCommandHandler.class));
+    }
+
+    @Test(expected = InvalidMessageException.class)
+    public void rejectsUnknownCommand() throws InvalidMessageException {
+        CommandHandlerList list = new CommandHandlerList();
+        list.addDefaultHandlers();
+        ParsedMessage message = new ParsedMessage();
+        message.reset(":irc.example.net FOOBAR tester :what");
+        list.getHandlerFor(message);
+    }
+
+}
@@ -0,0 +1,166 @@
+package io.mrarm.irc.chatlib.irc;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Property tests splitting random Unicode text: every chunk must fit in the server's line limit in the given charset,
+ * chunks must not end inside a surrogate pair or a formatting code, and stripping the repeated formatting from the
+ * chunks must give back the original text.
+ */
+public class MessageSplitHelperTest {
+
+    private static final Charset[] CHARSETS = {
+            StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1, Charset.forName("windows-1251"),
+            Charset.forName("Shift_JIS")
+    };
+    private static final String[] FORMATTING = {
+            "\u0002", "\u001D", "\u001F", "\u000F", "\u0016", "\u00034", "\u000312,5", "\u00033,14", "\u0003"
+    };
+    private static final Pattern FORMATTING_PREFIX =
+            Pattern.compile("^(\u0003\\d{1,2},\\d{1,2})?\u0002?\u001D?\u001F?");
+    private static final Pattern COLOR_CODE = Pattern.compile("\u0003(\\d{1,2}(,\\d{1,2})?)?");
+
+    private static ServerConnectionData createConnection(String nick, String user, String host) {
+        ServerConnectionData data = new ServerConnectionData();
+        data.setUserNick(nick);
+        if (user != null)
+            data.setUserExtraInfo(user, host);
+        return data;
+    }
+
+    private static String randomText(Random random, int length, boolean formatting) {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < length) {
+            int kind = random.nextInt(10);
+            if (formatting && kind == 0) {
+                builder.append(FORMATTING[random.nextInt(FORMATTING.length)]);
+            } else if (kind == 1) {
+                builder.append(' ');
+            } else if (kind == 2) {
+                builder.appendCodePoint(0x1F600 + random.nextInt(80)); // emoji, surrogate pairs
+            } else if (kind == 3) {
+                builder.appendCodePoint(0x4E00 + random.nextInt(0x5000)); // CJK
+            } else if (kind == 4) {
+                builder.appendCodePoint(0x0410 + random.nextInt(64)); // Cyrillic
+            } else if (kind == 5) {
+                builder.appendCodePoint(0x80 + random.nextInt(0x780));
+            } else if (kind == 6) {
+                builder.append("0123456789,".charAt(random.nextInt(11))); // may extend a color code
+            } else {
+                builder.append((char) ('a' + random.nextInt(26)));
+            }
+        }
+        return builder.toString();
+    }
+
+    private static void checkSplit(ServerConnectionData conn, Charset charset, String channel, String message,
+                                   boolean notice, String[] chunks) {
+        String prefix = ":" + conn.getUserNick() + "!" +
+                (conn.getUserUser() != null ? conn.getUserUser() : "abcdefghij") + "@" +
+                (conn.getUserHost() != null ? conn.getUserHost() : new String(new char[63]).replace('\0', 'h')) +
+                " " + (notice ? "NOTICE " : "PRIVMSG ") + channel + " :";
+        boolean isMe = message.startsWith("\u0001ACTION ") && message.endsWith("\u0001") && message.length() > 8;
+        String remaining = isMe && chunks.length > 1 ? message.substring(8, message.length() - 1) : message;
+        for (int i = 0; i < chunks.length; i++) {
+            String chunk = chunks[i];
+            assertTrue("Chunk too long", (prefix + chunk + "\r\n").getBytes(charset).length <= 512);
+            assertFalse(chunk.isEmpty());
+            if (chunks.length > 1 && isMe) {
+                assertTrue(chunk.startsWith("\u0001ACTION ") && chunk.endsWith("\u0001"));
+                chunk = chunk.substring(8, chunk.length() - 1);
+            }
+            if (i > 0) {
+                Matcher m = FORMATTING_PREFIX.matcher(chunk);
+                int maxStrip = m.find() ? m.end() : 0;
+                int strip = 0;
+                while (!remaining.startsWith(chunk.substring(strip))) {
+                    assertTrue("Unexpected chunk start", strip < maxStrip);
+                    strip++;
+                }
+                chunk = chunk.substring(strip);
+            } else {
+                assertTrue(remaining.startsWith(chunk));
+            }
+            remaining = remaining.substring(chunk.length());
+            if (i < chunks.length - 1) {
+                assertFalse("Split inside a surrogate pair",
+                        Character.isHighSurrogate(chunk.charAt(chunk.length() - 1)));
+                // a color code is at most 6 chars long, only the last one in the chunk can continue past it
+                int color = chunk.lastIndexOf('\u0003');
+                if (color != -1 && color >= chunk.length() - 6) {
+                    Matcher m = COLOR_CODE.matcher(chunk + remaining);
+                    m.region(color, chunk.length() + remaining.length());
+                    assertTrue(m.lookingAt());
+                    assertTrue("Split inside a color code", m.end() <= chunk.length());
+                }
+            }
+        }
+        assertEquals("", remaining);
+    }
+
+    @Test
+    public void randomUnicodeFitsInLimit() {
+        Random random = new Random(42);
+        for (int iter = 0; iter < 3000; iter++) {
+            Charset charset = CHARSETS[random.nextInt(CHARSETS.length)];
+            ServerConnectionData conn = random.nextBoolean() ?
+                    createConnection("tester" + random.nextInt(100), "~user", "host.example.com") :
+                    createConnection("тестер", null, null);
+            String channel = random.nextBoolean() ? "#channel" : "#канал";
+            boolean notice = random.nextBoolean();
+            String message = randomText(random, 1 + random.nextInt(2000), random.nextBoolean());
+            if (random.nextInt(4) == 0)
+                message = "\u0001ACTION " + message + "\u0001";
+            String[] chunks = MessageSplitHelper.split(conn, charset, channel, message, notice);
+            checkSplit(conn, charset, channel, message, notice, chunks);
+        }
+    }
+
+    @Test
+    public void shortMessageIsNotSplit() {
+        ServerConnectionData conn = createConnection("tester", "~user", "host.example.com");
+        String message = "привет 😀";
+        assertArrayEquals(new String[] { message },
+                MessageSplitHelper.split(conn, StandardCharsets.UTF_8, "#channel", message, false));
+    }
+
+    @Test
+    public void carriesFormattingToNextChunk() {
+        ServerConnectionData conn = createConnection("tester", "~user", "host.example.com");
+        StringBuilder message = new StringBuilder("\u00034,2\u0002");
+        for (int i = 0; i < 300; i++)
+            message.append("слово ");
+        String[] chunks = MessageSplitHelper.split(conn, StandardCharsets.UTF_8, "#channel", message.toString(),
+                false);
+        assertTrue(chunks.length > 1);
+        for (int i = 1; i < chunks.length; i++)
+            assertTrue(chunks[i].startsWith("\u000304,02\u0002"));
+        // breaks on spaces when one is close enough
+        for (int i = 0; i < chunks.length - 1; i++)
+            assertTrue(chunks[i].endsWith(" "));
+    }
+
+    @Test
+    public void countsShortColorCodesAsAscii() {
+        ServerConnectionData conn = createConnection("tester", "~user", "host.example.com");
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 400; i++)
+            message.append("\u00034x");
+        String[] chunks = MessageSplitHelper.split(conn, StandardCharsets.UTF_8, "#channel", message.toString(),
+                false);
+        checkSplit(conn, StandardCharsets.UTF_8, "#channel", message.toString(), false, chunks);
+        String prefix = ":tester!~user@host.example.com PRIVMSG #channel :";
+        for (int i = 0; i < chunks.length - 1; i++)
+            assertTrue("Chunk not filled", (prefix + chunks[i] + "\r\n").getBytes(StandardCharsets.UTF_8).length >
+                    512 - 3);
+    }
+
+}
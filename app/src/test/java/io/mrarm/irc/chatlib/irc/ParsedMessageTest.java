@@ -0,0 +1,161 @@
+package io.mrarm.irc.chatlib.irc;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ParsedMessageTest {
+
+    private static ParsedMessage parse(String line) throws InvalidMessageException {
+        ParsedMessage message = new ParsedMessage();
+        message.reset(line);
+        return message;
+    }
+
+    @Test
+    public void unescapesTagValues() throws InvalidMessageException {
+        ParsedMessage message = parse("@a=semi\\:colon;b=one\\stwo;c=back\\\\slash;d=cr\\rlf\\n;e=trailing\\;" +
+                "f=unknown\\x :nick PRIVMSG #channel :hi");
+        Map<String, String> tags = message.getTags();
+        assertEquals("semi;colon", tags.get("a"));
+        assertEquals("one two", tags.get("b"));
+        assertEquals("back\\slash", tags.get("c"));
+        assertEquals("cr\rlf\n", tags.get("d"));
+        assertEquals("trailing", tags.get("e"));
+        assertEquals("unknownx", tags.get("f"));
+    }
+
+    @Test
+    public void distinguishesMissingAndEmptyValues() throws InvalidMessageException {
+        Map<String, String> tags = parse("@flag;empty=;+client/tag=x :nick PRIVMSG #channel :hi").getTags();
+        assertTrue(tags.containsKey("flag"));
+        assertNull(tags.get("flag"));
+        assertEquals("", tags.get("empty"));
+        assertEquals("x", tags.get("+client/tag"));
+        assertFalse(tags.containsKey("fla"));
+        assertFalse(tags.containsKey("client/tag"));
+        assertNull(tags.get("missing"));
+    }
+
+    @Test
+    public void lastDuplicateTagWins() throws InvalidMessageException {
+        String line = "@time=first;msgid=abc;time=second :nick PRIVMSG #channel :hi";
+        assertEquals("second", parse(line).getTags().get("time"));
+
+        // the same once the map was built for iteration
+        Map<String, String> tags = parse(line).getTags();
+        Map<String, String> expected = new HashMap<>();
+        expected.put("time", "second");
+        expected.put("msgid", "abc");
+        assertEquals(expected, new HashMap<>(tags));
+        assertEquals("second", tags.get("time"));
+        assertEquals(2, tags.size());
+    }
+
+    @Test
+    public void handlesEmptyTagSection() throws InvalidMessageException {
+        ParsedMessage message = parse("@ :server PING :token");
+        assertTrue(message.hasTags());
+        assertTrue(message.getTags().isEmpty());
+        assertNull(message.getTags().get(""));
+        assertEquals("PING", message.getCommand());
+        assertEquals("server", message.getPrefix().getServerName());
+
+        message.reset("PING :token");
+        assertFalse(message.hasTags());
+        assertEquals(Collections.emptyMap(), message.getTags());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void tagsAreReadOnly() throws InvalidMessageException {
+        parse("@a=b PING :token").getTags().put("a", "c");
+    }
+
+    @Test
+    public void parsesMessageWithoutPrefix() throws InvalidMessageException {
+        ParsedMessage message = parse("@time=2024-01-01T00:00:00.000Z PING :irc.example.net");
+        assertFalse(message.hasPrefix());
+        assertNull(message.getPrefix());
+        assertFalse(message.isPrefixNick("irc.example.net"));
+        assertEquals("PING", message.getCommand());
+        assertEquals(Collections.singletonList("irc.example.net"), message.getParams());
+    }
+
+    @Test
+    public void parsesPrefix() throws InvalidMessageException {
+        ParsedMessage message = parse(":Nick!user@host.example PRIVMSG #channel :hi");
+        assertTrue(message.hasPrefix());
+        assertTrue(message.isPrefixNick("nick"));
+        assertFalse(message.isPrefixNick("Nic"));
+        assertEquals("Nick", message.getPrefix().getNick());
+        assertEquals("user", message.getPrefix().getUser());
+        assertEquals("host.example", message.getPrefix().getHost());
+    }
+
+    @Test
+    public void splitsMiddleAndTrailingParams() throws InvalidMessageException {
+        ParsedMessage message = parse(":nick PRIVMSG #channel :hello :there world");
+        assertEquals(Arrays.asList("#channel", "hello :there world"), message.getParams());
+
+        message.reset(":server 005 nick CHANTYPES=# PREFIX=(ov)@+ :are supported");
+        assertEquals(Arrays.asList("nick", "CHANTYPES=#", "PREFIX=(ov)@+", "are supported"), message.getParams());
+        assertEquals(5, message.getNumeric());
+
+        // a middle param may contain ':' after its first char, and the last one needs no ':'
+        message.reset(":nick MODE #channel +b nick!*@a:b");
+        assertEquals(Arrays.asList("#channel", "+b", "nick!*@a:b"), message.getParams());
+        assertEquals(-1, message.getNumeric());
+
+        message.reset(":nick TOPIC #channel :");
+        assertEquals(Arrays.asList("#channel", ""), message.getParams());
+        assertEquals("", message.getParamWithCheck(1));
+    }
+
+    @Test
+    public void growsForManyParams() throws InvalidMessageException {
+        StringBuilder line = new StringBuilder(":server 005 nick");
+        for (int i = 0; i < 40; i++)
+            line.append(" P").append(i);
+        line.append(" :are supported");
+        ParsedMessage message = parse(line.toString());
+        assertEquals(42, message.getParamCount());
+        assertEquals("P39", message.getParam(40));
+        assertEquals("are supported", message.getParam(41));
+        assertNull(message.getParam(42));
+    }
+
+    @Test
+    public void forgetsPreviousLineOnReset() throws InvalidMessageException {
+        ParsedMessage message = parse("@a=b :nick PRIVMSG #channel :first");
+        assertEquals("first", message.getParam(1));
+        assertEquals("b", message.getTags().get("a"));
+
+        message.reset("NOTICE * :second");
+        assertEquals("NOTICE", message.getCommand());
+        assertTrue(message.isCommand("NOTICE"));
+        assertEquals(Arrays.asList("*", "second"), message.getParams());
+        assertTrue(message.getTags().isEmpty());
+        assertNull(message.getPrefix());
+        try {
+            message.getParamWithCheck(2);
+            fail();
+        } catch (InvalidMessageException expected) {
+        }
+    }
+
+    @Test(expected = InvalidMessageException.class)
+    public void rejectsTagsWithoutCommand() throws InvalidMessageException {
+        parse("@a=b");
+    }
+
+    @Test(expected = InvalidMessageException.class)
+    public void rejectsPrefixWithoutCommand() throws InvalidMessageException {
+        parse(":nick!user@host");
+    }
+
+}
@@ -0,0 +1,198 @@
+package io.mrarm.irc.chatlib.irc;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SendQueueTest {
+
+    private static final long REFILL_INTERVAL = 60_000L;
+
+    private final List<List<String>> writes = new ArrayList<>();
+    private final ManualScheduler scheduler = new ManualScheduler();
+
+    private SendQueue start(int burst) {
+        SendQueue queue = new SendQueue(() -> scheduler);
+        queue.start((List<byte[]> lines) -> {
+            List<String> batch = new ArrayList<>();
+            for (byte[] line : lines)
+                batch.add(new String(line, StandardCharsets.UTF_8).trim());
+            writes.add(batch);
+        }, new FloodControl(burst, REFILL_INTERVAL));
+        queue.setPacing(true);
+        return queue;
+    }
+
+    private static byte[] line(String str) {
+        return (str + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private List<String> written() {
+        List<String> ret = new ArrayList<>();
+        for (List<String> batch : writes)
+            ret.addAll(batch);
+        return ret;
+    }
+
+    @Test
+    public void groupsUnflushedLinesWithTheNextFlushedOne() throws IOException {
+        SendQueue queue = start(5);
+        queue.queue(line("CAP LS 302"), SendQueue.Priority.NORMAL, false);
+        queue.queue(line("NICK tester"), SendQueue.Priority.NORMAL, false);
+        queue.queue(line("USER tester 0 * :Tester"), SendQueue.Priority.NORMAL, true);
+        assertTrue("written on the caller's thread", writes.isEmpty());
+        scheduler.runDue();
+        assertEquals(1, writes.size());
+        assertEquals(3, writes.get(0).size());
+        queue.stop();
+    }
+
+    @Test
+    public void sendsUnflushedLinesAfterDelay() throws IOException {
+        SendQueue queue = start(5);
+        queue.queue(line("WHOIS tester"), SendQueue.Priority.NORMAL, false);
+        scheduler.advance(SendQueue.UNFLUSHED_DELAY_MS - 1);
+        assertTrue(written().isEmpty());
+        scheduler.advance(1);
+        assertEquals("WHOIS tester", written().get(0));
+        queue.stop();
+    }
+
+    @Test
+    public void priorityLinesSkipTheBacklog() throws IOException {
+        SendQueue queue = start(1);
+        queue.queue(line("PRIVMSG #a :1"), SendQueue.Priority.NORMAL, true);
+        scheduler.runDue();
+        queue.queue(line("PRIVMSG #a :2"), SendQueue.Priority.NORMAL, true);
+        queue.queue(line("PRIVMSG #a :3"), SendQueue.Priority.NORMAL, true);
+        queue.queue(line("PING :lag"), SendQueue.Priority.HIGH, false);
+        scheduler.runDue();
+        List<String> lines = written();
+        assertEquals(2, lines.size());
+        assertEquals("PING :lag", lines.get(1));
+        assertEquals(2, queue.getQueueDepth());
+        queue.stop();
+    }
+
+    @Test
+    public void pacesNormalLines() throws IOException {
+        SendQueue queue = start(2);
+        for (int i = 1; i <= 4; i++)
+            queue.queue(line("PRIVMSG #a :" + i), SendQueue.Priority.NORMAL, true);
+        scheduler.runDue();
+        assertEquals(2, written().size());
+        scheduler.advance(REFILL_INTERVAL - 1);
+        assertEquals(2, written().size());
+        scheduler.advance(1);
+        assertEquals(3, written().size());
+        scheduler.advance(REFILL_INTERVAL);
+        assertEquals("PRIVMSG #a :4", written().get(3));
+        assertEquals(0, queue.getQueueDepth());
+        queue.stop();
+    }
+
+    @Test
+    public void doesNotPaceRegistration() throws IOException {
+        SendQueue queue = start(1);
+        queue.setPacing(false);
+        queue.queue(line("CAP LS 302"), SendQueue.Priority.NORMAL, false);
+        queue.queue(line("NICK tester"), SendQueue.Priority.NORMAL, false);
+        queue.queue(line("USER tester 0 * :Tester"), SendQueue.Priority.NORMAL, true);
+        queue.queue(line("CAP REQ :sasl"), SendQueue.Priority.NORMAL, true);
+        scheduler.runDue();
+        assertEquals(4, written().size());
+
+        // Registration did not use up the tokens
+        queue.setPacing(true);
+        queue.queue(line("JOIN #a"), SendQueue.Priority.NORMAL, true);
+        queue.queue(line("JOIN #b"), SendQueue.Priority.NORMAL, true);
+        scheduler.runDue();
+        assertEquals(5, written().size());
+        assertEquals(1, queue.getQueueDepth());
+        queue.stop();
+    }
+
+    @Test
+    public void dropsLinesOnStop() throws IOException {
+        SendQueue queue = start(1);
+        queue.queue(line("PRIVMSG #a :1"), SendQueue.Priority.NORMAL, true);
+        queue.queue(line("PRIVMSG #a :2"), SendQueue.Priority.NORMAL, true);
+        scheduler.runDue();
+        queue.stop();
+        assertTrue(scheduler.shutDown);
+        assertEquals(0, queue.getQueueDepth());
+        try {
+            queue.queue(line("PRIVMSG #a :3"), SendQueue.Priority.NORMAL, true);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(1, written().size());
+    }
+
+    // Runs the tasks on the test's thread, only once the clock was moved past them
+    private static class ManualScheduler implements SendQueue.Scheduler {
+
+        private final List<Task> tasks = new ArrayList<>();
+        // Ahead of the clock the FloodControl is created with, so that its bucket is still full at the first drain
+        // and from then on in step with this clock
+        private long now = FloodControl.now() + REFILL_INTERVAL;
+        private long nextSeq;
+        boolean shutDown;
+
+        @Override
+        public long now() {
+            return now;
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMs) {
+            if (!shutDown)
+                tasks.add(new Task(now + delayMs, nextSeq++, task));
+        }
+
+        @Override
+        public void shutdown() {
+            shutDown = true;
+            tasks.clear();
+        }
+
+        void runDue() {
+            while (true) {
+                Task next = null;
+                for (Task task : tasks) {
+                    if (task.at <= now && (next == null || task.at < next.at ||
+                            (task.at == next.at && task.seq < next.seq)))
+                        next = task;
+                }
+                if (next == null)
+                    return;
+                tasks.remove(next);
+                next.runnable.run();
+            }
+        }
+
+        void advance(long ms) {
+            now += ms;
+            runDue();
+        }
+
+        private static class Task {
+            final long at;
+            final long seq;
+            final Runnable runnable;
+
+            Task(long at, long seq, Runnable runnable) {
+                this.at = at;
+                this.seq = seq;
+                this.runnable = runnable;
+            }
+        }
+
+    }
+
+}
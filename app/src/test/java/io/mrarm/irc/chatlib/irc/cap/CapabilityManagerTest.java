@@ -0,0 +1,129 @@
+package io.mrarm.irc.chatlib.irc.cap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.mrarm.irc.chatlib.dto.MessageInfo;
+import io.mrarm.irc.chatlib.irc.MessagePrefix;
+import io.mrarm.irc.chatlib.irc.ServerConnectionData;
+
+import static org.junit.Assert.*;
+
+public class CapabilityManagerTest {
+
+    private final List<String> calls = new ArrayList<>();
+    private CapabilityManager manager;
+
+    @Before
+    public void setUp() {
+        manager = new CapabilityManager(new ServerConnectionData());
+        // keeps the ACK from sending CAP END, there is no connection to send it on
+        manager.lockNegotationFinish();
+    }
+
+    private void register(String name, String... tags) {
+        manager.registerCapability(new RecordingCapability(name, tags));
+    }
+
+    private static Map<String, String> tags(String... names) {
+        Map<String, String> ret = new HashMap<>();
+        for (String name : names)
+            ret.put(name, "value");
+        return ret;
+    }
+
+    private List<String> process(Map<String, String> tags) {
+        calls.clear();
+        manager.processMessage(null, tags);
+        return new ArrayList<>(calls);
+    }
+
+    @Test
+    public void callsCapabilitiesReadingPresentTags() {
+        register("time", "time");
+        register("all", (String[]) null);
+        register("batch", "batch");
+        register("none");
+        manager.onCapabilitiesAck(Arrays.asList("time", "all", "batch", "none"));
+
+        assertEquals(Arrays.asList("time", "all"), process(tags("time")));
+        assertEquals(Arrays.asList("all", "batch"), process(tags("batch", "msgid")));
+        assertEquals(Collections.singletonList("all"), process(tags("msgid")));
+        assertEquals(Collections.emptyList(), process(tags()));
+        assertEquals(Collections.emptyList(), process(null));
+
+        manager.onServerCapabilitiesRemoved(new ArrayList<>(Collections.singletonList("time")));
+        assertEquals(Collections.singletonList("all"), process(tags("time")));
+    }
+
+    @Test
+    public void callsInRegistrationOrder() {
+        register("first", "b");
+        register("second", "a");
+        register("third", (String[]) null);
+        register("fourth", "c", "a");
+        // acked in a different order than registered
+        manager.onCapabilitiesAck(Arrays.asList("fourth", "third", "second", "first"));
+
+        assertEquals(Arrays.asList("first", "second", "third", "fourth"), process(tags("c", "a", "b")));
+        assertEquals(Arrays.asList("second", "third", "fourth"), process(tags("a")));
+    }
+
+    @Test
+    public void callsEachCapabilityOnce() {
+        // more than fit in a long bit mask
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            names.add("cap" + i);
+            register("cap" + i, "a", "b", "c");
+        }
+        manager.onCapabilitiesAck(names);
+
+        assertEquals(names, process(tags("a", "b", "c")));
+    }
+
+    private class RecordingCapability extends Capability {
+
+        private final String name;
+        private final String[] tags;
+
+        RecordingCapability(String name, String[] tags) {
+            this.name = name;
+            this.tags = tags;
+        }
+
+        @Override
+        public String[] getNames() {
+            return new String[] { name };
+        }
+
+        @Override
+        public String[] getHandledTags() {
+            return tags;
+        }
+
+        @Override
+        public Object[] getHandledCommands() {
+            return new Object[0];
+        }
+
+        @Override
+        public void handle(ServerConnectionData connection, MessagePrefix sender, String command,
+                           List<String> params, Map<String, String> tags) {
+        }
+
+        @Override
+        public void processMessage(MessageInfo.Builder message, Map<String, String> tags) {
+            calls.add(name);
+        }
+
+    }
+
+}
@@ -0,0 +1,19 @@
+package io.mrarm.irc.chatlib.irc.cap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CapabilityTest {
+
+    @Test
+    public void onlyTagReadingCapabilitiesDeclareTags() {
+        assertEquals(0, new CapNotifyCapability().getHandledTags().length);
+        assertEquals(0, new MultiPrefixCapability().getHandledTags().length);
+        assertEquals(0, new ZNCSelfMessageCapability().getHandledTags().length);
+        assertEquals(0, new SASLCapability(new SASLOptions[0]).getHandledTags().length);
+        assertArrayEquals(new String[] { "batch" }, new BatchCapability().getHandledTags());
+        assertArrayEquals(new String[] { "time" }, new ServerTimeCapability().getHandledTags());
+    }
+
+}
@@ -0,0 +1,129 @@
+package io.mrarm.irc.chatlib.irc.transport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MultiplexedTransportTest {
+
+    private static final long TIMEOUT_MS = 10000;
+
+    private ServerSocket server;
+    private final List<Socket> accepted = Collections.synchronizedList(new ArrayList<>());
+    private final List<MultiplexedTransport> transports = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (MultiplexedTransport transport : transports)
+            transport.abort();
+        for (Socket socket : accepted)
+            socket.close();
+        server.close();
+    }
+
+    private OutputStream connect(MultiplexedTransport.Listener listener) throws IOException {
+        MultiplexedTransport transport = new MultiplexedTransport(NetworkEngine.getInstance(),
+                StandardCharsets.UTF_8, null, listener);
+        transports.add(transport);
+        transport.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()),
+                TIMEOUT_MS);
+        Socket socket = server.accept();
+        accepted.add(socket);
+        return socket.getOutputStream();
+    }
+
+    @Test
+    public void slowListenerDoesNotHoldUpOtherConnections() throws Exception {
+        CountDownLatch slowStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        BlockingQueue<String> slowLines = new LinkedBlockingQueue<>();
+        OutputStream slow = connect(new MultiplexedTransport.Listener() {
+            @Override
+            public void onLine(String line) {
+                slowStarted.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+                slowLines.add(line);
+            }
+
+            @Override
+            public void onClosed(IOException reason) {
+            }
+        });
+        BlockingQueue<String> fastLines = new LinkedBlockingQueue<>();
+        OutputStream fast = connect(new LineCollector(fastLines));
+
+        slow.write("first\r\nsecond\r\n".getBytes(StandardCharsets.UTF_8));
+        slow.flush();
+        assertTrue(slowStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        fast.write("hello\r\n".getBytes(StandardCharsets.UTF_8));
+        fast.flush();
+        assertEquals("hello", fastLines.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        assertEquals("first", slowLines.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals("second", slowLines.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void closeIsDeliveredAfterReceivedLines() throws Exception {
+        BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        OutputStream out = connect(new LineCollector(lines));
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < 5000; i++)
+            data.append("line ").append(i).append("\r\n");
+        out.write(data.toString().getBytes(StandardCharsets.UTF_8));
+        out.close();
+
+        for (int i = 0; i < 5000; i++)
+            assertEquals("line " + i, lines.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(LineCollector.CLOSED, lines.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    private static class LineCollector implements MultiplexedTransport.Listener {
+
+        static final String CLOSED = "<closed>";
+
+        private final BlockingQueue<String> lines;
+
+        LineCollector(BlockingQueue<String> lines) {
+            this.lines = lines;
+        }
+
+        @Override
+        public void onLine(String line) {
+            lines.add(line);
+        }
+
+        @Override
+        public void onClosed(IOException reason) {
+            lines.add(CLOSED);
+        }
+
+    }
+
+}
@@ -0,0 +1,97 @@
+package io.mrarm.irc.chatlib.user;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import io.mrarm.irc.chatlib.irc.CaseMapping;
+import io.mrarm.irc.chatlib.irc.ServerConnectionData;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentUserInfoApiTest {
+
+    private ServerConnectionData connection;
+    private ConcurrentUserInfoApi api;
+
+    @Before
+    public void setUp() {
+        connection = new ServerConnectionData();
+        api = new ConcurrentUserInfoApi(connection);
+    }
+
+    @Test
+    public void keysNicksUsingCaseMapping() {
+        UUID uuid = api.resolveUserSync("Foo[away]", null, null);
+        assertEquals(uuid, api.resolveUserSync("foo{AWAY}", null, null));
+        assertEquals("Foo[away]", api.getUserSync("FOO[AWAY]", null, null).getCurrentNick());
+
+        connection.getSupportList().setCaseMapping(CaseMapping.ASCII);
+        assertEquals(uuid, api.resolveUserSync("FOO[AWAY]", null, null));
+        assertNotEquals(uuid, api.resolveUserSync("foo{away}", null, null));
+    }
+
+    @Test
+    public void rekeysOnNickChange() {
+        List<String> changes = new ArrayList<>();
+        api.subscribeNickChanges((UserInfo user, String oldNick, String newNick) ->
+                changes.add(oldNick + ">" + newNick), null, null);
+        UUID uuid = api.resolveUserSync("Alice", null, null);
+        UUID stale = api.resolveUserSync("bob", null, null);
+
+        api.setUserNickSync(uuid, "Bob");
+        assertEquals(uuid, api.resolveUserSync("BOB", null, null));
+        assertNotEquals(uuid, api.resolveUserSync("alice", null, null));
+        // the user which had the nick before must have left without us knowing
+        assertTrue(api.getUsersNicksSync(Collections.singletonList(stale)).isEmpty());
+        assertEquals(1, changes.size());
+        assertEquals("Alice>Bob", changes.get(0));
+    }
+
+    @Test
+    public void evictsOnlyUnusedUsers() throws Exception {
+        UUID inChannel = api.resolveUserSync("member", null, null);
+        api.setUserChannelPresence(inChannel, "#channel", true, null, null);
+        api.resolveUserSync("query", null, null);
+        connection.onChannelJoined("Query");
+        UUID idle = api.resolveUserSync("idle", null, null);
+
+        assertEquals(1, api.evictUnusedNow());
+        assertEquals(2, api.getStats().getUserCount());
+        assertEquals(1, api.getStats().getEvictedCount());
+        assertNull(api.getUser(idle, null, null).get());
+        assertEquals("member", api.getUser(inChannel, null, null).get().getCurrentNick());
+
+        api.setUserChannelPresence(inChannel, "#channel", false, null, null);
+        assertEquals(1, api.evictUnusedNow());
+        assertEquals(1, api.getStats().getUserCount());
+    }
+
+    @Test
+    public void evictedUserKeepsUuid() throws Exception {
+        UUID uuid = api.resolveUserSync("Idle", null, null);
+        assertEquals(1, api.evictUnusedNow());
+        assertEquals(0, api.getStats().getUserCount());
+
+        assertEquals(uuid, api.resolveUserSync("idle", null, null));
+        assertEquals("idle", api.getUser(uuid, null, null).get().getCurrentNick());
+    }
+
+    @Test
+    public void nickChangeDropsEvictedUuid() {
+        UUID evicted = api.resolveUserSync("bob", null, null);
+        api.evictUnusedNow();
+        UUID uuid = api.resolveUserSync("alice", null, null);
+        api.setUserNickSync(uuid, "bob");
+        assertEquals(uuid, api.resolveUserSync("bob", null, null));
+
+        api.evictUnusedNow();
+        assertEquals(uuid, api.resolveUserSync("bob", null, null));
+        assertNotEquals(evicted, uuid);
+    }
+
+}
@@ -0,0 +1,72 @@
+package io.mrarm.irc.chatlib.util;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class IsoDateParserTest {
+
+    private static long reference(String value) throws Exception {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        format.setLenient(false);
+        return format.parse(value).getTime();
+    }
+
+    @Test
+    public void parsesServerTime() throws Exception {
+        assertEquals(reference("2011-10-19T16:40:51.620Z"), IsoDateParser.parse("2011-10-19T16:40:51.620Z"));
+        assertEquals(reference("2011-10-19T16:40:51.000Z"), IsoDateParser.parse("2011-10-19T16:40:51Z"));
+        assertEquals(reference("2011-10-19T16:40:51.600Z"), IsoDateParser.parse("2011-10-19T16:40:51.6Z"));
+        assertEquals(reference("2011-10-19T16:40:51.123Z"), IsoDateParser.parse("2011-10-19T16:40:51.123456Z"));
+        assertEquals(reference("1970-01-01T00:00:00.000Z"), IsoDateParser.parse("1970-01-01T00:00:00.000Z"));
+    }
+
+    @Test
+    public void parsesOffsets() throws Exception {
+        assertEquals(reference("2011-10-19T16:40:51.620+02:00"),
+                IsoDateParser.parse("2011-10-19T16:40:51.620+02:00"));
+        assertEquals(reference("2011-10-19T16:40:51.620-05:30"), IsoDateParser.parse("2011-10-19T16:40:51.620-0530"));
+        assertEquals(reference("2011-10-19T16:40:51.000+01:00"), IsoDateParser.parse("2011-10-19T16:40:51+01"));
+    }
+
+    @Test
+    public void parsesLeapDays() throws Exception {
+        assertEquals(reference("2024-02-29T12:00:00.000Z"), IsoDateParser.parse("2024-02-29T12:00:00Z"));
+        assertEquals(reference("2000-02-29T12:00:00.000Z"), IsoDateParser.parse("2000-02-29T12:00:00Z"));
+        assertEquals(reference("2023-12-31T23:59:59.999Z"), IsoDateParser.parse("2023-12-31T23:59:59.999Z"));
+    }
+
+    @Test
+    public void rejectsImpossibleDates() {
+        assertEquals(IsoDateParser.INVALID, IsoDateParser.parse("2023-02-31T12:00:00Z"));
+        assertEquals(IsoDateParser.INVALID, IsoDateParser.parse("2023-02-29T12:00:00Z"));
+        assertEquals(IsoDateParser.INVALID, IsoDateParser.parse("1900-02-29T12:00:00Z"));
+        assertEquals(IsoDateParser.INVALID, IsoDateParser.parse("2023-04-31T12:00:00Z"));
+        assertEquals(IsoDateParser.INVALID, IsoDateParser.parse("2023-13-01T12:00:00Z"));
+        assertEquals(IsoDateParser.INVALID, IsoDateParser.parse("2023-00-01T12:00:00Z"));
+        assertEquals(IsoDateParser.INVALID, IsoDateParser.parse("2023-01-00T12:00:00Z"));
+        assertEquals(IsoDateParser.INVALID, IsoDateParser.parse("2023-01-01T25:00:00Z"));
+        assertEquals(IsoDateParser.INVALID, IsoDateParser.parse("2023-01-01T24:00:00Z"));
+        assertEquals(IsoDateParser.INVALID, IsoDateParser.parse("2023-01-01T12:60:00Z"));
+        assertEquals(IsoDateParser.INVALID, IsoDateParser.parse("2023-01-01T12:00:61Z"));
+        assertEquals(IsoDateParser.INVALID, IsoDateParser.parse("2023-01-01T12:00:00+24:00"));
+    }
+
+    @Test
+    public void rejectsMalformedValues() {
+        assertEquals(IsoDateParser.INVALID, IsoDateParser.parse(null));
+        assertEquals(IsoDateParser.INVALID, IsoDateParser.parse(""));
+        assertEquals(IsoDateParser.INVALID, IsoDateParser.parse("2023-01-01"));
+        assertEquals(IsoDateParser.INVALID, IsoDateParser.parse("2023/01/01T12:00:00Z"));
+        assertEquals(IsoDateParser.INVALID, IsoDateParser.parse("2023-01-01T12:00:00."));
+        assertEquals(IsoDateParser.INVALID, IsoDateParser.parse("2023-01-01T12:00:00ZZ"));
+        assertEquals(IsoDateParser.INVALID, IsoDateParser.parse("2023-01-01T12:00:00X"));
+        assertEquals(IsoDateParser.INVALID, IsoDateParser.parse("2023-01-0xT12:00:00Z"));
+    }
+
+}
@@ -0,0 +1,196 @@
+package io.mrarm.irc.storage;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import io.mrarm.irc.chatlib.dto.ChannelModeMessageInfo;
+
+import static org.junit.Assert.*;
+
+// Robolectric for android.util.Log, which the codec logs unreadable records with
+@RunWith(RobolectricTestRunner.class)
+public class MessageExtraCodecTest {
+
+    private static final UUID BATCH = UUID.fromString("0f8fad5b-d9cb-469f-a165-70867728950e");
+
+    private static MessageExtraCodec.Extras allFields() {
+        MessageExtraCodec.Extras extras = new MessageExtraCodec.Extras();
+        extras.batch = BATCH;
+        extras.newNick = "néw_nick";
+        extras.kickedNick = "kicked";
+        extras.modeEntries = Arrays.asList(
+                new ChannelModeMessageInfo.Entry(ChannelModeMessageInfo.EntryType.LIST, 'b', "*!*@host", false),
+                new ChannelModeMessageInfo.Entry(ChannelModeMessageInfo.EntryType.NICK_FLAG, 'o', "op", true),
+                new ChannelModeMessageInfo.Entry(ChannelModeMessageInfo.EntryType.FLAG, 'n', null, false));
+        extras.topicSetBy = "@ setter!user@host";
+        extras.topicSetOn = 1700000000L * 1000L; // larger than an int
+        return extras;
+    }
+
+    private static void assertEntriesEqual(List<ChannelModeMessageInfo.Entry> expected,
+                                           List<ChannelModeMessageInfo.Entry> actual) {
+        assertNotNull(actual);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getType(), actual.get(i).getType());
+            assertEquals(expected.get(i).getMode(), actual.get(i).getMode());
+            assertEquals(expected.get(i).getParam(), actual.get(i).getParam());
+            assertEquals(expected.get(i).isRemoved(), actual.get(i).isRemoved());
+        }
+    }
+
+    private static void assertExtrasEqual(MessageExtraCodec.Extras expected, MessageExtraCodec.Extras actual) {
+        assertNotNull(actual);
+        assertEquals(expected.batch, actual.batch);
+        assertEquals(expected.newNick, actual.newNick);
+        assertEquals(expected.kickedNick, actual.kickedNick);
+        if (expected.modeEntries == null)
+            assertNull(actual.modeEntries);
+        else
+            assertEntriesEqual(expected.modeEntries, actual.modeEntries);
+        assertEquals(expected.topicSetBy, actual.topicSetBy);
+        assertEquals(expected.topicSetOn, actual.topicSetOn);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts)
+            out.write(part, 0, part.length);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void roundTripsAllFields() {
+        MessageExtraCodec.Extras extras = allFields();
+        byte[] data = MessageExtraCodec.encode(extras);
+        assertEquals(MessageExtraCodec.VERSION, data[0]);
+        assertExtrasEqual(extras, MessageExtraCodec.decode(data));
+    }
+
+    @Test
+    public void roundTripsSingleFields() {
+        MessageExtraCodec.Extras nick = new MessageExtraCodec.Extras();
+        nick.newNick = "";
+        assertExtrasEqual(nick, MessageExtraCodec.decode(MessageExtraCodec.encode(nick)));
+
+        MessageExtraCodec.Extras modes = new MessageExtraCodec.Extras();
+        modes.modeEntries = new ArrayList<>();
+        assertExtrasEqual(modes, MessageExtraCodec.decode(MessageExtraCodec.encode(modes)));
+
+        MessageExtraCodec.Extras time = new MessageExtraCodec.Extras();
+        time.topicSetOn = 0L;
+        assertExtrasEqual(time, MessageExtraCodec.decode(MessageExtraCodec.encode(time)));
+    }
+
+    @Test
+    public void storesNothingAsNull() {
+        assertNull(MessageExtraCodec.encode(null));
+        assertNull(MessageExtraCodec.encode(new MessageExtraCodec.Extras()));
+        assertNull(MessageExtraCodec.decode(null));
+        assertNull(MessageExtraCodec.decode(new byte[0]));
+    }
+
+    @Test
+    public void skipsUnknownTags() {
+        MessageExtraCodec.Extras extras = allFields();
+        byte[] data = MessageExtraCodec.encode(extras);
+        byte[] fields = Arrays.copyOfRange(data, 1, data.length);
+        // Tag 99 with three bytes, and tag 200 (a two byte varint) with an empty payload
+        byte[] unknown = {99, 3, 1, 2, 3, (byte) 0xC8, 0x01, 0};
+        assertExtrasEqual(extras, MessageExtraCodec.decode(concat(new byte[]{MessageExtraCodec.VERSION}, unknown,
+                fields)));
+        assertExtrasEqual(extras, MessageExtraCodec.decode(concat(data, unknown)));
+    }
+
+    @Test
+    public void ignoresOtherVersions() {
+        byte[] data = MessageExtraCodec.encode(allFields());
+        data[0] = MessageExtraCodec.VERSION + 1;
+        assertNull(MessageExtraCodec.decode(data));
+    }
+
+    @Test
+    public void keepsFieldsBeforeTruncation() {
+        MessageExtraCodec.Extras extras = allFields();
+        byte[] data = MessageExtraCodec.encode(extras);
+        // Every prefix decodes without throwing
+        for (int len = 1; len < data.length; len++)
+            assertNotNull(MessageExtraCodec.decode(Arrays.copyOf(data, len)));
+
+        // topicSetOn is the last field, a few bytes long
+        MessageExtraCodec.Extras decoded = MessageExtraCodec.decode(Arrays.copyOf(data, data.length - 1));
+        assertNull(decoded.topicSetOn);
+        assertEquals(extras.topicSetBy, decoded.topicSetBy);
+        assertEquals(extras.batch, decoded.batch);
+        assertEntriesEqual(extras.modeEntries, decoded.modeEntries);
+
+        // A length running past the end, and a varint that never ends
+        MessageExtraCodec.Extras past = MessageExtraCodec.decode(new byte[]{MessageExtraCodec.VERSION, 2, 100, 'a'});
+        assertNull(past.newNick);
+        byte[] endless = new byte[12];
+        Arrays.fill(endless, (byte) 0x80);
+        endless[0] = MessageExtraCodec.VERSION;
+        assertTrue(MessageExtraCodec.decode(endless).isEmpty());
+    }
+
+    @Test
+    public void rejectsCorruptCounts() {
+        MessageExtraCodec.Extras nick = new MessageExtraCodec.Extras();
+        nick.newNick = "nick";
+        byte[] last = MessageExtraCodec.encode(nick);
+        byte[] fields = Arrays.copyOfRange(last, 1, last.length);
+
+        // A mode entry count of 2^31 - 1, and one which is negative once read as an int
+        byte[] huge = {MessageExtraCodec.VERSION, 4, 5, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07};
+        byte[] negative = {MessageExtraCodec.VERSION, 4, 5, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x08};
+        // Two entries claimed, with room for one only
+        byte[] tooMany = {MessageExtraCodec.VERSION, 4, 4, 2, 0, 'n', 0};
+        for (byte[] data : new byte[][]{huge, negative, tooMany}) {
+            MessageExtraCodec.Extras decoded = MessageExtraCodec.decode(data);
+            assertNull(decoded.modeEntries);
+            decoded = MessageExtraCodec.decode(concat(new byte[]{MessageExtraCodec.VERSION}, fields,
+                    Arrays.copyOfRange(data, 1, data.length)));
+            assertEquals("nick", decoded.newNick);
+        }
+
+        // A field length which is negative once read as an int
+        byte[] negativeLength = {MessageExtraCodec.VERSION, 99, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                0x0F, 'a'};
+        assertTrue(MessageExtraCodec.decode(negativeLength).isEmpty());
+    }
+
+    @Test
+    public void convertsLegacyJson() {
+        String json = "{\"batch\":\"" + BATCH + "\",\"newNick\":\"bob\",\"kickedNick\":\"eve\"," +
+                "\"entries\":[{\"type\":\"LIST\",\"mode\":\"b\",\"param\":\"*!*@host\",\"removed\":false}," +
+                "{\"type\":\"FLAG\",\"mode\":\"m\",\"removed\":true}]," +
+                "\"setBy\":\"@ setter!user@host\",\"setOn\":1700000000}";
+        MessageExtraCodec.Extras expected = new MessageExtraCodec.Extras();
+        expected.batch = BATCH;
+        expected.newNick = "bob";
+        expected.kickedNick = "eve";
+        expected.modeEntries = Arrays.asList(
+                new ChannelModeMessageInfo.Entry(ChannelModeMessageInfo.EntryType.LIST, 'b', "*!*@host", false),
+                new ChannelModeMessageInfo.Entry(ChannelModeMessageInfo.EntryType.FLAG, 'm', null, true));
+        expected.topicSetBy = "@ setter!user@host";
+        expected.topicSetOn = 1700000000L;
+
+        assertExtrasEqual(expected, MessageStorageHelper.parseLegacyExtraData(json));
+        assertExtrasEqual(expected, MessageExtraCodec.decode(MessageStorageHelper.convertLegacyExtraData(json)));
+    }
+
+    @Test
+    public void convertsEmptyOrMalformedLegacyJsonToNull() {
+        assertNull(MessageStorageHelper.convertLegacyExtraData("{}"));
+        assertNull(MessageStorageHelper.convertLegacyExtraData("{\"newNick\":"));
+        assertNull(MessageStorageHelper.convertLegacyExtraData("{\"batch\":\"not a uuid\"}"));
+    }
+
+}
@@ -0,0 +1,138 @@
+package io.mrarm.irc.storage;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.room.Room;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.SQLiteMode;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import io.mrarm.irc.storage.db.ChatLogDatabase;
+import io.mrarm.irc.storage.db.Converters;
+import io.mrarm.irc.storage.db.MessageKind;
+
+import static org.junit.Assert.*;
+
+// Native SQLite, so that VACUUM and the freelist behave as on a device
+@RunWith(RobolectricTestRunner.class)
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class StorageCompactorTest {
+
+    private static final String DB_NAME = "compactor-test";
+    private static final int AUTO_VACUUM_NONE = 0;
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private ChatLogDatabase db;
+    private SupportSQLiteDatabase raw;
+    private long conversationId;
+    private boolean charging;
+
+    @Before
+    public void setUp() {
+        RuntimeEnvironment.getApplication().deleteDatabase(DB_NAME);
+        db = Room.databaseBuilder(RuntimeEnvironment.getApplication(), ChatLogDatabase.class, DB_NAME)
+                .allowMainThreadQueries()
+                .build();
+        raw = db.getOpenHelper().getWritableDatabase();
+
+        ContentValues values = new ContentValues();
+        values.put("serverId", Converters.uuidToString(UUID.randomUUID()));
+        values.put("channel", "#test");
+        values.put("kind", Converters.fromMessageKind(MessageKind.CHANNEL));
+        conversationId = raw.insert("conversations", SQLiteDatabase.CONFLICT_ABORT, values);
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+        RuntimeEnvironment.getApplication().deleteDatabase(DB_NAME);
+    }
+
+    // The last write was long ago, so every run finds the app idle
+    private StorageCompactor createCompactor() {
+        return new StorageCompactor(db, new Object(), () -> 0L, () -> charging);
+    }
+
+    private void insertMessages(int count, int textLength) {
+        char[] text = new char[textLength];
+        Arrays.fill(text, 'x');
+        raw.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            values.put("conversation_id", conversationId);
+            values.put("timestamp", 0L);
+            values.put("type", 0);
+            values.put("text", new String(text));
+            values.put("aprox_row_size", textLength);
+            for (int i = 0; i < count; i++)
+                raw.insert("messages_logs", SQLiteDatabase.CONFLICT_ABORT, values);
+            raw.setTransactionSuccessful();
+        } finally {
+            raw.endTransaction();
+        }
+    }
+
+    private long autoVacuum() {
+        return StorageCompactor.queryLong(raw, "PRAGMA auto_vacuum");
+    }
+
+    private long freelistCount() {
+        return StorageCompactor.queryLong(raw, "PRAGMA freelist_count");
+    }
+
+    @Test
+    public void convertsSmallDatabase() {
+        insertMessages(100, 200);
+        assertEquals(AUTO_VACUUM_NONE, autoVacuum());
+
+        StorageCompactor compactor = createCompactor();
+        compactor.run();
+
+        assertEquals(AUTO_VACUUM_INCREMENTAL, autoVacuum());
+        assertTrue(compactor.getStats().incrementalVacuumEnabled);
+        assertEquals(100, StorageCompactor.queryLong(raw, "SELECT COUNT(*) FROM messages_logs"));
+    }
+
+    @Test
+    public void reclaimsFreePagesAfterDeletes() {
+        StorageCompactor compactor = createCompactor();
+        compactor.run();
+        assertEquals(AUTO_VACUUM_INCREMENTAL, autoVacuum());
+
+        insertMessages(1000, 1000);
+        raw.execSQL("DELETE FROM messages_logs");
+        long freed = freelistCount();
+        assertTrue("freelist_count after deletes: " + freed, freed > 0);
+
+        compactor.run();
+
+        assertTrue(freelistCount() < freed);
+        assertEquals(freed - freelistCount(), compactor.getStats().pagesReclaimed);
+    }
+
+    @Test
+    public void convertsLargeDatabaseOnlyWhileCharging() {
+        insertMessages((int) (StorageCompactor.MAX_CONVERSION_SIZE / 1000) + 500, 1000);
+
+        createCompactor().run();
+        assertEquals(AUTO_VACUUM_NONE, autoVacuum());
+
+        charging = true;
+        // A new instance, as the first one waits for CHARGING_CHECK_MS before it checks again
+        StorageCompactor compactor = createCompactor();
+        compactor.run();
+        assertEquals(AUTO_VACUUM_INCREMENTAL, autoVacuum());
+        assertTrue(compactor.getStats().incrementalVacuumEnabled);
+    }
+
+}
@@ -0,0 +1,226 @@
+package io.mrarm.irc.storage.db;
+
+import android.database.Cursor;
+
+import androidx.room.testing.MigrationTestHelper;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.SQLiteMode;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+// Native SQLite for the search index, see MessageSearchTableTest
+@RunWith(RobolectricTestRunner.class)
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class ChatLogDatabaseMigrationTest {
+
+    private static final String DB_NAME = "migration-test";
+
+    private static final String SERVER_A = "00000000-0000-0000-0000-00000000000a";
+    private static final String SERVER_B = "00000000-0000-0000-0000-00000000000b";
+
+    // What the version 3 size estimate no longer includes, besides the channel name
+    private static final long SIZE_CORRECTION = MessageEntity.FIXED_ROW_SIZE_V2 - MessageEntity.FIXED_ROW_SIZE;
+
+    @Rule
+    public MigrationTestHelper helper = new MigrationTestHelper(InstrumentationRegistry.getInstrumentation(),
+            ChatLogDatabase.class);
+
+    private static long insertV1(SupportSQLiteDatabase db, String serverId, String channel, String kind,
+                                 String text, long size) {
+        db.execSQL("""
+                INSERT INTO messages_logs(serverId, channel, kind, timestamp, type, text, sender, extra_json,
+                    aprox_row_size)
+                VALUES (?, ?, ?, 1000, 0, ?, 'nick', '{"batch":null}', ?)
+                """, new Object[]{serverId, channel, kind, text, size});
+        return queryLong(db, "SELECT last_insert_rowid()");
+    }
+
+    private static long queryLong(SupportSQLiteDatabase db, String sql, Object... args) {
+        try (Cursor c = db.query(sql, args)) {
+            assertTrue(sql, c.moveToFirst());
+            return c.getLong(0);
+        }
+    }
+
+    private static List<String> queryRows(SupportSQLiteDatabase db, String sql, Object... args) {
+        List<String> ret = new ArrayList<>();
+        try (Cursor c = db.query(sql, args)) {
+            while (c.moveToNext()) {
+                StringBuilder row = new StringBuilder();
+                for (int i = 0; i < c.getColumnCount(); i++) {
+                    if (i > 0)
+                        row.append('|');
+                    row.append(c.getString(i));
+                }
+                ret.add(row.toString());
+            }
+        }
+        return ret;
+    }
+
+    private static List<String> search(SupportSQLiteDatabase db, String word) {
+        return queryRows(db, "SELECT docid FROM messages_fts WHERE messages_fts MATCH ? ORDER BY docid", word);
+    }
+
+    private static long expectedSize(long oldSize, String channel) {
+        return Math.max(oldSize - SIZE_CORRECTION - channel.getBytes(StandardCharsets.UTF_8).length, 0);
+    }
+
+    // As the app leaves a version 1 or 2 database: the dedupe index, storage_stats keyed by server and channel with
+    // its triggers on the old columns, and the search index
+    private static void installVersion1Extras(SupportSQLiteDatabase db) {
+        db.execSQL("CREATE UNIQUE INDEX idx_messages_dedupe ON messages_logs(dedupe_key) " +
+                "WHERE dedupe_key IS NOT NULL");
+        db.execSQL("""
+                CREATE TABLE storage_stats (
+                    serverId TEXT NOT NULL,
+                    channel TEXT NOT NULL,
+                    row_count INTEGER NOT NULL DEFAULT 0,
+                    byte_count INTEGER NOT NULL DEFAULT 0,
+                    oldest_id INTEGER,
+                    PRIMARY KEY(serverId, channel)
+                )
+                """);
+        db.execSQL("""
+                CREATE TRIGGER storage_stats_insert AFTER INSERT ON messages_logs BEGIN
+                INSERT OR IGNORE INTO storage_stats(serverId, channel, row_count, byte_count, oldest_id)
+                VALUES (NEW.serverId, NEW.channel, 0, 0, NEW.id);
+                UPDATE storage_stats SET row_count = row_count + 1, byte_count = byte_count + NEW.aprox_row_size
+                WHERE serverId = NEW.serverId AND channel = NEW.channel;
+                END
+                """);
+        MessageSearchTable.install(db);
+    }
+
+    @Test
+    public void migratesFromVersion1() throws IOException {
+        SupportSQLiteDatabase db = helper.createDatabase(DB_NAME, 1);
+        long[] ids = new long[6];
+        // Not indexed yet: the backfill will have to pick them up after the migration
+        ids[0] = insertV1(db, SERVER_A, "#chan", "CHANNEL", "first apple", 400);
+        ids[1] = insertV1(db, SERVER_A, "bob", "PRIVATE", "second apple", 300);
+        installVersion1Extras(db);
+        // Indexed by the trigger
+        ids[2] = insertV1(db, SERVER_A, "#chan", "CHANNEL", "third apple", 500);
+        ids[3] = insertV1(db, SERVER_B, "#chan", "CHANNEL", "fourth apple", 10);
+        ids[4] = insertV1(db, SERVER_A, "#chan", "CHANNEL", "fifth apple", 250);
+        ids[5] = insertV1(db, SERVER_B, "#other", "CHANNEL", "deleted", 300);
+        db.execSQL("DELETE FROM messages_logs WHERE id = ?", new Object[]{ids[5]});
+        db.close();
+
+        db = helper.runMigrationsAndValidate(DB_NAME, 3, false,
+                ChatLogDatabase.MIGRATION_1_2, ChatLogDatabase.MIGRATION_2_3);
+
+        // Every row keeps its id and gets the conversation it was stored in
+        assertEquals(Arrays.asList(
+                ids[0] + "|" + SERVER_A + "|#chan|CHANNEL|first apple|" + expectedSize(400, "#chan"),
+                ids[1] + "|" + SERVER_A + "|bob|PRIVATE|second apple|" + expectedSize(300, "bob"),
+                ids[2] + "|" + SERVER_A + "|#chan|CHANNEL|third apple|" + expectedSize(500, "#chan"),
+                ids[3] + "|" + SERVER_B + "|#chan|CHANNEL|fourth apple|0",
+                ids[4] + "|" + SERVER_A + "|#chan|CHANNEL|fifth apple|" + expectedSize(250, "#chan")),
+                queryRows(db, """
+                        SELECT m.id, c.serverId, c.channel, c.kind, m.text, m.aprox_row_size
+                        FROM messages_logs m JOIN conversations c ON c.id = m.conversation_id
+                        ORDER BY m.id
+                        """));
+        assertEquals(3, queryLong(db, "SELECT COUNT(*) FROM conversations"));
+        assertEquals(Arrays.asList("{\"batch\":null}"),
+                queryRows(db, "SELECT DISTINCT extra_json FROM messages_logs"));
+
+        // The id of the deleted message is not handed out again
+        assertEquals(Arrays.asList("messages_logs|" + ids[5]),
+                queryRows(db, "SELECT name, seq FROM sqlite_sequence WHERE name LIKE 'messages_logs%'"));
+
+        // The old storage_stats and its triggers are gone, and it can be rebuilt on the new columns
+        assertEquals(0, queryLong(db, "SELECT COUNT(*) FROM sqlite_master WHERE name LIKE 'storage_stats%'"));
+        StorageStatsTable.install(db);
+        assertEquals(queryLong(db, "SELECT SUM(aprox_row_size) FROM messages_logs"),
+                queryLong(db, "SELECT SUM(byte_count) FROM storage_stats"));
+
+        // The search index kept its ids and backfill position, and its triggers are back
+        assertEquals(4, queryLong(db, "SELECT COUNT(*) FROM sqlite_master WHERE type = 'trigger' AND " +
+                "name LIKE 'messages_fts_%'"));
+        assertEquals(ids[1], queryLong(db, "SELECT next_id FROM messages_fts_backfill"));
+        assertEquals(Arrays.asList(String.valueOf(ids[2]), String.valueOf(ids[3]), String.valueOf(ids[4])),
+                search(db, "apple"));
+        db.execSQL("DELETE FROM messages_logs WHERE id = ?", new Object[]{ids[3]});
+        db.execSQL("""
+                INSERT INTO messages_logs(conversation_id, timestamp, type, text, aprox_row_size)
+                SELECT id, 2000, 0, 'new apple', 100 FROM conversations WHERE channel = 'bob'
+                """);
+        long newId = queryLong(db, "SELECT last_insert_rowid()");
+        assertEquals(ids[5] + 1, newId);
+        assertEquals(Arrays.asList(String.valueOf(ids[2]), String.valueOf(ids[4]), String.valueOf(newId)),
+                search(db, "apple"));
+        assertEquals(queryLong(db, "SELECT SUM(aprox_row_size) FROM messages_logs"),
+                queryLong(db, "SELECT SUM(byte_count) FROM storage_stats"));
+
+        // Once the rest is backfilled the index matches messages_logs exactly
+        db.execSQL("INSERT INTO messages_fts(docid, text) SELECT id, text FROM messages_logs " +
+                "WHERE id <= (SELECT next_id FROM messages_fts_backfill)");
+        db.execSQL("UPDATE messages_fts_backfill SET next_id = 0");
+        db.execSQL("INSERT INTO messages_fts(messages_fts) VALUES('integrity-check')");
+        assertEquals(5, search(db, "apple").size());
+        db.close();
+    }
+
+    @Test
+    public void migratesFromVersion2() throws IOException {
+        SupportSQLiteDatabase db = helper.createDatabase(DB_NAME, 2);
+        byte[] extra = {1, 2, 3, 'n', 'i', 'c', 'k'};
+        db.execSQL("""
+                INSERT INTO messages_logs(serverId, channel, kind, timestamp, type, text, extra, dedupe_key,
+                    aprox_row_size)
+                VALUES (?, '#chan', 'CHANNEL', 1000, 3, 'hi', ?, 'key', 600)
+                """, new Object[]{SERVER_A, extra});
+        long id = queryLong(db, "SELECT last_insert_rowid()");
+        db.close();
+
+        db = helper.runMigrationsAndValidate(DB_NAME, 3, false, ChatLogDatabase.MIGRATION_2_3);
+
+        assertEquals(Arrays.asList(id + "|3|hi|key|" + expectedSize(600, "#chan")),
+                queryRows(db, "SELECT id, type, text, dedupe_key, aprox_row_size FROM messages_logs"));
+        try (Cursor c = db.query("SELECT extra FROM messages_logs")) {
+            assertTrue(c.moveToFirst());
+            assertArrayEquals(extra, c.getBlob(0));
+        }
+        assertEquals(Arrays.asList(SERVER_A + "|#chan|CHANNEL"),
+                queryRows(db, "SELECT serverId, channel, kind FROM conversations"));
+        db.close();
+    }
+
+    @Test
+    public void keepsTheIdSequenceWhenNoMessagesAreLeft() throws IOException {
+        SupportSQLiteDatabase db = helper.createDatabase(DB_NAME, 2);
+        long last = 0;
+        for (int i = 0; i < 3; i++)
+            last = insertV1(db, SERVER_A, "#chan", "CHANNEL", "text", 300);
+        db.execSQL("DELETE FROM messages_logs");
+        db.close();
+
+        db = helper.runMigrationsAndValidate(DB_NAME, 3, false, ChatLogDatabase.MIGRATION_2_3);
+
+        assertEquals(0, queryLong(db, "SELECT COUNT(*) FROM conversations"));
+        assertEquals(Arrays.asList("messages_logs|" + last),
+                queryRows(db, "SELECT name, seq FROM sqlite_sequence WHERE name LIKE 'messages_logs%'"));
+        db.execSQL("INSERT INTO conversations(serverId, channel, kind) VALUES (?, '#chan', 'CHANNEL')",
+                new Object[]{SERVER_A});
+        db.execSQL("INSERT INTO messages_logs(conversation_id, timestamp, type, aprox_row_size) " +
+                "VALUES (last_insert_rowid(), 0, 0, 0)");
+        assertEquals(last + 1, queryLong(db, "SELECT MAX(id) FROM messages_logs"));
+        db.close();
+    }
+
+}
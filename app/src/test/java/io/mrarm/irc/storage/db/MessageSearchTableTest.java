@@ -0,0 +1,170 @@
+package io.mrarm.irc.storage.db;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.room.Room;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.SQLiteMode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+// The legacy sqlite4java build has no unicode61 tokenizer
+@RunWith(RobolectricTestRunner.class)
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class MessageSearchTableTest {
+
+    private ChatLogDatabase db;
+    private SupportSQLiteDatabase raw;
+    private MessageSearchTable searchTable;
+    private long conversationId;
+
+    @Before
+    public void setUp() {
+        db = Room.inMemoryDatabaseBuilder(RuntimeEnvironment.getApplication(), ChatLogDatabase.class)
+                .allowMainThreadQueries()
+                .build();
+        raw = db.getOpenHelper().getWritableDatabase();
+        searchTable = new MessageSearchTable(db);
+
+        ContentValues values = new ContentValues();
+        values.put("serverId", Converters.uuidToString(UUID.randomUUID()));
+        values.put("channel", "#test");
+        values.put("kind", Converters.fromMessageKind(MessageKind.CHANNEL));
+        conversationId = raw.insert("conversations", SQLiteDatabase.CONFLICT_ABORT, values);
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+    }
+
+    private long insertMessage(String text) {
+        ContentValues values = new ContentValues();
+        values.put("conversation_id", conversationId);
+        values.put("timestamp", 0L);
+        values.put("type", 0);
+        values.put("text", text);
+        values.put("aprox_row_size", 0);
+        return raw.insert("messages_logs", SQLiteDatabase.CONFLICT_ABORT, values);
+    }
+
+    private void deleteMessage(long id) {
+        raw.execSQL("DELETE FROM messages_logs WHERE id = ?", new Object[]{id});
+    }
+
+    private List<Long> search(String text) {
+        List<Long> ret = new ArrayList<>();
+        try (Cursor c = raw.query("SELECT docid FROM messages_fts WHERE messages_fts MATCH ? ORDER BY docid",
+                new Object[]{MessageSearchTable.toMatchExpression(text)})) {
+            while (c.moveToNext())
+                ret.add(c.getLong(0));
+        }
+        return ret;
+    }
+
+    // Fails with SQLITE_CORRUPT_VTAB if the index does not match messages_logs exactly; only valid once the backfill
+    // is done, as the rows below it are not indexed yet
+    private void assertIndexIntact() {
+        raw.execSQL("INSERT INTO messages_fts(messages_fts) VALUES('integrity-check')");
+    }
+
+    private void backfillAll() {
+        while (searchTable.backfill(2) > 0) {
+            // continue
+        }
+        assertEquals(0, searchTable.getBackfillPosition());
+    }
+
+    @Test
+    public void indexesNewMessages() {
+        MessageSearchTable.install(raw);
+        long hello = insertMessage("hello world");
+        long bye = insertMessage("goodbye World");
+
+        assertEquals(Arrays.asList(hello, bye), search("world"));
+        assertEquals(Collections.singletonList(hello), search("hel"));
+        assertEquals(Collections.singletonList(bye), search("goodbye world"));
+        assertIndexIntact();
+    }
+
+    @Test
+    public void removesDeletedAndEditedMessages() {
+        MessageSearchTable.install(raw);
+        long hello = insertMessage("hello world");
+        long bye = insertMessage("goodbye world");
+
+        deleteMessage(hello);
+        assertEquals(Collections.singletonList(bye), search("world"));
+        assertTrue(search("hello").isEmpty());
+
+        raw.execSQL("UPDATE messages_logs SET text = 'see you' WHERE id = ?", new Object[]{bye});
+        assertTrue(search("world").isEmpty());
+        assertEquals(Collections.singletonList(bye), search("see"));
+        assertIndexIntact();
+    }
+
+    @Test
+    public void backfillsExistingMessagesNewestFirst() {
+        List<Long> old = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            old.add(insertMessage("old message " + i));
+        MessageSearchTable.install(raw);
+        assertEquals((long) old.get(4), searchTable.getBackfillPosition());
+        assertTrue(search("old").isEmpty());
+
+        // New messages are searchable right away
+        long recent = insertMessage("recent message");
+        assertEquals(Collections.singletonList(recent), search("message"));
+
+        assertEquals(2, searchTable.backfill(2));
+        assertEquals((long) old.get(2), searchTable.getBackfillPosition());
+        assertEquals(Arrays.asList(old.get(3), old.get(4)), search("old"));
+
+        backfillAll();
+        assertEquals(old, search("old"));
+        assertEquals(0, searchTable.backfill(2));
+        assertIndexIntact();
+    }
+
+    @Test
+    public void skipsRowsNotIndexedYetOnDelete() {
+        List<Long> old = new ArrayList<>();
+        for (int i = 0; i < 6; i++)
+            old.add(insertMessage("old message " + i));
+        MessageSearchTable.install(raw);
+        assertEquals(2, searchTable.backfill(2));
+        long next = searchTable.getBackfillPosition();
+        assertEquals((long) old.get(3), next);
+
+        // Right at the boundary: not indexed, removing it from the index would corrupt it
+        deleteMessage(next);
+        // Right above it: indexed by the backfill, has to go
+        deleteMessage(next + 1);
+        // Further down, and an edit of a row which is not indexed either
+        deleteMessage(old.get(0));
+        raw.execSQL("UPDATE messages_logs SET text = 'edited' WHERE id = ?", new Object[]{old.get(1)});
+
+        assertEquals(Collections.singletonList(old.get(5)), search("old"));
+
+        backfillAll();
+        assertEquals(Arrays.asList(old.get(2), old.get(5)), search("old"));
+        assertEquals(Collections.singletonList(old.get(1)), search("edited"));
+        assertIndexIntact();
+    }
+
+}
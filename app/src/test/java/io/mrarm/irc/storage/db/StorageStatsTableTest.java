@@ -0,0 +1,191 @@
+package io.mrarm.irc.storage.db;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.room.Room;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+public class StorageStatsTableTest {
+
+    private static final UUID SERVER_A = UUID.fromString("00000000-0000-0000-0000-00000000000a");
+    private static final UUID SERVER_B = UUID.fromString("00000000-0000-0000-0000-00000000000b");
+
+    private ChatLogDatabase db;
+    private SupportSQLiteDatabase raw;
+    private StorageStatsTable stats;
+
+    private long channelA;
+    private long channelB;
+    private long channelC;
+
+    @Before
+    public void setUp() {
+        db = Room.inMemoryDatabaseBuilder(RuntimeEnvironment.getApplication(), ChatLogDatabase.class)
+                .allowMainThreadQueries()
+                .build();
+        raw = db.getOpenHelper().getWritableDatabase();
+        StorageStatsTable.install(raw);
+        stats = new StorageStatsTable(db);
+        channelA = insertConversation(SERVER_A, "#a");
+        channelB = insertConversation(SERVER_A, "#b");
+        channelC = insertConversation(SERVER_B, "#c");
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+    }
+
+    private long insertConversation(UUID serverId, String channel) {
+        ContentValues values = new ContentValues();
+        values.put("serverId", Converters.uuidToString(serverId));
+        values.put("channel", channel);
+        values.put("kind", Converters.fromMessageKind(MessageKind.CHANNEL));
+        return raw.insert("conversations", SQLiteDatabase.CONFLICT_ABORT, values);
+    }
+
+    private long insertMessage(long conversationId, int size) {
+        ContentValues values = new ContentValues();
+        values.put("conversation_id", conversationId);
+        values.put("timestamp", 0L);
+        values.put("type", 0);
+        values.put("text", "hello");
+        values.put("aprox_row_size", size);
+        return raw.insert("messages_logs", SQLiteDatabase.CONFLICT_ABORT, values);
+    }
+
+    private void deleteMessage(long id) {
+        raw.execSQL("DELETE FROM messages_logs WHERE id = ?", new Object[]{id});
+    }
+
+    private static List<String> rows(SupportSQLiteDatabase raw, String sql) {
+        List<String> ret = new ArrayList<>();
+        try (Cursor c = raw.query(sql)) {
+            while (c.moveToNext())
+                ret.add(c.getLong(0) + ": " + c.getLong(1) + " rows, " + c.getLong(2) + " bytes, oldest " +
+                        c.getLong(3));
+        }
+        return ret;
+    }
+
+    // The triggers must always leave what a full scan of messages_logs would give
+    private void assertMatchesScan() {
+        assertEquals(rows(raw, """
+                        SELECT conversation_id, COUNT(*), SUM(aprox_row_size), MIN(id) FROM messages_logs
+                        GROUP BY conversation_id ORDER BY conversation_id
+                        """),
+                rows(raw, """
+                        SELECT conversation_id, row_count, byte_count, oldest_id FROM storage_stats
+                        ORDER BY conversation_id
+                        """));
+    }
+
+    private StorageStatsTable.ChannelStats channelStats(UUID serverId, String channel) {
+        for (StorageStatsTable.ChannelStats s : stats.getChannelStats(serverId)) {
+            if (s.channel.equals(channel))
+                return s;
+        }
+        return null;
+    }
+
+    @Test
+    public void countsInsertedMessages() {
+        long first = insertMessage(channelA, 10);
+        insertMessage(channelA, 20);
+        insertMessage(channelB, 5);
+        insertMessage(channelC, 100);
+
+        assertMatchesScan();
+        assertEquals(35, stats.getUsageForServer(SERVER_A));
+        assertEquals(3, stats.getMessageCountForServer(SERVER_A));
+        assertEquals(100, stats.getUsageForServer(SERVER_B));
+        assertEquals(135, stats.getGlobalUsage());
+        assertEquals(4, stats.getGlobalMessageCount());
+
+        StorageStatsTable.ChannelStats a = channelStats(SERVER_A, "#a");
+        assertNotNull(a);
+        assertEquals(2, a.rowCount);
+        assertEquals(30, a.byteCount);
+        assertEquals(Long.valueOf(first), a.oldestId);
+    }
+
+    @Test
+    public void keepsStatsConsistentAfterDeletes() {
+        long first = insertMessage(channelA, 10);
+        long second = insertMessage(channelA, 20);
+        long third = insertMessage(channelA, 30);
+        long onlyB = insertMessage(channelB, 5);
+
+        // The oldest row moves on to the next one
+        deleteMessage(first);
+        assertMatchesScan();
+        assertEquals(Long.valueOf(second), channelStats(SERVER_A, "#a").oldestId);
+        assertEquals(50, channelStats(SERVER_A, "#a").byteCount);
+
+        // Deleting a newer row keeps the oldest id
+        deleteMessage(third);
+        assertMatchesScan();
+        assertEquals(Long.valueOf(second), channelStats(SERVER_A, "#a").oldestId);
+
+        // A conversation without messages has no row at all
+        deleteMessage(onlyB);
+        assertMatchesScan();
+        assertNull(channelStats(SERVER_A, "#b"));
+        assertEquals(20, stats.getUsageForServer(SERVER_A));
+
+        raw.execSQL("DELETE FROM messages_logs WHERE conversation_id = ?", new Object[]{channelA});
+        assertMatchesScan();
+        assertEquals(0, stats.getUsageForServer(SERVER_A));
+        assertTrue(stats.getUsageForAllServers().isEmpty());
+    }
+
+    @Test
+    public void movesStatsOnUpdate() {
+        long id = insertMessage(channelA, 10);
+        insertMessage(channelA, 20);
+
+        raw.execSQL("UPDATE messages_logs SET aprox_row_size = 15 WHERE id = ?", new Object[]{id});
+        assertMatchesScan();
+        assertEquals(35, stats.getUsageForServer(SERVER_A));
+
+        raw.execSQL("UPDATE messages_logs SET conversation_id = ? WHERE id = ?", new Object[]{channelC, id});
+        assertMatchesScan();
+        assertEquals(20, stats.getUsageForServer(SERVER_A));
+        assertEquals(15, stats.getUsageForServer(SERVER_B));
+    }
+
+    @Test
+    public void rebuildsStatsWhenTriggersAreMissing() {
+        insertMessage(channelA, 10);
+        insertMessage(channelB, 20);
+        // As after messages_logs was recreated: rows written without the triggers
+        raw.execSQL("DROP TRIGGER storage_stats_insert");
+        insertMessage(channelA, 30);
+        insertMessage(channelC, 40);
+
+        StorageStatsTable.install(raw);
+        assertMatchesScan();
+        assertEquals(100, stats.getGlobalUsage());
+
+        // And the triggers are back
+        insertMessage(channelB, 1);
+        assertMatchesScan();
+    }
+
+}
@@ -0,0 +1,76 @@
+package io.mrarm.irc.util;
+
+import android.text.Spannable;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.style.URLSpan;
+import android.text.util.Linkify;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import io.mrarm.irc.chatlib.dto.ModeList;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures {@link MessageTokenizer} against the previous path: Linkify for the links, a regex for the channel names
+ * and the compiled nick notification rule for mentions. Runs on Robolectric, as Linkify and the span classes are
+ * Android ones. The numbers are printed rather than asserted, as they depend on the machine running the tests.
+ * Skipped unless the tests are run with {@code -Pbenchmarks}; {@link MessageTokenizerTest} checks the tokens.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MessageTokenizerBenchmark {
+
+    private static final String NICK = "tester";
+    private static final String[] CORPUS = MessageTokenizerTest.LINES;
+    private static final int ITERATIONS = 20_000;
+
+    private static final Pattern CHANNEL_PATTERN = Pattern.compile("(^| )(#[^ ,\u0007]+)");
+
+    @Test
+    public void benchmarkTokenize() {
+        assumeTrue("benchmarks are only run with -Pbenchmarks", Boolean.getBoolean("benchmarks"));
+        Pattern rule = MessageTokenizerTest.nickRule(NICK);
+        ModeList channelTypes = new ModeList("#");
+        for (int round = 0; round < 3; round++) {
+            long sink = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                String line = CORPUS[i % CORPUS.length];
+                Spannable spannable = new SpannableString(line);
+                Linkify.addLinks(spannable, Linkify.WEB_URLS);
+                Matcher matcher = CHANNEL_PATTERN.matcher(spannable);
+                while (matcher.find()) {
+                    for (Object o : spannable.getSpans(matcher.start(2), matcher.end(2), URLSpan.class))
+                        spannable.removeSpan(o);
+                    spannable.setSpan(new LinkHelper.ChannelLinkSpan(matcher.group(2)), matcher.start(2),
+                            matcher.end(2), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                }
+                if (rule.matcher(line).find())
+                    sink++;
+                sink += spannable.getSpans(0, spannable.length(), Object.class).length;
+            }
+            long legacyTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                String line = CORPUS[i % CORPUS.length];
+                Spannable spannable = (Spannable) LinkHelper.addLinks(line, channelTypes);
+                if (MessageTokenizer.containsMention(line, NICK))
+                    sink++;
+                sink += spannable.getSpans(0, spannable.length(), Object.class).length;
+            }
+            long tokenizerTime = System.nanoTime() - start;
+
+            System.out.printf("Message links and mentions: Linkify + regex %.1f us/message, " +
+                            "MessageTokenizer %.1f us/message (%d)%n",
+                    legacyTime / 1000.0 / ITERATIONS, tokenizerTime / 1000.0 / ITERATIONS, sink & 1);
+        }
+    }
+
+}
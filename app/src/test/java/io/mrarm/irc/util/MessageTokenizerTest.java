@@ -0,0 +1,148 @@
+package io.mrarm.irc.util;
+
+import android.text.Spanned;
+import android.text.style.URLSpan;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import io.mrarm.irc.chatlib.dto.ModeList;
+import io.mrarm.irc.config.NotificationRule;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks what {@link MessageTokenizer} finds. Runs on Robolectric, as the span classes are Android ones.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MessageTokenizerTest {
+
+    private static final String NICK = "tester";
+
+    // Also the corpus of MessageTokenizerBenchmark
+    static final String[] LINES = {
+            "hey, anyone around?",
+            "tester: did you see https://github.com/example/project/pull/1234 yet?",
+            "lol",
+            "the docs are at www.example.org/docs/getting-started.html (see the FAQ section)",
+            "join #project-dev for that, this channel is for support",
+            "I pushed a fix, it's in the release branch now",
+            "tester, ping",
+            "see https://en.wikipedia.org/wiki/Internet_Relay_Chat_(protocol) for history",
+            "has anyone tried building with gradle 8.7? getting a weird error about the toolchain",
+            "#help and #offtopic are linked in the topic",
+            "ok thanks",
+            "paste: https://paste.example.net/raw/aB3dE9 - fails on the second line",
+            "TESTER: your bouncer is reconnecting every few minutes",
+            "node.js and python3.12 both work fine here",
+            "mirror at ftp://ftp.example.net/pub/releases/1.2.3/ or http://[2001:db8::1]/pub",
+            "afk for lunch",
+            "\"https://example.com/quoted\" should not include the quotes.",
+            "what's the channel for the wiki? ##wiki-talk?",
+            "we discussed this in &local earlier",
+            "the cert for irc.example.net expired, use ircs://irc.example.net:6697/#project",
+    };
+
+    @Test
+    public void findsLinks() {
+        assertEquals(list("URL https://github.com/example/project/pull/1234"),
+                tokens("tester: did you see https://github.com/example/project/pull/1234 yet?", null));
+        assertEquals(list("URL www.example.org/docs/getting-started.html"),
+                tokens("the docs are at www.example.org/docs/getting-started.html (see the FAQ section)", null));
+        assertEquals(list("URL https://en.wikipedia.org/wiki/Internet_Relay_Chat_(protocol)"),
+                tokens("see https://en.wikipedia.org/wiki/Internet_Relay_Chat_(protocol) for history", null));
+        assertEquals(list("URL http://example.com/a"), tokens("(http://example.com/a)", null));
+        assertEquals(list("URL https://example.com/quoted"),
+                tokens("\"https://example.com/quoted\" should not include the quotes.", null));
+        assertEquals(list("URL example.com/page"), tokens("it's example.com/page.", null));
+        assertEquals(list(), tokens("node.js and python3.12 both work fine here", null));
+        assertEquals(list("URL github.com"), tokens("it's on github.com's issue tracker", null));
+        assertEquals(list("URL irc.example.net"), tokens("the cert for irc.example.net expired", null));
+        assertEquals(list("URL Example.ORG:8080/x"), tokens("try Example.ORG:8080/x.", null));
+        assertEquals(list("URL example.com"), tokens("example.com: down again", null));
+        assertEquals(list(), tokens("run setup.sh or main.py", null));
+        assertEquals(list(), tokens("mail me at someone@example.com/x", null));
+        assertEquals(list(), tokens("http:// and www.x", null));
+    }
+
+    @Test
+    public void findsChannels() {
+        assertEquals(list("CHANNEL #project-dev"), tokens("join #project-dev for that", null));
+        assertEquals(list("CHANNEL #help", "CHANNEL #offtopic"),
+                tokens("#help and #offtopic are linked in the topic", null));
+        assertEquals(list("CHANNEL ##wiki-talk?"), tokens("channel? ##wiki-talk?", null));
+        assertEquals(list(), tokens("issue#12 and # alone", null));
+        assertEquals(list(), tokens("we discussed this in &local earlier", null));
+        assertEquals(list("CHANNEL &local"), tokens("we discussed this in &local earlier", new ModeList("#&")));
+        assertEquals(list("URL ircs://irc.example.net:6697/#project"),
+                tokens("use ircs://irc.example.net:6697/#project", null));
+    }
+
+    @Test
+    public void findsMentions() {
+        assertTrue(MessageTokenizer.containsMention("tester: hi", NICK));
+        assertTrue(MessageTokenizer.containsMention("hi @TESTER?", NICK));
+        assertFalse(MessageTokenizer.containsMention("testers and retester", NICK));
+        assertTrue(MessageTokenizer.containsMention("tester, ping", NICK));
+        assertTrue(MessageTokenizer.containsMention("ping tester", NICK));
+        assertTrue(MessageTokenizer.containsMention("is that tester's?", NICK));
+        assertFalse(MessageTokenizer.containsMention("testers are here", NICK));
+        assertFalse(MessageTokenizer.containsMention("ping tester", null));
+        assertFalse(MessageTokenizer.containsMention(null, NICK));
+    }
+
+    @Test
+    public void mentionsMatchNickRule() {
+        Pattern rule = nickRule(NICK);
+        String[] extra = {"tester", "xtester", "tester!", ";tester'", "@tester:", "Tester", "a tester b"};
+        for (String[] lines : new String[][] { LINES, extra }) {
+            for (String line : lines)
+                assertEquals(line, rule.matcher(line).find(), MessageTokenizer.containsMention(line, NICK));
+        }
+    }
+
+    @Test
+    public void toUrl() {
+        assertEquals("http://www.example.org/x", MessageTokenizer.toUrl("www.example.org/x"));
+        assertEquals("https://Example.org/", MessageTokenizer.toUrl("HTTPS://Example.org/"));
+    }
+
+    @Test
+    public void addLinks() {
+        Spanned spanned = (Spanned) LinkHelper.addLinks("see #help or www.example.org");
+        LinkHelper.ChannelLinkSpan[] channels = spanned.getSpans(0, spanned.length(),
+                LinkHelper.ChannelLinkSpan.class);
+        assertEquals(1, channels.length);
+        assertEquals(4, spanned.getSpanStart(channels[0]));
+        URLSpan[] urls = spanned.getSpans(0, spanned.length(), URLSpan.class);
+        assertEquals(1, urls.length);
+        assertEquals("http://www.example.org", urls[0].getURL());
+    }
+
+    static Pattern nickRule(String nick) {
+        return Pattern.compile(NotificationRule.NICK_MENTION_REGEX.replace("${nick}", Pattern.quote(nick)),
+                Pattern.CASE_INSENSITIVE);
+    }
+
+    private static List<String> tokens(String text, ModeList channelTypes) {
+        List<String> ret = new ArrayList<>();
+        MessageTokenizer.tokenize(text, channelTypes, (type, start, end) -> {
+            String name = type == MessageTokenizer.TOKEN_URL ? "URL" : "CHANNEL";
+            ret.add(name + " " + text.substring(start, end));
+        });
+        return ret;
+    }
+
+    private static List<String> list(String... items) {
+        List<String> ret = new ArrayList<>();
+        for (String item : items)
+            ret.add(item);
+        return ret;
+    }
+
+}